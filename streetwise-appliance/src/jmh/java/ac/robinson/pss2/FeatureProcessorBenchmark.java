@@ -0,0 +1,82 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.Oscilloscope;
+import be.tarsos.dsp.SilenceDetector;
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost per captured buffer of AudioFeatureProcessor's single pass with the separate SilenceDetector and
+ * Oscilloscope passes it replaced (both with the display's waveform handler attached, as while recording). Run with
+ * <pre>gradle jmh</pre> (which also reports the allocation of each, using the gc profiler).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FeatureProcessorBenchmark {
+
+	private static final int BUFFER_SAMPLES = 512; // as captured by SilenceDetectingAudioRecorder
+
+	private AudioEvent mAudioEvent;
+	private AudioFeatureProcessor mFeatureProcessor;
+	private SilenceDetector mSilenceDetector;
+	private Oscilloscope mOscilloscope;
+	private float[] mLastWaveform;
+
+	@Setup
+	public void setUp() {
+		TarsosDSPAudioFormat format = new TarsosDSPAudioFormat(32000, 16, 1, true, false);
+		float[] buffer = new float[BUFFER_SAMPLES];
+		byte[] pcm = new byte[BUFFER_SAMPLES * 2];
+		for (int i = 0; i < BUFFER_SAMPLES; i++) { // a voiced sound
+			int sample = (int) (8000 * Math.sin(2 * Math.PI * 140 * i / 32000d) +
+					3000 * Math.sin(2 * Math.PI * 420 * i / 32000d));
+			pcm[2 * i] = (byte) sample;
+			pcm[2 * i + 1] = (byte) (sample >> 8);
+		}
+		TarsosDSPAudioFloatConverter.getConverter(format).toFloatArray(pcm, buffer);
+		mAudioEvent = new AudioEvent(format);
+		mAudioEvent.setFloatBuffer(buffer);
+
+		Oscilloscope.OscilloscopeEventHandler waveformHandler = (data, event) -> mLastWaveform = data;
+		int windowBufferCount = Pss2.NOISE_FLOOR_WINDOW_MS / 16; // 16ms buffers
+		mFeatureProcessor = new AudioFeatureProcessor(new NoiseFloorEndpointer(Pss2.SILENCE_THRESHOLD_DB,
+				Pss2.NOISE_FLOOR_MARGIN_DB, Pss2.NOISE_FLOOR_PERCENTILE, windowBufferCount));
+		mFeatureProcessor.setWaveformHandler(waveformHandler);
+		mSilenceDetector = new SilenceDetector(Pss2.SILENCE_THRESHOLD_DB, false);
+		mOscilloscope = new Oscilloscope(waveformHandler);
+	}
+
+	@Benchmark
+	public void fusedFeaturePass(Blackhole blackhole) {
+		mFeatureProcessor.process(mAudioEvent);
+		blackhole.consume(mFeatureProcessor.isCurrentBufferSpeech());
+		blackhole.consume(mFeatureProcessor.getPeak());
+		blackhole.consume(mLastWaveform);
+	}
+
+	@Benchmark
+	public void separatePasses(Blackhole blackhole) {
+		mSilenceDetector.process(mAudioEvent);
+		mOscilloscope.process(mAudioEvent);
+		blackhole.consume(mSilenceDetector.currentSPL() > Pss2.SILENCE_THRESHOLD_DB); // as the recorder checked
+		blackhole.consume(mLastWaveform);
+	}
+}
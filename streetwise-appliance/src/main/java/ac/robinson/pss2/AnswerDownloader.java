@@ -10,58 +10,343 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
 
+/**
+ * Downloads answers to this device's questions in the background, so they are ready before their numbers are entered.
+ * New answers are normally notified as soon as they are received (see AnswerNotificationChannel); the server's list of
+ * answered questions is also checked regularly - every CHECK_INTERVAL while notifications aren't available, and less
+ * often while they are, in case one was missed.
+ * <p>
+ * The answered list is synced incrementally: the server returns only the answers received since a cursor (the newest
+ * answer's modification time on the server), along with the next cursor, which is stored so that no answers are missed
+ * however long the appliance is offline. Answers that need downloading are stored as pending until their download has
+ * completed, so those that fail (or are interrupted by a restart) are retried at the next check, even though the
+ * cursor has moved past them.
+ * <p>
+ * Answers that someone is waiting for are downloaded here too, so that each answer is only ever downloaded once at a
+ * time (however many times it is requested), and so that only a few downloads compete for the connection - see
+ * {@link #downloadAnswer(int, String, Priority, DownloadCompletedCallback)}.
+ */
 class AnswerDownloader {
 	private static final int CHECK_INTERVAL = 120; // seconds (default: 2 minutes)
+	private static final int CONNECTED_CHECK_INTERVAL = 300; // seconds (default: 5 minutes)
 
 	private static final int DOWNLOAD_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_CONCURRENT_DOWNLOADS = 2; // more would only slow each other (and playback) down
+	private static final String TEMP_FILE_EXTENSION = ".part";
 
-	private ScheduledFuture mScheduledFuture;
+	private static final String SYNC_CURSOR_FILE_NAME = "answers.cursor";
+	private static final String PENDING_DOWNLOADS_FILE_NAME = "answers.pending";
+
+	private final String mAnswersUrl;
+	private final ScheduledExecutorService mScheduledExecutorService;
+	private ScheduledFuture mScheduledFuture; // guarded by this
+	private final AnswerNotificationChannel mNotificationChannel;
+	private volatile boolean mNotificationsConnected;
+
+	private final File mSyncCursorFile;
+	private long mSyncCursor; // guarded by this; 0 = sync everything
+	private final File mPendingDownloadsFile;
+	private final HashMap<Integer, String> mPendingDownloads = new HashMap<>(); // guarded by this; id -> answer url
 	private File mOutputDirectory;
 	private int mPss2Id;
+	private QuestionIndex mQuestionIndex;
+	private PcmAnswerCache mPcmAnswerCache;
+
+	enum Priority {
+		BACKGROUND, // answers downloaded in advance
+		INTERACTIVE // answers someone is waiting to hear - these preempt background downloads
+	}
+
+	// each answer being downloaded (or waiting) has a single download, however many times it has been requested
+	private final HashMap<Integer, Download> mDownloads = new HashMap<>(); // guarded by this
+	private final ArrayDeque<Download> mInteractiveQueue = new ArrayDeque<>(); // guarded by this
+	private final ArrayDeque<Download> mBackgroundQueue = new ArrayDeque<>(); // guarded by this
+	private final List<Download> mRunningDownloads = new ArrayList<>(); // guarded by this; oldest first
 
 	interface DownloadCompletedCallback {
+		/**
+		 * Called once the server has responded, just before the answer starts to be written to disk, with a stream
+		 * that can be used to read the answer as it downloads (the answer is still cached as normal). If a background
+		 * download is preempted, its streams fail, and this is called again when it restarts
+		 */
+		default void onDownloadStarted(DownloadStream downloadStream) {
+		}
+
 		void onDownloadComplete(String outputLocation);
 
 		void onDownloadFailed();
 	}
 
-	AnswerDownloader(File storageDirectory, int pss2Id) {
+	/**
+	 * Reads an answer while it is being downloaded, from the file it is being written to. Reads block until more of the
+	 * file has arrived. If the download fails, whatever was received is still returned, then the stream ends as normal
+	 * (some decoders never give up on a stream that keeps throwing exceptions) - use {@link #hasFailed()} to check.
+	 * <p>
+	 * The file is opened as soon as the stream is created, as the download may finish (and the file be renamed) before
+	 * the first read.
+	 */
+	static class DownloadStream extends InputStream {
+		private final String mFileExtension;
+		private final File mCompletedFile;
+
+		private final Object mProgressLock = new Object();
+		private long mBytesWritten;
+		private boolean mCompleted;
+		private boolean mFailed;
+		private volatile boolean mClosed; // (also checked by reads in progress)
+
+		private final Object mReaderLock = new Object();
+		private final RandomAccessFile mFileReader; // null if neither file could be opened
+		private long mPosition;
+
+		/**
+		 * @param file          The file being downloaded to
+		 * @param completedFile What the file is renamed to once the download has completed
+		 */
+		private DownloadStream(File file, File completedFile, String fileExtension) {
+			mFileExtension = fileExtension;
+			mCompletedFile = completedFile;
+			RandomAccessFile fileReader = null;
+			for (File candidate : new File[]{file, completedFile}) {
+				try {
+					fileReader = new RandomAccessFile(candidate, "r"); // still readable once renamed or deleted
+					break;
+				} catch (FileNotFoundException ignored) {
+				}
+			}
+			mFileReader = fileReader;
+		}
+
+		String getFileExtension() {
+			return mFileExtension;
+		}
+
+		boolean hasFailed() {
+			synchronized (mProgressLock) {
+				return mFailed;
+			}
+		}
+
+		/**
+		 * Wait until the download has finished, for answers that can't be decoded while they are downloading
+		 *
+		 * @return The downloaded answer, or null if the download failed
+		 * @throws IOException If the stream is closed while waiting
+		 */
+		File waitForCompletedFile() throws IOException {
+			synchronized (mProgressLock) {
+				while (!mClosed && !mCompleted && !mFailed) {
+					try {
+						mProgressLock.wait();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (mClosed) {
+					throw new IOException("Download stream closed");
+				}
+				return mCompleted ? mCompletedFile : null;
+			}
+		}
+
+		private void onDataWritten(long totalBytes) {
+			synchronized (mProgressLock) {
+				mBytesWritten = Math.max(mBytesWritten, totalBytes); // (a stream added mid-download is caught up)
+				mProgressLock.notifyAll();
+			}
+		}
+
+		private void onFinished(boolean completed) {
+			synchronized (mProgressLock) {
+				mCompleted = completed;
+				mFailed = !completed;
+				mProgressLock.notifyAll();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] singleByte = new byte[1];
+			return read(singleByte, 0, 1) > 0 ? singleByte[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			long bytesWritten;
+			synchronized (mProgressLock) {
+				while (!mClosed && !mCompleted && !mFailed && mBytesWritten <= mPosition) {
+					try {
+						mProgressLock.wait();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (mClosed) {
+					throw new IOException("Download stream closed");
+				}
+				bytesWritten = mBytesWritten;
+				if (bytesWritten <= mPosition) {
+					return -1; // completed or failed
+				}
+			}
+
+			synchronized (mReaderLock) {
+				if (mFileReader == null) {
+					throw new FileNotFoundException("Download file not found");
+				}
+				if (mClosed) {
+					throw new IOException("Download stream closed");
+				}
+				int bytesRead = (int) Math.min(length, bytesWritten - mPosition);
+				mFileReader.seek(mPosition);
+				mFileReader.readFully(buffer, offset, bytesRead);
+				mPosition += bytesRead;
+				return bytesRead;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (mProgressLock) {
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, mBytesWritten - mPosition));
+			}
+		}
+
+		/**
+		 * Stop reading - can be called from any thread, and unblocks a read that is waiting for data
+		 */
+		@Override
+		public void close() {
+			synchronized (mProgressLock) {
+				mClosed = true;
+				mProgressLock.notifyAll();
+			}
+			synchronized (mReaderLock) { // (after any read in progress)
+				if (mFileReader != null) {
+					try {
+						mFileReader.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		}
+	}
+
+	AnswerDownloader(File storageDirectory, int pss2Id, QuestionIndex questionIndex, PcmAnswerCache pcmAnswerCache) {
+		this(Pss2.ANSWER_SERVER_URL, Pss2.ANSWER_EVENTS_URL, storageDirectory, pss2Id, questionIndex, pcmAnswerCache);
+	}
+
+	/**
+	 * @param answersUrl The answered list (responses.php)
+	 * @param eventsUrl  The answer event stream (answer_events.php)
+	 */
+	AnswerDownloader(String answersUrl, String eventsUrl, File storageDirectory, int pss2Id,
+					 QuestionIndex questionIndex, PcmAnswerCache pcmAnswerCache) {
+		mAnswersUrl = answersUrl;
 		mOutputDirectory = storageDirectory;
 		mPss2Id = pss2Id;
-		ScheduledExecutorService mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-		Runnable mInternetCheckRunnable = () -> {
+		mQuestionIndex = questionIndex;
+		mPcmAnswerCache = pcmAnswerCache;
+		mSyncCursorFile = new File(storageDirectory, SYNC_CURSOR_FILE_NAME);
+		try {
+			mSyncCursor = Long.parseLong(new String(Files.readAllBytes(mSyncCursorFile.toPath()),
+					StandardCharsets.UTF_8).trim());
+			Pss2.logEvent("Answer sync cursor loaded: " + mSyncCursor);
+		} catch (IOException | NumberFormatException e) {
+			Pss2.logEvent("No answer sync cursor found - syncing all answers");
+			mSyncCursor = 0;
+		}
+		mPendingDownloadsFile = new File(storageDirectory, PENDING_DOWNLOADS_FILE_NAME);
+		try {
+			for (String line : Files.readAllLines(mPendingDownloadsFile.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split("\t");
+				if (parts.length == 2) {
+					mPendingDownloads.put(Integer.parseInt(parts[0]), parts[1]);
+				}
+			}
+			Pss2.logEvent("Pending answer downloads loaded: " + mPendingDownloads.keySet());
+		} catch (IOException | NumberFormatException ignored) {
+			// no pending downloads
+		}
+		mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+		scheduleCheck(0);
+
+		mNotificationChannel = new AnswerNotificationChannel(eventsUrl, pss2Id,
+				new AnswerNotificationChannel.Listener() {
+					@Override
+					public void onAnswerReceived(int questionId, String answerUrl) {
+						HashMap<Integer, String> answerMap = new HashMap<>();
+						answerMap.put(questionId, answerUrl);
+						checkAndDownloadAnswers(answerMap);
+					}
+
+					@Override
+					public void onConnectionChanged(boolean connected) {
+						mNotificationsConnected = connected;
+						// on connection, check straight away for anything missed while disconnected
+						scheduleCheck(connected ? 0 : CHECK_INTERVAL);
+					}
+				});
+	}
+
+	/**
+	 * Check the answered list after the given delay (replacing any check already scheduled), then regularly
+	 */
+	private synchronized void scheduleCheck(int delay) {
+		if (mScheduledExecutorService.isShutdown()) {
+			return;
+		}
+		if (mScheduledFuture != null) {
+			mScheduledFuture.cancel(false);
+		}
+		mScheduledFuture = mScheduledExecutorService.schedule(() -> {
 			try {
 				downloadLatestAnswers();
 			} catch (Exception e) {
 				Pss2.logEvent("Background server answer downloader failed: " + e.getLocalizedMessage());
 			}
-		};
-		mScheduledFuture = mScheduledExecutorService.scheduleAtFixedRate(mInternetCheckRunnable, 0, CHECK_INTERVAL,
-				TimeUnit.SECONDS);
+			scheduleCheck(mNotificationsConnected ? CONNECTED_CHECK_INTERVAL : CHECK_INTERVAL);
+		}, delay, TimeUnit.SECONDS);
 	}
 
 	private void downloadLatestAnswers() {
 		Pss2.logEvent("Background checking server for recently answered questions");
-		HttpUrl url = HttpUrl.parse(Pss2.ANSWER_SERVER_URL);
+		HttpUrl url = HttpUrl.parse(mAnswersUrl);
 		if (url == null) {
-			Pss2.logEvent("Background server answer url error: " + Pss2.ANSWER_SERVER_URL);
+			Pss2.logEvent("Background server answer url error: " + mAnswersUrl);
 			return;
 		}
 
+		long syncCursor;
+		synchronized (this) {
+			syncCursor = mSyncCursor;
+		}
 		HttpUrl requestUrl = url.newBuilder()
 				.addQueryParameter("source", String.valueOf(mPss2Id))
 				.addQueryParameter("k", Pss2.SERVER_KEY)
 				.addQueryParameter("type", "answered")
+				.addQueryParameter("since", String.valueOf(syncCursor))
 				.build();
 		Request request = new Request.Builder().url(requestUrl).build();
 		Pss2.getOkHttpClient().newCall(request).enqueue(new Callback() {
@@ -89,10 +374,18 @@ class AnswerDownloader {
 						return;
 					}
 
+					long nextSyncCursor = -1;
 					try {
-						JSONArray tasks = new JSONArray(responseString);
-						Pss2.logEvent(
-								"Background server answer response success - parsing " + tasks.length() + " tasks");
+						JSONArray tasks;
+						if (responseString.trim().startsWith("{")) {
+							JSONObject syncResponse = new JSONObject(responseString);
+							nextSyncCursor = syncResponse.getLong("cursor");
+							tasks = syncResponse.getJSONArray("answers");
+						} else {
+							tasks = new JSONArray(responseString); // an older server - only the last 10 minutes
+						}
+						Pss2.logEvent("Background server answer response success - parsing " + tasks.length() +
+								" tasks (since " + syncCursor + ")");
 						for (int i = 0, n = tasks.length(); i < n; i += 1) {
 							JSONObject task = tasks.getJSONObject(i);
 							int questionId = task.getInt("id");
@@ -102,182 +395,372 @@ class AnswerDownloader {
 					} catch (JSONException e) {
 						Pss2.logEvent("Background server answer response parsing failed");
 						// Pss2.logEvent("Background server answer response parsing failed: " + responseString);
+						return;
 					}
 
+					synchronized (AnswerDownloader.this) {
+						for (HashMap.Entry<Integer, String> pendingDownload : mPendingDownloads.entrySet()) {
+							answerMap.putIfAbsent(pendingDownload.getKey(), pendingDownload.getValue());
+						}
+					}
 					if (answerMap.size() > 0) {
 						checkAndDownloadAnswers(answerMap);
 					} else {
 						Pss2.logEvent("Background server answer response found no answers to download");
 					}
+					if (nextSyncCursor >= 0) {
+						setSyncCursor(nextSyncCursor); // only once the answers have been handled
+					}
 				}
 			}
 		});
 	}
 
-	private void checkAndDownloadAnswers(HashMap<Integer, String> answerMap) {
+	// synchronized, as notifications and checks of the answered list can arrive at the same time
+	private synchronized void checkAndDownloadAnswers(HashMap<Integer, String> answerMap) {
 		Pss2.logEvent("Checking and downloading where necessary " + answerMap.size() + " answers");
 
-		// as in the answer app, most of this design complexity is so we can move or reinstall the application without
-		// losing all our storage (i.e., rather than a database) that is linked to a signing key
-
-		File[] fileList = mOutputDirectory.listFiles();
+		// answers we've already downloaded are skipped; the rest are downloaded if we have the matching question (or
+		// shared, if they are already being downloaded), and stay pending until their download has completed
 		StringBuilder ignoredAnswers = new StringBuilder();
-		if (fileList != null) {
-			// first remove any answers we've already downloaded
-			for (File file : fileList) {
-				String fileName = file.getName();
-				if (file.isFile()) {
-					Matcher answerMatcher = Pss2.ANSWER_FILE_PATTERN.matcher(fileName);
-					if (answerMatcher.matches()) {
-						try {
-							int questionId = Integer.parseInt(answerMatcher.group(1));
-							if (answerMap.get(questionId) != null) {
-								// Pss2.logEvent("Found local answer: task " + questionId + ", " + fileName +
-								//		" - not downloading");
-								ignoredAnswers.append(questionId).append(", ");
-								answerMap.remove(questionId);
-							}
-						} catch (Exception ignored) {
+		for (HashMap.Entry<Integer, String> answer : answerMap.entrySet()) {
+			int questionId = answer.getKey();
+			File answerFile = mQuestionIndex.getAnswerFile(questionId);
+			if (answerFile != null) {
+				// Pss2.logEvent("Found local answer: task " + questionId + ", " + answerFile.getName() +
+				//		" - not downloading");
+				ignoredAnswers.append(questionId).append(", ");
+				mPcmAnswerCache.add(answerFile); // (e.g., downloaded before pre-decoding, or cache was full)
+				mPendingDownloads.remove(questionId);
+			} else if (mQuestionIndex.isAwaitingAnswer(questionId) || mDownloads.containsKey(questionId)) {
+				Pss2.logEvent("No local version of server answer found: task " + questionId + " - starting download");
+				String answerUrl = answer.getValue();
+				mPendingDownloads.put(questionId, answerUrl);
+				downloadAnswer(questionId, answerUrl, Priority.BACKGROUND, new DownloadCompletedCallback() {
+					@Override
+					public void onDownloadComplete(String outputLocation) {
+						synchronized (AnswerDownloader.this) {
+							mPendingDownloads.remove(questionId);
+							storePendingDownloads();
 						}
 					}
-				}
 
-				if (answerMap.size() <= 0) {
-					// Pss2.logEvent("Server answer processing complete: all answers already downloaded");
-					break;
-				}
-
-			}
-
-			// now download any answers that remain, as long as we can find a matching question
-			if (answerMap.size() > 0) {
-				for (File file : fileList) {
-					if (file.isFile()) {
-						String fileName = file.getName();
-						Matcher questionMatcher = Pss2.QUESTION_FILE_PATTERN.matcher(fileName);
-						if (questionMatcher.matches()) {
-							try {
-								int questionId = Integer.parseInt(questionMatcher.group(1));
-								String answerFile = answerMap.get(questionId);
-								if (answerFile != null) {
-									Pss2.logEvent(
-											"No local version of server answer found: task " + questionId + "," + " " +
-													fileName + " - starting download");
-									downloadAnswer(questionId, answerFile, mOutputDirectory, null);
-									answerMap.remove(questionId);
-								}
-							} catch (Exception ignored) {
-							}
-						}
+					@Override
+					public void onDownloadFailed() {
+						Pss2.logEvent("Background download failed for task " + questionId +
+								" - retrying later");
 					}
-				}
+				});
+			} else {
+				mPendingDownloads.remove(questionId); // (not one of our questions, or no longer waiting for an answer)
 			}
 		}
+		storePendingDownloads(); // (before the sync cursor can move past these answers)
 
 		Pss2.logEvent("Answer downloading complete (previously downloaded: " + ignoredAnswers.toString() +
 				"; remainder not present locally)");
 	}
 
-	static void downloadAnswer(int localId, final String answerFile, File outputDirectory,
-							   DownloadCompletedCallback callback) {
-		String fileExtension = answerFile.trim().substring(answerFile.lastIndexOf("."));
-		Date answerDate = new Date();
-		final File tempFile = new File(outputDirectory, new SimpleDateFormat(
-				"'" + answerDate.getTime() + "'_yyyy-MM-dd_HH-mm-ss'" + fileExtension + "'").format(answerDate));
-		final File outputFile = new File(outputDirectory, String.format(Pss2.ANSWER_FILE_FORMAT, localId,
-				tempFile.getName()));
-		Pss2.logEvent(
-				"Downloading " + answerFile + " with local id " + localId + " to " + outputFile.getName() + " (temp:" +
-						" " + tempFile.getName() + ")");
+	private synchronized void setSyncCursor(long syncCursor) {
+		if (syncCursor == mSyncCursor) {
+			return;
+		}
+		mSyncCursor = syncCursor;
+		try {
+			writeFile(mSyncCursorFile, String.valueOf(syncCursor));
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to store answer sync cursor: " + e.getLocalizedMessage());
+		}
+	}
 
+	private synchronized void storePendingDownloads() {
+		StringBuilder pendingDownloads = new StringBuilder();
+		for (HashMap.Entry<Integer, String> pendingDownload : mPendingDownloads.entrySet()) {
+			pendingDownloads.append(pendingDownload.getKey()).append('\t').append(pendingDownload.getValue())
+					.append('\n');
+		}
 		try {
-			if (!outputFile.createNewFile()) {
-				Pss2.logEvent("Error initiating download: unable to create file");
-				if (callback != null) {
-					callback.onDownloadFailed();
-				}
-				return;
-			}
+			writeFile(mPendingDownloadsFile, pendingDownloads.toString());
 		} catch (IOException e) {
-			Pss2.logEvent("Error initiating download: " + e.getLocalizedMessage());
+			Pss2.logEvent("Unable to store pending answer downloads: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Replace a file's contents via a temporary file, so that it is never left partly written
+	 */
+	private static void writeFile(File file, String contents) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		Files.write(tempFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("Unable to rename (temp deleted: " + tempFile.delete() + ")");
+		}
+	}
+
+	/**
+	 * Download an answer, unless it is already being downloaded, in which case the callback is added to that download
+	 * instead (if it has already started, the callback is given a stream that reads it from the beginning). At most
+	 * MAX_CONCURRENT_DOWNLOADS run at once, and the rest wait in order of priority. An interactive download that has to
+	 * wait takes the place of the most recently started background download, which is cancelled and started again
+	 * later. A background download that is also requested interactively becomes interactive.
+	 *
+	 * @param callback If not null, told when the download starts and when it completes or fails
+	 */
+	void downloadAnswer(int questionId, String answerUrl, Priority priority, DownloadCompletedCallback callback) {
+		Request request;
+		try {
+			request = new Request.Builder().url(answerUrl).build();
+		} catch (IllegalArgumentException e) {
+			Pss2.logEvent("Download failed for " + answerUrl + ": " + e.getLocalizedMessage());
 			if (callback != null) {
 				callback.onDownloadFailed();
 			}
 			return;
 		}
 
-		try {
-			OkHttpClient okHttpClient = Pss2.getOkHttpClient();
-			Request request = new Request.Builder().url(answerFile).build();
-			okHttpClient.newCall(request).enqueue(new Callback() {
-				@Override
-				public void onFailure(Call call, IOException e) {
-					Pss2.logEvent("Failed to download " + answerFile + ": " + call + ", " + e.getLocalizedMessage() +
-							" (cache deleted: " + tempFile.delete() + ")");
-					if (callback != null) {
-						callback.onDownloadFailed();
+		DownloadStream downloadStream = null;
+		synchronized (this) {
+			Download download = mDownloads.get(questionId);
+			if (download == null) {
+				download = new Download(questionId, request, priority);
+				mDownloads.put(questionId, download);
+				mQuestionIndex.startDownload(questionId);
+				(priority == Priority.INTERACTIVE ? mInteractiveQueue : mBackgroundQueue).addLast(download);
+				Pss2.logEvent("Queued " + priority + " download of " + answerUrl + " for question " + questionId +
+						" (running: " + mRunningDownloads.size() + "; waiting: " + mInteractiveQueue.size() +
+						" interactive, " + mBackgroundQueue.size() + " background)");
+			} else {
+				Pss2.logEvent("Answer to question " + questionId + " is already being downloaded - sharing download");
+				if (priority == Priority.INTERACTIVE && download.mPriority == Priority.BACKGROUND) {
+					download.mPriority = Priority.INTERACTIVE;
+					if (mBackgroundQueue.remove(download)) {
+						mInteractiveQueue.addLast(download);
 					}
 				}
+			}
+			if (callback != null) {
+				download.mCallbacks.add(callback);
+				if (download.mResponding && !download.mPreempted) { // (a preempted download restarts all streams)
+					downloadStream = download.addStream();
+				}
+			}
+			startQueuedDownloads();
+		}
+		if (downloadStream != null) {
+			callback.onDownloadStarted(downloadStream);
+		}
+	}
 
-				@Override
-				public void onResponse(Call call, Response response) throws IOException {
-					ResponseBody responseBody = response.body();
-					if (!response.isSuccessful() || responseBody == null) {
-						Pss2.logEvent("Response error when downloading: " +
-								(responseBody != null ? responseBody.string() : null) + " (cache deleted: " +
-								tempFile.delete() + ")");
-						if (callback != null) {
-							callback.onDownloadFailed();
-						}
+	/**
+	 * Start waiting downloads while there are free slots (interactive first), then preempt background downloads for
+	 * any interactive downloads that are still waiting
+	 */
+	private synchronized void startQueuedDownloads() {
+		while (mRunningDownloads.size() < MAX_CONCURRENT_DOWNLOADS) {
+			Download download = mInteractiveQueue.pollFirst();
+			if (download == null) {
+				download = mBackgroundQueue.pollFirst();
+			}
+			if (download == null) {
+				break;
+			}
+			download.start();
+		}
+
+		int waiting = mInteractiveQueue.size();
+		for (Download download : mRunningDownloads) {
+			if (download.mPreempted) {
+				waiting -= 1; // its slot is already being freed
+			}
+		}
+		for (int i = mRunningDownloads.size() - 1; i >= 0 && waiting > 0; i--) {
+			Download download = mRunningDownloads.get(i);
+			if (download.mPriority == Priority.BACKGROUND && !download.mPreempted) {
+				Pss2.logEvent("Preempting background download for question " + download.mQuestionId);
+				download.mPreempted = true;
+				download.mCall.cancel(); // its slot is freed (and it is queued again) once the call has failed
+				waiting -= 1;
+			}
+		}
+	}
+
+	/**
+	 * A single answer download, shared by everything that has requested it. Apart from the number of bytes written, its
+	 * state is guarded by the downloader
+	 */
+	private class Download implements Callback {
+		private final int mQuestionId;
+		private final Request mRequest;
+		private final String mFileExtension;
+		private Priority mPriority;
+
+		private final List<DownloadCompletedCallback> mCallbacks = new ArrayList<>();
+		private final List<DownloadStream> mStreams = new CopyOnWriteArrayList<>(); // (also read while writing)
+		private File mTempFile;
+		private File mOutputFile;
+		private Call mCall; // null while waiting
+		private boolean mResponding;
+		private boolean mPreempted;
+		private volatile long mBytesWritten;
+
+		private Download(int questionId, Request request, Priority priority) {
+			mQuestionId = questionId;
+			mRequest = request;
+			String path = request.url().encodedPath();
+			mFileExtension = path.contains(".") ? path.substring(path.lastIndexOf(".")) : "";
+			mPriority = priority;
+		}
+
+		private void start() {
+			Date answerDate = new Date();
+			mOutputFile = new File(mOutputDirectory, String.format(Pss2.ANSWER_FILE_FORMAT, mQuestionId,
+					new SimpleDateFormat("'" + answerDate.getTime() + "'_yyyy-MM-dd_HH-mm-ss'" + mFileExtension + "'")
+							.format(answerDate)));
+			mTempFile = new File(mOutputDirectory, mOutputFile.getName() + TEMP_FILE_EXTENSION);
+			mBytesWritten = 0;
+			Pss2.logEvent("Downloading " + mRequest.url() + " with local id " + mQuestionId + " to " +
+					mOutputFile.getName() + " (" + mPriority + ")");
+
+			mRunningDownloads.add(this);
+			mCall = Pss2.getOkHttpClient().newCall(mRequest);
+			mCall.enqueue(this);
+		}
+
+		/**
+		 * @return A new stream for reading this download from the beginning - only valid once the server has responded
+		 */
+		private DownloadStream addStream() {
+			DownloadStream downloadStream = new DownloadStream(mTempFile, mOutputFile, mFileExtension);
+			mStreams.add(downloadStream);
+			downloadStream.onDataWritten(mBytesWritten);
+			return downloadStream;
+		}
+
+		@Override
+		public void onFailure(Call call, IOException e) {
+			Pss2.logEvent("Failed to download " + mRequest.url() + ": " + call + ", " + e.getLocalizedMessage() +
+					" (cache deleted: " + mTempFile.delete() + ")");
+			finish(false);
+		}
+
+		@Override
+		public void onResponse(Call call, Response response) throws IOException {
+			ResponseBody responseBody = response.body();
+			if (!response.isSuccessful() || responseBody == null) {
+				Pss2.logEvent("Response error when downloading: " +
+						(responseBody != null ? responseBody.string() : null) + " (cache deleted: " +
+						mTempFile.delete() + ")");
+				finish(false);
+				return;
+			}
+			BufferedSource source = responseBody.source();
+			BufferedSink sink = Okio.buffer(Okio.sink(mTempFile));
+			Buffer sinkBuffer = sink.buffer();
+
+			List<DownloadCompletedCallback> callbacks;
+			List<DownloadStream> downloadStreams = new ArrayList<>();
+			synchronized (AnswerDownloader.this) {
+				mResponding = true;
+				callbacks = new ArrayList<>(mCallbacks);
+				for (int i = 0; i < callbacks.size(); i++) {
+					downloadStreams.add(addStream());
+				}
+			}
+			for (int i = 0; i < callbacks.size(); i++) {
+				callbacks.get(i).onDownloadStarted(downloadStreams.get(i));
+			}
+
+			long contentLength = responseBody.contentLength();
+			long totalBytesRead = 0;
+			try {
+				for (long bytesRead; (bytesRead = source.read(sinkBuffer, DOWNLOAD_BUFFER_SIZE)) != -1; ) {
+					sink.emit(); // written to the file, so is now readable by the download streams
+					totalBytesRead += bytesRead;
+					mBytesWritten = totalBytesRead;
+					for (DownloadStream downloadStream : mStreams) {
+						downloadStream.onDataWritten(totalBytesRead);
+					}
+				}
+			} catch (IOException e) {
+				sink.close();
+				source.close();
+				Pss2.logEvent("Download interrupted for " + mRequest.url() + " after " + totalBytesRead + " bytes: " +
+						e.getLocalizedMessage() + " (cache deleted: " + mTempFile.delete() + ")");
+				finish(false);
+				return;
+			}
+			sink.flush();
+			sink.close();
+			source.close();
+
+			boolean downloadCompleted = totalBytesRead > 0 && totalBytesRead == contentLength &&
+					mTempFile.length() > 0;
+			if (downloadCompleted && mTempFile.renameTo(mOutputFile)) {
+				Pss2.logEvent("Download completed for " + mRequest.url() + " to " + mOutputFile.getName() + " (" +
+						totalBytesRead + " bytes)");
+				finish(true);
+			} else {
+				Pss2.logEvent("Download error checking " + mTempFile.getName() + " (cache deleted: " +
+						mTempFile.delete() + "; bytes read: " + totalBytesRead + " of " + contentLength + ")");
+				finish(false);
+			}
+		}
+
+		/**
+		 * Free this download's slot, then either queue it again (if it was preempted) or tell everything waiting for it
+		 */
+		private void finish(boolean completed) {
+			boolean restart;
+			List<DownloadCompletedCallback> callbacks;
+			List<DownloadStream> downloadStreams;
+			synchronized (AnswerDownloader.this) {
+				mRunningDownloads.remove(this);
+				restart = mPreempted && !completed;
+				callbacks = new ArrayList<>(mCallbacks);
+				downloadStreams = new ArrayList<>(mStreams);
+				mStreams.clear();
+				mCall = null;
+				mResponding = false;
+				mPreempted = false;
+				if (restart) {
+					(mPriority == Priority.INTERACTIVE ? mInteractiveQueue : mBackgroundQueue).addFirst(this);
+				} else {
+					mDownloads.remove(mQuestionId);
+					if (completed) {
+						mQuestionIndex.putAnswer(mQuestionId, mOutputFile); // (before anyone else can request it)
 					} else {
-						BufferedSource source = responseBody.source();
-						BufferedSink sink = Okio.buffer(Okio.sink(tempFile));
-						Buffer sinkBuffer = sink.buffer();
-
-						long contentLength = responseBody.contentLength();
-						long totalBytesRead = 0;
-						for (long bytesRead; (bytesRead = source.read(sinkBuffer, DOWNLOAD_BUFFER_SIZE)) != -1; ) {
-							sink.emit();
-							totalBytesRead += bytesRead;
-							// int progress = (int) ((totalBytesRead * 100) / contentLength);
-							// Log.v("Download progress for " + answerFile + ": " + progress);
-						}
-						sink.flush();
-						sink.close();
-						source.close();
-
-						if (totalBytesRead > 0 && totalBytesRead == contentLength && tempFile.length() > 0 &&
-								tempFile.renameTo(outputFile)) {
-							Pss2.logEvent(
-									"Download completed for " + answerFile + " to " + outputFile.getName() + " (" +
-											totalBytesRead + " bytes)");
-							if (callback != null) {
-								callback.onDownloadComplete(outputFile.getAbsolutePath());
-							}
-						} else {
-							Pss2.logEvent(
-									"Download error checking " + tempFile.getName() + " / " + outputFile.getName() +
-											" (cache deleted: " + tempFile.delete() + ", " + outputFile.delete() +
-											"; bytes read: " + totalBytesRead + " of " + contentLength + ")");
-							if (callback != null) {
-								callback.onDownloadFailed();
-							}
-						}
+						mQuestionIndex.downloadFailed(mQuestionId);
 					}
 				}
-			});
-		} catch (Exception e) {
-			Pss2.logEvent("Download failed for " + answerFile + " (cache deleted: " + tempFile.delete() + ", " +
-					outputFile.delete() + "): " + e.getLocalizedMessage());
-			if (callback != null) {
-				callback.onDownloadFailed();
+				startQueuedDownloads();
+			}
+
+			for (DownloadStream downloadStream : downloadStreams) {
+				downloadStream.onFinished(completed);
+			}
+			if (restart) {
+				return;
+			}
+			if (completed) {
+				mPcmAnswerCache.add(mOutputFile);
+			}
+			for (DownloadCompletedCallback callback : callbacks) {
+				if (completed) {
+					callback.onDownloadComplete(mOutputFile.getAbsolutePath());
+				} else {
+					callback.onDownloadFailed();
+				}
 			}
 		}
 	}
 
 	void stop() {
-		if (mScheduledFuture != null) {
-			mScheduledFuture.cancel(true);
+		mNotificationChannel.stop();
+		synchronized (this) {
+			if (mScheduledFuture != null) {
+				mScheduledFuture.cancel(true);
+			}
+			mScheduledExecutorService.shutdownNow();
 		}
 	}
 }
@@ -0,0 +1,186 @@
+package ac.robinson.pss2;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a connection open to the server's answer event stream (answer_events.php, which sends server-sent events), so
+ * that answers to questions asked at this appliance are downloaded as soon as they are received, rather than at the
+ * next check of the answered list (which still finds answers to questions asked elsewhere). The server ends each
+ * connection after a few minutes, and it may also drop; either way, we reconnect straight away after a clean end, or
+ * after an increasing delay after an error, passing the id of the last event received so that nothing is missed in
+ * between (if the gap is longer than the server's recent answers window, the answered list is still checked as normal).
+ * The listener is told whenever the channel connects or disconnects, so it can fall back to checking the answered list
+ * more often while the channel isn't available.
+ */
+class AnswerNotificationChannel {
+
+	private static final int READ_TIMEOUT = 45; // seconds - the server sends a keep-alive every 15 seconds
+	private static final int MIN_RETRY_DELAY = 5; // seconds - doubled after each failure, up to the maximum
+	// (a connection that ends sooner than this is also treated as a failure, in case the server can't hold it open)
+	private static final int MAX_RETRY_DELAY = 300; // seconds
+
+	interface Listener {
+		void onAnswerReceived(int questionId, String answerUrl);
+
+		void onConnectionChanged(boolean connected);
+	}
+
+	private final String mEventsUrl;
+	private final int mPss2Id;
+	private final Listener mListener;
+	private final OkHttpClient mOkHttpClient;
+	private final Thread mChannelThread;
+
+	private volatile boolean mStopped;
+	private volatile Call mCurrentCall;
+	private String mLastEventId; // only accessed on the channel thread
+	private boolean mConnected;
+
+	AnswerNotificationChannel(String eventsUrl, int pss2Id, Listener listener) {
+		mEventsUrl = eventsUrl;
+		mPss2Id = pss2Id;
+		mListener = listener;
+		mOkHttpClient = Pss2.getOkHttpClient().newBuilder() // (shares the connection pool and dispatcher)
+				.readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+				.build();
+		mChannelThread = new Thread(this::run, "AnswerNotificationChannel");
+		mChannelThread.setDaemon(true);
+		mChannelThread.start();
+	}
+
+	private void run() {
+		int retryDelay = MIN_RETRY_DELAY;
+		while (!mStopped) {
+			long connectionStartTime = System.currentTimeMillis();
+			try {
+				connect();
+				if (System.currentTimeMillis() - connectionStartTime < MIN_RETRY_DELAY * 1000L) {
+					throw new IOException("Connection closed immediately");
+				}
+				Pss2.logEvent("Answer notification channel ended by server - reconnecting");
+				retryDelay = MIN_RETRY_DELAY;
+			} catch (IOException e) {
+				if (mStopped) {
+					break;
+				}
+				Pss2.logEvent("Answer notification channel failed: " + e.getLocalizedMessage() + " - retrying in " +
+						retryDelay + "s");
+				setConnected(false);
+				try {
+					Thread.sleep(retryDelay * 1000L);
+				} catch (InterruptedException ignored) {
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			}
+		}
+		setConnected(false);
+	}
+
+	private void setConnected(boolean connected) {
+		if (connected != mConnected) {
+			mConnected = connected;
+			mListener.onConnectionChanged(connected);
+		}
+	}
+
+	/**
+	 * Read events until the server ends the stream
+	 */
+	private void connect() throws IOException {
+		HttpUrl url = HttpUrl.parse(mEventsUrl);
+		if (url == null) {
+			throw new IOException("Invalid URL: " + mEventsUrl);
+		}
+		HttpUrl.Builder urlBuilder = url.newBuilder()
+				.addQueryParameter("source", String.valueOf(mPss2Id))
+				.addQueryParameter("k", Pss2.SERVER_KEY);
+		if (mLastEventId != null) {
+			urlBuilder.addQueryParameter("since", mLastEventId);
+		}
+		Request request = new Request.Builder().url(urlBuilder.build()).header("Accept", "text/event-stream").build();
+		Call call = mOkHttpClient.newCall(request);
+		mCurrentCall = call;
+		if (mStopped) {
+			call.cancel();
+		}
+
+		try (Response response = call.execute()) {
+			ResponseBody responseBody = response.body();
+			if (!response.isSuccessful() || responseBody == null) {
+				throw new IOException("Unsuccessful response (" + response.code() + ")");
+			}
+			MediaType contentType = responseBody.contentType();
+			if (contentType == null || !"event-stream".equals(contentType.subtype())) {
+				throw new IOException("Not an event stream (" + contentType + ")");
+			}
+			Pss2.logEvent("Answer notification channel connected" + (mLastEventId != null ? " (since " +
+					mLastEventId + ")" : ""));
+			setConnected(true);
+
+			BufferedSource source = responseBody.source();
+			String eventId = null;
+			String eventType = null;
+			StringBuilder eventData = new StringBuilder();
+			for (String line; (line = source.readUtf8Line()) != null; ) {
+				if (line.isEmpty()) { // the end of an event
+					if (eventData.length() > 0) {
+						onEvent(eventType, eventData.toString());
+						if (eventId != null) {
+							mLastEventId = eventId;
+						}
+					}
+					eventId = null;
+					eventType = null;
+					eventData.setLength(0);
+				} else if (line.startsWith("id:")) {
+					eventId = line.substring(3).trim();
+				} else if (line.startsWith("event:")) {
+					eventType = line.substring(6).trim();
+				} else if (line.startsWith("data:")) {
+					if (eventData.length() > 0) {
+						eventData.append('\n');
+					}
+					eventData.append(line.substring(5).trim());
+				} // (comments - starting with ':' - and retry fields are ignored)
+			}
+		} finally {
+			mCurrentCall = null;
+		}
+	}
+
+	private void onEvent(String eventType, String eventData) throws IOException {
+		if ("error".equals(eventType)) {
+			throw new IOException("Server error");
+		}
+		try {
+			JSONObject answer = new JSONObject(eventData);
+			int questionId = answer.getInt("id");
+			String answerUrl = answer.getString("url");
+			Pss2.logEvent("Answer notification received for question " + questionId);
+			mListener.onAnswerReceived(questionId, answerUrl);
+		} catch (JSONException e) {
+			Pss2.logEvent("Answer notification parsing failed: " + eventData);
+		}
+	}
+
+	void stop() {
+		mStopped = true;
+		Call call = mCurrentCall;
+		if (call != null) {
+			call.cancel();
+		}
+		mChannelThread.interrupt();
+	}
+}
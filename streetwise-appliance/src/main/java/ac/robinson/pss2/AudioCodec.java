@@ -0,0 +1,77 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The encoding used to save (and upload) questions. Each codec is created once, and then produces a new
+ * {@link Stream} for each question. The codec used is selected by name (from /boot/pss2codec) - see
+ * {@link #create(String, AudioFormat)}.
+ */
+interface AudioCodec {
+
+	String MP3 = "mp3";
+	String OPUS = "opus";
+
+	/**
+	 * @param name   The name of the codec ({@link #MP3} or {@link #OPUS})
+	 * @param format The format of the PCM that will be encoded (as recorded)
+	 */
+	static AudioCodec create(String name, AudioFormat format) throws IOException {
+		switch (name) {
+			case MP3:
+				return new Mp3Encoder(format);
+			case OPUS:
+				return new OpusEncoder(format);
+			default:
+				throw new IOException("Unknown codec: " + name);
+		}
+	}
+
+	/**
+	 * @return The extension (including the dot) of files in this format
+	 */
+	String getFileExtension();
+
+	String getMimeType();
+
+	/**
+	 * @return The (approximate) bit rate of encoded audio, in kbps
+	 */
+	int getBitRate();
+
+	/**
+	 * Start encoding a new file. Streams are independent, so one may be finishing while the next is being encoded.
+	 */
+	Stream startStream(File outputFile) throws IOException;
+
+	void close();
+
+	/**
+	 * A single encoded file. Each stream must only be used from one thread at a time (though it doesn't matter which)
+	 */
+	interface Stream {
+		/**
+		 * Encode PCM (in the format given when creating the codec) and write it to the output file
+		 */
+		void encode(byte[] pcm, int offset, int length) throws IOException;
+
+		/**
+		 * Make sure everything encoded so far has been written to the output file (as far as the codec allows)
+		 *
+		 * @return The number of bytes of the output file that can now be read
+		 */
+		long flush() throws IOException;
+
+		/**
+		 * Finish encoding and close the output file
+		 */
+		void finish() throws IOException;
+
+		/**
+		 * Abandon encoding (if not already finished) - the output file is incomplete, and should be deleted
+		 */
+		void cancel();
+	}
+}
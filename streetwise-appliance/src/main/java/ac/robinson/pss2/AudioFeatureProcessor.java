@@ -0,0 +1,93 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.Oscilloscope;
+
+/**
+ * Calculates everything we need from each captured buffer in a single pass, without allocating: the sound level (for
+ * silence detection) and peak (for clipping detection), plus a downsampled copy of the waveform for the display. This
+ * replaces running TarsosDSP's SilenceDetector and Oscilloscope as separate processors over the same buffer.
+ */
+class AudioFeatureProcessor implements AudioProcessor {
+
+	private static final int WAVEFORM_WIDTH = 128; // one value per column of the OLED display
+	private static final int WAVEFORM_STEP = 2; // samples per column
+
+	private final NoiseFloorEndpointer mEndpointer;
+	private final float[] mWaveform;
+	private volatile Oscilloscope.OscilloscopeEventHandler mWaveformHandler;
+
+	private double mLevel;
+	private float mPeak;
+	private boolean mCurrentBufferIsSpeech;
+
+	AudioFeatureProcessor(NoiseFloorEndpointer endpointer) {
+		mEndpointer = endpointer;
+		mWaveform = new float[WAVEFORM_WIDTH];
+	}
+
+	/**
+	 * Start (or, if null, stop) sending waveform data to the display. Note that the same array is reused for every
+	 * buffer, so handlers that use it on another thread (or after returning) must copy it.
+	 */
+	void setWaveformHandler(Oscilloscope.OscilloscopeEventHandler waveformHandler) {
+		mWaveformHandler = waveformHandler;
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		float[] buffer = audioEvent.getFloatBuffer();
+		int length = buffer.length;
+
+		// note: kept branch-free (other than the loop itself) - this runs for every buffer, even when idle
+		double sumOfSquares = 0;
+		float peak = 0;
+		int waveformLength = Math.min(WAVEFORM_WIDTH, (length + WAVEFORM_STEP - 1) / WAVEFORM_STEP);
+		for (int i = 0; i < length; i++) {
+			float sample = buffer[i];
+			sumOfSquares += sample * sample;
+			peak = Math.max(peak, Math.abs(sample));
+		}
+		for (int i = 0; i < waveformLength; i++) {
+			mWaveform[i] = buffer[i * WAVEFORM_STEP];
+		}
+
+		// level is calculated in the same way as TarsosDSP's SilenceDetector, so existing thresholds still apply
+		mLevel = 20 * Math.log10(Math.sqrt(sumOfSquares) / length);
+		mPeak = peak;
+		mCurrentBufferIsSpeech = mEndpointer.isSpeech(mLevel);
+
+		Oscilloscope.OscilloscopeEventHandler waveformHandler = mWaveformHandler;
+		if (waveformHandler != null) {
+			waveformHandler.handleEvent(mWaveform, audioEvent);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether the buffer most recently processed was considered to be speech
+	 */
+	boolean isCurrentBufferSpeech() {
+		return mCurrentBufferIsSpeech;
+	}
+
+	/**
+	 * @return The sound pressure level (dB SPL) of the buffer most recently processed
+	 */
+	double getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * @return The largest absolute sample value (0-1) of the buffer most recently processed
+	 */
+	float getPeak() {
+		return mPeak;
+	}
+
+	@Override
+	public void processingFinished() {
+		// nothing to do
+	}
+}
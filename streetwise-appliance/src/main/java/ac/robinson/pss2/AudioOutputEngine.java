@@ -0,0 +1,401 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The only thing that plays audio: a single thread that owns a single, long-lived output line, and plays commands
+ * (prompts, sequences and answers) from a queue, one after another. Each command has a priority - commands are played
+ * in priority order (and in the order they were submitted within a priority), and a command that is submitted while
+ * one of a lower priority is playing interrupts it. Interrupted commands that can be restarted from the beginning (all
+ * prompts) are queued again; others are stopped. Every command returns a future that completes with true if it was
+ * played to the end, false if it was stopped (or cancelled), or exceptionally if it could not be played.
+ * <p>
+ * The engine also keeps track of latency - how long commands wait in the queue, and how long from starting a command
+ * until its first audio is written to the line.
+ */
+class AudioOutputEngine {
+
+	// everything is played in this format - prompts are converted when loaded, and answers as they are decoded
+	static final AudioFormat OUTPUT_FORMAT = new AudioFormat(44100, 16, 1, true, false);
+
+	private static final int LINE_BUFFER_MS = 100; // small, so that a command can be interrupted quickly
+	private static final int PCM_TRANSFER_MS = 20; // how often a playing command checks whether it should stop
+	private static final int QUEUE_CAPACITY = 16; // commands that may wait; more are refused (completed exceptionally)
+
+	enum Priority {
+		NORMAL, // announcements and other prompts that are not a direct response to someone's input
+		INTERACTIVE // responses to button and keypad input - these interrupt anything of a lower priority
+	}
+
+	/**
+	 * Audio to be played, in {@link #OUTPUT_FORMAT}
+	 */
+	interface Source {
+		/**
+		 * @return The number of bytes read (always whole frames), or -1 at the end of the audio
+		 */
+		int read(byte[] buffer, int offset, int length) throws IOException;
+
+		/**
+		 * @return Whether the source has been returned to its start, so that it can be played again if interrupted
+		 */
+		default boolean rewind() {
+			return false;
+		}
+
+		/**
+		 * Called (from another thread) when the command playing this source is stopped, so that a read that is waiting
+		 * for data (e.g., from a download) can give up straight away
+		 */
+		default void interrupt() {
+		}
+
+		default void close() {
+		}
+	}
+
+	/**
+	 * A source that plays one or more PCM buffers (e.g., memory-mapped prompts) back to back, without any gaps between
+	 * them. Each buffer is played from its position to its limit; the buffers themselves are not modified.
+	 */
+	static class PcmSource implements Source {
+		private final ByteBuffer[] mPcmSegments;
+		private int mSegment;
+
+		PcmSource(ByteBuffer... pcmSegments) {
+			mPcmSegments = new ByteBuffer[pcmSegments.length];
+			for (int i = 0; i < pcmSegments.length; i++) {
+				mPcmSegments[i] = pcmSegments[i].slice(); // our own position, so the same buffer can be played twice
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			while (mSegment < mPcmSegments.length && !mPcmSegments[mSegment].hasRemaining()) {
+				mSegment += 1;
+			}
+			if (mSegment >= mPcmSegments.length) {
+				return -1;
+			}
+			int frameSize = OUTPUT_FORMAT.getFrameSize();
+			int bytesRead = Math.min(length - length % frameSize, mPcmSegments[mSegment].remaining());
+			mPcmSegments[mSegment].get(buffer, offset, bytesRead);
+			return bytesRead;
+		}
+
+		@Override
+		public boolean rewind() {
+			for (ByteBuffer pcmSegment : mPcmSegments) {
+				pcmSegment.rewind();
+			}
+			mSegment = 0;
+			return true;
+		}
+	}
+
+	private final Mixer mMixer;
+	private final byte[] mTransferBuffer;
+
+	private final Object mQueueLock = new Object();
+	private final PriorityQueue<Command> mQueue = new PriorityQueue<>();
+	private Command mCurrentCommand;
+	private long mNextSequenceNumber;
+
+	private SourceDataLine mLine; // only used by the engine thread
+
+	private long mTotalQueueNanos;
+	private long mTotalStartNanos;
+	private int mStartCount;
+
+	AudioOutputEngine(Mixer mixer) {
+		mMixer = mixer;
+		int frameSize = OUTPUT_FORMAT.getFrameSize();
+		mTransferBuffer = new byte[Math.round(OUTPUT_FORMAT.getFrameRate() * PCM_TRANSFER_MS / 1000) * frameSize];
+
+		Thread engineThread = new Thread(this::runEngine, "AudioOutputEngine");
+		engineThread.setDaemon(true);
+		engineThread.start();
+	}
+
+	/**
+	 * Queue audio for playback
+	 *
+	 * @param name A description of the audio, for logging
+	 */
+	CompletableFuture<Boolean> play(String name, Source source, Priority priority) {
+		return play(name, source, priority, null);
+	}
+
+	/**
+	 * @param onStarted If not null, called (on the engine thread, so it must be quick) when the first audio is written
+	 *                  to the line
+	 */
+	CompletableFuture<Boolean> play(String name, Source source, Priority priority, Runnable onStarted) {
+		return submit(new PlaybackCommand(name, source, priority, onStarted));
+	}
+
+	/**
+	 * Queue a file to be played by an external player process, for audio we can't decode ourselves. The output line is
+	 * closed while the player runs, so that it can use the sound card.
+	 *
+	 * @param name      A description of the audio, for logging
+	 * @param onStarted If not null, called (on the engine thread) when the player process has been started
+	 */
+	CompletableFuture<Boolean> playExternal(String name, String playerCommand, Priority priority,
+											Runnable onStarted) {
+		return submit(new ExternalCommand(name, playerCommand, priority, onStarted));
+	}
+
+	/**
+	 * Stop the playing command and remove all queued commands that have the given priority. Their futures complete
+	 * with false.
+	 */
+	void cancel(Priority priority) {
+		List<Command> cancelledCommands = new ArrayList<>();
+		synchronized (mQueueLock) {
+			mQueue.removeIf(command -> {
+				if (command.mPriority == priority) {
+					cancelledCommands.add(command);
+					return true;
+				}
+				return false;
+			});
+			if (mCurrentCommand != null && mCurrentCommand.mPriority == priority) {
+				mCurrentCommand.mCancelled = true;
+				mCurrentCommand.mSource.interrupt();
+			}
+		}
+		for (Command command : cancelledCommands) {
+			Pss2.logEvent("Audio cancelled before playback: " + command.mName);
+			command.mSource.close();
+			command.mFuture.complete(false); // outside the lock - completion may submit new commands
+		}
+	}
+
+	private CompletableFuture<Boolean> submit(Command command) {
+		synchronized (mQueueLock) {
+			if (mQueue.size() >= QUEUE_CAPACITY) {
+				Pss2.logEvent("Audio queue full - unable to play: " + command.mName);
+				command.mSource.close();
+				command.mFuture.completeExceptionally(new IOException("Audio queue full"));
+				return command.mFuture;
+			}
+			command.mSequenceNumber = mNextSequenceNumber++;
+			mQueue.add(command);
+			if (mCurrentCommand != null && mCurrentCommand.mPriority.compareTo(command.mPriority) < 0) {
+				mCurrentCommand.mInterrupted = true;
+				mCurrentCommand.mSource.interrupt();
+			}
+			mQueueLock.notifyAll();
+		}
+		return command.mFuture;
+	}
+
+	private void runEngine() {
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			Command command;
+			boolean queueEmpty;
+			synchronized (mQueueLock) {
+				while (mQueue.isEmpty()) {
+					try {
+						mQueueLock.wait();
+					} catch (InterruptedException ignored) {
+					}
+				}
+				command = mQueue.poll();
+				mCurrentCommand = command;
+			}
+			if (command.mFuture.isDone()) {
+				command.mSource.close(); // cancelled via its future while queued
+				continue;
+			}
+
+			boolean requeued = false;
+			try {
+				command.mStartTime = System.nanoTime();
+				boolean completed = command.run();
+				synchronized (mQueueLock) {
+					mCurrentCommand = null;
+					queueEmpty = mQueue.isEmpty();
+					if (!completed && command.mInterrupted && !command.mCancelled && command.mSource.rewind()) {
+						command.mInterrupted = false;
+						mQueue.add(command); // keeps its original sequence number, so it is first at its priority
+						requeued = true;
+					}
+				}
+				if (requeued) {
+					Pss2.logEvent("Audio interrupted (will restart): " + command.mName);
+					continue;
+				}
+				if (completed && queueEmpty && mLine != null) {
+					mLine.drain(); // so the future completes when the audio has actually finished
+				}
+				Pss2.logEvent((completed ? "Finished" : "Stopped") + " playing audio: " + command.mName);
+				command.mFuture.complete(completed);
+			} catch (Exception e) {
+				if (command.shouldStop()) { // e.g., an interrupted read
+					Pss2.logEvent("Stopped playing audio: " + command.mName + " (" + e.getLocalizedMessage() + ")");
+					command.mFuture.complete(false);
+				} else {
+					Pss2.logEvent("Error playing audio: " + command.mName + " (" + e.getLocalizedMessage() + ")");
+					e.printStackTrace();
+					command.mFuture.completeExceptionally(e);
+				}
+			} finally {
+				synchronized (mQueueLock) {
+					mCurrentCommand = null;
+				}
+				if (!requeued) {
+					command.mSource.close();
+				}
+			}
+		}
+	}
+
+	private SourceDataLine getLine() throws LineUnavailableException {
+		if (mLine == null) {
+			long openStartTime = System.currentTimeMillis();
+			DataLine.Info dataLineInfo = new DataLine.Info(SourceDataLine.class, OUTPUT_FORMAT);
+			SourceDataLine line = (SourceDataLine) mMixer.getLine(dataLineInfo);
+			int frameSize = OUTPUT_FORMAT.getFrameSize();
+			line.open(OUTPUT_FORMAT, Math.round(OUTPUT_FORMAT.getFrameRate() * LINE_BUFFER_MS / 1000) * frameSize);
+			line.start(); // note: can't set volume as no gain control - done via system instead
+			mLine = line;
+			Pss2.logEvent("Audio output line opened in " + (System.currentTimeMillis() - openStartTime) + "ms");
+		}
+		return mLine;
+	}
+
+	private void closeLine() {
+		if (mLine != null) {
+			mLine.drain();
+			mLine.close();
+			mLine = null;
+		}
+	}
+
+	private void onStarted(Command command, long firstSampleTime) {
+		addLatency(command, firstSampleTime);
+		if (command.mOnStarted != null) {
+			command.mOnStarted.run();
+		}
+	}
+
+	private synchronized void addLatency(Command command, long firstSampleTime) {
+		long queueNanos = command.mStartTime - command.mSubmitTime;
+		long startNanos = firstSampleTime - command.mStartTime;
+		mTotalQueueNanos += queueNanos;
+		mTotalStartNanos += startNanos;
+		mStartCount += 1;
+		Pss2.logEvent("Audio started: " + command.mName + " (queued " + (queueNanos / 1000000) + "ms; first sample " +
+				String.format("%.2f", startNanos / 1000000d) + "ms after start; averages " +
+				String.format("%.1f", getAverageQueueLatency()) + "ms / " +
+				String.format("%.2f", getAverageStartLatency()) + "ms)");
+	}
+
+	/**
+	 * @return The average time (in ms) that commands have waited in the queue before starting to play
+	 */
+	synchronized double getAverageQueueLatency() {
+		return mStartCount > 0 ? mTotalQueueNanos / 1000000d / mStartCount : 0;
+	}
+
+	/**
+	 * @return The average time (in ms) from a command starting to its first audio being written to the line
+	 */
+	synchronized double getAverageStartLatency() {
+		return mStartCount > 0 ? mTotalStartNanos / 1000000d / mStartCount : 0;
+	}
+
+	private abstract static class Command implements Comparable<Command> {
+		final String mName;
+		final Source mSource;
+		final Priority mPriority;
+		final Runnable mOnStarted;
+		final CompletableFuture<Boolean> mFuture = new CompletableFuture<>();
+		final long mSubmitTime = System.nanoTime();
+		long mSequenceNumber;
+		long mStartTime;
+		volatile boolean mInterrupted; // by a command with a higher priority
+		volatile boolean mCancelled;
+
+		Command(String name, Source source, Priority priority, Runnable onStarted) {
+			mName = name;
+			mSource = source;
+			mPriority = priority;
+			mOnStarted = onStarted;
+		}
+
+		boolean shouldStop() {
+			return mInterrupted || mCancelled || mFuture.isDone();
+		}
+
+		/**
+		 * @return true if played to the end; false if stopped
+		 */
+		abstract boolean run() throws Exception;
+
+		@Override
+		public int compareTo(Command other) {
+			int priorityComparison = other.mPriority.compareTo(mPriority); // highest priority first
+			return priorityComparison != 0 ? priorityComparison : Long.compare(mSequenceNumber, other.mSequenceNumber);
+		}
+	}
+
+	private class PlaybackCommand extends Command {
+		PlaybackCommand(String name, Source source, Priority priority, Runnable onStarted) {
+			super(name, source, priority, onStarted);
+		}
+
+		@Override
+		boolean run() throws IOException, LineUnavailableException {
+			SourceDataLine line = getLine();
+			boolean started = false;
+			int bytesRead;
+			while (!shouldStop() && (bytesRead = mSource.read(mTransferBuffer, 0, mTransferBuffer.length)) >= 0) {
+				line.write(mTransferBuffer, 0, bytesRead);
+				if (!started && bytesRead > 0) {
+					started = true;
+					onStarted(this, System.nanoTime());
+				}
+			}
+			if (shouldStop()) {
+				line.flush(); // discard whatever is left so the next command starts straight away
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private class ExternalCommand extends Command {
+		private final String mPlayerCommand;
+
+		ExternalCommand(String name, String playerCommand, Priority priority, Runnable onStarted) {
+			super(name, (buffer, offset, length) -> -1, priority, onStarted); // never restarted if interrupted
+			mPlayerCommand = playerCommand;
+		}
+
+		@Override
+		boolean run() throws IOException, InterruptedException {
+			closeLine(); // the player needs the sound card to itself; the line is reopened for the next command
+			Process playerProcess = Runtime.getRuntime().exec(mPlayerCommand);
+			onStarted(this, System.nanoTime()); // (the player's own startup time is not included)
+			while (!playerProcess.waitFor(PCM_TRANSFER_MS, TimeUnit.MILLISECONDS)) {
+				if (shouldStop()) {
+					playerProcess.destroy();
+					return false;
+				}
+			}
+			Pss2.logEvent("Player finished: " + mName + " (result: " + playerProcess.exitValue() + ")");
+			return true;
+		}
+	}
+}
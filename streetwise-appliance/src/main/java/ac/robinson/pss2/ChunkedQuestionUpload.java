@@ -0,0 +1,200 @@
+package ac.robinson.pss2;
+
+import okhttp3.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Uploads a question to the server in chunks while it is still being recorded and encoded, so that once recording
+ * stops only the last chunk and a final commit request remain to be sent. The encoder reports how much of the file has
+ * been written via {@link #onDataWritten(File, long)}; {@link #upload()} (on the upload stage) sends it as it arrives,
+ * and returns the server's response to the commit request, which is the same as for a normal (single request) upload.
+ */
+class ChunkedQuestionUpload {
+
+	private static final int CHUNK_RETRY_COUNT = 3; // attempts per chunk before giving up on the upload
+
+	private final String mChunkServerUrl;
+	private final String mCommitServerUrl;
+	private final int mPss2Id;
+	private final String mUploadId;
+	private final String mFileExtension;
+	private final int mChunkSize;
+
+	private final Object mProgressLock = new Object();
+	private File mFile;
+	private long mBytesWritten; // how much of the file is ready to send
+	private boolean mCompleted; // true once the file is finished (mBytesWritten is then its full length)
+	private boolean mCancelled;
+
+	private long mCompletedTime;
+
+	/**
+	 * @param uploadId      An identifier for this upload that is unique to this appliance
+	 * @param fileExtension The extension of the file being uploaded (including the dot), so the server knows its format
+	 * @param chunkSize     The minimum size of each chunk (other than the last) - everything written since the previous
+	 *                      chunk is sent, so chunks are larger when the upload falls behind the encoder
+	 */
+	ChunkedQuestionUpload(String chunkServerUrl, String commitServerUrl, int pss2Id, String uploadId,
+						  String fileExtension, int chunkSize) {
+		mChunkServerUrl = chunkServerUrl;
+		mCommitServerUrl = commitServerUrl;
+		mPss2Id = pss2Id;
+		mUploadId = uploadId;
+		mFileExtension = fileExtension;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Called (on the capture thread) when more of the file has been written and flushed
+	 *
+	 * @param file       The file being written
+	 * @param totalBytes The total number of bytes written so far
+	 */
+	void onDataWritten(File file, long totalBytes) {
+		synchronized (mProgressLock) {
+			mFile = file;
+			mBytesWritten = totalBytes;
+			mProgressLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Called when the file has been fully written - the remaining data is sent, then the upload is committed
+	 */
+	void onCompleted(File file) {
+		synchronized (mProgressLock) {
+			mFile = file;
+			mBytesWritten = file.length();
+			mCompleted = true;
+			mCompletedTime = System.currentTimeMillis();
+			mProgressLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Called if recording fails - the upload is abandoned without being committed
+	 */
+	void cancel() {
+		synchronized (mProgressLock) {
+			mCancelled = true;
+			mProgressLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Send the file as it is written, then commit it. Blocks until recording has completed (or been cancelled).
+	 *
+	 * @return The server's response to the commit request
+	 */
+	String upload() throws IOException, InterruptedException {
+		long bytesSent = 0;
+		int chunkCount = 0;
+		byte[] chunk = new byte[mChunkSize];
+		RandomAccessFile fileReader = null;
+		try {
+			while (true) {
+				File file;
+				long bytesWritten;
+				boolean completed;
+				synchronized (mProgressLock) {
+					while (!mCancelled && !mCompleted && mBytesWritten - bytesSent < mChunkSize) {
+						mProgressLock.wait();
+					}
+					if (mCancelled) {
+						throw new IOException("Chunked upload cancelled");
+					}
+					file = mFile;
+					bytesWritten = mBytesWritten;
+					completed = mCompleted;
+				}
+
+				if (bytesWritten > bytesSent) {
+					if (fileReader == null) {
+						fileReader = new RandomAccessFile(file, "r");
+					}
+					int chunkLength = (int) (bytesWritten - bytesSent);
+					if (chunk.length < chunkLength) {
+						chunk = new byte[chunkLength];
+					}
+					fileReader.seek(bytesSent);
+					fileReader.readFully(chunk, 0, chunkLength);
+					bytesSent = sendChunk(chunk, chunkLength, bytesSent);
+					chunkCount += 1;
+				} else if (completed) {
+					break;
+				}
+			}
+		} finally {
+			if (fileReader != null) {
+				fileReader.close();
+			}
+		}
+
+		long commitStartTime = System.currentTimeMillis();
+		String response = commit(bytesSent);
+		Pss2.logEvent("Chunked upload " + mUploadId + " committed (" + bytesSent + " bytes in " + chunkCount +
+				" chunks; commit took " + (System.currentTimeMillis() - commitStartTime) + "ms; " +
+				(System.currentTimeMillis() - mCompletedTime) + "ms after encoding completed)");
+		return response;
+	}
+
+	/**
+	 * @return The number of bytes the server now has (normally offset + length, but if a previous response was lost
+	 * this may already be further on - chunks the server already has are ignored)
+	 */
+	private long sendChunk(byte[] chunk, int length, long offset) throws IOException {
+		IOException lastError = null;
+		for (int attempt = 0; attempt < CHUNK_RETRY_COUNT; attempt++) {
+			RequestBody requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM)
+					.addFormDataPart("chunk", mUploadId, RequestBody.create(MediaType.parse(
+							"application/octet-stream"), chunk, 0, length))
+					.addFormDataPart("upload", mUploadId)
+					.addFormDataPart("offset", String.valueOf(offset))
+					.addFormDataPart("source", String.valueOf(mPss2Id))
+					.addFormDataPart("k", Pss2.SERVER_KEY)
+					.build();
+			Request request = new Request.Builder().url(mChunkServerUrl).post(requestBody).build();
+			try (Response response = Pss2.getOkHttpClient().newCall(request).execute()) {
+				ResponseBody responseBody = response.body();
+				String responseString = responseBody != null ? responseBody.string() : null;
+				if (!response.isSuccessful() || responseString == null || !responseString.startsWith("ok,")) {
+					throw new IOException("Chunk response unsuccessful: " + responseString);
+				}
+
+				// 0 = ok; 1 = total bytes received
+				long receivedBytes = Long.parseLong(responseString.split(",")[1]);
+				if (receivedBytes > offset + length || receivedBytes < offset) {
+					throw new IOException("Chunk response size mismatch: " + receivedBytes);
+				}
+				return receivedBytes;
+			} catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				Pss2.logEvent("Chunk upload at " + offset + " failed (attempt " + (attempt + 1) + "): " +
+						e.getLocalizedMessage());
+				lastError = e instanceof IOException ? (IOException) e : new IOException(e);
+			}
+		}
+		throw lastError;
+	}
+
+	private String commit(long size) throws IOException {
+		RequestBody requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM)
+				.addFormDataPart("upload", mUploadId)
+				.addFormDataPart("size", String.valueOf(size))
+				.addFormDataPart("format", mFileExtension.substring(1))
+				.addFormDataPart("source", String.valueOf(mPss2Id))
+				.addFormDataPart("k", Pss2.SERVER_KEY)
+				.build();
+		Request request = new Request.Builder().url(mCommitServerUrl).post(requestBody).build();
+		try (Response response = Pss2.getOkHttpClient().newCall(request).execute()) {
+			ResponseBody responseBody = response.body();
+			if (!response.isSuccessful() || responseBody == null) {
+				throw new IOException(
+						"Commit response unsuccessful: " + (responseBody != null ? responseBody.string() : null));
+			}
+			return responseBody.string();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Encodes recorded audio (with the selected AudioCodec) as it arrives in the PcmBuffer, so that when recording stops
+ * only the final flush of the encoder remains to be done. Must be added to the AudioDispatcher after the PcmBuffer it
+ * reads from. Only the range given by {@link #setEncodeRange(int, int)} is encoded, so that silence can be trimmed as
+ * we go. Once removed from the AudioDispatcher, {@link #finish()} may be called on any thread (capture continues
+ * independently).
+ */
+class EncodingProcessor implements AudioProcessor {
+
+	private static final int PCM_TRANSFER_SIZE = 4096; // bytes read from the PcmBuffer per encoder call
+	// bytes of recorded PCM (not encoded output) between EncodedDataListener notifications (16000 = 250ms at 32kHz)
+	private static final int NOTIFICATION_INTERVAL_PCM_BYTES = 16000;
+
+	private final PcmBuffer.Recording mRecording;
+	private final File mOutputFile;
+	private final AudioCodec.Stream mEncoder;
+	private final byte[] mPcmTransferBuffer;
+
+	private boolean mEncodeRangeSet;
+	private int mEncodeStart;
+	private int mEncodeEnd;
+	private int mEncodedPosition;
+	private EncodedDataListener mEncodedDataListener;
+	private int mPositionReported;
+	private long mBytesReported;
+	private IOException mError;
+	private boolean mFinished;
+
+	interface EncodedDataListener {
+		/**
+		 * Called (on the capture thread) each time a further part of the audio has been written and flushed to the file
+		 *
+		 * @param totalBytes The number of bytes of the output file that may now be read
+		 */
+		void onEncodedDataWritten(File outputFile, long totalBytes);
+	}
+
+	EncodingProcessor(AudioCodec codec, PcmBuffer.Recording recording, File outputFile) throws IOException {
+		mRecording = recording;
+		mOutputFile = outputFile;
+		mPcmTransferBuffer = new byte[PCM_TRANSFER_SIZE];
+		mEncoder = codec.startStream(outputFile);
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		if (mFinished || mError != null) {
+			return true;
+		}
+
+		try {
+			encodeAvailable();
+		} catch (IOException e) {
+			mError = e; // reported when finishing, so the recording can complete normally
+		}
+		return true;
+	}
+
+	private void encodeAvailable() throws IOException {
+		for (int pcmLength; (pcmLength = mRecording.read(mEncodedPosition, mPcmTransferBuffer, 0,
+				Math.min(mPcmTransferBuffer.length, mEncodeEnd - mEncodedPosition))) > 0; ) {
+			mEncoder.encode(mPcmTransferBuffer, 0, pcmLength);
+			mEncodedPosition += pcmLength;
+		}
+
+		if (mEncodedDataListener != null && mEncodedPosition - mPositionReported >= NOTIFICATION_INTERVAL_PCM_BYTES) {
+			mPositionReported = mEncodedPosition;
+			long bytesWritten = mEncoder.flush();
+			if (bytesWritten > mBytesReported) {
+				mBytesReported = bytesWritten;
+				mEncodedDataListener.onEncodedDataWritten(mOutputFile, mBytesReported);
+			}
+		}
+	}
+
+	/**
+	 * Be notified as the output file is written (e.g., to upload it while recording is still ongoing). Must be set
+	 * before encoding starts. Notifications are not sent for the final part of the file - finish() returns the complete
+	 * file.
+	 */
+	void setEncodedDataListener(EncodedDataListener encodedDataListener) {
+		mEncodedDataListener = encodedDataListener;
+	}
+
+	/**
+	 * Set the part of the recording to encode. Nothing is encoded until this is called. The start position is ignored
+	 * once encoding has begun, and the end position may only be extended, never reduced, as encoding is incremental.
+	 *
+	 * @param start The position (in bytes, relative to the start of the recording) to start encoding from
+	 * @param end   The position to encode up to (or, if the recording isn't yet this long, as far as is available)
+	 */
+	void setEncodeRange(int start, int end) {
+		if (!mEncodeRangeSet) {
+			mEncodeRangeSet = true;
+			mEncodeStart = start;
+			mEncodedPosition = start;
+		}
+		mEncodeEnd = Math.max(mEncodeEnd, end);
+	}
+
+	boolean isEncodeRangeSet() {
+		return mEncodeRangeSet;
+	}
+
+	/**
+	 * @return The position encoding started from (i.e., the number of bytes of leading silence that were trimmed)
+	 */
+	int getEncodeStart() {
+		return mEncodeStart;
+	}
+
+	/**
+	 * @return The position up to which the recording has been (or, once finished, was) encoded
+	 */
+	int getEncodedPosition() {
+		return mEncodedPosition;
+	}
+
+	/**
+	 * Flush the encoder and close the output file. Any error that occurred during recording is thrown here.
+	 *
+	 * @return The completed file
+	 */
+	File finish() throws IOException {
+		if (mFinished) {
+			return mOutputFile;
+		}
+		mFinished = true;
+
+		try {
+			if (mError != null) {
+				throw mError;
+			}
+			encodeAvailable();
+			mEncoder.finish();
+		} finally {
+			mEncoder.cancel(); // does nothing if the stream was finished successfully
+		}
+		return mOutputFile;
+	}
+
+	/**
+	 * Abandon encoding without finishing the output file (which the caller should delete)
+	 */
+	void cancel() {
+		if (!mFinished) {
+			mFinished = true;
+			mEncoder.cancel();
+		}
+	}
+
+	@Override
+	public void processingFinished() {
+		// nothing to do - the recorder calls finish() when it decides to stop
+	}
+}
@@ -0,0 +1,184 @@
+package ac.robinson.pss2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each stage of an interaction takes (e.g., from the last keypress of a question number, through the
+ * cache check, server request and download, to the first sample of the answer being played), so we can see where the
+ * time goes before tuning anything. Each interaction is a {@link Trace}, which is marked as each stage ends; the time
+ * since the previous mark (using the monotonic clock) is added to that stage's histogram. The histograms are written to
+ * a text file every few minutes (if anything has changed), and when the application stops.
+ */
+class LatencyTracer {
+
+	private static final int DUMP_INTERVAL = 300; // seconds (default: 5 minutes)
+
+	// histogram bucket upper bounds, in ms (plus a final bucket for anything longer)
+	private static final long[] BUCKET_LIMITS = {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+	private final File mOutputFile;
+	private final Map<String, Histogram> mHistograms = new TreeMap<>(); // guarded by this
+	private final long mStartTime = System.currentTimeMillis();
+	private boolean mChanged;
+
+	private final ScheduledExecutorService mDumpExecutor;
+
+	LatencyTracer(File outputFile) {
+		mOutputFile = outputFile;
+		mDumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LatencyTracer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		mDumpExecutor.scheduleAtFixedRate(this::dump, DUMP_INTERVAL, DUMP_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param flow The name of the interaction (e.g., "answer"), which prefixes each of its stages in the histograms
+	 */
+	Trace start(String flow) {
+		return new Trace(flow);
+	}
+
+	/**
+	 * One interaction being timed. Can be marked from any thread. Stages are named by the caller; once the trace has
+	 * finished, any further marks are ignored. A trace that never finishes (e.g., after an error) records only the
+	 * stages it completed.
+	 */
+	class Trace {
+		private String mFlow;
+		private final long mTraceStartTime = System.nanoTime();
+		private long mLastMarkTime = mTraceStartTime;
+		private boolean mFinished;
+
+		private Trace(String flow) {
+			mFlow = flow;
+		}
+
+		/**
+		 * Record the end of a stage (i.e., the time since the trace started or was last marked)
+		 */
+		synchronized void mark(String stage) {
+			if (!mFinished) {
+				long markTime = System.nanoTime();
+				addSample(mFlow + ": " + stage, markTime - mLastMarkTime);
+				mLastMarkTime = markTime;
+			}
+		}
+
+		/**
+		 * Record the final stage, and the total time for the whole interaction
+		 */
+		synchronized void finish(String stage) {
+			if (!mFinished) {
+				mark(stage);
+				addSample(mFlow + ": total", mLastMarkTime - mTraceStartTime);
+				mFinished = true;
+			}
+		}
+
+		/**
+		 * Record the rest of the interaction separately - e.g., once we know whether an answer was cached, so that the
+		 * stages (and total) of each path are kept apart
+		 */
+		synchronized void setPath(String path) {
+			mFlow = mFlow + "/" + path;
+		}
+	}
+
+	private synchronized void addSample(String name, long nanos) {
+		mHistograms.computeIfAbsent(name, key -> new Histogram()).add(nanos / 1000000d);
+		mChanged = true;
+	}
+
+	/**
+	 * Write every histogram to the output file (replacing its previous contents) if anything has changed
+	 */
+	synchronized void dump() {
+		if (!mChanged) {
+			return;
+		}
+		File tempFile = new File(mOutputFile.getPath() + ".tmp");
+		try (PrintWriter writer = new PrintWriter(tempFile, "UTF-8")) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			writer.println("Latency by stage (ms) from " + dateFormat.format(new Date(mStartTime)) + " to " +
+					dateFormat.format(new Date()));
+			writer.println();
+			StringBuilder header = new StringBuilder(String.format("%-40s %6s %8s %8s %8s", "stage", "count", "mean",
+					"p90", "max"));
+			for (long limit : BUCKET_LIMITS) {
+				header.append(String.format(" %7s", "<=" + limit));
+			}
+			header.append(String.format(" %7s", ">" + BUCKET_LIMITS[BUCKET_LIMITS.length - 1]));
+			writer.println(header);
+			for (Map.Entry<String, Histogram> histogram : mHistograms.entrySet()) {
+				writer.println(String.format("%-40s ", histogram.getKey()) + histogram.getValue());
+			}
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to write latency histograms: " + e.getLocalizedMessage());
+			return;
+		}
+		if (tempFile.renameTo(mOutputFile)) {
+			mChanged = false;
+		} else {
+			Pss2.logEvent("Unable to store latency histograms (temp deleted: " + tempFile.delete() + ")");
+		}
+	}
+
+	void stop() {
+		mDumpExecutor.shutdownNow();
+		dump();
+	}
+
+	static class Histogram {
+		private final int[] mBuckets = new int[BUCKET_LIMITS.length + 1];
+		private int mCount;
+		private double mTotal;
+		private double mMax;
+
+		void add(double milliseconds) {
+			int bucket = 0;
+			while (bucket < BUCKET_LIMITS.length && milliseconds > BUCKET_LIMITS[bucket]) {
+				bucket += 1;
+			}
+			mBuckets[bucket] += 1;
+			mCount += 1;
+			mTotal += milliseconds;
+			mMax = Math.max(mMax, milliseconds);
+		}
+
+		/**
+		 * @return An estimate of the 90th percentile - the upper bound of the bucket it falls in (or the maximum)
+		 */
+		double getP90() {
+			int target = (int) Math.ceil(mCount * 0.9);
+			int cumulative = 0;
+			for (int bucket = 0; bucket < BUCKET_LIMITS.length; bucket++) {
+				cumulative += mBuckets[bucket];
+				if (cumulative >= target) {
+					return Math.min(BUCKET_LIMITS[bucket], mMax);
+				}
+			}
+			return mMax;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder line = new StringBuilder(String.format("%6d %8.1f %8.1f %8.1f", mCount, mTotal / mCount,
+					getP90(), mMax));
+			for (int count : mBuckets) {
+				line.append(String.format(" %7d", count));
+			}
+			return line.toString();
+		}
+	}
+}
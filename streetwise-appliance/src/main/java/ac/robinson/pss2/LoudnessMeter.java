@@ -0,0 +1,135 @@
+package ac.robinson.pss2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the integrated loudness of 16-bit mono PCM, following ITU-R BS.1770 (as used by EBU R128): K-weighting
+ * (a high shelf for the head's acoustic effect, then a high-pass filter), mean square power over 400ms blocks
+ * overlapping by 75%, and then an absolute gate at -70 LUFS and a relative gate 10 LU below the ungated level, so that
+ * pauses and background noise don't count. Samples are fed in as they are decoded, so no extra pass is needed.
+ */
+class LoudnessMeter {
+
+	private static final double ABSOLUTE_GATE = -70; // LUFS
+	private static final double RELATIVE_GATE = -10; // LU
+	private static final int BLOCK_STEPS = 4; // 400ms blocks made of four 100ms steps (i.e., 75% overlap)
+
+	private final int mStepLength; // samples per 100ms
+
+	// the two K-weighting biquads (coefficients from the BS.1770 filter definitions, calculated for our sample rate)
+	private final double[] mShelfB = new double[3];
+	private final double[] mShelfA = new double[3];
+	private final double[] mHighPassB = {1, -2, 1};
+	private final double[] mHighPassA = new double[3];
+	private double mShelfX1, mShelfX2, mShelfY1, mShelfY2;
+	private double mHighPassX1, mHighPassX2, mHighPassY1, mHighPassY2;
+
+	private final List<Double> mStepPowers = new ArrayList<>(); // mean square of each complete 100ms step
+	private double mStepSumOfSquares;
+	private int mStepSamples;
+	private int mPeak;
+
+	LoudnessMeter(float sampleRate) {
+		mStepLength = Math.round(sampleRate / 10);
+
+		double shelfFrequency = 1681.974450955533;
+		double shelfGain = 3.999843853973347; // dB
+		double shelfQ = 0.7071752369554196;
+		double k = Math.tan(Math.PI * shelfFrequency / sampleRate);
+		double vh = Math.pow(10, shelfGain / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / shelfQ + k * k;
+		mShelfB[0] = (vh + vb * k / shelfQ + k * k) / a0;
+		mShelfB[1] = 2 * (k * k - vh) / a0;
+		mShelfB[2] = (vh - vb * k / shelfQ + k * k) / a0;
+		mShelfA[1] = 2 * (k * k - 1) / a0;
+		mShelfA[2] = (1 - k / shelfQ + k * k) / a0;
+
+		double highPassFrequency = 38.13547087602444;
+		double highPassQ = 0.5003270373238773;
+		k = Math.tan(Math.PI * highPassFrequency / sampleRate);
+		a0 = 1 + k / highPassQ + k * k;
+		mHighPassA[1] = 2 * (k * k - 1) / a0;
+		mHighPassA[2] = (1 - k / highPassQ + k * k) / a0;
+	}
+
+	/**
+	 * @param pcm 16-bit signed little-endian mono samples
+	 */
+	void process(byte[] pcm, int offset, int length) {
+		for (int i = offset, end = offset + length - 1; i < end; i += 2) {
+			int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+			mPeak = Math.max(mPeak, Math.abs(sample));
+
+			double x = sample / 32768d;
+			double shelved = mShelfB[0] * x + mShelfB[1] * mShelfX1 + mShelfB[2] * mShelfX2 - mShelfA[1] * mShelfY1 -
+					mShelfA[2] * mShelfY2;
+			mShelfX2 = mShelfX1;
+			mShelfX1 = x;
+			mShelfY2 = mShelfY1;
+			mShelfY1 = shelved;
+			double weighted = mHighPassB[0] * shelved + mHighPassB[1] * mHighPassX1 + mHighPassB[2] * mHighPassX2 -
+					mHighPassA[1] * mHighPassY1 - mHighPassA[2] * mHighPassY2;
+			mHighPassX2 = mHighPassX1;
+			mHighPassX1 = shelved;
+			mHighPassY2 = mHighPassY1;
+			mHighPassY1 = weighted;
+
+			mStepSumOfSquares += weighted * weighted;
+			mStepSamples += 1;
+			if (mStepSamples == mStepLength) {
+				mStepPowers.add(mStepSumOfSquares / mStepLength);
+				mStepSumOfSquares = 0;
+				mStepSamples = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return The gated loudness of everything processed so far, in LUFS, or {@link Double#NEGATIVE_INFINITY} if it
+	 * was all silent (or shorter than one block)
+	 */
+	double getIntegratedLoudness() {
+		List<Double> blockPowers = new ArrayList<>();
+		for (int i = BLOCK_STEPS; i <= mStepPowers.size(); i++) {
+			double blockPower = 0;
+			for (int step = i - BLOCK_STEPS; step < i; step++) {
+				blockPower += mStepPowers.get(step);
+			}
+			blockPower /= BLOCK_STEPS;
+			if (toLoudness(blockPower) > ABSOLUTE_GATE) {
+				blockPowers.add(blockPower);
+			}
+		}
+		if (blockPowers.isEmpty()) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		double relativeGate = toLoudness(getMean(blockPowers, Double.NEGATIVE_INFINITY)) + RELATIVE_GATE;
+		return toLoudness(getMean(blockPowers, relativeGate));
+	}
+
+	/**
+	 * @return The highest absolute sample value processed so far (0 to 32768)
+	 */
+	int getPeak() {
+		return mPeak;
+	}
+
+	private static double getMean(List<Double> blockPowers, double gate) {
+		double sum = 0;
+		int count = 0;
+		for (double blockPower : blockPowers) {
+			if (toLoudness(blockPower) > gate) {
+				sum += blockPower;
+				count += 1;
+			}
+		}
+		return count > 0 ? sum / count : 0;
+	}
+
+	private static double toLoudness(double power) {
+		return -0.691 + 10 * Math.log10(power);
+	}
+}
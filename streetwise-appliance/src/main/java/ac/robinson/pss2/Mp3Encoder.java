@@ -0,0 +1,197 @@
+package ac.robinson.pss2;
+
+import de.sciss.jump3r.lowlevel.LameEncoder;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A long-lived mp3 encoder, created once at startup and used for every question. LAME can't be reset once a stream has
+ * been flushed, so each {@link Stream} still needs its own LameEncoder, but the next one is always prepared in the
+ * background while the current question is being recorded, and the encoder is warmed up before the first question -
+ * setting up (and JIT compiling) the encoder never happens while someone is waiting. Also keeps track of how fast
+ * encoding is, as a realtime factor (seconds of audio encoded per second spent encoding).
+ */
+class Mp3Encoder implements AudioCodec {
+
+	private static final String FILE_EXTENSION = ".mp3";
+	private static final String MIME_TYPE = "audio/mpeg";
+
+	// roughly equivalent to LAME's "--preset voice" (https://svn.code.sf.net/p/lame/svn/trunk/lame/USAGE)
+	// note: jump3r's LameEncoder fails on any explicit channel mode, but auto selects mono for our mono input
+	private static final int MP3_BIT_RATE = 56; // kbps
+	private static final int MP3_CHANNEL_MODE = LameEncoder.CHANNEL_MODE_AUTO;
+	private static final int MP3_QUALITY = LameEncoder.QUALITY_MIDDLE;
+	private static final boolean MP3_VBR = false;
+
+	private static final int WARM_UP_MS = 5000; // silence encoded at startup so the encoder is compiled before use
+	private static final int PCM_TRANSFER_SIZE = 4096; // maximum bytes passed to each LameEncoder call
+
+	private final AudioFormat mFormat;
+	private final int mBytesPerSecond;
+	private final ExecutorService mPreparationExecutor;
+	private Future<LameEncoder> mNextEncoder;
+
+	private long mTotalPcmBytes;
+	private long mTotalEncodingNanos;
+
+	Mp3Encoder(AudioFormat format) {
+		mFormat = format;
+		mBytesPerSecond = Math.round(format.getFrameRate() * format.getFrameSize());
+		mPreparationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Mp3Encoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		mNextEncoder = mPreparationExecutor.submit(() -> {
+			long warmUpStartTime = System.currentTimeMillis();
+			LameEncoder warmUpEncoder = createEncoder();
+			byte[] silence = new byte[mBytesPerSecond * WARM_UP_MS / 1000];
+			byte[] mp3Buffer = new byte[getMp3BufferSize(silence.length)];
+			warmUpEncoder.encodeBuffer(silence, 0, silence.length, mp3Buffer);
+			warmUpEncoder.encodeFinish(mp3Buffer);
+			warmUpEncoder.close();
+			Pss2.logEvent("Mp3 encoder warmed up in " + (System.currentTimeMillis() - warmUpStartTime) + "ms");
+			return createEncoder();
+		});
+	}
+
+	private LameEncoder createEncoder() {
+		return new LameEncoder(mFormat, MP3_BIT_RATE, MP3_CHANNEL_MODE, MP3_QUALITY, MP3_VBR);
+	}
+
+	/**
+	 * @param pcmLength The number of bytes of PCM that will be passed to each encoder call
+	 * @return The size of buffer needed to hold the mp3 data returned by that call
+	 */
+	private int getMp3BufferSize(int pcmLength) {
+		// worst case estimate from LAME's documentation (lame.h): 1.25 * samples + 7200
+		return (int) Math.ceil(1.25 * pcmLength / mFormat.getFrameSize()) + 7200;
+	}
+
+	@Override
+	public String getFileExtension() {
+		return FILE_EXTENSION;
+	}
+
+	@Override
+	public String getMimeType() {
+		return MIME_TYPE;
+	}
+
+	@Override
+	public int getBitRate() {
+		return MP3_BIT_RATE;
+	}
+
+	/**
+	 * Start encoding a new stream. The encoder for the next stream is prepared in the background straight away, so
+	 * one stream can be finishing while the next is already being encoded.
+	 */
+	@Override
+	public Stream startStream(File outputFile) throws FileNotFoundException {
+		OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile));
+		LameEncoder encoder = takeNextEncoder();
+		mNextEncoder = mPreparationExecutor.submit(this::createEncoder);
+		return new Mp3Stream(encoder, outputStream);
+	}
+
+	private LameEncoder takeNextEncoder() {
+		try {
+			return mNextEncoder.get(); // normally ready long before it is needed
+		} catch (InterruptedException | ExecutionException e) {
+			Pss2.logEvent("Unable to prepare mp3 encoder in advance - creating now");
+			e.printStackTrace();
+			return createEncoder();
+		}
+	}
+
+	private synchronized void addStreamStatistics(long pcmBytes, long encodingNanos) {
+		mTotalPcmBytes += pcmBytes;
+		mTotalEncodingNanos += encodingNanos;
+		Pss2.logEvent("Mp3 encoded " + (pcmBytes * 1000 / mBytesPerSecond) + "ms of audio in " +
+				(encodingNanos / 1000000) + "ms (" + String.format("%.1f", getRealtimeFactor(pcmBytes,
+				encodingNanos)) + "x realtime; " + String.format("%.1f", getRealtimeFactor(mTotalPcmBytes,
+				mTotalEncodingNanos)) + "x overall)");
+	}
+
+	private double getRealtimeFactor(long pcmBytes, long encodingNanos) {
+		return encodingNanos > 0 ? (pcmBytes / (double) mBytesPerSecond) / (encodingNanos / 1000000000d) : 0;
+	}
+
+	@Override
+	public void close() {
+		mPreparationExecutor.shutdownNow();
+	}
+
+	private class Mp3Stream implements Stream {
+		private final LameEncoder mEncoder;
+		private final OutputStream mOutputStream;
+		private final byte[] mMp3Buffer;
+		private boolean mClosed;
+		private long mPcmBytes;
+		private long mEncodingNanos;
+		private long mBytesWritten;
+
+		private Mp3Stream(LameEncoder encoder, OutputStream outputStream) {
+			mEncoder = encoder;
+			mOutputStream = outputStream;
+			mMp3Buffer = new byte[getMp3BufferSize(PCM_TRANSFER_SIZE)];
+		}
+
+		@Override
+		public void encode(byte[] pcm, int offset, int length) throws IOException {
+			for (int position = offset, end = offset + length; position < end; position += PCM_TRANSFER_SIZE) {
+				int pcmLength = Math.min(PCM_TRANSFER_SIZE, end - position);
+				long encodingStartTime = System.nanoTime();
+				int encodedLength = mEncoder.encodeBuffer(pcm, position, pcmLength, mMp3Buffer);
+				mEncodingNanos += System.nanoTime() - encodingStartTime;
+				mPcmBytes += pcmLength;
+				mOutputStream.write(mMp3Buffer, 0, encodedLength);
+				mBytesWritten += encodedLength;
+			}
+		}
+
+		@Override
+		public long flush() throws IOException {
+			mOutputStream.flush();
+			return mBytesWritten;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			try {
+				long encodingStartTime = System.nanoTime();
+				int encodedLength = mEncoder.encodeFinish(mMp3Buffer);
+				mEncodingNanos += System.nanoTime() - encodingStartTime;
+				mOutputStream.write(mMp3Buffer, 0, encodedLength);
+				mBytesWritten += encodedLength;
+				mOutputStream.close(); // unlike when cancelling, errors here matter
+			} finally {
+				cancel();
+			}
+			addStreamStatistics(mPcmBytes, mEncodingNanos);
+		}
+
+		@Override
+		public void cancel() {
+			if (!mClosed) {
+				mClosed = true;
+				mEncoder.close();
+				try {
+					mOutputStream.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+}
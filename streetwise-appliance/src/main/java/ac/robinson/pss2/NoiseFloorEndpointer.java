@@ -0,0 +1,98 @@
+package ac.robinson.pss2;
+
+/**
+ * Decides whether each audio buffer is speech, relative to a rolling estimate of the background noise level rather
+ * than a single fixed threshold. The noise floor is a low percentile of the sound level of recent buffers, and speech
+ * is anything more than a margin above that (or above the fixed minimum threshold, whichever is higher). When the
+ * microphone is kept open this is updated continuously (by AudioFeatureProcessor), so the estimate is always based on
+ * the current surroundings; otherwise it carries over between recordings. Until enough audio has been heard, only the
+ * minimum threshold is used.
+ */
+class NoiseFloorEndpointer {
+
+	// sound levels are counted in 1dB bins, so the percentile can be found without sorting (or allocating)
+	private static final int LEVEL_MINIMUM_DB = -120;
+	private static final int LEVEL_MAXIMUM_DB = 0;
+
+	private volatile double mMinimumThreshold; // set when recording starts; read on the capture thread
+	private final double mMarginDb;
+	private final double mPercentile;
+
+	private final double[] mWindow; // recent buffer levels (circular)
+	private final int[] mLevelCounts;
+	private int mWindowPosition;
+	private int mWindowCount;
+
+	private double mNoiseFloor;
+	private double mThreshold;
+
+	/**
+	 * @param minimumThreshold  The level (dB SPL) that must always be exceeded for a buffer to count as speech
+	 * @param marginDb          How far above the noise floor a buffer must be to count as speech
+	 * @param percentile        The percentile (0-1) of recent levels that is used as the noise floor
+	 * @param windowBufferCount The number of recent buffers to consider when estimating the noise floor
+	 */
+	NoiseFloorEndpointer(double minimumThreshold, double marginDb, double percentile, int windowBufferCount) {
+		mMinimumThreshold = minimumThreshold;
+		mMarginDb = marginDb;
+		mPercentile = percentile;
+		mWindow = new double[windowBufferCount];
+		mLevelCounts = new int[LEVEL_MAXIMUM_DB - LEVEL_MINIMUM_DB + 1];
+		mNoiseFloor = LEVEL_MINIMUM_DB;
+		mThreshold = mMinimumThreshold;
+	}
+
+	void setMinimumThreshold(double minimumThreshold) {
+		mMinimumThreshold = minimumThreshold;
+	}
+
+	/**
+	 * Add the level of the next buffer to the noise estimate, and classify it
+	 *
+	 * @param level The buffer's sound pressure level (dB SPL)
+	 * @return Whether the buffer is considered to be speech
+	 */
+	boolean isSpeech(double level) {
+		if (Double.isNaN(level) || Double.isInfinite(level)) {
+			level = LEVEL_MINIMUM_DB; // digital silence
+		}
+
+		if (mWindowCount == mWindow.length) {
+			mLevelCounts[getLevelBin(mWindow[mWindowPosition])] -= 1;
+		} else {
+			mWindowCount += 1;
+		}
+		mWindow[mWindowPosition] = level;
+		mLevelCounts[getLevelBin(level)] += 1;
+		mWindowPosition = (mWindowPosition + 1) % mWindow.length;
+
+		int percentileCount = Math.max(1, (int) Math.ceil(mWindowCount * mPercentile));
+		int cumulativeCount = 0;
+		for (int bin = 0; bin < mLevelCounts.length; bin++) {
+			cumulativeCount += mLevelCounts[bin];
+			if (cumulativeCount >= percentileCount) {
+				mNoiseFloor = bin + LEVEL_MINIMUM_DB;
+				break;
+			}
+		}
+
+		if (mWindowCount == mWindow.length) {
+			mThreshold = Math.max(mMinimumThreshold, mNoiseFloor + mMarginDb);
+		} else {
+			mThreshold = mMinimumThreshold; // not enough audio yet - the estimate could be based on speech alone
+		}
+		return level > mThreshold;
+	}
+
+	private static int getLevelBin(double level) {
+		return (int) Math.round(Math.max(LEVEL_MINIMUM_DB, Math.min(LEVEL_MAXIMUM_DB, level))) - LEVEL_MINIMUM_DB;
+	}
+
+	double getNoiseFloor() {
+		return mNoiseFloor;
+	}
+
+	double getThreshold() {
+		return mThreshold;
+	}
+}
@@ -0,0 +1,128 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes questions as low bit rate Opus (in an Ogg container), which is several times smaller than our mp3s, for use
+ * on metered connections. There is no Opus encoder in our Java dependencies, so (as with answer playback) we use an
+ * external tool - opusenc, from opus-tools (apt install opus-tools) - which is streamed raw PCM as it is recorded, and
+ * writes the Ogg file itself. Recordings are passed on at their original rate, and resampled by opusenc (with a proper
+ * anti-aliasing filter); at our bit rate Opus encodes speech as wideband (up to 8kHz) regardless. If opusenc isn't
+ * installed, creating the codec fails, and recordings fall back to mp3 (see SilenceDetectingAudioRecorder).
+ */
+class OpusEncoder implements AudioCodec {
+
+	private static final String FILE_EXTENSION = ".ogg";
+	private static final String MIME_TYPE = "audio/ogg";
+
+	private static final int OPUS_BIT_RATE = 14; // kbps
+	private static final String OPUS_ENCODER_COMMAND = "opusenc";
+	private static final int FINISH_TIMEOUT = 10; // seconds to wait for opusenc to finish writing the file
+
+	private final int mSampleRate;
+
+	OpusEncoder(AudioFormat format) throws IOException {
+		if (format.getChannels() != 1 || format.getSampleSizeInBits() != 16 || format.isBigEndian()) {
+			throw new IOException("Unsupported recording format for Opus encoding: " + format);
+		}
+		mSampleRate = Math.round(format.getSampleRate());
+
+		// check opusenc is installed now, rather than failing when someone asks a question
+		try {
+			Process versionProcess = new ProcessBuilder(OPUS_ENCODER_COMMAND, "--version").redirectErrorStream(true)
+					.start();
+			if (!versionProcess.waitFor(FINISH_TIMEOUT, TimeUnit.SECONDS) || versionProcess.exitValue() != 0) {
+				versionProcess.destroy();
+				throw new IOException(OPUS_ENCODER_COMMAND + " check failed");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public String getFileExtension() {
+		return FILE_EXTENSION;
+	}
+
+	@Override
+	public String getMimeType() {
+		return MIME_TYPE;
+	}
+
+	@Override
+	public int getBitRate() {
+		return OPUS_BIT_RATE;
+	}
+
+	@Override
+	public Stream startStream(File outputFile) throws IOException {
+		Process encoderProcess = new ProcessBuilder(OPUS_ENCODER_COMMAND, "--quiet", "--raw", "--raw-bits", "16",
+				"--raw-rate", String.valueOf(mSampleRate), "--raw-chan", "1", "--raw-endianness", "0",
+				"--bitrate", String.valueOf(OPUS_BIT_RATE), "-", outputFile.getAbsolutePath()).redirectOutput(
+				ProcessBuilder.Redirect.INHERIT).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		return new OpusStream(encoderProcess, outputFile);
+	}
+
+	@Override
+	public void close() {
+		// nothing to do - each stream has its own encoder process
+	}
+
+	private static class OpusStream implements Stream {
+		private final Process mEncoderProcess;
+		private final File mOutputFile;
+		private final OutputStream mEncoderInput;
+
+		private OpusStream(Process encoderProcess, File outputFile) {
+			mEncoderProcess = encoderProcess;
+			mOutputFile = outputFile;
+			mEncoderInput = new BufferedOutputStream(encoderProcess.getOutputStream());
+		}
+
+		@Override
+		public void encode(byte[] pcm, int offset, int length) throws IOException {
+			mEncoderInput.write(pcm, offset, length);
+		}
+
+		@Override
+		public long flush() throws IOException {
+			mEncoderInput.flush();
+			return mOutputFile.length(); // opusenc writes Ogg pages as they fill, so this lags slightly behind
+		}
+
+		@Override
+		public void finish() throws IOException {
+			try {
+				flush();
+				mEncoderInput.close(); // end of input - opusenc finishes the file then exits
+				if (!mEncoderProcess.waitFor(FINISH_TIMEOUT, TimeUnit.SECONDS)) {
+					throw new IOException(OPUS_ENCODER_COMMAND + " timed out");
+				}
+				if (mEncoderProcess.exitValue() != 0) {
+					throw new IOException(OPUS_ENCODER_COMMAND + " failed: " + mEncoderProcess.exitValue());
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				cancel();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			if (mEncoderProcess.isAlive()) {
+				mEncoderProcess.destroy();
+			}
+			try {
+				mEncoderInput.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
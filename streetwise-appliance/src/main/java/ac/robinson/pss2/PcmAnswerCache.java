@@ -0,0 +1,294 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decodes downloaded answers in the background into ready-to-play PCM (in the output engine's format), stored next to
+ * each answer, so that playing a cached answer involves no decoding at all - the PCM file is memory-mapped and written
+ * straight to the output line. Decoding is done at low priority, one answer at a time, and is limited to a share of one
+ * CPU core so that it never competes with recording or playback. It is also limited by disk space: PCM files count
+ * towards the storage quota (and are evicted along with their answers), but are only written if they fit within it,
+ * so they never cause anything else to be evicted. Answers without a PCM file are simply decoded when played, as
+ * before.
+ * <p>
+ * Answers are recorded on many different phones, at very different levels, so the same pass also measures each
+ * answer's loudness, and stores a gain (in the PCM file's header) that brings it to a common level. The gain is applied
+ * as the PCM is copied to the output line. The distribution of measured levels is logged after every answer.
+ */
+class PcmAnswerCache {
+
+	private static final String CACHE_FILE_EXTENSION = ".pcm"; // appended to the answer's name; not an answer pattern
+	private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+	// header: magic, version, sample rate, frame size, PCM length, loudness (LUFS) and playback gain (linear)
+	private static final int HEADER_MAGIC = 0x50535043; // "PSPC"
+	private static final int HEADER_VERSION = 2; // older versions are deleted when found, then decoded again
+	private static final int HEADER_SIZE = 32;
+
+	private static final double TARGET_LOUDNESS = -18; // LUFS
+	private static final double MAX_GAIN = 12; // dB (either way) - beyond this, answers are more likely noise or errors
+	private static final int GAIN_FRACTION_BITS = 12; // gain is applied in fixed point
+
+	// loudness distribution: LOUDNESS_BANDS bands of LOUDNESS_BAND_WIDTH LU, the first and last also counting beyond
+	private static final int LOUDNESS_BANDS = 8;
+	private static final int LOUDNESS_BAND_WIDTH = 6;
+	private static final int LOUDNESS_BAND_MINIMUM = -42; // LUFS; the lower bound of the second band
+
+	private static final int DECODE_QUEUE_CAPACITY = 64; // answers waiting to be decoded; more are left until played
+	private static final double MAX_CPU_SHARE = 0.25; // of one core - decoding sleeps to stay within this budget
+	private static final int PCM_TRANSFER_SIZE = 32 * 1024;
+
+	private final StorageQuota mStorageQuota;
+	private final PipelineStage mDecodeStage;
+	private final Set<String> mPendingAnswers = Collections.synchronizedSet(new HashSet<>());
+	private final CpuThrottle mCpuThrottle = new CpuThrottle(MAX_CPU_SHARE);
+	private final int[] mLoudnessDistribution = new int[LOUDNESS_BANDS];
+
+	PcmAnswerCache(StorageQuota storageQuota) {
+		mStorageQuota = storageQuota;
+		mDecodeStage = new PipelineStage("PcmAnswerCache", DECODE_QUEUE_CAPACITY, Thread.MIN_PRIORITY);
+	}
+
+	static File getCacheFile(File answerFile) {
+		return new File(answerFile.getPath() + CACHE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Queue an answer to be decoded in the background, if it hasn't been already
+	 */
+	void add(File answerFile) {
+		if (getCacheFile(answerFile).exists() || !mPendingAnswers.add(answerFile.getName())) {
+			return;
+		}
+		if (!mDecodeStage.submit(() -> {
+			try {
+				decode(answerFile);
+			} finally {
+				mPendingAnswers.remove(answerFile.getName());
+			}
+		})) {
+			mPendingAnswers.remove(answerFile.getName());
+		}
+	}
+
+	/**
+	 * Decode an answer to its PCM file, on the calling thread, within the CPU budget and storage quota
+	 */
+	void decode(File answerFile) {
+		File cacheFile = getCacheFile(answerFile);
+		if (!answerFile.exists() || cacheFile.exists()) {
+			return;
+		}
+		if (!mStorageQuota.canAdd(answerFile.length())) { // (the PCM will be larger than the compressed answer)
+			Pss2.logEvent("Not pre-decoding " + answerFile.getName() + " - storage quota full");
+			return;
+		}
+
+		long decodeStartTime = System.currentTimeMillis();
+		long decodeNanos = 0;
+		long pcmLength = 0;
+		File tempFile = new File(cacheFile.getPath() + TEMP_FILE_EXTENSION);
+		LoudnessMeter loudnessMeter = new LoudnessMeter(AudioOutputEngine.OUTPUT_FORMAT.getSampleRate());
+		StreamingDecoder decoder = null;
+		try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile)))) {
+			writeHeader(outputStream, 0, 0, 1);
+			decoder = new StreamingDecoder(answerFile);
+			byte[] buffer = new byte[PCM_TRANSFER_SIZE];
+			while (true) {
+				long readStartTime = System.nanoTime();
+				int bytesRead = decoder.read(buffer, 0, buffer.length);
+				long readNanos = System.nanoTime() - readStartTime;
+				if (bytesRead < 0) {
+					break;
+				}
+				outputStream.write(buffer, 0, bytesRead);
+				loudnessMeter.process(buffer, 0, bytesRead);
+				pcmLength += bytesRead;
+				decodeNanos += readNanos;
+				if (!mStorageQuota.canAdd(pcmLength)) {
+					throw new IOException("storage quota reached");
+				}
+				Thread.sleep(mCpuThrottle.getRestMillis(readNanos));
+			}
+		} catch (UnsupportedAudioFileException | IOException e) {
+			Pss2.logEvent("Unable to pre-decode " + answerFile.getName() + " (" + e.getLocalizedMessage() +
+					") - temp deleted: " + tempFile.delete());
+			return;
+		} catch (InterruptedException e) {
+			Pss2.logEvent("Pre-decoding stopped (temp deleted: " + tempFile.delete() + ")");
+			return;
+		} finally {
+			if (decoder != null) {
+				decoder.close();
+			}
+		}
+
+		// the header is written again now the length and level are known; the file is renamed into place once complete
+		double loudness = loudnessMeter.getIntegratedLoudness();
+		float gain = getGain(loudness, loudnessMeter.getPeak());
+		try (RandomAccessFile headerFile = new RandomAccessFile(tempFile, "rw")) {
+			writeHeader(headerFile, pcmLength, (float) loudness, gain);
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to complete pre-decoded " + answerFile.getName() + " (" + e.getLocalizedMessage() +
+					") - temp deleted: " + tempFile.delete());
+			return;
+		}
+		if (tempFile.renameTo(cacheFile)) {
+			mStorageQuota.recordAdded(cacheFile.length());
+			Pss2.logEvent("Pre-decoded " + answerFile.getName() + " to " + pcmLength + " bytes of PCM in " +
+					(System.currentTimeMillis() - decodeStartTime) + "ms (" + (decodeNanos / 1000000) +
+					"ms decoding); loudness " + String.format("%.1f", loudness) + " LUFS, gain " +
+					String.format("%.1f", 20 * Math.log10(gain)) + "dB");
+			addLoudness(loudness);
+		} else {
+			Pss2.logEvent("Unable to store pre-decoded " + answerFile.getName() + " (temp deleted: " +
+					tempFile.delete() + ")");
+		}
+	}
+
+	private static void writeHeader(DataOutput outputStream, long pcmLength, float loudness, float gain)
+			throws IOException {
+		AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+		outputStream.writeInt(HEADER_MAGIC);
+		outputStream.writeInt(HEADER_VERSION);
+		outputStream.writeInt(Math.round(format.getSampleRate()));
+		outputStream.writeInt(format.getFrameSize());
+		outputStream.writeLong(pcmLength);
+		outputStream.writeFloat(loudness);
+		outputStream.writeFloat(gain);
+	}
+
+	/**
+	 * @return The linear gain that brings an answer to the target loudness - limited to MAX_GAIN, and never so much
+	 * that the answer's loudest sample would clip
+	 */
+	private static float getGain(double loudness, int peak) {
+		if (Double.isInfinite(loudness) || peak == 0) {
+			return 1; // silent (or too short to measure)
+		}
+		double gain = Math.max(-MAX_GAIN, Math.min(MAX_GAIN, TARGET_LOUDNESS - loudness));
+		return (float) Math.min(Math.pow(10, gain / 20), Short.MAX_VALUE / (double) peak);
+	}
+
+	private synchronized void addLoudness(double loudness) {
+		int band = Double.isInfinite(loudness) ? 0 :
+				(int) Math.floor((loudness - LOUDNESS_BAND_MINIMUM) / LOUDNESS_BAND_WIDTH) + 1;
+		mLoudnessDistribution[Math.max(0, Math.min(LOUDNESS_BANDS - 1, band))] += 1;
+
+		StringBuilder distribution = new StringBuilder();
+		for (int i = 0; i < LOUDNESS_BANDS; i++) {
+			String label = i == 0 ? "<" + LOUDNESS_BAND_MINIMUM : (LOUDNESS_BAND_MINIMUM + (i - 1) *
+					LOUDNESS_BAND_WIDTH) + (i == LOUDNESS_BANDS - 1 ? "+" : "");
+			distribution.append(i > 0 ? "; " : "").append(label).append(": ").append(mLoudnessDistribution[i]);
+		}
+		Pss2.logEvent("Answer loudness distribution (LUFS): " + distribution);
+	}
+
+	/**
+	 * @return A source that plays an answer's pre-decoded PCM, or null if it hasn't been decoded (or its PCM file isn't
+	 * valid - e.g., if it was written for a different output format, in which case it is deleted and decoded again)
+	 */
+	static AudioOutputEngine.Source open(File answerFile) {
+		File cacheFile = getCacheFile(answerFile);
+		if (!cacheFile.exists()) {
+			return null;
+		}
+		AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+		try (DataInputStream headerStream = new DataInputStream(new FileInputStream(cacheFile))) {
+			boolean valid = headerStream.readInt() == HEADER_MAGIC && headerStream.readInt() == HEADER_VERSION &&
+					headerStream.readInt() == Math.round(format.getSampleRate()) &&
+					headerStream.readInt() == format.getFrameSize();
+			long pcmLength = headerStream.readLong();
+			headerStream.readFloat(); // loudness - only used for logging when measured
+			float gain = headerStream.readFloat();
+			if (!valid || pcmLength != cacheFile.length() - HEADER_SIZE) {
+				Pss2.logEvent("Invalid PCM cache file " + cacheFile.getName() + " (deleted: " + cacheFile.delete() +
+						")");
+				return null;
+			}
+			try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				// the mapping stays valid after the channel is closed
+				return new MappedPcmSource(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, pcmLength), gain);
+			}
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to open PCM cache file " + cacheFile.getName() + ": " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	void stop() {
+		mDecodeStage.stop();
+	}
+
+	/**
+	 * Keeps work within a share of one CPU core, by resting in proportion to the time spent working. Rests too short to
+	 * sleep for (under 1ms) are carried over, so that many short pieces of work are throttled as well as long ones.
+	 */
+	static class CpuThrottle {
+		private final double mRestPerWorkNano;
+		private long mOwedRestNanos;
+
+		CpuThrottle(double cpuShare) {
+			mRestPerWorkNano = (1 - cpuShare) / cpuShare;
+		}
+
+		/**
+		 * @return The time (ms) to rest for after working for the given time (ns)
+		 */
+		long getRestMillis(long workNanos) {
+			mOwedRestNanos += Math.round(workNanos * mRestPerWorkNano);
+			long restMillis = mOwedRestNanos / 1000000;
+			mOwedRestNanos -= restMillis * 1000000;
+			return restMillis;
+		}
+	}
+
+	/**
+	 * Plays a memory-mapped PCM file, applying its gain as each buffer is copied
+	 */
+	private static class MappedPcmSource implements AudioOutputEngine.Source {
+		private final MappedByteBuffer mPcm;
+		private final int mGain; // fixed point, with GAIN_FRACTION_BITS fractional bits
+
+		private MappedPcmSource(MappedByteBuffer pcm, float gain) {
+			mPcm = pcm;
+			mGain = Math.round(gain * (1 << GAIN_FRACTION_BITS));
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (!mPcm.hasRemaining()) {
+				return -1;
+			}
+			int frameSize = AudioOutputEngine.OUTPUT_FORMAT.getFrameSize();
+			int bytesRead = Math.min(length - length % frameSize, mPcm.remaining());
+			mPcm.get(buffer, offset, bytesRead);
+			if (mGain != 1 << GAIN_FRACTION_BITS) {
+				for (int i = offset, end = offset + bytesRead - 1; i < end; i += 2) {
+					int sample = ((short) ((buffer[i] & 0xff) | (buffer[i + 1] << 8)) * mGain) >> GAIN_FRACTION_BITS;
+					sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+					buffer[i] = (byte) sample;
+					buffer[i + 1] = (byte) (sample >> 8);
+				}
+			}
+			return bytesRead;
+		}
+	}
+}
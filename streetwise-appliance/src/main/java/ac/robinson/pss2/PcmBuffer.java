@@ -0,0 +1,137 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preallocated (off-heap) circular store for raw PCM. It is allocated once and reused for every question, so capture
+ * itself doesn't allocate, and nothing is written to disk until the encoded audio is saved. Audio is written
+ * continuously; a recording is the span from the position given to {@link #startRecording(int)} to the latest write
+ * (or, once stopped, to the position when it was stopped), which means audio from just before recording was requested
+ * (pre-roll) can be included without copying, and a stopped recording can still be read (to finish encoding) while the
+ * next one is being captured.
+ */
+class PcmBuffer implements AudioProcessor {
+
+	private final ByteBuffer mBuffer;
+
+	private volatile long mWrittenBytes; // total ever written - the write position is this modulo capacity
+
+	PcmBuffer(int capacityBytes) {
+		mBuffer = ByteBuffer.allocateDirect(capacityBytes);
+	}
+
+	/**
+	 * Start a new recording. Any previous recording remains readable until it is overwritten.
+	 *
+	 * @param preRollBytes The number of already-captured bytes to include at the start of the recording (if available)
+	 */
+	Recording startRecording(int preRollBytes) {
+		long writtenBytes = mWrittenBytes;
+		int availableBytes = (int) Math.min(writtenBytes, preRollBytes);
+		return new Recording(writtenBytes - availableBytes, availableBytes);
+	}
+
+	int capacity() {
+		return mBuffer.capacity();
+	}
+
+	void write(byte[] source, int offset, int length) {
+		int capacity = mBuffer.capacity();
+		int writePosition = (int) (mWrittenBytes % capacity);
+		int firstLength = Math.min(length, capacity - writePosition);
+		mBuffer.position(writePosition);
+		mBuffer.put(source, offset, firstLength);
+		if (firstLength < length) {
+			mBuffer.position(0);
+			mBuffer.put(source, offset + firstLength, length - firstLength);
+		}
+		mWrittenBytes += length; // only updated once the data is in place, as reads may be on another thread
+	}
+
+	/**
+	 * One recording's span of the PcmBuffer. Reads may happen on a different thread from capture, and each recording
+	 * has its own view of the buffer, so a stopped recording can be read while the next one is being captured.
+	 */
+	class Recording {
+		private final long mStart; // in terms of mWrittenBytes
+		private final int mPreRollBytes;
+		private volatile long mEnd = -1; // -1 = still recording
+		private final ByteBuffer mReadBuffer; // separate view so reads don't disturb the write position
+
+		private Recording(long start, int preRollBytes) {
+			mStart = start;
+			mPreRollBytes = preRollBytes;
+			mReadBuffer = mBuffer.duplicate();
+		}
+
+		/**
+		 * Stop extending this recording - later writes to the PcmBuffer are not part of it
+		 */
+		void stop() {
+			if (mEnd < 0) {
+				mEnd = mWrittenBytes;
+			}
+		}
+
+		/**
+		 * @return The number of bytes of PCM in this recording
+		 */
+		int length() {
+			long end = mEnd;
+			return (int) ((end < 0 ? mWrittenBytes : end) - mStart);
+		}
+
+		/**
+		 * @return The number of bytes of pre-roll (i.e., from before the recording was started) that were included
+		 */
+		int getPreRollBytes() {
+			return mPreRollBytes;
+		}
+
+		/**
+		 * @return The number of bytes of this recording that have been overwritten - this should never be more than
+		 * zero, as the capacity allows for a maximum-length recording plus pre-roll, and stopped recordings are read
+		 * much faster than new audio arrives
+		 */
+		int getOverwrittenBytes() {
+			return (int) Math.max(0, mWrittenBytes - mStart - mBuffer.capacity());
+		}
+
+		/**
+		 * Copy PCM from this recording into the given array
+		 *
+		 * @param position The position to read from, relative to the start of the recording
+		 * @return The number of bytes copied, which may be less than requested if the end of the recording is reached
+		 */
+		int read(int position, byte[] destination, int offset, int length) {
+			int readLength = Math.max(0, Math.min(length, length() - position));
+			int capacity = mBuffer.capacity();
+			int readPosition = (int) ((mStart + position) % capacity);
+			int firstLength = Math.min(readLength, capacity - readPosition);
+			mReadBuffer.limit(readPosition + firstLength);
+			mReadBuffer.position(readPosition);
+			mReadBuffer.get(destination, offset, firstLength);
+			if (firstLength < readLength) {
+				mReadBuffer.limit(readLength - firstLength);
+				mReadBuffer.position(0);
+				mReadBuffer.get(destination, offset + firstLength, readLength - firstLength);
+			}
+			return readLength;
+		}
+	}
+
+	@Override
+	public boolean process(AudioEvent audioEvent) {
+		byte[] pcmBuffer = audioEvent.getByteBuffer();
+		write(pcmBuffer, 0, pcmBuffer.length);
+		return true;
+	}
+
+	@Override
+	public void processingFinished() {
+		// nothing to do
+	}
+}
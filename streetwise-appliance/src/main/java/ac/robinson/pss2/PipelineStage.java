@@ -0,0 +1,62 @@
+package ac.robinson.pss2;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stage of the question pipeline (capture, then encode, then upload): a single worker thread with a bounded queue
+ * of waiting tasks, so that each stage can get on with the next question while later stages are still busy with the
+ * previous one. If a stage falls so far behind that its queue is full, new tasks are refused rather than piling up.
+ */
+class PipelineStage {
+
+	private final String mName;
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * @param queueCapacity The number of tasks that may wait (in addition to the one currently running)
+	 */
+	PipelineStage(String name, int queueCapacity) {
+		this(name, queueCapacity, Thread.NORM_PRIORITY);
+	}
+
+	/**
+	 * @param threadPriority The worker thread's priority - e.g., lower for background work that nobody is waiting for
+	 */
+	PipelineStage(String name, int queueCapacity, int threadPriority) {
+		mName = name;
+		mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+				runnable -> {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					thread.setPriority(threadPriority);
+					return thread;
+				});
+	}
+
+	/**
+	 * @return Whether the task was accepted - false if the stage's queue is full (or it has been stopped)
+	 */
+	boolean submit(Runnable task) {
+		try {
+			mExecutor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			Pss2.logEvent("Pipeline stage " + mName + " unable to accept task (" + getQueueLength() + " waiting)");
+			return false;
+		}
+	}
+
+	/**
+	 * @return The number of tasks waiting to run (not including any that is currently running)
+	 */
+	int getQueueLength() {
+		return mExecutor.getQueue().size();
+	}
+
+	void stop() {
+		mExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,284 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All the prompts for one language, pre-decoded (in the output engine's format) into a single file that is
+ * memory-mapped rather than read into the heap - loading a language is just reading its index, so any number of
+ * languages can be installed without affecting startup time or memory use. The file starts with an index of prompt name
+ * to PCM offset and length; prompts are looked up by name, so a pack can hold prompts other than those listed in
+ * {@link SoundPlayer.Sound}.
+ * <p>
+ * Packs are built on the device the first time a language is used, from the prompts bundled with the application
+ * ([name]_[language].wav resources), plus any WAV files in a directory named after the language next to the pack
+ * (e.g., prompts/hi/start.wav), which replace or add to the bundled prompts. A pack is rebuilt if it is older than the
+ * application or any of those files, or was built for a different output format.
+ */
+class PromptPack {
+
+	private static final String PACK_FILE_EXTENSION = ".pack";
+	private static final String AUDIO_FILE_EXTENSION = ".wav";
+
+	// header: magic, version, sample rate, frame size, prompt count, then each prompt's name, offset and length
+	private static final int HEADER_MAGIC = 0x50535050; // "PSPP"
+	private static final int HEADER_VERSION = 1;
+
+	private final String mLanguageCode;
+	private final MappedByteBuffer mPcm;
+	private final Map<String, int[]> mIndex; // prompt name -> {offset, length}
+	private final long mPcmBytes;
+
+	private PromptPack(String languageCode, MappedByteBuffer pcm, Map<String, int[]> index) {
+		mLanguageCode = languageCode;
+		mPcm = pcm;
+		mIndex = index;
+		long pcmBytes = 0;
+		for (int[] entry : index.values()) {
+			pcmBytes += entry[1];
+		}
+		mPcmBytes = pcmBytes;
+	}
+
+	/**
+	 * Map a language's prompt pack, building it first if it doesn't exist or is out of date
+	 *
+	 * @param promptDirectory The directory containing packs (and the optional per-language prompt directories)
+	 */
+	static PromptPack load(File promptDirectory, String languageCode) throws IOException {
+		File packFile = new File(promptDirectory, languageCode + PACK_FILE_EXTENSION);
+		if (!packFile.exists() || packFile.lastModified() < getNewestSourceTime(promptDirectory, languageCode)) {
+			build(promptDirectory, languageCode, packFile);
+		}
+		PromptPack promptPack = open(packFile, languageCode);
+		if (promptPack == null) {
+			Pss2.logEvent("Invalid prompt pack " + packFile.getName() + " - rebuilding");
+			build(promptDirectory, languageCode, packFile);
+			promptPack = open(packFile, languageCode);
+			if (promptPack == null) {
+				throw new IOException("Unable to load prompt pack " + packFile.getName());
+			}
+		}
+		return promptPack;
+	}
+
+	/**
+	 * @return Whether there are prompts for this language (either a pack, or files from which to build one)
+	 */
+	static boolean isAvailable(File promptDirectory, String languageCode) {
+		if (new File(promptDirectory, languageCode + PACK_FILE_EXTENSION).exists() ||
+				new File(promptDirectory, languageCode).isDirectory()) {
+			return true;
+		}
+		for (SoundPlayer.Sound sound : SoundPlayer.Sound.values()) {
+			if (getResource(sound.toString(), languageCode) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The prompt's PCM (a read-only view, positioned at its start), or null if it isn't in this pack
+	 */
+	ByteBuffer getSound(String name) {
+		int[] entry = mIndex.get(name);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer pcm = mPcm.asReadOnlyBuffer();
+		pcm.position(entry[0]);
+		pcm.limit(entry[0] + entry[1]);
+		return pcm.slice();
+	}
+
+	Set<String> getSoundNames() {
+		return Collections.unmodifiableSet(mIndex.keySet());
+	}
+
+	String getLanguageCode() {
+		return mLanguageCode;
+	}
+
+	/**
+	 * @return The total size of every prompt's PCM (mapped, not on the heap)
+	 */
+	long getPcmBytes() {
+		return mPcmBytes;
+	}
+
+	private static PromptPack open(File packFile, String languageCode) {
+		if (!packFile.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+			long packLength = channel.size();
+			// (not closed itself, as that would close the channel before it is mapped)
+			DataInputStream indexStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(
+					channel)));
+			AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+			if (indexStream.readInt() != HEADER_MAGIC || indexStream.readInt() != HEADER_VERSION ||
+					indexStream.readInt() != Math.round(format.getSampleRate()) ||
+					indexStream.readInt() != format.getFrameSize()) {
+				return null;
+			}
+			int promptCount = indexStream.readInt();
+			Map<String, int[]> index = new HashMap<>();
+			for (int i = 0; i < promptCount; i++) {
+				String name = indexStream.readUTF();
+				int offset = indexStream.readInt();
+				int length = indexStream.readInt();
+				if (offset < 0 || length < 0 || (long) offset + length > packLength) {
+					return null;
+				}
+				index.put(name, new int[]{offset, length});
+			}
+			// the mapping stays valid after the channel is closed
+			return new PromptPack(languageCode, channel.map(FileChannel.MapMode.READ_ONLY, 0, packLength), index);
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to read prompt pack " + packFile.getName() + ": " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	private static void build(File promptDirectory, String languageCode, File packFile) throws IOException {
+		long buildStartTime = System.currentTimeMillis();
+		Map<String, byte[]> prompts = new LinkedHashMap<>();
+		for (SoundPlayer.Sound sound : SoundPlayer.Sound.values()) {
+			URL soundUrl = getResource(sound.toString(), languageCode);
+			if (soundUrl != null) {
+				addPrompt(prompts, sound.toString(), soundUrl);
+			}
+		}
+		File[] promptFiles = new File(promptDirectory, languageCode).listFiles(
+				(directory, name) -> name.endsWith(AUDIO_FILE_EXTENSION));
+		if (promptFiles != null) {
+			for (File promptFile : promptFiles) {
+				String name = promptFile.getName();
+				addPrompt(prompts, name.substring(0, name.length() - AUDIO_FILE_EXTENSION.length()),
+						promptFile.toURI().toURL());
+			}
+		}
+		if (prompts.isEmpty()) {
+			throw new IOException("No prompts found for language " + languageCode);
+		}
+
+		// the index's size depends on the prompts' names, so it is written once just to find where the PCM starts
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		writeIndex(index, prompts, 0);
+		int pcmOffset = index.size();
+		index.reset();
+		writeIndex(index, prompts, pcmOffset);
+
+		if (!promptDirectory.mkdirs() && !promptDirectory.exists()) {
+			throw new IOException("Unable to create prompt directory " + promptDirectory);
+		}
+		File tempFile = new File(promptDirectory, packFile.getName() + ".tmp");
+		try (BufferedOutputStream packStream = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+			index.writeTo(packStream);
+			for (byte[] pcm : prompts.values()) {
+				packStream.write(pcm);
+			}
+		}
+		if (!tempFile.renameTo(packFile)) {
+			throw new IOException("Unable to store prompt pack " + packFile.getName() + " (temp deleted: " +
+					tempFile.delete() + ")");
+		}
+		Pss2.logEvent("Built prompt pack " + packFile.getName() + " (" + prompts.size() + " prompts; " +
+				packFile.length() + " bytes) in " + (System.currentTimeMillis() - buildStartTime) + "ms");
+	}
+
+	private static void writeIndex(ByteArrayOutputStream index, Map<String, byte[]> prompts, int pcmOffset)
+			throws IOException {
+		DataOutputStream indexStream = new DataOutputStream(index);
+		AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+		indexStream.writeInt(HEADER_MAGIC);
+		indexStream.writeInt(HEADER_VERSION);
+		indexStream.writeInt(Math.round(format.getSampleRate()));
+		indexStream.writeInt(format.getFrameSize());
+		indexStream.writeInt(prompts.size());
+		int offset = pcmOffset;
+		for (Map.Entry<String, byte[]> prompt : prompts.entrySet()) {
+			indexStream.writeUTF(prompt.getKey());
+			indexStream.writeInt(offset);
+			indexStream.writeInt(prompt.getValue().length);
+			offset += prompt.getValue().length;
+		}
+	}
+
+	private static void addPrompt(Map<String, byte[]> prompts, String name, URL soundUrl) {
+		try {
+			prompts.put(name, decodeSound(soundUrl));
+		} catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+			Pss2.logEvent("Error loading sound: " + name + " (" + soundUrl + ")");
+			e.printStackTrace();
+		}
+	}
+
+	private static byte[] decodeSound(URL soundUrl) throws UnsupportedAudioFileException, IOException {
+		AudioFormat outputFormat = AudioOutputEngine.OUTPUT_FORMAT;
+		try (AudioInputStream sourceStream = AudioSystem.getAudioInputStream(soundUrl);
+			 InputStream pcmStream = sourceStream.getFormat().matches(outputFormat) ? sourceStream :
+					 AudioSystem.getAudioInputStream(outputFormat, sourceStream)) {
+			ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int bytesRead;
+			while ((bytesRead = pcmStream.read(buffer)) > 0) {
+				pcm.write(buffer, 0, bytesRead);
+			}
+			return pcm.toByteArray();
+		}
+	}
+
+	private static URL getResource(String name, String languageCode) {
+		return PromptPack.class.getClassLoader().getResource(name + "_" + languageCode + AUDIO_FILE_EXTENSION);
+	}
+
+	/**
+	 * @return The modification time of the newest file a language's pack is built from - the application itself (for
+	 * bundled prompts) and the language's prompt directory
+	 */
+	private static long getNewestSourceTime(File promptDirectory, String languageCode) {
+		long newestTime = 0;
+		try {
+			File applicationFile = new File(PromptPack.class.getProtectionDomain().getCodeSource().getLocation()
+					.toURI());
+			if (applicationFile.isFile()) { // i.e., a jar, rather than classes run from an IDE
+				newestTime = applicationFile.lastModified();
+			}
+		} catch (URISyntaxException | SecurityException | NullPointerException ignored) {
+		}
+		File languageDirectory = new File(promptDirectory, languageCode);
+		newestTime = Math.max(newestTime, languageDirectory.lastModified()); // changes when files are added/removed
+		File[] promptFiles = languageDirectory.listFiles();
+		if (promptFiles != null) {
+			for (File promptFile : promptFiles) {
+				newestTime = Math.max(newestTime, promptFile.lastModified());
+			}
+		}
+		return newestTime;
+	}
+}
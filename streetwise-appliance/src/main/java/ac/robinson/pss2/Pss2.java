@@ -15,10 +15,13 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public class Pss2 {
@@ -31,26 +34,44 @@ public class Pss2 {
 
 	// Pss2.logEvent(System.getProperty("user.dir")); // relative directory
 	private static final File HOME_DIRECTORY = new File("/home/pi/pss2");
+	private static final File PROMPT_DIRECTORY = new File(HOME_DIRECTORY, "prompts"); // one prompt pack per language
+	private static final String LATENCY_FILE_NAME = "latency.txt"; // per-stage latency histograms, updated regularly
 
-	@SuppressWarnings("ArraysAsListWithZeroOrOneArgument")
-	private static final List<String> VALID_LANGUAGES = Arrays.asList("hi");
 	private static final String LANGUAGE = "hi"; // audio language - overridden from /boot/pss2language on start
+	private static final List<String> VALID_CODECS = Arrays.asList(AudioCodec.MP3, AudioCodec.OPUS);
+	// question recording format; opus is much smaller (for metered connections), but needs opusenc (opus-tools)
+	private static final String QUESTION_CODEC = AudioCodec.MP3; // overridden from /boot/pss2codec on start
+	private static final List<Double> VALID_PLAYBACK_SPEEDS = Arrays.asList(1.0, 1.25, 1.5); // long-press to cycle
+	private static final double PLAYBACK_SPEED = 1.0; // answer playback speed - overridden from /boot/pss2speed
+	private static final int STORAGE_QUOTA_MB = 2048; // maximum size of the home directory - /boot/pss2quota
 	private static final int OUTPUT_VOLUME = 100; // default (percentage)  - overridden from /boot/pss2volume on start
 	private static final int FALLBACK_SYSTEM_ID = 20; // if /boot/pss2id reading fails, use this ID
 	private static final String FALLBACK_MIC_NAME = "sndrpigooglevoi [default]"; // if /boot/pss2mic reading fails, use this
 	private static final String FALLBACK_SPEAKER_NAME = "sndrpigooglevoi [default]"; // if /boot/pss2speaker reading fails, use this
 
 	// lower to require a more silent background (e.g., -70); higher to tolerate more noise (e.g., -50)
-	private static final double SILENCE_THRESHOLD_DB = -45; // decibel level for silence detection - /boot/pss2silence
+	// (this is the minimum - in noisy places the threshold rises to stay NOISE_FLOOR_MARGIN_DB above the background)
+	static final double SILENCE_THRESHOLD_DB = -45; // decibel level for silence detection - /boot/pss2silence
+	static final double NOISE_FLOOR_MARGIN_DB = 10; // decibels above the background noise level that count as speech
+	static final double NOISE_FLOOR_PERCENTILE = 0.1; // the background noise level is this percentile of recent audio
+	static final int NOISE_FLOOR_WINDOW_MS = 10 * 1000; // ms of recent audio used to estimate the background noise
 	static final int SILENCE_TIMEOUT_MS = 3 * 1000; // ms of silence before stopping recording after minimum duration
+	static final int TRIM_MARGIN_MS = 300; // ms of silence kept before and after speech when trimming recordings
 	static final int DURATION_MINIMUM_MS = (1 + 4) * 1000; // ms minimum duration of recording ("ask now" + time)
 	static final int DURATION_MAXIMUM_MS = 15 * 1000; // ms maximum duration of recording
+	// audio from before the button press to include in recordings (keeps the mic open); 0 = open mic on each press
+	private static final int PRE_ROLL_MS = 500; // ms of pre-roll - overridden from /boot/pss2preroll on start
+	// questions that may wait at each stage (encode, upload) while the previous one is processed; more are refused
+	static final int PIPELINE_QUEUE_CAPACITY = 4;
+	// questions are uploaded in chunks of (at least) this size while recording; 0 = upload once recording is complete
+	private static final int QUESTION_UPLOAD_CHUNK_BYTES = 8 * 1024;
 
 	private static final int LED_FADE_INTENSITY = 70; // when no interaction, fade led from 0 to this value (max: 100)
 	private static final int LED_BLINK_INTERVAL_ACTIVE = 200; // ms blink interval when something is happening
 
 
 	private static PrintWriter mLogWriter; // static so we can share between classes
+	private static boolean sLogToConsoleOnly; // for tests and benchmarks, which run away from the appliance
 
 	private static OkHttpClient sOkHttpClient;
 
@@ -66,27 +87,40 @@ public class Pss2 {
 
 	private SoundPlayer mSoundPlayer;
 	private SilenceDetectingAudioRecorder mAudioRecorder;
-	private NumberPlaybackCallback mNumberPlaybackCallback;
 
+	private PipelineStage mUploadStage;
+	private LatencyTracer mLatencyTracer;
+	// question numbers (and errors) are announced once uploaded, but never while someone else is recording
+	private final Object mAnnouncementLock = new Object();
+	private final ArrayDeque<Runnable> mPendingAnnouncements = new ArrayDeque<>();
+	private boolean mAnnouncing;
+
+	private QuestionIndex mQuestionIndex;
+	private StorageQuota mStorageQuota;
 	private AnswerDownloader mAnswerDownloader;
+	private PcmAnswerCache mPcmAnswerCache;
 
 	private PssIO pssIO;
 
 	private Disposable answerQueryNumSub;
+	private Disposable playbackSpeedSub;
 
 	private int mPss2Id;
 	private static String mMicName;
 	private static String mSpeakerName;
 	private int mPss2Volume;
 	private double mPss2SilenceThreshold;
+	private int mPss2PreRoll;
 	private String mPss2Language;
+	private String mPss2Codec;
+	private double mPss2PlaybackSpeed;
+	private int mPss2StorageQuota;
 
 	private boolean mRecordingEnabled;
 
-	// pattern is: [id]_[type]_[recording timestamp].mp3
+	// pattern is: [id]_[type]_[recording timestamp].[mp3|ogg] (any codec, so a codec change doesn't orphan questions)
 	static final Pattern QUESTION_FILE_PATTERN = Pattern.compile(
-			"(\\d+)_question_(\\d+)_(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})\\" +
-					SilenceDetectingAudioRecorder.MP3_AUDIO_FILE_EXTENSION);
+			"(\\d+)_question_(\\d+)_(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})\\.(mp3|ogg)");
 	private static final String QUESTION_FILE_FORMAT = "%d_question_%s"; // for renaming with ids
 	static final Pattern ANSWER_FILE_PATTERN = Pattern.compile(
 			"(\\d+)_answer_(\\d+)_" + "(\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})\\.(mp3|m4a|wav)");
@@ -94,7 +128,9 @@ public class Pss2 {
 
 	// for file uploads and response retrieval
 	private static final String FILE_SERVER_URL = String.format("%s%s", SERVER_URL, "question.php");
+	private static final String CHUNK_SERVER_URL = String.format("%s%s", SERVER_URL, "question_chunk.php");
 	static final String ANSWER_SERVER_URL = String.format("%s%s", SERVER_URL, "responses.php");
+	static final String ANSWER_EVENTS_URL = String.format("%s%s", SERVER_URL, "answer_events.php");
 
 	private void initialise() {
 		if (!HOME_DIRECTORY.mkdirs() && !HOME_DIRECTORY.exists()) {
@@ -152,10 +188,19 @@ public class Pss2 {
 			mPss2SilenceThreshold = SILENCE_THRESHOLD_DB;
 		}
 
+		try {
+			List<String> lines = Files.readAllLines(Paths.get("/boot", "pss2preroll"));
+			mPss2PreRoll = Integer.valueOf(lines.get(0));
+			Pss2.logEvent("Pss2 pre-roll loaded: " + mPss2PreRoll);
+		} catch (IOException | IndexOutOfBoundsException | NumberFormatException e) {
+			Pss2.logEvent("Error reading Pss2 pre-roll - setting to " + PRE_ROLL_MS + "ms as fallback");
+			mPss2PreRoll = PRE_ROLL_MS;
+		}
+
 		try {
 			List<String> lines = Files.readAllLines(Paths.get("/boot", "pss2language"));
 			mPss2Language = lines.get(0);
-			if (!VALID_LANGUAGES.contains(mPss2Language)) {
+			if (!PromptPack.isAvailable(PROMPT_DIRECTORY, mPss2Language)) {
 				throw new IllegalArgumentException("Invalid boot language code");
 			}
 			Pss2.logEvent("Pss2 language loaded: " + mPss2Language);
@@ -164,6 +209,42 @@ public class Pss2 {
 			mPss2Language = LANGUAGE;
 		}
 
+		try {
+			List<String> lines = Files.readAllLines(Paths.get("/boot", "pss2codec"));
+			mPss2Codec = lines.get(0).trim();
+			if (!VALID_CODECS.contains(mPss2Codec)) {
+				throw new IllegalArgumentException("Invalid boot codec name");
+			}
+			Pss2.logEvent("Pss2 codec loaded: " + mPss2Codec);
+		} catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			Pss2.logEvent("Error reading Pss2 codec - setting to " + QUESTION_CODEC + " as fallback");
+			mPss2Codec = QUESTION_CODEC;
+		}
+
+		try {
+			List<String> lines = Files.readAllLines(Paths.get("/boot", "pss2speed"));
+			mPss2PlaybackSpeed = Double.valueOf(lines.get(0).trim());
+			if (!VALID_PLAYBACK_SPEEDS.contains(mPss2PlaybackSpeed)) {
+				throw new IllegalArgumentException("Invalid boot playback speed");
+			}
+			Pss2.logEvent("Pss2 playback speed loaded: " + mPss2PlaybackSpeed);
+		} catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			Pss2.logEvent("Error reading Pss2 playback speed - setting to " + PLAYBACK_SPEED + "x as fallback");
+			mPss2PlaybackSpeed = PLAYBACK_SPEED;
+		}
+
+		try {
+			List<String> lines = Files.readAllLines(Paths.get("/boot", "pss2quota"));
+			mPss2StorageQuota = Integer.valueOf(lines.get(0).trim());
+			if (mPss2StorageQuota <= 0) {
+				throw new IllegalArgumentException("Invalid boot storage quota");
+			}
+			Pss2.logEvent("Pss2 storage quota loaded: " + mPss2StorageQuota + "MB");
+		} catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			Pss2.logEvent("Error reading Pss2 storage quota - setting to " + STORAGE_QUOTA_MB + "MB as fallback");
+			mPss2StorageQuota = STORAGE_QUOTA_MB;
+		}
+
 		pssIO = new PssIO();
 		pssIO.initialize();
 		pssIO.blockUserInput();
@@ -176,8 +257,12 @@ public class Pss2 {
 		mProgressUpdaterThread = new Thread(mProgressUpdater);
 		mProgressUpdaterThread.start(); // on start, just show the loading symbol
 
-		mNumberPlaybackCallback = new NumberPlaybackCallback();
+		mUploadStage = new PipelineStage("UploadStage", PIPELINE_QUEUE_CAPACITY);
+		mLatencyTracer = new LatencyTracer(new File(HOME_DIRECTORY, LATENCY_FILE_NAME));
+		mQuestionIndex = new QuestionIndex(HOME_DIRECTORY);
+		mStorageQuota = new StorageQuota(HOME_DIRECTORY, mPss2StorageQuota * 1024L * 1024, mQuestionIndex);
 		answerQueryNumSub = pssIO.getAnswerQueryNumbers().subscribe(this::getAndPlayAnswer);
+		playbackSpeedSub = pssIO.getLongPressedKeys().subscribe(keyCode -> changePlaybackSpeed());
 
 		mLed.setState(true);
 
@@ -202,12 +287,14 @@ public class Pss2 {
 			}
 
 			Pss2.logEvent("Working internet connection found - completing startup");
+			// (created before input is enabled, as answers can be requested from then on)
+			mPcmAnswerCache = new PcmAnswerCache(mStorageQuota);
+			mAnswerDownloader = new AnswerDownloader(HOME_DIRECTORY, mPss2Id, mQuestionIndex, mPcmAnswerCache);
 			mRecordingEnabled = true;
 			pssIO.enableUserInput(false);
 			mProgressUpdater.stop();
 			mButton.addListener(mButtonListener);
-			mSoundPlayer.playSoundResource(SoundPlayer.Sound.start);
-			mAnswerDownloader = new AnswerDownloader(HOME_DIRECTORY, mPss2Id);
+			mSoundPlayer.playSoundResource(SoundPlayer.Sound.start, AudioOutputEngine.Priority.NORMAL);
 		}).start();
 	}
 
@@ -220,7 +307,26 @@ public class Pss2 {
 		if (mAnswerDownloader != null) {
 			mAnswerDownloader.stop();
 		}
+		if (mPcmAnswerCache != null) {
+			mPcmAnswerCache.stop();
+		}
 		answerQueryNumSub.dispose();
+		playbackSpeedSub.dispose();
+		if (mAudioRecorder != null) {
+			mAudioRecorder.close();
+		}
+		if (mUploadStage != null) {
+			mUploadStage.stop();
+		}
+		if (mLatencyTracer != null) {
+			mLatencyTracer.stop(); // also writes the latest latency histograms
+		}
+		if (mStorageQuota != null) {
+			mStorageQuota.stop();
+		}
+		if (mQuestionIndex != null) {
+			mQuestionIndex.close();
+		}
 
 		// TODO: terminate all sounds and free their resources
 
@@ -371,7 +477,8 @@ public class Pss2 {
 			speakerMixer = AudioSystem.getMixer(mixerInfos[1]);
 			Pss2.logEvent("Using fallback mixer for speaker");
 		}
-		mAudioRecorder = new SilenceDetectingAudioRecorder(HOME_DIRECTORY, pssIO, micMixer);
+		mAudioRecorder = new SilenceDetectingAudioRecorder(HOME_DIRECTORY, pssIO, micMixer, mPss2PreRoll,
+				mPss2Codec);
 		try {
 			Runtime.getRuntime().exec("amixer sset Master,0 " + mPss2Volume + "%"); // set system volume
 		} catch (IOException e) {
@@ -383,7 +490,19 @@ public class Pss2 {
 		} catch (IOException e) {
 			Pss2.logEvent("Warning: unable to set mic to maximum volume");
 		}
-		mSoundPlayer = new SoundPlayer(mPss2Language, speakerMixer);
+		mSoundPlayer = new SoundPlayer(PROMPT_DIRECTORY, mPss2Language, speakerMixer);
+		mPss2PlaybackSpeed = mSoundPlayer.setPlaybackSpeed(mPss2PlaybackSpeed);
+	}
+
+	/**
+	 * Move on to the next answer playback speed (after the fastest, back to normal speed) - this applies immediately,
+	 * including to an answer that is already playing
+	 */
+	private void changePlaybackSpeed() {
+		int speedIndex = VALID_PLAYBACK_SPEEDS.indexOf(mPss2PlaybackSpeed);
+		double requestedSpeed = VALID_PLAYBACK_SPEEDS.get((speedIndex + 1) % VALID_PLAYBACK_SPEEDS.size());
+		mPss2PlaybackSpeed = mSoundPlayer.setPlaybackSpeed(requestedSpeed);
+		Pss2.logEvent("Answer playback speed set to " + mPss2PlaybackSpeed + "x (requested: " + requestedSpeed + "x)");
 	}
 
 	public static void main(String[] args) {
@@ -400,219 +519,278 @@ public class Pss2 {
 		}
 	}
 
+	/**
+	 * Handles a single question, from recording through to its upload (which, if chunked, starts while recording)
+	 */
+	private class QuestionRecordingCallback implements SilenceDetectingAudioRecorder.RecordingCompletedCallback {
+		private final LatencyTracer.Trace mTrace = mLatencyTracer.start("question"); // from the button press
+		private ChunkedQuestionUpload mChunkedUpload;
+		private long mSpeechEndTime;
+
+		@Override
+		public void onRecordingStarted() {
+			Pss2.logEvent("Recording started (callback)");
+			mTrace.mark("recording_started");
+			// TODO: start recording after instead? ...problem = failures happen after "ask now"
+			mProgressUpdater.stop(); // a previous question may still be uploading - the display is needed for recording
+			mSoundPlayer.stop(AudioOutputEngine.Priority.INTERACTIVE); // e.g., an answer - don't record it
+			mSoundPlayer.playSoundResource(SoundPlayer.Sound.begin_question, AudioOutputEngine.Priority.INTERACTIVE,
+					() -> mTrace.mark("prompt_started"));
+			mRecordingEnabled = false;
+			setLedState(LedState.Blinking);
+		}
+
+		@Override
+		public void onEncodedDataWritten(File outputFile, long totalBytes) {
+			if (QUESTION_UPLOAD_CHUNK_BYTES <= 0) {
+				return;
+			}
+			if (mChunkedUpload == null) {
+				AudioCodec codec = mAudioRecorder.getCodec();
+				String uploadId = mPss2Id + "_" + outputFile.getName().replace(codec.getFileExtension(), "");
+				ChunkedQuestionUpload chunkedUpload = new ChunkedQuestionUpload(CHUNK_SERVER_URL, FILE_SERVER_URL,
+						mPss2Id, uploadId, codec.getFileExtension(), QUESTION_UPLOAD_CHUNK_BYTES);
+				if (!mUploadStage.submit(() -> uploadQuestion(outputFile, chunkedUpload, this))) {
+					return; // we'll upload the whole file at the end instead (and fail then if the queue is still full)
+				}
+				Pss2.logEvent("Starting chunked upload " + uploadId);
+				mChunkedUpload = chunkedUpload;
+			}
+			mChunkedUpload.onDataWritten(outputFile, totalBytes);
+		}
+
+		@Override
+		public void onEncodingStarted() {
+			// the microphone is free again, so the next person can ask straight away; this question's number is
+			// announced once it has been encoded and uploaded (or after the next recording, if one has started)
+			Pss2.logEvent("Encoding started (callback)");
+			mTrace.mark("speech"); // (includes the silence at the end that stops recording)
+			mSpeechEndTime = System.currentTimeMillis();
+			setLedState(LedState.On);
+			mProgressUpdaterThread = new Thread(mProgressUpdater);
+			mProgressUpdaterThread.start();
+			playNextAnnouncement();
+		}
+
+		@Override
+		public void onRecordingCompleted(File outputFile) {
+			Pss2.logEvent("Recording completed (callback) to: " + outputFile.getAbsolutePath());
+			mTrace.mark("encoding_finished");
+			if (mChunkedUpload != null) {
+				mChunkedUpload.onCompleted(outputFile);
+			} else if (!mUploadStage.submit(() -> uploadQuestion(outputFile, null, this))) {
+				announce(() -> playAnnouncementError("Upload queue full - unable to upload " + outputFile.getName()));
+			}
+		}
+
+		@Override
+		public void onRecordingFailed() {
+			Pss2.logEvent("Recording failed (callback)");
+			if (mChunkedUpload != null) {
+				mChunkedUpload.cancel();
+			}
+			announce(() -> playAnnouncementError("Recording failed"));
+		}
+	}
+
 	private final GpioPinListenerDigital mButtonListener = gpioPinDigitalStateChangeEvent -> {
 		if (gpioPinDigitalStateChangeEvent.getState().isHigh()) {
 			Pss2.logEvent("Button up");
 		} else {
 			Pss2.logEvent("Button down");
-			if (!mRecordingEnabled ||
-					!mAudioRecorder.startRecording(mPss2SilenceThreshold,
-							new SilenceDetectingAudioRecorder.RecordingCompletedCallback() {
-						@Override
-						public void onRecordingStarted() {
-							Pss2.logEvent("Recording started (callback)");
-							// TODO: start recording after instead? ...problem = failures happen after "ask now"
-							mSoundPlayer.playSoundResource(SoundPlayer.Sound.begin_question);
-							mRecordingEnabled = false;
-							setLedState(LedState.Blinking);
-						}
-
-						@Override
-						public void onEncodingStarted() {
-							Pss2.logEvent("Encoding completed (callback)");
-							mProgressUpdater.stop();
-							mProgressUpdaterThread = new Thread(mProgressUpdater);
-							mProgressUpdaterThread.start();
-							setLedState(LedState.Off);
-						}
-
-						@Override
-						public void onRecordingCompleted(File outputFile) {
-							Pss2.logEvent("Recording completed (callback) to: " + outputFile.getAbsolutePath());
-							uploadQuestion(outputFile);
-						}
-
-						@Override
-						public void onRecordingFailed() {
-							Pss2.logEvent("Recording failed (callback)");
-							mSoundPlayer.playSoundResource(SoundPlayer.Sound.error);
-							setLedState(LedState.On);
-						}
-					})) {
-				Pss2.logEvent(
-						"Unable to start recording (already recording? Recording enabled: " + mRecordingEnabled + ")");
+			synchronized (mAnnouncementLock) { // so an announcement can't start at the same time as a recording
+				if (mAnnouncing || !mRecordingEnabled ||
+						!mAudioRecorder.startRecording(mPss2SilenceThreshold, new QuestionRecordingCallback())) {
+					Pss2.logEvent("Unable to start recording (already recording or announcing? Recording enabled: " +
+							mRecordingEnabled + ")");
+				}
 			}
 		}
 	};
 
-	private File getLocalAudioFile(Pattern pattern, int localId) {
-		// find a file named according to our system
-		File[] fileList = HOME_DIRECTORY.listFiles();
-		if (fileList != null) {
-			for (File file : fileList) {
-				String fileName = file.getName();
-				if (file.isFile()) {
-					Matcher matcher = pattern.matcher(fileName);
-					if (matcher.matches()) {
-						try {
-							int fileNumber = Integer.parseInt(matcher.group(1));
-							if (fileNumber == localId) {
-								return file;
-							}
-						} catch (Exception ignored) {
-						}
-					}
-				}
+	/**
+	 * Play an announcement now if nothing else is happening, or otherwise once the current recording or announcement
+	 * has finished. Input is blocked while announcements play. Every announcement must end by calling
+	 * {@link #onAnnouncementCompleted()}.
+	 */
+	private void announce(Runnable announcement) {
+		synchronized (mAnnouncementLock) {
+			mPendingAnnouncements.add(announcement);
+		}
+		playNextAnnouncement();
+	}
+
+	private void playNextAnnouncement() {
+		Runnable announcement;
+		synchronized (mAnnouncementLock) {
+			if (mAnnouncing || mAudioRecorder.isRecording() || mPendingAnnouncements.isEmpty()) {
+				return;
 			}
+			announcement = mPendingAnnouncements.poll();
+			mAnnouncing = true;
+			mRecordingEnabled = false;
 		}
-		return null;
+		setLedState(LedState.Off);
+		announcement.run();
 	}
 
-	private void uploadQuestion(File questionFile) {
-		Pss2.logEvent("Uploading " + questionFile.getName() + " to server");
-		try {
+	private void onAnnouncementCompleted() {
+		synchronized (mAnnouncementLock) {
+			mAnnouncing = false;
+		}
+		setLedState(LedState.On);
+		playNextAnnouncement();
+	}
+
+	private void playAnnouncementError(String message) {
+		Pss2.logEvent(message);
+		mProgressUpdater.stop();
+		mSoundPlayer.playSoundResource(SoundPlayer.Sound.error, AudioOutputEngine.Priority.NORMAL)
+				.whenComplete((completed, error) -> onAnnouncementCompleted());
+	}
+
+	private void announceQuestionNumber(int questionNumber, long speechEndTime, LatencyTracer.Trace trace) {
+		Pss2.logEvent("Announcing question " + questionNumber + " " + (System.currentTimeMillis() - speechEndTime) +
+				"ms after end of recording (chunked upload: " + (QUESTION_UPLOAD_CHUNK_BYTES > 0 ? "enabled" :
+				"disabled") + ")");
+		mProgressUpdater.stop(questionNumber); // ugly hack to also update number when stopping
+
+		// the whole announcement (including each digit of the number) is played as one continuous sequence
+		List<SoundPlayer.Sound> announcement = new ArrayList<>();
+		announcement.add(SoundPlayer.Sound.question_received);
+		announcement.add(SoundPlayer.Sound.question_number_allocated);
+		announcement.addAll(SoundPlayer.getSoundsForDigits(questionNumber));
+		announcement.add(SoundPlayer.Sound.question_received_hint);
+		mSoundPlayer.playSoundSequence(announcement, AudioOutputEngine.Priority.NORMAL,
+				() -> trace.finish("announcement_started"))
+				.whenComplete((completed, error) -> onAnnouncementCompleted());
+	}
+
+	/**
+	 * Upload a question and, if successful, announce its number. Runs on the upload stage, so is blocking.
+	 *
+	 * @param chunkedUpload If not null, the question is sent in chunks as it is recorded (this call only returns once
+	 *                      recording has finished); if null, the complete file is uploaded in a single request
+	 */
+	private void uploadQuestion(File questionFile, ChunkedQuestionUpload chunkedUpload,
+								QuestionRecordingCallback questionRecordingCallback) {
+		long uploadStartTime = System.currentTimeMillis();
+		String responseString;
+		if (chunkedUpload != null) {
+			try {
+				responseString = chunkedUpload.upload();
+			} catch (Exception e) {
+				if (e instanceof IOException) { // otherwise cancelled due to a recording error (announced elsewhere)
+					announce(() -> playAnnouncementError("Chunked upload failed: " + e.getLocalizedMessage()));
+				}
+				return;
+			}
+		} else {
+			Pss2.logEvent("Uploading " + questionFile.getName() + " to server");
 			RequestBody requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM)
 					.addFormDataPart("question", questionFile.getName(), RequestBody.create(MediaType.parse(
-							"audio" + "/mpeg"), questionFile))
+							mAudioRecorder.getCodec().getMimeType()), questionFile))
 					.addFormDataPart("source", String.valueOf(mPss2Id))
 					.addFormDataPart("k", SERVER_KEY)
 					.build();
 			Request request = new Request.Builder().url(FILE_SERVER_URL).post(requestBody).build();
 
-			getOkHttpClient().newCall(request).enqueue(new Callback() {
-				@Override
-				public void onFailure(Call call, IOException e) {
-					onError("Upload request failed: " + call + ", " + e.getLocalizedMessage());
-				}
-
-				@Override
-				public void onResponse(Call call, Response response) throws IOException {
-					ResponseBody responseBody = response.body();
-					if (!response.isSuccessful() || responseBody == null) {
-						onError("Upload response unsuccessful: " +
-								(responseBody != null ? responseBody.string() : null));
-					} else {
-						String responseString = responseBody.string();
-						if ("error".equals(responseString)) {
-							onError("Upload response unsuccessful: " + responseString);
-							return;
-						}
-
-						// 0 = question id; 1 = m4a file url
-						String[] responseParts = responseString.split(",");
-						int questionNumber = 0;
-						try {
-							questionNumber = Integer.parseInt(responseParts[0]);
-						} catch (NumberFormatException ignored) {
-						}
-
-						if (questionNumber > 0) {
-							Pss2.logEvent("Upload of question " + questionNumber + " successful: " + responseParts[1]);
-							File newQuestionFile = new File(HOME_DIRECTORY, String.format(QUESTION_FILE_FORMAT,
-									questionNumber, questionFile
-									.getName()));
-
-							// popularity means number reuse: rename any older question/answer files with this number
-							File existingQuestionFile = getLocalAudioFile(QUESTION_FILE_PATTERN, questionNumber);
-							File existingAnswerFile = getLocalAudioFile(ANSWER_FILE_PATTERN, questionNumber);
-							Date fileDate = new Date();
-							if (existingQuestionFile != null) {
-								String oldQuestionFileNewName =
-										existingQuestionFile.getAbsolutePath() + "." + fileDate.getTime() + ".old";
-								Pss2.logEvent(
-										"Reusing existing number - renaming question " + existingQuestionFile + " to" +
-												" " + oldQuestionFileNewName + " - " +
-												existingQuestionFile.renameTo(new File(oldQuestionFileNewName)));
-							}
-							if (existingAnswerFile != null) {
-								String oldAnswerFileNewName =
-										existingAnswerFile.getAbsolutePath() + "." + fileDate.getTime() + ".old";
-								Pss2.logEvent(
-										"Reusing existing number - renaming answer " + existingAnswerFile + " to" +
-												" " + oldAnswerFileNewName + " - " +
-												existingAnswerFile.renameTo(new File(oldAnswerFileNewName)));
-							}
-
-							if (questionFile.renameTo(newQuestionFile)) {
-								mProgressUpdater.stop(questionNumber); // ugly hack to also update number when stopping
-
-								// callback so we can manually read the numbers in order, then finish with either
-								// audio or visual confirmation
-								mNumberPlaybackCallback.initialise(questionNumber,
-										() -> mSoundPlayer.playSoundResource(SoundPlayer.Sound.question_received_hint,
-												() -> setLedState(LedState.On)));
-								mSoundPlayer.playSoundResource(SoundPlayer.Sound.question_received,
-										() -> mSoundPlayer.playSoundResource(SoundPlayer.Sound.question_number_allocated, mNumberPlaybackCallback));
-							} else {
-								// TODO: anything else we can do? (has been sent to server, so will be answered...)
-								onError("Upload file renaming failed: " + responseString);
-							}
-						} else {
-							onError("Upload response parsing failed: " + responseString);
-						}
-					}
+			try (Response response = getOkHttpClient().newCall(request).execute()) {
+				ResponseBody responseBody = response.body();
+				if (!response.isSuccessful() || responseBody == null) {
+					String message =
+							"Upload response unsuccessful: " + (responseBody != null ? responseBody.string() : null);
+					announce(() -> playAnnouncementError(message));
+					return;
 				}
+				responseString = responseBody.string();
+			} catch (Exception e) {
+				announce(() -> playAnnouncementError("Upload request failed: " + e.getLocalizedMessage()));
+				return;
+			}
+		}
 
-				private void onError(String message) {
-					Pss2.logEvent(message);
-					mSoundPlayer.playSoundResource(SoundPlayer.Sound.error);
-					setLedState(LedState.On);
-				}
-			});
-		} catch (Exception e) {
-			Pss2.logEvent("Upload failed: " + e.getLocalizedMessage());
-			mSoundPlayer.playSoundResource(SoundPlayer.Sound.error);
-			setLedState(LedState.On);
+		if ("error".equals(responseString)) {
+			announce(() -> playAnnouncementError("Upload response unsuccessful: " + responseString));
+			return;
 		}
-	}
 
-	private class NumberPlaybackCallback implements SoundPlayer.ResourcePlaybackCompletedCallback {
-		private int[] mDigits;
-		private SoundPlayer.ResourcePlaybackCompletedCallback mFinalDigitCallback;
-		private int mDigitPosition;
+		// 0 = question id; 1 = m4a file url
+		String[] responseParts = responseString.split(",");
+		int questionNumber = 0;
+		try {
+			questionNumber = Integer.parseInt(responseParts[0]);
+		} catch (NumberFormatException ignored) {
+		}
+		if (questionNumber <= 0 || responseParts.length < 2) {
+			announce(() -> playAnnouncementError("Upload response parsing failed: " + responseString));
+			return;
+		}
 
-		void initialise(int questionNumber, SoundPlayer.ResourcePlaybackCompletedCallback finalDigitCallback) {
-			mDigits = String.valueOf(questionNumber).chars().map(Character::getNumericValue).toArray();
-			mFinalDigitCallback = finalDigitCallback;
-			mDigitPosition = 0;
+		Pss2.logEvent("Upload of question " + questionNumber + " successful in " +
+				(System.currentTimeMillis() - uploadStartTime) + "ms: " + responseParts[1]);
+		questionRecordingCallback.mTrace.mark("upload");
+		File newQuestionFile = new File(HOME_DIRECTORY, String.format(QUESTION_FILE_FORMAT, questionNumber,
+				questionFile.getName()));
+
+		// popularity means number reuse: rename any older question/answer files with this number
+		File existingQuestionFile = mQuestionIndex.getQuestionFile(questionNumber);
+		File existingAnswerFile = mQuestionIndex.getAnswerFile(questionNumber);
+		Date fileDate = new Date();
+		if (existingQuestionFile != null) {
+			String oldQuestionFileNewName = existingQuestionFile.getAbsolutePath() + "." + fileDate.getTime() + ".old";
+			Pss2.logEvent("Reusing existing number - renaming question " + existingQuestionFile + " to " +
+					oldQuestionFileNewName + " - " + existingQuestionFile.renameTo(new File(oldQuestionFileNewName)));
+		}
+		if (existingAnswerFile != null) {
+			String oldAnswerFileNewName = existingAnswerFile.getAbsolutePath() + "." + fileDate.getTime() + ".old";
+			Pss2.logEvent("Reusing existing number - renaming answer " + existingAnswerFile + " to " +
+					oldAnswerFileNewName + " - " + existingAnswerFile.renameTo(new File(oldAnswerFileNewName)) +
+					" (PCM deleted: " + PcmAnswerCache.getCacheFile(existingAnswerFile).delete() + ")");
 		}
 
-		@Override
-		public void onPlaybackCompleted() {
-			if (mDigitPosition < mDigits.length - 1) {
-				mSoundPlayer.playSoundResource(SoundPlayer.getSoundForNumber(mDigits[mDigitPosition]),
-						mNumberPlaybackCallback);
-				mDigitPosition += 1;
-			} else {
-				// for the final digit, add the requested callback
-				mSoundPlayer.playSoundResource(SoundPlayer.getSoundForNumber(mDigits[mDigitPosition]),
-						mFinalDigitCallback);
-			}
+		if (questionFile.renameTo(newQuestionFile)) {
+			mQuestionIndex.putQuestion(questionNumber, newQuestionFile);
+			int allocatedNumber = questionNumber;
+			announce(() -> announceQuestionNumber(allocatedNumber, questionRecordingCallback.mSpeechEndTime,
+					questionRecordingCallback.mTrace));
+		} else {
+			// TODO: anything else we can do? (has been sent to server, so will be answered...)
+			announce(() -> playAnnouncementError("Upload file renaming failed: " + responseString));
 		}
 	}
 
 	private void getAndPlayAnswer(int questionNumber) {
 		Pss2.logEvent("Requesting answer for question " + questionNumber);
+		LatencyTracer.Trace trace = mLatencyTracer.start("answer"); // (called as soon as the last digit is entered)
+		mSoundPlayer.stop(AudioOutputEngine.Priority.INTERACTIVE); // a new request replaces any answer still playing
 		setLedState(LedState.Off);
 
 		// the local hint if 1234 is entered
 		if (questionNumber == 1234) {
 			mProgressUpdater.stop();
-			mSoundPlayer.playSoundResource(SoundPlayer.Sound.number_hint_1234, () -> {
-				Pss2.logEvent("1234 answer hint playback completed (callback)");
-				pssIO.clearDisplay();
-				setLedState(LedState.On);
-			});
+			trace.setPath("hint");
+			mSoundPlayer.playSoundResource(SoundPlayer.Sound.number_hint_1234, AudioOutputEngine.Priority.INTERACTIVE,
+					() -> trace.finish("first_sample")).thenRun(() -> {
+						Pss2.logEvent("1234 answer hint playback completed (callback)");
+						pssIO.clearDisplay();
+						setLedState(LedState.On);
+					});
 			return;
 		}
 
 		// the answer is ready, and has been cached locally
-		File localAnswerFile = getLocalAudioFile(ANSWER_FILE_PATTERN, questionNumber);
+		File localAnswerFile = mQuestionIndex.getAnswerFile(questionNumber);
+		trace.mark("cache_lookup");
 		if (localAnswerFile != null) {
 			Pss2.logEvent("Cached answer file found: " + localAnswerFile.getAbsolutePath());
-			playAnswer(localAnswerFile.getAbsolutePath());
+			trace.setPath("cached");
+			mQuestionIndex.recordAccess(questionNumber);
+			mStorageQuota.recordAnswerRequest(true);
+			playAnswer(localAnswerFile.getAbsolutePath(), trace);
 			return;
 		}
+		trace.setPath("server");
 
 		// no local answer - double check whether it has been answered since we last checked
 		try {
@@ -644,6 +822,7 @@ public class Pss2 {
 
 				@Override
 				public void onResponse(Call call, Response response) throws IOException {
+					trace.mark("server_check");
 					ResponseBody responseBody = response.body();
 					if (!response.isSuccessful() || responseBody == null) {
 						Pss2.logEvent("Immediate server answer response unsuccessful: " +
@@ -673,18 +852,41 @@ public class Pss2 {
 						}
 
 						if (remoteQuestionNumber == questionNumber && answerAudioFile != null) {
-							AnswerDownloader.downloadAnswer(questionNumber, answerAudioFile, HOME_DIRECTORY,
+							mQuestionIndex.recordAccess(questionNumber);
+							mStorageQuota.recordAnswerRequest(false);
+							// (shares any background download of this answer that is already in progress)
+							mAnswerDownloader.downloadAnswer(questionNumber, answerAudioFile,
+									AnswerDownloader.Priority.INTERACTIVE,
 									new AnswerDownloader.DownloadCompletedCallback() {
+								private boolean mPlayingWhileDownloading;
+
+								@Override
+								public void onDownloadStarted(AnswerDownloader.DownloadStream downloadStream) {
+									// start playing as soon as the first data arrives (if the format allows)
+									trace.mark("download_started");
+									if (SoundPlayer.canPlayWhileDownloading(downloadStream.getFileExtension())) {
+										mPlayingWhileDownloading = true;
+										trace.setPath("progressive");
+										playAnswer(onStarted -> mSoundPlayer.playAnswer(downloadStream,
+												AudioOutputEngine.Priority.INTERACTIVE, onStarted), trace);
+									}
+								}
+
 								@Override
 								public void onDownloadComplete(String answerLocation) {
 									Pss2.logEvent("Answer download complete (playback callback)");
-									playAnswer(answerLocation);
+									if (!mPlayingWhileDownloading) {
+										trace.mark("download_completed");
+										playAnswer(answerLocation, trace);
+									}
 								}
 
 								@Override
 								public void onDownloadFailed() {
 									Pss2.logEvent("Answer download failed (playback callback)");
-									playAnswerError();
+									if (!mPlayingWhileDownloading) {
+										playAnswerError();
+									} // otherwise playback stops where the download did, then reports the error
 								}
 							});
 						} else {
@@ -702,41 +904,62 @@ public class Pss2 {
 		}
 	}
 
-	private void playAnswer(String answerLocation) {
+	private void playAnswer(String answerLocation, LatencyTracer.Trace trace) {
+		playAnswer(onStarted -> mSoundPlayer.playAnswer(answerLocation, AudioOutputEngine.Priority.INTERACTIVE,
+				onStarted), trace);
+	}
+
+	/**
+	 * @param answerPlayback Queues the answer itself (from a file or a download), given the callback for when it starts
+	 *                       to play - this is called straight after its introduction is queued, so the two play
+	 *                       without a gap, and the answer's decoder is ready
+	 */
+	private void playAnswer(Function<Runnable, CompletableFuture<Boolean>> answerPlayback, LatencyTracer.Trace trace) {
 		mProgressUpdater.stop();
-		mSoundPlayer.playSoundResource(SoundPlayer.Sound.answer_ready, () -> mSoundPlayer.playAnswer(answerLocation,
-				new SoundPlayer.Mp3PlaybackCompletedCallback() {
-			@Override
-			public void onPlaybackCompleted() {
+		mSoundPlayer.playSoundResource(SoundPlayer.Sound.answer_ready, AudioOutputEngine.Priority.INTERACTIVE,
+				() -> trace.mark("answer_ready_started"));
+		answerPlayback.apply(() -> trace.finish("first_sample")).whenComplete((completed, error) -> {
+			if (error != null) {
+				Pss2.logEvent("Answer playback failed (callback)");
+				playAnswerError(); // this also sets the led state (after playing error message)
+			} else if (completed) {
 				Pss2.logEvent("Answer playback completed (callback)");
 				pssIO.clearDisplay();
 				setLedState(LedState.On);
-			}
-
-			@Override
-			public void onPlaybackFailed() {
-				Pss2.logEvent("Answer playback failed (callback)");
-				playAnswerError(); // this also sets the led state (after playing error message)
-			}
-		}));
+			} // if stopped, whatever stopped it (a new request or recording) takes over the display and led
+		});
 	}
 
 	private void playAnswerError() {
 		mProgressUpdater.stop();
-		mSoundPlayer.playSoundResource(SoundPlayer.Sound.answer_not_ready, () -> {
-			pssIO.clearDisplay();
-			setLedState(LedState.On);
-		});
+		mSoundPlayer.playSoundResource(SoundPlayer.Sound.answer_not_ready, AudioOutputEngine.Priority.INTERACTIVE)
+				.thenRun(() -> {
+					pssIO.clearDisplay();
+					setLedState(LedState.On);
+				});
 	}
 
 	private void playQuestionNotFoundError() {
-		mSoundPlayer.playSoundResource(SoundPlayer.Sound.question_number_invalid, () -> {
+		mSoundPlayer.playSoundResource(SoundPlayer.Sound.question_number_invalid,
+				AudioOutputEngine.Priority.INTERACTIVE).thenRun(() -> {
 			pssIO.clearDisplay();
 			setLedState(LedState.On);
 		});
 	}
 
+	/**
+	 * Log to the console only, rather than also to the log file in the appliance's home directory (which exits if it
+	 * can't be opened) - for running tests and benchmarks on other machines
+	 */
+	static void logToConsoleOnly() {
+		sLogToConsoleOnly = true;
+	}
+
 	static void logEvent(String message) {
+		if (sLogToConsoleOnly) {
+			System.out.println(message);
+			return;
+		}
 		if (mLogWriter == null) {
 			try {
 				mLogWriter = new PrintWriter(new FileWriter(new File(HOME_DIRECTORY, "pss2.log"), true));
@@ -21,8 +21,13 @@ import java.util.concurrent.TimeUnit
 
 class PssIO : Oscilloscope.OscilloscopeEventHandler {
     override fun handleEvent(data: FloatArray?, event: AudioEvent?) {
-        if (data == null) return
-        audioEvents.onNext(data)
+        if (data == null || !audioEvents.hasObservers()) return
+        // the processor reuses the array for its next buffer, but the display draws on a timer thread - publish a copy
+        audioEvents.onNext(data.copyOf())
+    }
+
+    companion object {
+        private const val LONG_PRESS_MS = 1000L // keys held for at least this long count as long presses
     }
 
     private var inputEnabled = true
@@ -33,6 +38,7 @@ class PssIO : Oscilloscope.OscilloscopeEventHandler {
     private var dev: EventDevice? = null
     private val inputEvents: PublishSubject<InputEvent> = PublishSubject.create()
     private val audioEvents: PublishSubject<FloatArray> = PublishSubject.create()
+    private val keyDownTimes = HashMap<Int, Long>()
     private var audioEventsDisposable: Disposable? = null
     private var fadingNumber = true
 
@@ -42,6 +48,10 @@ class PssIO : Oscilloscope.OscilloscopeEventHandler {
     //Subscribe to it to have them delivered in Pss2
     val answerQueryNumbers: PublishSubject<Int> = PublishSubject.create()
 
+    //Keycodes of long-pressed keys get published on this Subject (whether or not user input is enabled)
+    //Long presses are not passed on as normal keypresses
+    val longPressedKeys: PublishSubject<Int> = PublishSubject.create()
+
 
     //Call this method to initialize the keypad
     fun initialize() {
@@ -67,7 +77,7 @@ class PssIO : Oscilloscope.OscilloscopeEventHandler {
         oledDisplay = Display(128, 64, GpioFactory.getInstance(),
                 SpiFactory.getInstance(SpiChannel.CS0, 8000000), RaspiPin.GPIO_08, RaspiPin.GPIO_09)
         oledDisplay?.begin()
-        dev?.addListener { e -> inputEvents.onNext(e) } //Publish raw input events
+        dev?.addListener { e -> onInputEvent(e) } //Publish raw input events (apart from long presses)
 
 
         keypressPipeline = inputEvents
@@ -82,6 +92,22 @@ class PssIO : Oscilloscope.OscilloscopeEventHandler {
 
     }
 
+    private fun onInputEvent(e: InputEvent) {
+        if (e.type == InputEvent.EV_KEY) {
+            val code = e.code.toInt()
+            if (e.value == 1) { // key down
+                keyDownTimes[code] = System.currentTimeMillis()
+            } else if (e.value == 0) { // key up
+                val downTime = keyDownTimes.remove(code)
+                if (downTime != null && System.currentTimeMillis() - downTime >= LONG_PRESS_MS) {
+                    longPressedKeys.onNext(code)
+                    return
+                }
+            }
+        }
+        inputEvents.onNext(e)
+    }
+
     fun destroy() {
         //Stop listening for keypresses
         dev?.close()
@@ -256,15 +282,11 @@ class PssIO : Oscilloscope.OscilloscopeEventHandler {
                 .subscribe {
                     val data = it
                     oledDisplay?.clear()
-                    var x = 0
-                    for (i in 0 until data.size) {
-                        if (i % 2 != 0 && (i - 1) % 8 == 0) {
-                            var y = (data[i] * 100).toInt()
-                            if (y < -31) y = -31
-                            if (y > 31) y = 31
-                            oledDisplay?.graphics?.drawLine(x, 32, x, 32 + y)
-                            x++
-                        }
+                    for (x in 0 until data.size) { // one sample per column (see AudioFeatureProcessor)
+                        var y = (data[x] * 100).toInt()
+                        if (y < -31) y = -31
+                        if (y > 31) y = 31
+                        oledDisplay?.graphics?.drawLine(x, 32, x, 32 + y)
                     }
                     oledDisplay?.displayImage()
                 }
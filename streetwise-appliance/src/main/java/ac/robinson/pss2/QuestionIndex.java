@@ -0,0 +1,367 @@
+package ac.robinson.pss2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * A persistent index of the questions asked on this device, from question number to its question file, answer file and
+ * state, so that looking up a question (e.g., on every keypress of a number) no longer means listing the whole home
+ * directory and matching each file name - which gets slower as questions, answers, pre-decoded PCM and renamed old
+ * files build up there.
+ * <p>
+ * The index is stored as a journal: every change appends one line, and later lines replace earlier ones for the same
+ * question, so each update is a single small write that is forced to disk before returning. A line that was only
+ * partly written (e.g., if power was lost) is ignored. Loading just parses each line into a map - no files are checked
+ * until they are looked up - and the journal is rewritten (via a temporary file) when it has grown well beyond the
+ * number of questions. If there is no index (e.g., the first time this version runs), it is built from one scan of the
+ * directory. Answers that are being downloaded are only tracked in memory, as a download doesn't survive a restart.
+ * <p>
+ * Each question also has an access score, used to choose which answers to evict when storage is short (see
+ * StorageQuota): every time a number is asked or played its score increases by one, and scores halve every
+ * ACCESS_HALF_LIFE - so a number that was played a lot a while ago, and one that was played once just now, are both
+ * kept in preference to one played once a while ago (i.e., a combination of least-recently and least-frequently used).
+ */
+class QuestionIndex {
+
+	private static final String INDEX_FILE_NAME = "questions.index";
+	private static final String INDEX_HEADER = "PSQI 2"; // the first line: format name and version
+	private static final int COMPACTION_RATIO = 2; // rewrite when the journal has this many lines per question
+	private static final long ACCESS_HALF_LIFE = 7 * 24 * 60 * 60 * 1000L; // ms (default: 1 week)
+
+	// evicted answers are downloaded again if their number is entered, but not by the background check
+	enum State {ASKED, ANSWERED, EVICTED}
+
+	private static class Entry {
+		private final State mState;
+		private final String mQuestionFileName; // null if the question wasn't asked on this device (or was evicted)
+		private final String mAnswerFileName; // null unless answered
+		private final double mAccessScore; // at the time of the last access
+		private final long mLastAccessTime; // wall clock, so it is still meaningful after a restart
+
+		private Entry(State state, String questionFileName, String answerFileName, double accessScore,
+					  long lastAccessTime) {
+			mState = state;
+			mQuestionFileName = questionFileName;
+			mAnswerFileName = answerFileName;
+			mAccessScore = accessScore;
+			mLastAccessTime = lastAccessTime;
+		}
+
+		private Entry withFiles(State state, String questionFileName, String answerFileName) {
+			return new Entry(state, questionFileName, answerFileName, mAccessScore, mLastAccessTime);
+		}
+
+		private double getAccessScore(long time) {
+			return mAccessScore * Math.pow(0.5, Math.max(0, time - mLastAccessTime) / (double) ACCESS_HALF_LIFE);
+		}
+	}
+
+	private final File mDirectory;
+	private final File mIndexFile;
+	private final Map<Integer, Entry> mEntries = new HashMap<>(); // guarded by this
+	private final Set<Integer> mDownloading = new HashSet<>(); // guarded by this
+	private FileOutputStream mJournal; // null if the index can't be written (it is then only kept in memory)
+	private int mJournalLines;
+
+	/**
+	 * @param directory Where questions and answers are stored (the index is stored there too)
+	 */
+	QuestionIndex(File directory) {
+		mDirectory = directory;
+		mIndexFile = new File(directory, INDEX_FILE_NAME);
+		long loadStartTime = System.nanoTime();
+		boolean rewrite;
+		if (mIndexFile.exists()) {
+			rewrite = !load();
+		} else {
+			Pss2.logEvent("No question index found - building from directory contents");
+			buildFromDirectory();
+			rewrite = true;
+		}
+		if (rewrite || mJournalLines > COMPACTION_RATIO * Math.max(mEntries.size(), 1)) {
+			compact();
+		} else {
+			openJournal();
+		}
+		Pss2.logEvent("Loaded question index: " + mEntries.size() + " questions (" + mJournalLines +
+				" journal lines) in " + String.format("%.2f", (System.nanoTime() - loadStartTime) / 1000000d) + "ms");
+	}
+
+	/**
+	 * @return The question's file, or null if it isn't known (or no longer exists)
+	 */
+	synchronized File getQuestionFile(int questionId) {
+		Entry entry = mEntries.get(questionId);
+		if (entry == null || entry.mQuestionFileName == null) {
+			return null;
+		}
+		File questionFile = new File(mDirectory, entry.mQuestionFileName);
+		return questionFile.isFile() ? questionFile : null;
+	}
+
+	/**
+	 * @return The question's downloaded answer, or null if it hasn't been downloaded. If an answer file has been
+	 * removed, the question is returned to the ASKED state, so that its answer can be downloaded again.
+	 */
+	synchronized File getAnswerFile(int questionId) {
+		Entry entry = mEntries.get(questionId);
+		if (entry == null || entry.mState != State.ANSWERED) {
+			return null;
+		}
+		File answerFile = new File(mDirectory, entry.mAnswerFileName);
+		if (answerFile.isFile()) {
+			return answerFile;
+		}
+		Pss2.logEvent("Indexed answer " + entry.mAnswerFileName + " not found - removing from index");
+		put(questionId, entry.withFiles(State.ASKED, entry.mQuestionFileName, null));
+		return null;
+	}
+
+	/**
+	 * @return Whether this question was asked here and is waiting for an answer (i.e., not answered or downloading)
+	 */
+	synchronized boolean isAwaitingAnswer(int questionId) {
+		Entry entry = mEntries.get(questionId);
+		return entry != null && entry.mState == State.ASKED && !mDownloading.contains(questionId) &&
+				getQuestionFile(questionId) != null;
+	}
+
+	/**
+	 * Record a newly uploaded question, replacing anything previously stored with its number (numbers are reused, so
+	 * the caller must have already moved aside any previous question and answer files)
+	 */
+	synchronized void putQuestion(int questionId, File questionFile) {
+		put(questionId, new Entry(State.ASKED, questionFile.getName(), null, 1, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Record that a question's number has been entered to play its answer, increasing its access score
+	 */
+	synchronized void recordAccess(int questionId) {
+		Entry entry = mEntries.get(questionId);
+		if (entry != null) {
+			long time = System.currentTimeMillis();
+			put(questionId, new Entry(entry.mState, entry.mQuestionFileName, entry.mAnswerFileName,
+					entry.getAccessScore(time) + 1, time));
+		}
+	}
+
+	/**
+	 * Mark a question's answer as being downloaded (in memory only), so the background check doesn't download it too
+	 */
+	synchronized void startDownload(int questionId) {
+		mDownloading.add(questionId);
+	}
+
+	/**
+	 * Record a question's answer, once it has been completely downloaded
+	 */
+	synchronized void putAnswer(int questionId, File answerFile) {
+		mDownloading.remove(questionId);
+		Entry entry = mEntries.get(questionId);
+		put(questionId, entry != null ? entry.withFiles(State.ANSWERED, entry.mQuestionFileName, answerFile.getName())
+				: new Entry(State.ANSWERED, null, answerFile.getName(), 1, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Return a question to the state it was in before its download started
+	 */
+	synchronized void downloadFailed(int questionId) {
+		mDownloading.remove(questionId);
+	}
+
+	/**
+	 * @return The questions whose answers can be evicted (i.e., answered, and not being downloaded again), least
+	 * valuable first - unanswered questions are never included
+	 */
+	synchronized List<Integer> getEvictionOrder() {
+		long time = System.currentTimeMillis();
+		List<Integer> questionIds = new ArrayList<>();
+		for (Map.Entry<Integer, Entry> entry : mEntries.entrySet()) {
+			if (entry.getValue().mState == State.ANSWERED && !mDownloading.contains(entry.getKey())) {
+				questionIds.add(entry.getKey());
+			}
+		}
+		questionIds.sort(Comparator.comparingDouble(questionId -> mEntries.get(questionId).getAccessScore(time)));
+		return questionIds;
+	}
+
+	/**
+	 * Mark a question as evicted, keeping its access score in case its answer is requested again
+	 *
+	 * @return The question and answer files to delete (either of which may not exist), or null if the question can no
+	 * longer be evicted
+	 */
+	synchronized List<File> evict(int questionId) {
+		Entry entry = mEntries.get(questionId);
+		if (entry == null || entry.mState != State.ANSWERED || mDownloading.contains(questionId)) {
+			return null;
+		}
+		List<File> files = new ArrayList<>();
+		if (entry.mQuestionFileName != null) {
+			files.add(new File(mDirectory, entry.mQuestionFileName));
+		}
+		files.add(new File(mDirectory, entry.mAnswerFileName));
+		put(questionId, entry.withFiles(State.EVICTED, null, null));
+		return files;
+	}
+
+	private void put(int questionId, Entry entry) {
+		mEntries.put(questionId, entry);
+		if (mJournal != null) {
+			try {
+				mJournal.write(toLine(questionId, entry).getBytes(StandardCharsets.UTF_8)); // (one write per change)
+				mJournal.getChannel().force(false);
+				mJournalLines += 1;
+			} catch (IOException e) {
+				Pss2.logEvent("Unable to update question index - continuing in memory only: " +
+						e.getLocalizedMessage());
+				closeJournal();
+				return;
+			}
+			if (mJournalLines > COMPACTION_RATIO * Math.max(mEntries.size(), 1)) {
+				compact(); // (mainly due to access score updates)
+			}
+		}
+	}
+
+	private static String toLine(int questionId, Entry entry) {
+		return questionId + "\t" + entry.mState + "\t" + (entry.mQuestionFileName != null ?
+				entry.mQuestionFileName : "") + "\t" + (entry.mAnswerFileName != null ? entry.mAnswerFileName : "") +
+				"\t" + entry.mAccessScore + "\t" + entry.mLastAccessTime + "\n";
+	}
+
+	/**
+	 * @return false if any of the journal was invalid (in which case the valid lines are still loaded)
+	 */
+	private boolean load() {
+		String journal;
+		try {
+			journal = new String(Files.readAllBytes(mIndexFile.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to read question index - rebuilding: " + e.getLocalizedMessage());
+			buildFromDirectory();
+			return false;
+		}
+		String[] lines = journal.split("\n", -1); // the last item is whatever follows the final newline
+		if (!INDEX_HEADER.equals(lines[0])) {
+			Pss2.logEvent("Invalid question index header - rebuilding");
+			buildFromDirectory();
+			return false;
+		}
+		boolean valid = lines[lines.length - 1].isEmpty(); // if not, the final line was only partly written
+		for (int i = 1; i < lines.length - 1; i++) {
+			String[] fields = lines[i].split("\t", -1);
+			try {
+				if (fields.length != 6) {
+					throw new IllegalArgumentException();
+				}
+				mEntries.put(Integer.parseInt(fields[0]), new Entry(State.valueOf(fields[1]), fields[2].isEmpty() ?
+						null : fields[2], fields[3].isEmpty() ? null : fields[3], Double.parseDouble(fields[4]),
+						Long.parseLong(fields[5])));
+			} catch (IllegalArgumentException e) { // (includes NumberFormatException)
+				valid = false;
+			}
+		}
+		mJournalLines = lines.length - 2;
+		if (!valid) {
+			Pss2.logEvent("Question index contained invalid lines (ignored)");
+		}
+		return valid;
+	}
+
+	/**
+	 * Find questions and answers named according to our system - the only time the whole directory is scanned
+	 */
+	private void buildFromDirectory() {
+		mEntries.clear();
+		File[] fileList = mDirectory.listFiles();
+		if (fileList == null) {
+			return;
+		}
+		for (File file : fileList) {
+			Matcher matcher = Pss2.QUESTION_FILE_PATTERN.matcher(file.getName());
+			if (matcher.matches() && file.isFile()) {
+				try {
+					mEntries.put(Integer.parseInt(matcher.group(1)), new Entry(State.ASKED, file.getName(), null, 1,
+							file.lastModified()));
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+		for (File file : fileList) {
+			Matcher matcher = Pss2.ANSWER_FILE_PATTERN.matcher(file.getName());
+			if (matcher.matches() && file.isFile() && file.length() > 0) { // (empty if its download was interrupted)
+				try {
+					int questionId = Integer.parseInt(matcher.group(1));
+					Entry entry = mEntries.get(questionId);
+					mEntries.put(questionId, new Entry(State.ANSWERED, entry != null ? entry.mQuestionFileName : null,
+							file.getName(), 1, file.lastModified()));
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the journal with just the current state of each question, then continue appending to it
+	 */
+	private void compact() {
+		closeJournal();
+		File tempFile = new File(mDirectory, INDEX_FILE_NAME + ".tmp");
+		StringBuilder journal = new StringBuilder(INDEX_HEADER).append('\n');
+		int journalLines = 0;
+		for (Map.Entry<Integer, Entry> entry : mEntries.entrySet()) {
+			journal.append(toLine(entry.getKey(), entry.getValue()));
+			journalLines += 1;
+		}
+		try (FileOutputStream tempStream = new FileOutputStream(tempFile)) {
+			tempStream.write(journal.toString().getBytes(StandardCharsets.UTF_8));
+			tempStream.getChannel().force(false);
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to write question index - continuing in memory only: " + e.getLocalizedMessage() +
+					" (temp deleted: " + tempFile.delete() + ")");
+			return;
+		}
+		if (!tempFile.renameTo(mIndexFile)) {
+			Pss2.logEvent("Unable to store question index - continuing in memory only (temp deleted: " +
+					tempFile.delete() + ")");
+			return;
+		}
+		mJournalLines = journalLines;
+		openJournal();
+	}
+
+	private void openJournal() {
+		try {
+			mJournal = new FileOutputStream(mIndexFile, true);
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to open question index - continuing in memory only: " + e.getLocalizedMessage());
+		}
+	}
+
+	private void closeJournal() {
+		if (mJournal != null) {
+			try {
+				mJournal.close();
+			} catch (IOException ignored) {
+			}
+			mJournal = null;
+		}
+	}
+
+	synchronized void close() {
+		closeJournal();
+	}
+}
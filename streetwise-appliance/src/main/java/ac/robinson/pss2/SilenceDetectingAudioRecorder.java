@@ -1,24 +1,17 @@
 package ac.robinson.pss2;
 
 import be.tarsos.dsp.*;
-import be.tarsos.dsp.io.TarsosDSPAudioFormat;
 import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
-import be.tarsos.dsp.writer.WriterProcessor;
-import de.sciss.jump3r.Main;
 
 import javax.sound.sampled.*;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 class SilenceDetectingAudioRecorder implements AudioProcessor {
 
-	private static final String RAW_AUDIO_FILE_EXTENSION = ".wav";
-	static final String MP3_AUDIO_FILE_EXTENSION = ".mp3";
-
-	private static final float RECORDING_SAMPLE_RATE = 32000; // to match LAME options below
+	private static final float RECORDING_SAMPLE_RATE = 32000;
 	private static final int RECORDING_SAMPLE_SIZE = 16;
 	private static final int RECORDING_CHANNELS = 1;
 	private static final boolean RECORDING_SIGNED = true;
@@ -29,14 +22,32 @@ class SilenceDetectingAudioRecorder implements AudioProcessor {
 	private static final int DSP_SILENCE_TIMEOUT_MS = Pss2.SILENCE_TIMEOUT_MS;
 	private static final int DSP_DURATION_MINIMUM_MS = Pss2.DURATION_MINIMUM_MS;
 	private static final int DSP_DURATION_MAXIMUM_MS = Pss2.DURATION_MAXIMUM_MS;
+	private static final float DSP_CLIPPED_PEAK = 0.99f; // peak sample magnitude (of 1) that we count as clipping
+	private static final int DSP_TRIM_MARGIN_MS = Pss2.TRIM_MARGIN_MS;
+	private static final double DSP_NOISE_FLOOR_MARGIN_DB = Pss2.NOISE_FLOOR_MARGIN_DB;
+	private static final double DSP_NOISE_FLOOR_PERCENTILE = Pss2.NOISE_FLOOR_PERCENTILE;
+	private static final int DSP_NOISE_FLOOR_WINDOW_MS = Pss2.NOISE_FLOOR_WINDOW_MS;
 
 	private final File mOutputDirectory;
-	private File mRawOutputFile;
-
+	private File mOutputFile;
+	private final PcmBuffer mPcmBuffer;
+	private PcmBuffer.Recording mPcmRecording;
+	private final AudioCodec mCodec;
+	private EncodingProcessor mEncodingProcessor;
+	private final PipelineStage mEncodeStage;
+
+	private final AudioFormat mRecordingFormat;
 	private AudioDispatcher mDispatcher;
 	private Mixer mMixer;
-
-	private SilenceDetector mSilenceDetector;
+	private final int mPreRollBytes; // 0 = no pre-roll; microphone is opened for each recording
+	private final int mBytesPerBuffer;
+	private final int mTrimMarginBytes;
+	private volatile boolean mRecording;
+	private long mRecordingRequestTime;
+
+	private final NoiseFloorEndpointer mEndpointer;
+	private final AudioFeatureProcessor mFeatureProcessor;
+	private int mCountClippedBuffers;
 	private int mCountSilentSamplesDetected;
 	private int mSilenceTimeoutBufferCount;
 	private int mCountTotalSamplesRecorded;
@@ -46,147 +57,298 @@ class SilenceDetectingAudioRecorder implements AudioProcessor {
 	private PssIO mIo;
 
 	private RecordingCompletedCallback mRecordingCompletedCallback;
-	private double mSilenceThreshold;
 
-	interface RecordingCompletedCallback {
+	/**
+	 * Note: onEncodedDataWritten (from EncodedDataListener) is called as the output file grows during recording
+	 */
+	interface RecordingCompletedCallback extends EncodingProcessor.EncodedDataListener {
 		/**
 		 * Called when recording has started (i.e., after initialisation etc)
 		 */
 		void onRecordingStarted();
 
 		/**
-		 * Called when audio has finished recording, and we are now creating the mp3
+		 * Called (on the capture thread) when audio has finished recording, and we are now finishing encoding in the
+		 * background - the microphone is free, so another recording may be started straight away
 		 */
 		void onEncodingStarted();
 
 		/**
-		 * Called when recording has completed (i.e., both saved to wav and encoded to mp3)
+		 * Called (on the encoding thread) when recording has completed (i.e., the output file has been fully written)
 		 */
 		void onRecordingCompleted(File outputFile);
 
 		/**
-		 * Called if recording fails
+		 * Called if recording fails (on any thread)
 		 */
 		void onRecordingFailed();
 	}
 
-	SilenceDetectingAudioRecorder(File outputDirectory, PssIO io, Mixer mixer) {
+	/**
+	 * @param preRollMs The duration of audio from before startRecording() is called to include in each recording. If
+	 *                  more than zero, the microphone is kept open (and captured into a circular buffer) at all times;
+	 *                  if zero, the microphone is only opened when recording starts
+	 * @param codecName The AudioCodec to save recordings with (if this codec is unavailable, mp3 is used instead)
+	 */
+	SilenceDetectingAudioRecorder(File outputDirectory, PssIO io, Mixer mixer, int preRollMs, String codecName) {
 		mOutputDirectory = outputDirectory;
 		mIo = io;
 
 		mMixer = mixer;
-		RuntimeException mixerError = null;
+
+		mRecordingFormat = new AudioFormat(RECORDING_SAMPLE_RATE, RECORDING_SAMPLE_SIZE, RECORDING_CHANNELS,
+				RECORDING_SIGNED, RECORDING_BIG_ENDIAN);
+		mBytesPerBuffer = DSP_BUFFER_SIZE * mRecordingFormat.getFrameSize();
+		mPreRollBytes = msToBytes(preRollMs);
+		mTrimMarginBytes = msToBytes(DSP_TRIM_MARGIN_MS);
+
+		// allocated once and reused, so capture never allocates - sized to hold a maximum-length recording + pre-roll
+		int maximumBufferCount = (int) Math.ceil(
+				(DSP_DURATION_MAXIMUM_MS / 1000f) * RECORDING_SAMPLE_RATE * RECORDING_CHANNELS / DSP_BUFFER_SIZE) + 1;
+		mPcmBuffer = new PcmBuffer(maximumBufferCount * mBytesPerBuffer + mPreRollBytes);
+		mCodec = createCodec(codecName); // prepared (and warmed up) in the background from now
+		mEncodeStage = new PipelineStage("EncodeStage", Pss2.PIPELINE_QUEUE_CAPACITY);
+
+		// silence is judged relative to the background noise, which (with pre-roll) is tracked even between recordings
+		float bufferToMsFactor = (((RECORDING_SAMPLE_RATE * RECORDING_CHANNELS) / DSP_BUFFER_SIZE) / 1000);
+		mEndpointer = new NoiseFloorEndpointer(Pss2.SILENCE_THRESHOLD_DB, DSP_NOISE_FLOOR_MARGIN_DB,
+				DSP_NOISE_FLOOR_PERCENTILE, Math.round(DSP_NOISE_FLOOR_WINDOW_MS * bufferToMsFactor));
+		mFeatureProcessor = new AudioFeatureProcessor(mEndpointer);
+
+		if (mPreRollBytes > 0 && mMixer != null) {
+			try {
+				openCapture();
+				Pss2.logEvent("Microphone capture started with " + preRollMs + "ms pre-roll");
+			} catch (LineUnavailableException e) {
+				Pss2.logEvent("Unable to start microphone capture - will retry when recording");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private AudioCodec createCodec(String codecName) {
+		try {
+			AudioCodec codec = AudioCodec.create(codecName, mRecordingFormat);
+			Pss2.logEvent("Using " + codecName + " codec for questions");
+			return codec;
+		} catch (IOException e) {
+			Pss2.logEvent("Unable to use " + codecName + " codec for questions (" + e.getLocalizedMessage() +
+					") - using " + AudioCodec.MP3 + " instead");
+			return new Mp3Encoder(mRecordingFormat);
+		}
+	}
+
+	/**
+	 * @return The codec recordings are saved with
+	 */
+	AudioCodec getCodec() {
+		return mCodec;
+	}
+
+	private int msToBytes(int ms) {
+		return Math.round(ms * (RECORDING_SAMPLE_RATE / 1000)) * mRecordingFormat.getFrameSize();
+	}
+
+	private int bytesToMs(int bytes) {
+		return Math.round((bytes / mRecordingFormat.getFrameSize()) / (RECORDING_SAMPLE_RATE / 1000));
+	}
+
+	private void openCapture() throws LineUnavailableException {
+		DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, mRecordingFormat);
+		TargetDataLine targetDataLine = (TargetDataLine) mMixer.getLine(dataLineInfo);
+		targetDataLine.open(mRecordingFormat, DSP_BUFFER_SIZE);
+		targetDataLine.start();
+		AudioInputStream stream = new AudioInputStream(targetDataLine);
+
+		// the raw audio is kept in memory, and encoded from there while recording - only encoded audio is saved to disk
+		JVMAudioInputStream audioStream = new JVMAudioInputStream(stream);
+		mDispatcher = new AudioDispatcher(audioStream, DSP_BUFFER_SIZE, DSP_OVERLAP);
+		mDispatcher.addAudioProcessor(mPcmBuffer);
+		mDispatcher.addAudioProcessor(mFeatureProcessor);
+
+		new Thread(mDispatcher, "SilenceDetectingAudioRecorder").start();
+	}
+
+	private void closeCapture() {
+		if (mDispatcher != null) {
+			mDispatcher.stop(); // also closes the microphone line
+			mDispatcher = null;
+		}
 	}
 
 	boolean startRecording(double silenceThreshold, RecordingCompletedCallback recordingCompletedCallback) {
-		if (mMixer == null || mDispatcher != null) {
+		if (mMixer == null || mRecording) {
 			return false;
 		}
-
-		mIo.startOscilloscope();
+		mRecordingRequestTime = System.nanoTime();
 
 		mRecordingCompletedCallback = recordingCompletedCallback;
-		mSilenceThreshold = silenceThreshold;
 
 		Date fileDate = new Date();
-		mRawOutputFile = new File(mOutputDirectory, new SimpleDateFormat(
-				"'" + fileDate.getTime() + "'_yyyy-MM-dd_HH-mm-ss'" + RAW_AUDIO_FILE_EXTENSION + "'").format(fileDate));
+		mOutputFile = new File(mOutputDirectory, new SimpleDateFormat(
+				"'" + fileDate.getTime() + "'_yyyy-MM-dd_HH-mm-ss'" + mCodec.getFileExtension() + "'").format(
+				fileDate));
 		//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - we overwrite anyway
-		mRawOutputFile.delete();
+		mOutputFile.delete();
 
 		float bufferToMsFactor = (((RECORDING_SAMPLE_RATE * RECORDING_CHANNELS) / DSP_BUFFER_SIZE) / 1000);
 		mCountSilentSamplesDetected = 0;
 		mSilenceTimeoutBufferCount = Math.round(DSP_SILENCE_TIMEOUT_MS * bufferToMsFactor);
 		mCountTotalSamplesRecorded = 0;
+		mCountClippedBuffers = 0;
 		mDurationMinimumBufferCount = Math.round(DSP_DURATION_MINIMUM_MS * bufferToMsFactor);
 		mDurationMaximumBufferCount = Math.round(DSP_DURATION_MAXIMUM_MS * bufferToMsFactor);
+		mEndpointer.setMinimumThreshold(silenceThreshold);
 
 		try {
-			AudioFormat dataLineFormat = new AudioFormat(RECORDING_SAMPLE_RATE, RECORDING_SAMPLE_SIZE,
-					RECORDING_CHANNELS, RECORDING_SIGNED, RECORDING_BIG_ENDIAN);
-			DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, dataLineFormat);
-			TargetDataLine targetDataLine = (TargetDataLine) mMixer.getLine(dataLineInfo);
-			targetDataLine.open(dataLineFormat, DSP_BUFFER_SIZE);
-			targetDataLine.start();
-			AudioInputStream stream = new AudioInputStream(targetDataLine);
-
-			TarsosDSPAudioFormat recordingFormat = new TarsosDSPAudioFormat(RECORDING_SAMPLE_RATE,
-					RECORDING_SAMPLE_SIZE, RECORDING_CHANNELS, RECORDING_SIGNED, RECORDING_BIG_ENDIAN);
-			AudioProcessor recordingProcessor = new WriterProcessor(recordingFormat,
-					new RandomAccessFile(mRawOutputFile, "rw"));
-
-			mSilenceDetector = new SilenceDetector(mSilenceThreshold, false);
-
-			JVMAudioInputStream audioStream = new JVMAudioInputStream(stream);
-			mDispatcher = new AudioDispatcher(audioStream, DSP_BUFFER_SIZE, DSP_OVERLAP);
-			mDispatcher.addAudioProcessor(recordingProcessor);
-			mDispatcher.addAudioProcessor(mSilenceDetector);
+			// without pre-roll (or if always-on capture previously failed) we open the microphone now, and record
+			// everything from that point; otherwise, the last mPreRollBytes of audio are included in the recording
+			if (mDispatcher == null || mDispatcher.isStopped()) {
+				mPcmRecording = mPcmBuffer.startRecording(0);
+				openCapture();
+			} else {
+				mPcmRecording = mPcmBuffer.startRecording(mPreRollBytes);
+			}
+
+			mEncodingProcessor = new EncodingProcessor(mCodec, mPcmRecording, mOutputFile);
+			mEncodingProcessor.setEncodedDataListener(mRecordingCompletedCallback);
+			Pss2.logEvent("Starting recording with " + mPcmRecording.getPreRollBytes() + " bytes of pre-roll");
+
+			// these take effect from the next buffer captured (after the PcmBuffer and features, which are first)
+			mIo.startOscilloscope();
+			mFeatureProcessor.setWaveformHandler(mIo);
+			mRecording = true;
+			mDispatcher.addAudioProcessor(mEncodingProcessor);
 			mDispatcher.addAudioProcessor(SilenceDetectingAudioRecorder.this);
-			mDispatcher.addAudioProcessor(new Oscilloscope(mIo));
 
-			new Thread(mDispatcher, "SilenceDetectingAudioRecorder").start();
 			mRecordingCompletedCallback.onRecordingStarted();
 			return true;
 
-		} catch (LineUnavailableException | FileNotFoundException e) {
+		} catch (LineUnavailableException | IOException e) {
 			Pss2.logEvent("Unable to initialise audio recording");
 			e.printStackTrace();
+			mFeatureProcessor.setWaveformHandler(null);
+			mIo.stopOscilloscope();
+			mRecording = false;
+			if (mPreRollBytes <= 0) {
+				closeCapture();
+			}
 			return false;
 		}
 	}
 
+	/**
+	 * Release the microphone (which is kept open between recordings when pre-roll is enabled)
+	 */
+	void close() {
+		closeCapture();
+		mEncodeStage.stop();
+		mCodec.close();
+	}
+
+	/**
+	 * @return Whether a recording is currently being captured (encoding of previous recordings may still be ongoing)
+	 */
+	boolean isRecording() {
+		return mRecording;
+	}
+
 	private void stopRecording() {
-		mDispatcher.stop();
+		mDispatcher.removeAudioProcessor(mEncodingProcessor);
+		mDispatcher.removeAudioProcessor(SilenceDetectingAudioRecorder.this);
+		mPcmRecording.stop();
+		mFeatureProcessor.setWaveformHandler(null);
+		if (mPreRollBytes <= 0) {
+			closeCapture();
+		}
 		mIo.stopOscilloscope();
-		Pss2.logEvent("Stopped recording; encoding to mp3");
-		mRecordingCompletedCallback.onEncodingStarted();
+		Pss2.logEvent("Stopped recording; finishing encoding (clipped buffers: " + mCountClippedBuffers + ")");
+
+		// capture is now free for the next question - the rest of this one is finished on the encoding stage
+		EncodingProcessor encodingProcessor = mEncodingProcessor;
+		PcmBuffer.Recording pcmRecording = mPcmRecording;
+		File outputFile = mOutputFile;
+		RecordingCompletedCallback recordingCompletedCallback = mRecordingCompletedCallback;
+		long encodingRequestTime = System.currentTimeMillis();
+		mEncodingProcessor = null;
+		mPcmRecording = null;
+		mRecording = false;
+		recordingCompletedCallback.onEncodingStarted();
+
+		if (!mEncodeStage.submit(() -> finishEncoding(encodingProcessor, pcmRecording, outputFile,
+				recordingCompletedCallback, encodingRequestTime))) {
+			encodingProcessor.cancel();
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - we overwrite anyway
+			outputFile.delete();
+			recordingCompletedCallback.onRecordingFailed();
+		}
+	}
 
-		File outputMp3 = new File(mOutputDirectory, mRawOutputFile.getName()
-				.replace(RAW_AUDIO_FILE_EXTENSION, MP3_AUDIO_FILE_EXTENSION));
-		//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - we overwrite anyway
-		outputMp3.delete();
-		String[] mp3Args = {
-				// TODO: check whether voice preset actually produces the smallest file sizes
-				"--preset", "voice", /* https://svn.code.sf.net/p/lame/svn/trunk/lame/USAGE */
-				mRawOutputFile.getAbsolutePath(), outputMp3.getAbsolutePath()
-		};
-
-		// TODO: for speed, use VLC or ffmpeg to do this?
-		Main mp3Encoder = new Main();
-		// mp3Encoder.getSupport().addPropertyChangeListener(event -> System.out.print(event.getNewValue()));
+	private void finishEncoding(EncodingProcessor encodingProcessor, PcmBuffer.Recording pcmRecording,
+								File outputFile, RecordingCompletedCallback recordingCompletedCallback,
+								long encodingRequestTime) {
 		try {
-			mp3Encoder.run(mp3Args); // note: this is blocking
-			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - we overwrite anyway
-			mRawOutputFile.delete();
-			mDispatcher = null;
-			Pss2.logEvent("Mp3 recorded to " + outputMp3.getAbsolutePath());
-			mRecordingCompletedCallback.onRecordingCompleted(outputMp3);
+			int recordingLength = pcmRecording.length();
+			if (!encodingProcessor.isEncodeRangeSet()) {
+				Pss2.logEvent("No speech detected - not trimming recording");
+				encodingProcessor.setEncodeRange(0, recordingLength);
+			}
+			File outputAudio = encodingProcessor.finish(); // note: blocking, but only needs to flush the encoder
+			int trimmedBytes = recordingLength - (encodingProcessor.getEncodedPosition() -
+					encodingProcessor.getEncodeStart());
+			int trimmedMs = bytesToMs(trimmedBytes);
+			Pss2.logEvent("Audio recorded to " + outputAudio.getAbsolutePath() + " (" + outputAudio.length() +
+					" bytes from " + recordingLength + " bytes of PCM; ready " +
+					(System.currentTimeMillis() - encodingRequestTime) + "ms after end of recording)");
+			Pss2.logEvent("Trimmed " + trimmedMs + "ms of silence (" + trimmedBytes + " bytes of PCM; approximately " +
+					(trimmedMs * mCodec.getBitRate() / 8) + " bytes of " + mCodec.getFileExtension() + ")");
+			if (pcmRecording.getOverwrittenBytes() > 0) {
+				Pss2.logEvent(
+						"Warning: PCM buffer full - " + pcmRecording.getOverwrittenBytes() + " bytes overwritten");
+			}
+			recordingCompletedCallback.onRecordingCompleted(outputAudio);
 		} catch (Exception e) {
-			mDispatcher = null;
-			Pss2.logEvent("Error processing mp3 " + e);
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - we overwrite anyway
+			outputFile.delete();
+			Pss2.logEvent("Error encoding recording " + e);
 			e.printStackTrace();
-			mRecordingCompletedCallback.onRecordingFailed();
+			recordingCompletedCallback.onRecordingFailed();
 		}
 	}
 
 	@Override
 	public boolean process(AudioEvent audioEvent) {
-		if (mSilenceDetector.currentSPL() > mSilenceThreshold) {
+		if (mCountTotalSamplesRecorded == 0) {
+			Pss2.logEvent("First recording buffer received " + (System.nanoTime() - mRecordingRequestTime) / 1000000 +
+					"ms after recording was requested (pre-roll: " + (mPreRollBytes > 0 ? "enabled" : "disabled") +
+					")");
+		}
+
+		if (mFeatureProcessor.getPeak() >= DSP_CLIPPED_PEAK) {
+			mCountClippedBuffers += 1;
+		}
+
+		if (mFeatureProcessor.isCurrentBufferSpeech()) {
 			mCountSilentSamplesDetected = 0;
+
+			includeSpeech(mEncodingProcessor, mPcmRecording.length(), mBytesPerBuffer, mTrimMarginBytes,
+					mCountTotalSamplesRecorded == 0);
 			//Pss2.logEvent(
 			//		"Silence: " + mCountSilentSamplesDetected + "; sound detected at:" + System.currentTimeMillis() +
-			//				", " + (int) (mSilenceDetector.currentSPL()) + "dB SPL");
+			//				", " + (int) (mFeatureProcessor.getLevel()) + "dB SPL");
 		} else {
 			mCountSilentSamplesDetected += 1;
 			//Pss2.logEvent(
 			//		"Silence: " + mCountSilentSamplesDetected + "; silence at:" + System.currentTimeMillis() + ", " +
-			//				(int) (mSilenceDetector.currentSPL()) + "dB SPL");
+			//				(int) (mFeatureProcessor.getLevel()) + "dB SPL");
 
 			if (mCountSilentSamplesDetected >= mSilenceTimeoutBufferCount &&
 					mCountTotalSamplesRecorded >= mDurationMinimumBufferCount) {
 				Pss2.logEvent("Stopping recording after " + DSP_SILENCE_TIMEOUT_MS + "ms of silence (" +
-						mSilenceTimeoutBufferCount + ")");
+						mSilenceTimeoutBufferCount + "; noise floor " + (int) mEndpointer.getNoiseFloor() +
+						"dB SPL; threshold " + (int) mEndpointer.getThreshold() + "dB SPL)");
 				stopRecording();
+				return true; // don't also check the maximum duration - we have already stopped
 			}
 		}
 
@@ -200,8 +362,27 @@ class SilenceDetectingAudioRecorder implements AudioProcessor {
 		return true;
 	}
 
+	/**
+	 * Extend the range to be encoded to include a buffer of speech, so that we encode from just before the first speech
+	 * to just after the latest, and anything else is trimmed. If the very first buffer is speech, it may have started
+	 * during the pre-roll, so we keep all of that instead.
+	 *
+	 * @param bufferEnd       The position (in the recording) of the end of the buffer that contained speech
+	 * @param trimMarginBytes The amount of audio to keep either side of the speech
+	 */
+	static void includeSpeech(EncodingProcessor encodingProcessor, int bufferEnd, int bytesPerBuffer,
+							  int trimMarginBytes, boolean firstBuffer) {
+		int speechStart = firstBuffer ? 0 : Math.max(0, bufferEnd - bytesPerBuffer - trimMarginBytes);
+		encodingProcessor.setEncodeRange(speechStart, bufferEnd + trimMarginBytes);
+	}
+
 	@Override
 	public void processingFinished() {
-		// nothing to do
+		// we are only attached while recording, so this means capture ended mid-recording (e.g., a mixer error, or the
+		// microphone being unplugged) - keep what was captured, rather than staying "recording" forever
+		if (mRecording) {
+			Pss2.logEvent("Microphone capture ended during recording - stopping");
+			stopRecording();
+		}
 	}
 }
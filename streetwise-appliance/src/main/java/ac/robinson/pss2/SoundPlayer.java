@@ -1,18 +1,45 @@
 package ac.robinson.pss2;
 
 import javax.sound.sampled.*;
+import java.io.File;
 import java.io.IOException;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Plays prompts and answers, via the audio output engine. Prompts come from the current language's prompt pack, which
+ * is pre-decoded PCM mapped into memory, so starting a prompt doesn't involve any resource lookups, decoding or line
+ * setup. The language can be changed at any time. Answers are played from pre-decoded PCM where available (see
+ * PcmAnswerCache), otherwise decoded as they are played (see StreamingDecoder), or, if their format isn't supported,
+ * played by mpv. Answers can be played faster (or slower) without changing their pitch - see
+ * {@link #setPlaybackSpeed(double)}.
+ * <p>
+ * All playback methods return a future that completes with true when the audio has been played, false if it was
+ * stopped first, or exceptionally if it could not be played. Those with an onStarted parameter also call it (if not
+ * null) as soon as their first audio has been written to the output line - e.g., for latency tracing.
+ */
 class SoundPlayer {
 
-	private static final String AUDIO_FILE_EXTENSION = ".wav";
+	// time-stretching must be at least this much faster than realtime to be used - it shares the CPU with decoding, and
+	// with anything else that is happening (e.g., a question being recorded and encoded)
+	private static final double MIN_REALTIME_FACTOR = 3;
 
-	private final String mLanguageCode;
+	private final File mPromptDirectory;
+	private volatile PromptPack mPromptPack;
 
-	private Clip mCurrentClip;
 	private final Mixer mMixer;
+	private final AudioOutputEngine mOutputEngine;
 
+	private volatile double mPlaybackSpeed = 1; // for answers only
+	private final Set<Double> mBenchmarkedSpeeds = ConcurrentHashMap.newKeySet();
+	private final Set<Double> mUnsupportedSpeeds = ConcurrentHashMap.newKeySet(); // too slow to stretch in realtime
+
+	// the prompts the application itself refers to - a prompt pack can contain others, which are played by name
 	public enum Sound {
 		start,
 		begin_question,
@@ -36,37 +63,105 @@ class SoundPlayer {
 		number_hint_1234
 	}
 
-	interface ResourcePlaybackCompletedCallback {
-		/**
-		 * Called when playback has completed
-		 */
-		void onPlaybackCompleted();
+	/**
+	 * @param promptDirectory Where prompt packs are stored (see PromptPack)
+	 */
+	SoundPlayer(File promptDirectory, String languageCode, Mixer mixer) {
+		mPromptDirectory = promptDirectory;
+		mMixer = mixer;
+
+		setLanguage(languageCode);
+		mOutputEngine = new AudioOutputEngine(mixer);
 	}
 
-	interface Mp3PlaybackCompletedCallback {
-		/**
-		 * Called when playback has completed
-		 */
-		void onPlaybackCompleted();
+	/**
+	 * Switch to a different language's prompts (building its prompt pack first, if necessary). Prompts that are
+	 * already playing or queued finish in the previous language.
+	 *
+	 * @return Whether the language was loaded - if not, the previous language is kept
+	 */
+	boolean setLanguage(String languageCode) {
+		long loadStartTime = System.nanoTime();
+		try {
+			PromptPack promptPack = PromptPack.load(mPromptDirectory, languageCode);
+			mPromptPack = promptPack;
+			Pss2.logEvent("Loaded prompt pack: " + languageCode + " (" + promptPack.getSoundNames().size() +
+					" sounds; " + promptPack.getPcmBytes() + " bytes mapped) in " + String.format("%.2f",
+					(System.nanoTime() - loadStartTime) / 1000000d) + "ms");
+			return true;
+		} catch (IOException e) {
+			Pss2.logEvent("Error loading prompt pack: " + languageCode + " (" + e.getLocalizedMessage() + ")");
+			return false;
+		}
+	}
 
-		/**
-		 * Called if a playback error is encountered
-		 */
-		void onPlaybackFailed();
+	String getLanguageCode() {
+		PromptPack promptPack = mPromptPack;
+		return promptPack != null ? promptPack.getLanguageCode() : null;
 	}
 
-	SoundPlayer(String languageCode, Mixer mixer) {
-		mLanguageCode = languageCode;
-		mMixer = mixer;
+	/**
+	 * Set the speed at which answers are played (e.g., 1.25 = 25% faster), which also applies to any answer that is
+	 * already playing. The first time a speed other than 1x is used, time-stretching is benchmarked in the background
+	 * to check that it is fast enough on this device; if it isn't, answers are played at normal speed instead.
+	 *
+	 * @return The speed that will actually be used
+	 */
+	double setPlaybackSpeed(double speed) {
+		if (mUnsupportedSpeeds.contains(speed)) {
+			Pss2.logEvent("Playback speed " + speed + "x is too slow to process on this device - using 1x instead");
+			speed = 1;
+		}
+		mPlaybackSpeed = speed;
+		if (speed != 1 && mBenchmarkedSpeeds.add(speed)) {
+			final double benchmarkSpeed = speed;
+			Thread benchmarkThread = new Thread(() -> benchmarkPlaybackSpeed(benchmarkSpeed), "SpeedBenchmark");
+			benchmarkThread.setDaemon(true);
+			benchmarkThread.start();
+		}
+		return speed;
 	}
 
-	private URL getSound(Sound sound) {
-		URL soundUrl = getClass().getClassLoader().getResource(getResourceFilename(sound.toString()));
-		if (soundUrl == null) {
-			Pss2.logEvent("Warning: sound not found: " + sound);
-			return getSound(Sound.error);
+	private void benchmarkPlaybackSpeed(double speed) {
+		try {
+			double realtimeFactor = TimeStretchingSource.benchmark(speed);
+			Pss2.logEvent("Time-stretching to " + speed + "x runs at " + String.format("%.1f", realtimeFactor) +
+					"x realtime (minimum: " + MIN_REALTIME_FACTOR + "x)");
+			if (realtimeFactor >= MIN_REALTIME_FACTOR) {
+				return;
+			}
+		} catch (IOException | RuntimeException e) {
+			Pss2.logEvent("Unable to benchmark time-stretching to " + speed + "x: " + e.getLocalizedMessage());
 		}
-		return soundUrl;
+		mUnsupportedSpeeds.add(speed);
+		if (mPlaybackSpeed == speed) {
+			Pss2.logEvent("Returning to 1x playback speed");
+			mPlaybackSpeed = 1;
+		}
+	}
+
+	private AudioOutputEngine.Source getTimeStretchedSource(AudioOutputEngine.Source source) {
+		return new TimeStretchingSource(source, () -> mPlaybackSpeed);
+	}
+
+	private ByteBuffer getSound(PromptPack promptPack, String name) {
+		ByteBuffer pcm = promptPack.getSound(name);
+		if (pcm == null && !Sound.error.toString().equals(name)) {
+			Pss2.logEvent("Warning: sound not loaded: " + name);
+			return getSound(promptPack, Sound.error.toString());
+		}
+		return pcm;
+	}
+
+	/**
+	 * @return The sounds for each digit of the given (non-negative) number, in order
+	 */
+	static List<Sound> getSoundsForDigits(int number) {
+		List<Sound> sounds = new ArrayList<>();
+		for (char digit : String.valueOf(number).toCharArray()) {
+			sounds.add(getSoundForNumber(Character.getNumericValue(digit)));
+		}
+		return sounds;
 	}
 
 	static Sound getSoundForNumber(int number) {
@@ -97,67 +192,175 @@ class SoundPlayer {
 		}
 	}
 
-	private String getResourceFilename(String resourceName) {
-		return String.format(resourceName + "_%s%s", mLanguageCode, AUDIO_FILE_EXTENSION);
+	CompletableFuture<Boolean> playSoundResource(Sound sound, AudioOutputEngine.Priority priority) {
+		return playSoundResource(sound, priority, null);
 	}
 
-	void playSoundResource(Sound sound) {
-		playSoundResource(sound, null);
+	CompletableFuture<Boolean> playSoundResource(Sound sound, AudioOutputEngine.Priority priority,
+												 Runnable onStarted) {
+		return playSoundSequence(Collections.singletonList(sound), priority, onStarted);
 	}
 
-	void playSoundResource(Sound sound, ResourcePlaybackCompletedCallback resourcePlaybackCompletedCallback) {
-		Pss2.logEvent("Playing sound: " + sound + " (" + mLanguageCode + ")");
-		try {
-			if (mCurrentClip != null) {
-				mCurrentClip.stop();
+	/**
+	 * Play a prompt that isn't one of the standard {@link Sound}s, but has been added to the current prompt pack
+	 */
+	CompletableFuture<Boolean> playSoundResource(String soundName, AudioOutputEngine.Priority priority) {
+		return playSounds(Collections.singletonList(soundName), priority, null);
+	}
+
+	/**
+	 * Play several prompts back to back, without any gaps between them, as if they were a single prompt (e.g., to
+	 * announce a question number one digit at a time)
+	 */
+	CompletableFuture<Boolean> playSoundSequence(List<Sound> sounds, AudioOutputEngine.Priority priority) {
+		return playSoundSequence(sounds, priority, null);
+	}
+
+	CompletableFuture<Boolean> playSoundSequence(List<Sound> sounds, AudioOutputEngine.Priority priority,
+												 Runnable onStarted) {
+		List<String> soundNames = new ArrayList<>();
+		for (Sound sound : sounds) {
+			soundNames.add(sound.toString());
+		}
+		return playSounds(soundNames, priority, onStarted);
+	}
+
+	private CompletableFuture<Boolean> playSounds(List<String> soundNames, AudioOutputEngine.Priority priority,
+												  Runnable onStarted) {
+		PromptPack promptPack = mPromptPack; // the whole sequence is played in the same language
+		String name = (soundNames.size() == 1 ? soundNames.get(0) : soundNames.toString()) + " (" +
+				(promptPack != null ? promptPack.getLanguageCode() : "no prompts") + ")";
+		Pss2.logEvent("Playing sound: " + name);
+		ByteBuffer[] pcmSegments = new ByteBuffer[soundNames.size()];
+		for (int i = 0; i < pcmSegments.length; i++) {
+			pcmSegments[i] = promptPack != null ? getSound(promptPack, soundNames.get(i)) : null;
+			if (pcmSegments[i] == null) {
+				Pss2.logEvent("Error playing sound: " + soundNames.get(i));
+				CompletableFuture<Boolean> failedPlayback = new CompletableFuture<>();
+				failedPlayback.completeExceptionally(new IOException("Sound not loaded: " + soundNames.get(i)));
+				return failedPlayback;
 			}
+		}
+		return mOutputEngine.play(name, new AudioOutputEngine.PcmSource(pcmSegments), priority, onStarted);
+	}
+
+	/**
+	 * Play an answer file - from its pre-decoded PCM if it has been cached (see PcmAnswerCache); otherwise decoded
+	 * in-process if possible; and if its format isn't supported, mpv is used instead
+	 */
+	CompletableFuture<Boolean> playAnswer(String answerLocation, AudioOutputEngine.Priority priority,
+										  Runnable onStarted) {
+		Pss2.logEvent("Playing answer file from: " + answerLocation);
+		AudioOutputEngine.Source pcmSource = PcmAnswerCache.open(new File(answerLocation));
+		if (pcmSource != null) {
+			Pss2.logEvent("Using pre-decoded PCM for answer");
+			return mOutputEngine.play(answerLocation, getTimeStretchedSource(pcmSource), priority, onStarted);
+		}
+		try {
+			// the decoder is opened straight away, so it is ready by the time any prompts queued before it have played
+			return mOutputEngine.play(answerLocation, getTimeStretchedSource(new StreamingDecoder(new File(
+					answerLocation))), priority, onStarted);
+		} catch (UnsupportedAudioFileException | IOException e) {
+			Pss2.logEvent("Unable to decode answer (" + e.getLocalizedMessage() + ") - using mpv instead");
+		}
+
+		// we used to use VLC here, but for some reason it silently fails to play certain files/streams
+		// then we switched to mplayer, but it (very occasionally) hangs mid-playback
+		// so we now use mpv :-)
+		String playerCommand;
+		double playbackSpeed = mPlaybackSpeed; // (mpv keeps the pitch, but the speed can't be changed once playing)
+		String speedOption = playbackSpeed != 1 ? "--speed=" + playbackSpeed + " " : "";
+		if (mMixer.getMixerInfo().getName().contains("Device")) {
+			Pss2.logEvent("Using USB Soundcard for playback");
+			playerCommand = "mpv --audio-device=alsa/plughw:CARD=Device,DEV=0 --no-ytdl " + speedOption +
+					answerLocation;
+		} else {
+			Pss2.logEvent("Using speaker for playback (default)");
+			playerCommand = "mpv --no-ytdl " + speedOption + answerLocation;
+		}
+		return mOutputEngine.playExternal(answerLocation, playerCommand, priority, onStarted);
+	}
+
+	/**
+	 * @return Whether answers of this type can be played while they are still downloading - an m4a file can only be
+	 * decoded as it arrives if its index comes first, as the server arranges when answers are saved; older answers,
+	 * with the index at the end, are played once they have been fully downloaded instead (see DownloadingAnswerSource)
+	 */
+	static boolean canPlayWhileDownloading(String fileExtension) {
+		return ".mp3".equalsIgnoreCase(fileExtension) || ".wav".equalsIgnoreCase(fileExtension) ||
+				".m4a".equalsIgnoreCase(fileExtension);
+	}
+
+	/**
+	 * Play an answer while it is still being downloaded. If the download is slower than playback, playback pauses
+	 * until more has arrived; if it fails, what has been received is played, and the future then completes
+	 * exceptionally.
+	 */
+	CompletableFuture<Boolean> playAnswer(AnswerDownloader.DownloadStream downloadStream,
+										  AudioOutputEngine.Priority priority, Runnable onStarted) {
+		Pss2.logEvent("Playing answer while downloading (" + downloadStream.getFileExtension() + ")");
+		return mOutputEngine.play("downloading answer", getTimeStretchedSource(new DownloadingAnswerSource(
+				downloadStream)), priority, onStarted);
+	}
 
+	/**
+	 * Decodes a download stream. The decoder isn't created until playback starts, as reading the header has to wait
+	 * for the start of the download (which may well be on the thread that has just requested playback). If the stream
+	 * can't be decoded as it arrives (e.g., an m4a file with its index at the end), the completed file is decoded
+	 * once the download has finished.
+	 */
+	private static class DownloadingAnswerSource implements AudioOutputEngine.Source {
+		private final AnswerDownloader.DownloadStream mDownloadStream;
+		private StreamingDecoder mDecoder;
 
-			AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(getSound(sound));
-			mCurrentClip = AudioSystem.getClip(mMixer.getMixerInfo()); // TODO: should we preload and cache Clip objects?
-			mCurrentClip.addLineListener(event -> {
-				if (event.getType() == LineEvent.Type.STOP) { // must release so future playback can take place
-					mCurrentClip.close();
-					Pss2.logEvent("Finished playing sound: " + sound + " (" + mLanguageCode + ")");
-					if (resourcePlaybackCompletedCallback != null) {
-						resourcePlaybackCompletedCallback.onPlaybackCompleted();
+		private DownloadingAnswerSource(AnswerDownloader.DownloadStream downloadStream) {
+			mDownloadStream = downloadStream;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (mDecoder == null) {
+				try {
+					mDecoder = new StreamingDecoder(mDownloadStream, mDownloadStream.getFileExtension());
+				} catch (UnsupportedAudioFileException | IOException e) {
+					Pss2.logEvent("Unable to decode answer while downloading (" + e.getLocalizedMessage() +
+							") - waiting for download to complete");
+					File completedFile = mDownloadStream.waitForCompletedFile();
+					if (completedFile == null) {
+						throw new IOException("Answer download failed");
+					}
+					try {
+						mDecoder = new StreamingDecoder(completedFile);
+					} catch (UnsupportedAudioFileException unsupported) {
+						throw new IOException(unsupported);
 					}
 				}
-			});
-			mCurrentClip.open(audioInputStream); // note: can't set volume as no gain control - done via system instead
-			mCurrentClip.start(); // asynchronous
-
-		} catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
-			Pss2.logEvent("Error playing sound: " + sound);
-			e.printStackTrace();
-		}
-	}
-
-	void playAnswer(String answerLocation, Mp3PlaybackCompletedCallback mp3PlaybackCompletedCallback) {
-		new Thread(() -> {
-			Pss2.logEvent("Playing answer file from: " + answerLocation);
-			try {
-				// we used to use VLC here, but for some reason it silently fails to play certain files/streams
-				// then we switched to mplayer, but it (very occasionally) hangs mid-playback
-				// so we now use mpv :-)
-				if(mMixer.getMixerInfo().getName().contains("Device")) {
-					Pss2.logEvent("Using USB Soundcard for playback");
-					Process playerProcess = Runtime.getRuntime().exec("mpv --audio-device=alsa/plughw:CARD=Device,DEV=0 --no-ytdl " + answerLocation);
-					int playerResult = playerProcess.waitFor();
-					Pss2.logEvent("Finished playing answer file: " + answerLocation + " (result: " + playerResult + ")");
-					mp3PlaybackCompletedCallback.onPlaybackCompleted();
-				} else {
-					Pss2.logEvent("Using speaker for playback (default)");
-					Process playerProcess = Runtime.getRuntime().exec("mpv --no-ytdl " + answerLocation);
-					int playerResult = playerProcess.waitFor();
-					Pss2.logEvent("Finished playing answer file: " + answerLocation + " (result: " + playerResult + ")");
-					mp3PlaybackCompletedCallback.onPlaybackCompleted();
-				}
-			} catch (IOException | InterruptedException e) {
-				Pss2.logEvent("Error: unable to play answer file: " + answerLocation);
-				e.printStackTrace();
-				mp3PlaybackCompletedCallback.onPlaybackFailed();
 			}
-		}).start();
+			int bytesRead = mDecoder.read(buffer, offset, length);
+			if (bytesRead < 0 && mDownloadStream.hasFailed()) {
+				throw new IOException("Answer download failed"); // (decoders don't always pass on read errors)
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public void interrupt() {
+			mDownloadStream.close();
+		}
+
+		@Override
+		public void close() {
+			mDownloadStream.close();
+			if (mDecoder != null) {
+				mDecoder.close();
+			}
+		}
+	}
+
+	/**
+	 * Stop (or remove from the queue) everything of the given priority that is playing or waiting to play
+	 */
+	void stop(AudioOutputEngine.Priority priority) {
+		mOutputEngine.cancel(priority);
 	}
 }
@@ -0,0 +1,208 @@
+package ac.robinson.pss2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the home directory (questions, answers, their pre-decoded PCM, renamed old files, and logs) within a byte
+ * budget, and leaves a minimum amount of free space on the SD card. Usage is checked every few minutes; when it is
+ * over, files are removed until it is back below a lower mark (so that not every new answer causes an eviction): first
+ * the old question and answer files kept when a number is reused (oldest first), then answered questions, in the order
+ * chosen by the question index (least recently and frequently asked or played first). Evicting a question deletes its
+ * question, answer and PCM files; if its number is entered again, the answer is downloaded again from the server.
+ * <p>
+ * Unanswered questions (including recordings that haven't been uploaded yet), answers that are being downloaded, logs
+ * and the index itself are never evicted. The cache hit rate (answers played from local storage, rather than downloaded
+ * when requested) and the total evicted are logged after each check that evicts anything.
+ * <p>
+ * Optional files (i.e., the pre-decoded PCM cache) ask before they are written, so that they only ever use space that
+ * is within the budget - see {@link #canAdd(long)}.
+ */
+class StorageQuota {
+
+	private static final int CHECK_INTERVAL = 600; // seconds (default: 10 minutes)
+	private static final int FIRST_CHECK_DELAY = 60; // seconds - after startup has finished with the disk
+	private static final double LOW_WATER_MARK = 0.9; // evict to this share of the budget once it has been exceeded
+	private static final long MIN_FREE_BYTES = 256L * 1024 * 1024; // disk space always left free for recordings
+	private static final String OLD_FILE_EXTENSION = ".old"; // see Pss2.uploadQuestion
+
+	private final File mDirectory;
+	private final long mBudgetBytes;
+	private final QuestionIndex mQuestionIndex;
+	private final ScheduledExecutorService mCheckExecutor;
+
+	private int mCacheHits; // guarded by this
+	private int mCacheMisses;
+	private long mEvictedBytes;
+	private int mEvictedFiles;
+	private long mUsedBytes = -1; // as of the last check, plus optional files added since; -1 until first counted
+
+	/**
+	 * @param budgetBytes The maximum total size of all files in the directory (not including subdirectories)
+	 */
+	StorageQuota(File directory, long budgetBytes, QuestionIndex questionIndex) {
+		mDirectory = directory;
+		mBudgetBytes = budgetBytes;
+		mQuestionIndex = questionIndex;
+		mCheckExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "StorageQuota");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		mCheckExecutor.scheduleAtFixedRate(() -> {
+			try {
+				check();
+			} catch (Exception e) {
+				Pss2.logEvent("Storage quota check failed: " + e.getLocalizedMessage());
+			}
+		}, FIRST_CHECK_DELAY, CHECK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Record whether a requested answer was played from local storage (a hit) or had to be downloaded (a miss)
+	 */
+	synchronized void recordAnswerRequest(boolean cached) {
+		if (cached) {
+			mCacheHits += 1;
+		} else {
+			mCacheMisses += 1;
+		}
+	}
+
+	/**
+	 * @return The share of requested answers that were played from local storage since startup (0 if none yet)
+	 */
+	synchronized double getHitRate() {
+		int requests = mCacheHits + mCacheMisses;
+		return requests > 0 ? mCacheHits / (double) requests : 0;
+	}
+
+	/**
+	 * @return The total size of all files evicted since startup
+	 */
+	synchronized long getEvictedBytes() {
+		return mEvictedBytes;
+	}
+
+	private synchronized void addEvicted(long bytes) {
+		mEvictedBytes += bytes;
+		mEvictedFiles += 1;
+	}
+
+	/**
+	 * @return Whether an optional file of the given size can be added without going over the budget (or into the
+	 * space always left free). Optional files never cause evictions - they are only written if there is room.
+	 */
+	synchronized boolean canAdd(long bytes) {
+		if (mUsedBytes < 0) {
+			mUsedBytes = countUsedBytes(null); // (only before the first check)
+		}
+		return mUsedBytes + bytes <= getLimitBytes(mUsedBytes);
+	}
+
+	/**
+	 * Record that an optional file has been added, so that it counts towards the budget before the next check
+	 */
+	synchronized void recordAdded(long bytes) {
+		if (mUsedBytes >= 0) {
+			mUsedBytes += bytes;
+		}
+	}
+
+	private long getLimitBytes(long usedBytes) {
+		return Math.min(mBudgetBytes, usedBytes + mDirectory.getUsableSpace() - MIN_FREE_BYTES);
+	}
+
+	/**
+	 * @param oldFiles If not null, every old file found is added to this list
+	 * @return The total size of all files in the directory
+	 */
+	private long countUsedBytes(List<File> oldFiles) {
+		File[] fileList = mDirectory.listFiles();
+		long usedBytes = 0;
+		if (fileList != null) {
+			for (File file : fileList) {
+				if (file.isFile()) {
+					usedBytes += file.length();
+					if (oldFiles != null && file.getName().endsWith(OLD_FILE_EXTENSION)) {
+						oldFiles.add(file);
+					}
+				}
+			}
+		}
+		return usedBytes;
+	}
+
+	/**
+	 * Evict files if the directory is over its limit (normally only called periodically, by the check thread)
+	 */
+	void check() {
+		List<File> oldFiles = new ArrayList<>();
+		long usedBytes = countUsedBytes(oldFiles);
+		long limitBytes = getLimitBytes(usedBytes);
+		if (usedBytes <= limitBytes) {
+			synchronized (this) {
+				mUsedBytes = usedBytes;
+			}
+			return;
+		}
+
+		long targetBytes = (long) (limitBytes * LOW_WATER_MARK);
+		long startBytes = usedBytes;
+		oldFiles.sort(Comparator.comparingLong(File::lastModified));
+		for (File file : oldFiles) {
+			if (usedBytes <= targetBytes) {
+				break;
+			}
+			usedBytes -= delete(file);
+		}
+		int evictedQuestions = 0;
+		for (int questionId : mQuestionIndex.getEvictionOrder()) {
+			if (usedBytes <= targetBytes) {
+				break;
+			}
+			List<File> files = mQuestionIndex.evict(questionId);
+			if (files != null) {
+				for (File file : files) {
+					usedBytes -= delete(PcmAnswerCache.getCacheFile(file)) + delete(file); // (only answers have PCM)
+				}
+				evictedQuestions += 1;
+			}
+		}
+
+		synchronized (this) {
+			mUsedBytes = usedBytes;
+			Pss2.logEvent("Storage over quota (" + startBytes + " bytes used; limit " + limitBytes + ") - evicted " +
+					(startBytes - usedBytes) + " bytes, including " + evictedQuestions + " answered questions" +
+					(usedBytes > targetBytes ? " (only unanswered questions and logs remain)" : "") + ". Since " +
+					"startup: " + mEvictedBytes + " bytes (" + mEvictedFiles + " files) evicted; cache hit rate " +
+					String.format("%.1f", getHitRate() * 100) + "% (" + mCacheHits + " of " +
+					(mCacheHits + mCacheMisses) + " answers)");
+		}
+	}
+
+	/**
+	 * @return The number of bytes freed
+	 */
+	private long delete(File file) {
+		long bytes = file.length();
+		if (bytes > 0 || file.exists()) {
+			if (file.delete()) {
+				addEvicted(bytes);
+				return bytes;
+			}
+			Pss2.logEvent("Unable to delete " + file.getName() + " to free storage");
+		}
+		return 0;
+	}
+
+	void stop() {
+		mCheckExecutor.shutdownNow();
+	}
+}
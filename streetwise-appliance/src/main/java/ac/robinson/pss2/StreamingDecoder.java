@@ -0,0 +1,96 @@
+package ac.robinson.pss2;
+
+import javazoom.spi.mpeg.sampled.file.MpegAudioFileReader;
+
+import javax.sound.sampled.*;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Decodes an answer file (mp3, m4a or wav) as it is played, converting it to the output engine's format on the way, so
+ * that answers are played on the same line as everything else rather than by an external player. Decoding uses the
+ * JavaSound service providers on the classpath (mp3spi for mp3, JAAD for m4a); if none of them can read a file it is
+ * reported as unsupported when the decoder is created, and the caller can fall back to another player.
+ */
+class StreamingDecoder implements AudioOutputEngine.Source {
+
+	private final AudioInputStream mSourceStream;
+	private final AudioInputStream mOutputStream;
+
+	/**
+	 * Open the file and prepare to decode it (nothing is decoded until the first read)
+	 *
+	 * @throws UnsupportedAudioFileException If the file's format can't be decoded
+	 */
+	StreamingDecoder(File file) throws UnsupportedAudioFileException, IOException {
+		this(openSourceStream(file), file.getName());
+	}
+
+	/**
+	 * Prepare to decode a stream that is still arriving (e.g., a download). Blocks until enough of the stream has been
+	 * received to read its header.
+	 *
+	 * @param fileName The name (or just extension) of the file the stream is from
+	 * @throws UnsupportedAudioFileException If the stream's format can't be decoded
+	 */
+	StreamingDecoder(InputStream inputStream, String fileName) throws UnsupportedAudioFileException, IOException {
+		this(openSourceStream(new BufferedInputStream(inputStream), fileName), fileName);
+	}
+
+	private StreamingDecoder(AudioInputStream sourceStream, String name) throws UnsupportedAudioFileException {
+		mSourceStream = sourceStream;
+		try {
+			AudioFormat sourceFormat = mSourceStream.getFormat();
+			int channels = sourceFormat.getChannels();
+			AudioFormat pcmFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sourceFormat.getSampleRate(), 16,
+					channels, channels * 2, sourceFormat.getSampleRate(), false);
+			AudioInputStream pcmStream = sourceFormat.matches(pcmFormat) ? mSourceStream :
+					AudioSystem.getAudioInputStream(pcmFormat, mSourceStream);
+			AudioFormat outputFormat = AudioOutputEngine.OUTPUT_FORMAT;
+			mOutputStream = pcmFormat.matches(outputFormat) ? pcmStream :
+					AudioSystem.getAudioInputStream(outputFormat, pcmStream);
+			Pss2.logEvent("Decoding " + name + " (" + sourceFormat + ")");
+		} catch (IllegalArgumentException e) { // no conversion available
+			close();
+			throw new UnsupportedAudioFileException(e.getLocalizedMessage());
+		}
+	}
+
+	private static AudioInputStream openSourceStream(File file) throws UnsupportedAudioFileException, IOException {
+		if (isMp3(file.getName())) {
+			// some service providers (JAAD's in particular) mistake mp3 frames for AAC, so don't let AudioSystem choose
+			return new MpegAudioFileReader().getAudioInputStream(file);
+		}
+		return AudioSystem.getAudioInputStream(file);
+	}
+
+	private static AudioInputStream openSourceStream(InputStream inputStream, String fileName)
+			throws UnsupportedAudioFileException, IOException {
+		if (isMp3(fileName)) {
+			return new MpegAudioFileReader().getAudioInputStream(inputStream);
+		}
+		return AudioSystem.getAudioInputStream(inputStream);
+	}
+
+	private static boolean isMp3(String fileName) {
+		return fileName.toLowerCase(Locale.ROOT).endsWith(".mp3");
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int bytesRead = mOutputStream.read(buffer, offset, length);
+		// mp3spi handles read errors (e.g., a truncated file) by returning nothing from then on, rather than ending
+		return bytesRead == 0 && length > 0 ? -1 : bytesRead;
+	}
+
+	@Override
+	public void close() {
+		try {
+			mSourceStream.close(); // closing the source also ends any conversion streams reading from it
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.WaveformSimilarityBasedOverlapAdd;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Plays another source faster (or slower) without changing its pitch, using TarsosDSP's WSOLA (waveform similarity
+ * based overlap-add) time-stretcher with its speech settings. The speed is checked before each block of audio, so it
+ * can be changed while playing; at 1x the source is passed through untouched. WSOLA normally runs inside an
+ * AudioDispatcher, which pushes overlapping buffers through it - here we pull from the source instead, and build the
+ * same overlapping buffers ourselves. When the speed changes, the samples that have been read but not yet stretched
+ * (the overlap with the next window) carry over to the new speed, so nothing is skipped or repeated - the only
+ * discontinuity is the new stretcher's fade in over its first few milliseconds.
+ * <p>
+ * Also keeps track of how fast stretching is, as a realtime factor (seconds of audio produced per second spent), which
+ * must stay well above 1 for playback not to underrun - see {@link #benchmark(double)}.
+ */
+class TimeStretchingSource implements AudioOutputEngine.Source {
+
+	private static final int BENCHMARK_MS = 10000; // audio stretched by the benchmark (which also warms up the JIT)
+
+	private static long sTotalOutputSamples;
+	private static long sTotalStretchingNanos;
+
+	private final AudioOutputEngine.Source mSource;
+	private final DoubleSupplier mSpeed;
+	private final float mSampleRate;
+	private final AudioEvent mAudioEvent;
+
+	private WaveformSimilarityBasedOverlapAdd mStretcher; // null when playing at 1x
+	private double mStretcherSpeed = 1;
+	private float[] mInput; // the stretcher's input window; its end overlaps the start of the next window
+	private int mStep; // samples consumed by each window (the rest are carried over to the next)
+	private int mCarriedSamples; // samples at the start of the window that have been read, but not yet stretched
+	private float[] mCarryBuffer = new float[0];
+	private boolean mSourceEnded;
+	private byte[] mSourceBuffer = new byte[0];
+
+	private byte[] mOutput = new byte[0];
+	private int mOutputPosition;
+	private int mOutputLength;
+
+	private long mOutputSamples;
+	private long mStretchingNanos;
+
+	/**
+	 * @param source The audio to stretch, in the output engine's format (16-bit mono)
+	 * @param speed  Returns the current playback speed (e.g., 1.25 = 25% faster)
+	 */
+	TimeStretchingSource(AudioOutputEngine.Source source, DoubleSupplier speed) {
+		mSource = source;
+		mSpeed = speed;
+		AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+		mSampleRate = format.getSampleRate();
+		mAudioEvent = new AudioEvent(new TarsosDSPAudioFormat(mSampleRate, 16, 1, true, false));
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (mOutputPosition >= mOutputLength) {
+			double speed = mSpeed.getAsDouble();
+			if (speed != mStretcherSpeed) {
+				setSpeed(speed); // (at 1x, any samples carried over are then in the output buffer)
+			}
+		}
+		if (mOutputPosition >= mOutputLength) {
+			if (mStretcher == null) {
+				return mSource.read(buffer, offset, length);
+			}
+			if (!stretchNextWindow()) {
+				return -1;
+			}
+		}
+		int bytesRead = Math.min(length - length % 2, mOutputLength - mOutputPosition);
+		System.arraycopy(mOutput, mOutputPosition, buffer, offset, bytesRead);
+		mOutputPosition += bytesRead;
+		return bytesRead;
+	}
+
+	private void setSpeed(double speed) {
+		Pss2.logEvent("Answer playback speed changed from " + mStretcherSpeed + "x to " + speed + "x");
+		int carriedSamples = 0;
+		if (mStretcher != null) {
+			carriedSamples = mCarriedSamples;
+			if (mCarryBuffer.length < carriedSamples) {
+				mCarryBuffer = new float[carriedSamples];
+			}
+			System.arraycopy(mInput, 0, mCarryBuffer, 0, carriedSamples);
+		}
+
+		mStretcherSpeed = speed;
+		if (speed == 1) {
+			mStretcher = null;
+			setOutput(mCarryBuffer, carriedSamples); // played as they are, before reading any more from the source
+			return;
+		}
+		mStretcher = new WaveformSimilarityBasedOverlapAdd(
+				WaveformSimilarityBasedOverlapAdd.Parameters.speechDefaults(speed, mSampleRate));
+		mInput = new float[mStretcher.getInputBufferSize()];
+		mStep = mInput.length - mStretcher.getOverlap();
+		mCarriedSamples = Math.min(carriedSamples, mInput.length); // (a window always fits another's overlap)
+		System.arraycopy(mCarryBuffer, 0, mInput, 0, mCarriedSamples);
+	}
+
+	/**
+	 * Read the next window from the source, and stretch it into the output buffer
+	 *
+	 * @return false if the source has ended
+	 */
+	private boolean stretchNextWindow() throws IOException {
+		if (mSourceEnded) {
+			return false;
+		}
+		int windowStart = mCarriedSamples;
+		int samplesRead = readSamples(mInput, windowStart, mInput.length - windowStart);
+		if (samplesRead < mInput.length - windowStart) {
+			mSourceEnded = true;
+			if (samplesRead == 0) {
+				return false; // (an empty source produces nothing, rather than a window of silence)
+			}
+			for (int i = windowStart + samplesRead; i < mInput.length; i++) {
+				mInput[i] = 0; // the final window is padded with silence
+			}
+		}
+
+		long stretchStartTime = System.nanoTime();
+		mAudioEvent.setFloatBuffer(mInput);
+		mStretcher.process(mAudioEvent); // replaces the event's buffer with the stretched output
+		float[] output = mAudioEvent.getFloatBuffer();
+		setOutput(output, output.length);
+		mCarriedSamples = mInput.length - mStep;
+		System.arraycopy(mInput, mStep, mInput, 0, mCarriedSamples); // the overlap with the next window
+		mStretchingNanos += System.nanoTime() - stretchStartTime;
+		mOutputSamples += output.length;
+		return true;
+	}
+
+	private void setOutput(float[] samples, int count) {
+		if (mOutput.length < count * 2) {
+			mOutput = new byte[count * 2];
+		}
+		for (int i = 0; i < count; i++) {
+			int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(samples[i] * 32768)));
+			mOutput[2 * i] = (byte) sample;
+			mOutput[2 * i + 1] = (byte) (sample >> 8);
+		}
+		mOutputPosition = 0;
+		mOutputLength = count * 2;
+	}
+
+	/**
+	 * @return The number of samples read - fewer than requested only at the end of the source
+	 */
+	private int readSamples(float[] samples, int offset, int count) throws IOException {
+		if (mSourceBuffer.length < count * 2) {
+			mSourceBuffer = new byte[count * 2];
+		}
+		int bytesRead = 0;
+		while (bytesRead < count * 2) {
+			int read = mSource.read(mSourceBuffer, bytesRead, count * 2 - bytesRead);
+			if (read < 0) {
+				break;
+			}
+			bytesRead += read;
+		}
+		int samplesRead = bytesRead / 2;
+		for (int i = 0; i < samplesRead; i++) {
+			samples[offset + i] = (short) ((mSourceBuffer[2 * i] & 0xff) | (mSourceBuffer[2 * i + 1] << 8)) / 32768f;
+		}
+		return samplesRead;
+	}
+
+	@Override
+	public void interrupt() {
+		mSource.interrupt();
+	}
+
+	@Override
+	public void close() {
+		mSource.close();
+		if (mOutputSamples > 0) {
+			addStatistics(mOutputSamples, mStretchingNanos, mSampleRate);
+		}
+	}
+
+	private static synchronized void addStatistics(long outputSamples, long stretchingNanos, float sampleRate) {
+		sTotalOutputSamples += outputSamples;
+		sTotalStretchingNanos += stretchingNanos;
+		Pss2.logEvent("Time-stretched " + Math.round(outputSamples * 1000 / sampleRate) + "ms of audio in " +
+				(stretchingNanos / 1000000) + "ms (" + String.format("%.1f", getRealtimeFactor(outputSamples,
+				stretchingNanos, sampleRate)) + "x realtime; " + String.format("%.1f",
+				getRealtimeFactor(sTotalOutputSamples, sTotalStretchingNanos, sampleRate)) + "x overall)");
+	}
+
+	private static double getRealtimeFactor(long outputSamples, long stretchingNanos, float sampleRate) {
+		return stretchingNanos > 0 ? (outputSamples / (double) sampleRate) / (stretchingNanos / 1000000000d) : 0;
+	}
+
+	/**
+	 * Stretch a few seconds of synthetic speech-like audio (a harmonic tone with a moving pitch, plus noise), and
+	 * measure how much faster than realtime it is - this includes everything the source does, apart from reading
+	 * the original audio
+	 *
+	 * @return The realtime factor - seconds of audio produced per second of processing
+	 */
+	static double benchmark(double speed) throws IOException {
+		AudioFormat format = AudioOutputEngine.OUTPUT_FORMAT;
+		int samples = Math.round(format.getSampleRate() * BENCHMARK_MS / 1000 * (float) speed);
+		byte[] pcm = new byte[samples * 2];
+		Random random = new Random(0);
+		double phase = 0;
+		for (int i = 0; i < samples; i++) {
+			double pitch = 120 + 40 * Math.sin(2 * Math.PI * i / format.getSampleRate()); // Hz
+			phase += 2 * Math.PI * pitch / format.getSampleRate();
+			double value = 0.3 * Math.sin(phase) + 0.15 * Math.sin(2 * phase) + 0.1 * Math.sin(3 * phase) +
+					0.05 * random.nextGaussian();
+			int sample = (int) Math.round(Math.max(-1, Math.min(1, value)) * Short.MAX_VALUE);
+			pcm[2 * i] = (byte) sample;
+			pcm[2 * i + 1] = (byte) (sample >> 8);
+		}
+
+		TimeStretchingSource stretchingSource = new TimeStretchingSource(
+				new AudioOutputEngine.PcmSource(ByteBuffer.wrap(pcm)), () -> speed);
+		byte[] buffer = new byte[Math.round(format.getSampleRate() * 0.02f) * 2];
+		long outputBytes = 0;
+		long benchmarkStartTime = System.nanoTime();
+		int bytesRead;
+		while ((bytesRead = stretchingSource.read(buffer, 0, buffer.length)) >= 0) {
+			outputBytes += bytesRead;
+		}
+		return getRealtimeFactor(outputBytes / 2, System.nanoTime() - benchmarkStartTime, format.getSampleRate());
+	}
+}
@@ -0,0 +1,277 @@
+package ac.robinson.pss2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnswerDownloaderTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private HttpServer mServer;
+	private String mServerUrl;
+	private volatile String mAnsweredList; // returned by the stand-in server's responses.php
+	private volatile boolean mAnswersAvailable; // whether answer files can be downloaded, or return an error
+	private final BlockingQueue<String> mQueries = new LinkedBlockingQueue<>(); // of each answered list request
+	private final BlockingQueue<String> mAnswerRequests = new LinkedBlockingQueue<>(); // paths, in order received
+	private volatile CountDownLatch mAnswerRelease = new CountDownLatch(0); // answer responses wait for this
+	private byte[] mAnswer;
+
+	private File mDirectory;
+	private QuestionIndex mQuestionIndex;
+	private StorageQuota mStorageQuota;
+	private PcmAnswerCache mPcmAnswerCache;
+	private AnswerDownloader mAnswerDownloader;
+
+	@Before
+	public void setUp() throws IOException {
+		Pss2.logToConsoleOnly();
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.createContext("/responses.php", exchange -> {
+			mQueries.add(exchange.getRequestURI().getQuery());
+			respond(exchange, 200, mAnsweredList.getBytes(StandardCharsets.UTF_8));
+		});
+		mServer.createContext("/answer_events.php", exchange -> respond(exchange, 500, new byte[0])); // (always polls)
+		mServer.createContext("/a/", exchange -> {
+			mAnswerRequests.add(exchange.getRequestURI().getPath());
+			try {
+				mAnswerRelease.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ignored) {
+			}
+			respond(exchange, mAnswersAvailable ? 200 : 500, mAnswersAvailable ? mAnswer : new byte[0]);
+		});
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.start();
+		mServerUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+
+		byte[] pcm = new byte[4410 * 2];
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		try (AudioInputStream audioInputStream = new AudioInputStream(new ByteArrayInputStream(pcm),
+				AudioOutputEngine.OUTPUT_FORMAT, pcm.length / AudioOutputEngine.OUTPUT_FORMAT.getFrameSize())) {
+			AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, answer);
+		}
+		mAnswer = answer.toByteArray();
+
+		mDirectory = mFolder.getRoot();
+		mQuestionIndex = new QuestionIndex(mDirectory);
+		mStorageQuota = new StorageQuota(mDirectory, Long.MAX_VALUE / 2, mQuestionIndex);
+		mPcmAnswerCache = new PcmAnswerCache(mStorageQuota);
+	}
+
+	@After
+	public void tearDown() {
+		if (mAnswerDownloader != null) {
+			mAnswerDownloader.stop();
+		}
+		mPcmAnswerCache.stop();
+		mStorageQuota.stop();
+		mQuestionIndex.close();
+		mServer.stop(0);
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(body);
+		}
+	}
+
+	private void startAnswerDownloader() {
+		if (mAnswerDownloader != null) {
+			mAnswerDownloader.stop();
+		}
+		mAnswerDownloader = new AnswerDownloader(mServerUrl + "responses.php", mServerUrl + "answer_events.php",
+				mDirectory, 20, mQuestionIndex, mPcmAnswerCache);
+	}
+
+	/**
+	 * Records what the downloader tells each requester of an answer, and reads the stream it is given
+	 */
+	private static class TestCallback implements AnswerDownloader.DownloadCompletedCallback {
+		private final BlockingQueue<byte[]> mStreamed = new LinkedBlockingQueue<>();
+		private final BlockingQueue<String> mResults = new LinkedBlockingQueue<>(); // output location, or "failed"
+
+		@Override
+		public void onDownloadStarted(AnswerDownloader.DownloadStream downloadStream) {
+			new Thread(() -> { // (as playback does - the download continues once this returns)
+				ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+				byte[] buffer = new byte[1024];
+				try {
+					for (int bytesRead; (bytesRead = downloadStream.read(buffer, 0, buffer.length)) >= 0; ) {
+						streamed.write(buffer, 0, bytesRead);
+					}
+				} catch (IOException ignored) {
+				}
+				mStreamed.add(streamed.toByteArray());
+			}).start();
+		}
+
+		@Override
+		public void onDownloadComplete(String outputLocation) {
+			mResults.add(outputLocation);
+		}
+
+		@Override
+		public void onDownloadFailed() {
+			mResults.add("failed");
+		}
+	}
+
+	private String answeredList(long cursor, int questionId) {
+		return "{\"cursor\":" + cursor + ",\"answers\":[" + (questionId > 0 ? "{\"id\":" + questionId + ",\"url\":\"" +
+				answerUrl(questionId) + "\"}" : "") + "]}";
+	}
+
+	private String answerUrl(int questionId) {
+		return mServerUrl + "a/" + questionId + "-answer.wav";
+	}
+
+	private void askQuestion(int questionId) throws IOException {
+		File questionFile = new File(mDirectory, questionId + "_question_1_2019-01-01_10-00-00.mp3");
+		Files.write(questionFile.toPath(), new byte[1]);
+		mQuestionIndex.putQuestion(questionId, questionFile);
+	}
+
+	private String readFile(String name) {
+		try {
+			return new String(Files.readAllBytes(new File(mDirectory, name).toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long endTime = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out", System.currentTimeMillis() < endTime);
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	public void syncCursorIsStoredAndUsedAfterARestart() throws InterruptedException {
+		mAnsweredList = answeredList(1234, 0);
+		startAnswerDownloader();
+		String query = mQueries.poll(5, TimeUnit.SECONDS);
+		assertNotNull(query);
+		assertTrue(query, query.endsWith("&type=answered&since=0"));
+		await(() -> "1234".equals(readFile("answers.cursor")));
+
+		startAnswerDownloader();
+		query = mQueries.poll(5, TimeUnit.SECONDS);
+		assertNotNull(query);
+		assertTrue(query, query.endsWith("&since=1234"));
+	}
+
+	@Test
+	public void failedDownloadsStayPendingAndAreRetriedAfterARestart() throws Exception {
+		askQuestion(1);
+		mAnsweredList = answeredList(100, 1);
+		startAnswerDownloader();
+		await(() -> ("1\t" + answerUrl(1) + "\n").equals(readFile("answers.pending")));
+		await(() -> "100".equals(readFile("answers.cursor"))); // the cursor moves past the answer...
+		await(() -> mQuestionIndex.isAwaitingAnswer(1)); // ...but its download fails
+
+		// the answer is no longer in the list, but is downloaded after restarting because it is still pending
+		mAnsweredList = answeredList(100, 0);
+		mAnswersAvailable = true;
+		startAnswerDownloader();
+		await(() -> mQuestionIndex.getAnswerFile(1) != null);
+		await(() -> "".equals(readFile("answers.pending")));
+		assertEquals(mAnswer.length, mQuestionIndex.getAnswerFile(1).length());
+	}
+
+	@Test
+	public void answersToQuestionsAskedElsewhereAreNotPending() throws InterruptedException {
+		mAnsweredList = answeredList(100, 2);
+		startAnswerDownloader();
+		await(() -> "100".equals(readFile("answers.cursor")));
+		assertEquals("", readFile("answers.pending"));
+	}
+
+	@Test
+	public void requestsForAnAnswerShareASingleDownload() throws Exception {
+		mAnsweredList = answeredList(0, 0);
+		mAnswersAvailable = true;
+		mAnswerRelease = new CountDownLatch(1);
+		startAnswerDownloader();
+
+		TestCallback background = new TestCallback();
+		TestCallback interactive = new TestCallback();
+		mAnswerDownloader.downloadAnswer(1, answerUrl(1), AnswerDownloader.Priority.BACKGROUND, background);
+		assertEquals("/a/1-answer.wav", mAnswerRequests.poll(5, TimeUnit.SECONDS));
+		mAnswerDownloader.downloadAnswer(1, answerUrl(1), AnswerDownloader.Priority.INTERACTIVE, interactive);
+		mAnswerRelease.countDown();
+
+		String outputLocation = background.mResults.poll(5, TimeUnit.SECONDS);
+		assertEquals(mQuestionIndex.getAnswerFile(1).getAbsolutePath(), outputLocation);
+		assertEquals(outputLocation, interactive.mResults.poll(5, TimeUnit.SECONDS));
+		assertArrayEquals(mAnswer, background.mStreamed.poll(5, TimeUnit.SECONDS));
+		assertArrayEquals(mAnswer, interactive.mStreamed.poll(5, TimeUnit.SECONDS));
+		assertNull(mAnswerRequests.poll(200, TimeUnit.MILLISECONDS)); // downloaded only once
+	}
+
+	@Test
+	public void interactiveDownloadsPreemptTheNewestBackgroundDownload() throws Exception {
+		mAnsweredList = answeredList(0, 0);
+		mAnswersAvailable = true;
+		mAnswerRelease = new CountDownLatch(1);
+		startAnswerDownloader();
+
+		TestCallback[] callbacks = new TestCallback[]{new TestCallback(), new TestCallback(), new TestCallback()};
+		mAnswerDownloader.downloadAnswer(1, answerUrl(1), AnswerDownloader.Priority.BACKGROUND, callbacks[0]);
+		mAnswerDownloader.downloadAnswer(2, answerUrl(2), AnswerDownloader.Priority.BACKGROUND, callbacks[1]);
+		List<String> requests = new ArrayList<>();
+		requests.add(mAnswerRequests.poll(5, TimeUnit.SECONDS));
+		requests.add(mAnswerRequests.poll(5, TimeUnit.SECONDS));
+		Collections.sort(requests);
+		assertEquals(Arrays.asList("/a/1-answer.wav", "/a/2-answer.wav"), requests);
+
+		// both slots are taken, so question 2's download (started most recently) makes way, before either responds
+		mAnswerDownloader.downloadAnswer(3, answerUrl(3), AnswerDownloader.Priority.INTERACTIVE, callbacks[2]);
+		assertEquals("/a/3-answer.wav", mAnswerRequests.poll(5, TimeUnit.SECONDS));
+		mAnswerRelease.countDown();
+
+		// ...and is started again once a slot is free, without its requester being told it failed
+		assertEquals("/a/2-answer.wav", mAnswerRequests.poll(5, TimeUnit.SECONDS));
+		for (int i = 0; i < callbacks.length; i++) {
+			String outputLocation = callbacks[i].mResults.poll(5, TimeUnit.SECONDS);
+			assertEquals(mQuestionIndex.getAnswerFile(i + 1).getAbsolutePath(), outputLocation);
+			assertArrayEquals(mAnswer, callbacks[i].mStreamed.poll(5, TimeUnit.SECONDS));
+		}
+		assertNull(mAnswerRequests.poll(200, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,151 @@
+package ac.robinson.pss2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnswerNotificationChannelTest {
+
+	private static final String END_OF_STREAM = ""; // queued to make the stand-in server end the current connection
+
+	private HttpServer mServer;
+	private volatile boolean mServerStopped;
+	private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>(); // sent by the stand-in server
+	private final BlockingQueue<String> mQueries = new LinkedBlockingQueue<>(); // of each connection it receives
+
+	private AnswerNotificationChannel mChannel;
+	private final BlockingQueue<String> mAnswers = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Boolean> mConnectionChanges = new LinkedBlockingQueue<>();
+
+	@Before
+	public void setUp() throws IOException {
+		Pss2.logToConsoleOnly();
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.createContext("/answer_events.php", this::streamEvents);
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.start();
+
+		mChannel = new AnswerNotificationChannel("http://127.0.0.1:" + mServer.getAddress().getPort() +
+				"/answer_events.php", 20, new AnswerNotificationChannel.Listener() {
+			@Override
+			public void onAnswerReceived(int questionId, String answerUrl) {
+				mAnswers.add(questionId + " " + answerUrl);
+			}
+
+			@Override
+			public void onConnectionChanged(boolean connected) {
+				mConnectionChanges.add(connected);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		mChannel.stop();
+		mServerStopped = true;
+		mServer.stop(0);
+	}
+
+	/**
+	 * A stand-in for answer_events.php: holds each connection open, sending whatever events are queued, until
+	 * END_OF_STREAM is queued
+	 */
+	private void streamEvents(HttpExchange exchange) throws IOException {
+		mQueries.add(exchange.getRequestURI().getQuery());
+		exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write("retry: 10000\n\n".getBytes(StandardCharsets.UTF_8));
+			responseBody.flush();
+			while (!mServerStopped) {
+				String event = mEvents.poll(100, TimeUnit.MILLISECONDS);
+				if (END_OF_STREAM.equals(event)) {
+					break;
+				} else if (event != null) {
+					responseBody.write(event.getBytes(StandardCharsets.UTF_8));
+					responseBody.flush();
+				}
+			}
+		} catch (InterruptedException | IOException ignored) { // (e.g., the channel has disconnected)
+		}
+	}
+
+	private static String answerEvent(int eventId, int questionId) {
+		return "id: " + eventId + "\ndata: {\"id\":" + questionId + ",\"url\":\"http://example.com/" + questionId +
+				".m4a\"}\n\n";
+	}
+
+	private void awaitConnection() throws InterruptedException {
+		assertEquals(Boolean.TRUE, mConnectionChanges.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void answersAreReceivedAsTheyAreSent() throws InterruptedException {
+		awaitConnection();
+		String query = mQueries.poll(5, TimeUnit.SECONDS);
+		assertTrue(query, query.contains("source=20"));
+		assertFalse(query, query.contains("since="));
+
+		mEvents.add(": keep-alive\n\n");
+		mEvents.add(answerEvent(7, 4001));
+		assertEquals("4001 http://example.com/4001.m4a", mAnswers.poll(5, TimeUnit.SECONDS));
+		mEvents.add(answerEvent(8, 4002));
+		assertEquals("4002 http://example.com/4002.m4a", mAnswers.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void malformedNotificationIsSkipped() throws InterruptedException {
+		awaitConnection();
+		mEvents.add("id: 7\ndata: not json\n\n");
+		mEvents.add(answerEvent(8, 4002));
+		assertEquals("4002 http://example.com/4002.m4a", mAnswers.poll(5, TimeUnit.SECONDS));
+		assertNull(mConnectionChanges.poll(100, TimeUnit.MILLISECONDS)); // still connected
+	}
+
+	@Test
+	public void reconnectsFromTheLastEventReceived() throws InterruptedException {
+		awaitConnection();
+		mQueries.poll(5, TimeUnit.SECONDS);
+		mEvents.add(answerEvent(7, 4001));
+		assertEquals("4001 http://example.com/4001.m4a", mAnswers.poll(5, TimeUnit.SECONDS));
+
+		mEvents.add(END_OF_STREAM); // ended straight away, so treated as a failure (and retried after a delay)
+		assertEquals(Boolean.FALSE, mConnectionChanges.poll(5, TimeUnit.SECONDS));
+		String query = mQueries.poll(15, TimeUnit.SECONDS);
+		assertTrue(query, query.contains("since=7"));
+		awaitConnection();
+	}
+
+	@Test
+	public void serverErrorDisconnects() throws InterruptedException {
+		awaitConnection();
+		mEvents.add("event: error\ndata: unavailable\n\n");
+		assertEquals(Boolean.FALSE, mConnectionChanges.poll(5, TimeUnit.SECONDS));
+		assertNull(mAnswers.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void stopDisconnectsStraightAway() throws InterruptedException {
+		awaitConnection();
+		mChannel.stop();
+		assertEquals(Boolean.FALSE, mConnectionChanges.poll(2, TimeUnit.SECONDS));
+		mQueries.poll(5, TimeUnit.SECONDS);
+		assertNull(mQueries.poll(1, TimeUnit.SECONDS)); // no reconnection
+	}
+}
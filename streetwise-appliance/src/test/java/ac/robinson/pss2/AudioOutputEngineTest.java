@@ -0,0 +1,148 @@
+package ac.robinson.pss2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioOutputEngineTest {
+
+	private static final int BYTES_PER_MS = Math.round(AudioOutputEngine.OUTPUT_FORMAT.getFrameRate() / 1000) *
+			AudioOutputEngine.OUTPUT_FORMAT.getFrameSize();
+
+	private TestMixer mMixer;
+	private AudioOutputEngine mEngine;
+	private final List<String> mCompleted = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mMixer = new TestMixer(true);
+		mEngine = new AudioOutputEngine(mMixer);
+	}
+
+	/**
+	 * @return Audio of the given duration in which every byte is the given value, so it can be found in the output
+	 */
+	private static byte[] tone(int value, int durationMs) {
+		byte[] pcm = new byte[durationMs * BYTES_PER_MS];
+		Arrays.fill(pcm, (byte) value);
+		return pcm;
+	}
+
+	private CompletableFuture<Boolean> play(int value, int durationMs, AudioOutputEngine.Priority priority) {
+		CompletableFuture<Boolean> playback = mEngine.play("tone " + value,
+				new AudioOutputEngine.PcmSource(ByteBuffer.wrap(tone(value, durationMs))), priority);
+		playback.thenRun(() -> mCompleted.add("tone " + value));
+		return playback;
+	}
+
+	private void waitUntilPlaying() throws InterruptedException {
+		while (mMixer.getLines().isEmpty() || mMixer.getLine().getWritten().length == 0) {
+			Thread.sleep(2);
+		}
+	}
+
+	/**
+	 * @return The value and length (in bytes) of each run of identical bytes written to the line, in order
+	 */
+	private List<int[]> getWrittenRuns() {
+		List<int[]> runs = new ArrayList<>();
+		for (byte value : mMixer.getLine().getWritten()) {
+			int[] lastRun = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+			if (lastRun != null && lastRun[0] == value) {
+				lastRun[1] += 1;
+			} else {
+				runs.add(new int[]{value, 1});
+			}
+		}
+		return runs;
+	}
+
+	@Test
+	public void commandsArePlayedInPriorityThenSubmissionOrder() throws Exception {
+		CompletableFuture<Boolean> first = play(1, 200, AudioOutputEngine.Priority.INTERACTIVE);
+		waitUntilPlaying();
+		CompletableFuture<Boolean> normal1 = play(2, 50, AudioOutputEngine.Priority.NORMAL);
+		CompletableFuture<Boolean> normal2 = play(3, 50, AudioOutputEngine.Priority.NORMAL);
+		CompletableFuture<Boolean> interactive = play(4, 50, AudioOutputEngine.Priority.INTERACTIVE);
+
+		for (CompletableFuture<Boolean> playback : Arrays.asList(first, normal1, normal2, interactive)) {
+			assertTrue(playback.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(Arrays.asList("tone 1", "tone 4", "tone 2", "tone 3"), mCompleted);
+		assertEquals(0, mMixer.getLine().getFlushCount()); // nothing was interrupted
+	}
+
+	@Test
+	public void aHigherPriorityCommandInterruptsAndTheInterruptedPromptRestarts() throws Exception {
+		CompletableFuture<Boolean> normal = play(1, 500, AudioOutputEngine.Priority.NORMAL);
+		waitUntilPlaying();
+		CompletableFuture<Boolean> interactive = play(2, 100, AudioOutputEngine.Priority.INTERACTIVE);
+
+		assertTrue(interactive.get(5, TimeUnit.SECONDS));
+		assertTrue(normal.get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("tone 2", "tone 1"), mCompleted);
+
+		// part of the prompt, then the interruption, then the whole prompt again from the start
+		List<int[]> runs = getWrittenRuns();
+		assertEquals(3, runs.size());
+		assertEquals(1, runs.get(0)[0]);
+		assertTrue(runs.get(0)[1] < 500 * BYTES_PER_MS);
+		assertEquals(2, runs.get(1)[0]);
+		assertEquals(100 * BYTES_PER_MS, runs.get(1)[1]);
+		assertEquals(1, runs.get(2)[0]);
+		assertEquals(500 * BYTES_PER_MS, runs.get(2)[1]);
+		assertEquals(1, mMixer.getLine().getFlushCount());
+	}
+
+	@Test
+	public void anInterruptedSourceThatCannotRestartIsStopped() throws Exception {
+		byte[] pcm = tone(1, 500);
+		int[] position = new int[1];
+		AudioOutputEngine.Source answer = (buffer, offset, length) -> { // (like an answer being decoded)
+			int bytesRead = Math.min(length, pcm.length - position[0]);
+			System.arraycopy(pcm, position[0], buffer, offset, bytesRead);
+			position[0] += bytesRead;
+			return bytesRead > 0 ? bytesRead : -1;
+		};
+		CompletableFuture<Boolean> normal = mEngine.play("answer", answer, AudioOutputEngine.Priority.NORMAL);
+		waitUntilPlaying();
+		CompletableFuture<Boolean> interactive = play(2, 100, AudioOutputEngine.Priority.INTERACTIVE);
+
+		assertFalse(normal.get(5, TimeUnit.SECONDS));
+		assertTrue(interactive.get(5, TimeUnit.SECONDS));
+		List<int[]> runs = getWrittenRuns();
+		assertEquals(2, runs.size());
+		assertEquals(2, runs.get(1)[0]);
+	}
+
+	@Test
+	public void cancellingStopsPlayingAndQueuedCommandsOfThatPriorityOnly() throws Exception {
+		CompletableFuture<Boolean> playing = play(1, 500, AudioOutputEngine.Priority.NORMAL);
+		waitUntilPlaying();
+		CompletableFuture<Boolean> queued = play(2, 100, AudioOutputEngine.Priority.NORMAL);
+		mEngine.cancel(AudioOutputEngine.Priority.INTERACTIVE); // nothing of this priority - no effect
+		mEngine.cancel(AudioOutputEngine.Priority.NORMAL);
+		CompletableFuture<Boolean> next = play(3, 100, AudioOutputEngine.Priority.NORMAL);
+
+		assertFalse(playing.get(5, TimeUnit.SECONDS));
+		assertFalse(queued.get(5, TimeUnit.SECONDS));
+		assertTrue(next.get(5, TimeUnit.SECONDS));
+		List<int[]> runs = getWrittenRuns();
+		assertEquals(2, runs.size());
+		assertEquals(1, runs.get(0)[0]);
+		assertTrue(runs.get(0)[1] < 500 * BYTES_PER_MS);
+		assertEquals(3, runs.get(1)[0]);
+	}
+}
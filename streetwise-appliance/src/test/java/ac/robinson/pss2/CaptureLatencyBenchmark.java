@@ -0,0 +1,100 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+import java.util.Arrays;
+
+/**
+ * Measures the latency from a (simulated) button press to the first sample of the recording, with and without
+ * pre-roll, in the same way as SilenceDetectingAudioRecorder captures audio. Without pre-roll, the microphone line is
+ * opened when the button is pressed, and the recording starts with the first buffer read from it; with pre-roll, the
+ * line is always open and captured into a PcmBuffer, and the recording starts with audio from before the press. Needs
+ * a microphone, so run on the appliance:
+ * <pre>gradle benchmark -Pbenchmark=CaptureLatencyBenchmark [-PbenchmarkArgs="mixer-name"]</pre>
+ */
+class CaptureLatencyBenchmark {
+
+	private static final int RUNS = 10;
+	private static final int PRE_ROLL_MS = 500; // as Pss2's default
+	private static final int PRESS_INTERVAL_MS = 1500; // time between simulated presses
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		Mixer mixer = args.length > 0 ? findMixer(args[0]) : null;
+		DataLine.Info lineInfo = new DataLine.Info(TargetDataLine.class, TestAudio.FORMAT);
+
+		long[] withoutPreRoll = new long[RUNS];
+		for (int run = 0; run < RUNS; run++) {
+			byte[] buffer = new byte[TestAudio.DISPATCHER_BUFFER_BYTES];
+			long pressTime = System.nanoTime();
+			TargetDataLine line = openLine(mixer, lineInfo);
+			int read = 0;
+			while (read == 0) {
+				read = line.read(buffer, 0, buffer.length);
+			}
+			withoutPreRoll[run] = System.nanoTime() - pressTime;
+			line.close();
+			Thread.sleep(PRESS_INTERVAL_MS);
+		}
+		report("Without pre-roll (line opened on press)", withoutPreRoll);
+
+		PcmBuffer pcmBuffer = new PcmBuffer(TestAudio.BYTES_PER_MS * (PRE_ROLL_MS + PRESS_INTERVAL_MS) * 2);
+		TargetDataLine line = openLine(mixer, lineInfo);
+		Thread captureThread = new Thread(() -> {
+			byte[] buffer = new byte[TestAudio.DISPATCHER_BUFFER_BYTES];
+			while (line.isOpen()) {
+				int read = line.read(buffer, 0, buffer.length);
+				if (read > 0) {
+					pcmBuffer.write(buffer, 0, read);
+				}
+			}
+		}, "CaptureLatencyBenchmark");
+		captureThread.start();
+		Thread.sleep(PRE_ROLL_MS + PRESS_INTERVAL_MS); // so the first press has a full pre-roll available
+
+		long[] withPreRoll = new long[RUNS];
+		long[] preRollMs = new long[RUNS];
+		for (int run = 0; run < RUNS; run++) {
+			long pressTime = System.nanoTime();
+			PcmBuffer.Recording recording = pcmBuffer.startRecording(TestAudio.BYTES_PER_MS * PRE_ROLL_MS);
+			while (recording.length() == 0) {
+				Thread.yield();
+			}
+			withPreRoll[run] = System.nanoTime() - pressTime;
+			preRollMs[run] = recording.getPreRollBytes() / TestAudio.BYTES_PER_MS;
+			recording.stop();
+			Thread.sleep(PRESS_INTERVAL_MS);
+		}
+		line.close();
+		captureThread.join();
+		report("With pre-roll (line always open)", withPreRoll);
+		System.out.println("Pre-roll included in each recording: " + Arrays.toString(preRollMs) + "ms");
+	}
+
+	private static Mixer findMixer(String name) {
+		for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+			if (info.getName().equals(name)) {
+				return AudioSystem.getMixer(info);
+			}
+		}
+		throw new IllegalArgumentException("No mixer named " + name);
+	}
+
+	private static TargetDataLine openLine(Mixer mixer, DataLine.Info lineInfo) throws LineUnavailableException {
+		TargetDataLine line = (TargetDataLine) (mixer != null ? mixer.getLine(lineInfo) : AudioSystem.getLine(
+				lineInfo));
+		line.open(TestAudio.FORMAT, TestAudio.DISPATCHER_BUFFER_BYTES / 2); // as SilenceDetectingAudioRecorder does
+		line.start();
+		return line;
+	}
+
+	private static void report(String name, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		System.out.println(String.format("%s: median %.1fms to the first sample (min %.1fms, max %.1fms)",
+				name, sorted[sorted.length / 2] / 1e6, sorted[0] / 1e6, sorted[sorted.length - 1] / 1e6));
+	}
+}
@@ -0,0 +1,200 @@
+package ac.robinson.pss2;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * A local stand-in for the server's question upload API (question.php and question_chunk.php), for testing and
+ * benchmarking uploads without a real server. Uploads are kept in memory. A slow connection can be simulated by
+ * delaying each response by a fixed round trip time plus the time the request would take to send at a given upload
+ * speed. Can also be run on its own (e.g., for an appliance with SERVER_URL pointed at it):
+ * <pre>gradle benchmark -Pbenchmark=ChunkServer [-PbenchmarkArgs="port round-trip-ms upload-bytes-per-second"]</pre>
+ */
+class ChunkServer {
+
+	private final HttpServer mServer;
+	private final int mRoundTripMs;
+	private final int mUploadBytesPerSecond;
+
+	private final Map<String, ByteArrayOutputStream> mUploads = new HashMap<>(); // guarded by this
+	private final Map<Integer, byte[]> mQuestions = new HashMap<>(); // guarded by this
+	private int mNextQuestionNumber = 1; // guarded by this
+
+	/**
+	 * @param port                 The port to listen on (0 = any free port)
+	 * @param roundTripMs          The delay added to every request
+	 * @param uploadBytesPerSecond The simulated upload speed (0 = unlimited)
+	 */
+	ChunkServer(int port, int roundTripMs, int uploadBytesPerSecond) throws IOException {
+		mRoundTripMs = roundTripMs;
+		mUploadBytesPerSecond = uploadBytesPerSecond;
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		mServer.createContext("/question_chunk.php", exchange -> handle(exchange, this::receiveChunk));
+		mServer.createContext("/question.php", exchange -> handle(exchange, this::receiveQuestion));
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.start();
+	}
+
+	public static void main(String[] args) throws IOException {
+		Pss2.logToConsoleOnly();
+		ChunkServer server = new ChunkServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080,
+				args.length > 1 ? Integer.parseInt(args[1]) : 0, args.length > 2 ? Integer.parseInt(args[2]) : 0);
+		System.out.println("Stand-in question server running at " + server.getUrl());
+	}
+
+	/**
+	 * @return The server's base URL (i.e., the equivalent of Pss2.SERVER_URL)
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+	}
+
+	synchronized byte[] getQuestion(int questionNumber) {
+		return mQuestions.get(questionNumber);
+	}
+
+	void stop() {
+		mServer.stop(0);
+	}
+
+	private interface Handler {
+		String respond(Map<String, byte[]> fields);
+	}
+
+	private void handle(HttpExchange exchange, Handler handler) throws IOException {
+		byte[] body = readFully(exchange.getRequestBody());
+		try {
+			long sendingMs = mUploadBytesPerSecond > 0 ? body.length * 1000L / mUploadBytesPerSecond : 0;
+			Thread.sleep(mRoundTripMs + sendingMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		String response;
+		Map<String, byte[]> fields = parseMultipart(exchange.getRequestHeaders().getFirst("Content-Type"), body);
+		if (fields == null || !Pss2.SERVER_KEY.equals(getString(fields, "k"))) {
+			response = "error";
+		} else {
+			response = handler.respond(fields);
+		}
+
+		byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, responseBytes.length);
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(responseBytes);
+		}
+	}
+
+	private synchronized String receiveChunk(Map<String, byte[]> fields) {
+		String uploadId = getString(fields, "upload");
+		String offset = getString(fields, "offset");
+		byte[] chunk = fields.get("chunk");
+		if (uploadId == null || offset == null || chunk == null) {
+			return "error";
+		}
+		ByteArrayOutputStream upload = mUploads.computeIfAbsent(uploadId, id -> new ByteArrayOutputStream());
+		if (Long.parseLong(offset) == upload.size()) {
+			upload.write(chunk, 0, chunk.length);
+		} // otherwise we already have this chunk (as the real server, the response says how much we have)
+		return "ok," + upload.size();
+	}
+
+	private synchronized String receiveQuestion(Map<String, byte[]> fields) {
+		byte[] question = fields.get("question");
+		String uploadId = getString(fields, "upload");
+		if (question == null && uploadId != null) {
+			ByteArrayOutputStream upload = mUploads.remove(uploadId);
+			String size = getString(fields, "size");
+			if (upload == null || size == null || upload.size() != Long.parseLong(size)) {
+				return "error";
+			}
+			question = upload.toByteArray();
+		}
+		if (question == null) {
+			return "error";
+		}
+		int questionNumber = mNextQuestionNumber++;
+		mQuestions.put(questionNumber, question);
+		return questionNumber + "," + getUrl() + "questions/" + questionNumber;
+	}
+
+	private static String getString(Map<String, byte[]> fields, String name) {
+		byte[] value = fields.get(name);
+		return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+	}
+
+	/**
+	 * @return The value of each part of a multipart/form-data body, by name (or null if the body can't be parsed)
+	 */
+	private static Map<String, byte[]> parseMultipart(String contentType, byte[] body) {
+		int boundaryIndex = contentType != null ? contentType.indexOf("boundary=") : -1;
+		if (boundaryIndex < 0) {
+			return null;
+		}
+		byte[] delimiter = ("\r\n--" + contentType.substring(boundaryIndex + 9)).getBytes(StandardCharsets.UTF_8);
+		byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+		byte[] data = new byte[body.length + 2]; // a line break is added so the first delimiter is like the others
+		data[0] = '\r';
+		data[1] = '\n';
+		System.arraycopy(body, 0, data, 2, body.length);
+
+		Map<String, byte[]> fields = new HashMap<>();
+		int position = indexOf(data, delimiter, 0);
+		while (position >= 0) {
+			position += delimiter.length;
+			if (position + 2 > data.length || data[position] == '-') {
+				break; // "--" after the delimiter marks the end of the body
+			}
+			int headersStart = position + 2; // skip the line break after the delimiter
+			int headersEnd = indexOf(data, headerEnd, headersStart);
+			int partEnd = headersEnd >= 0 ? indexOf(data, delimiter, headersEnd) : -1;
+			if (partEnd < 0) {
+				return null;
+			}
+			String headers = new String(data, headersStart, headersEnd - headersStart, StandardCharsets.UTF_8);
+			int nameIndex = headers.indexOf("name=\"");
+			if (nameIndex >= 0) {
+				String name = headers.substring(nameIndex + 6, headers.indexOf('"', nameIndex + 6));
+				int valueStart = headersEnd + headerEnd.length;
+				byte[] value = new byte[partEnd - valueStart];
+				System.arraycopy(data, valueStart, value, 0, value.length);
+				fields.put(name, value);
+			}
+			position = partEnd;
+		}
+		return fields;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		search:
+		for (int i = from; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int read; (read = inputStream.read(buffer)) >= 0; ) {
+			data.write(buffer, 0, read);
+		}
+		return data.toByteArray();
+	}
+}
@@ -0,0 +1,89 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedQuestionUploadTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private ChunkServer mServer;
+	private ExecutorService mUploadStage;
+
+	@Before
+	public void setUp() throws IOException {
+		Pss2.logToConsoleOnly();
+		mServer = new ChunkServer(0, 0, 0);
+		mUploadStage = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		mUploadStage.shutdownNow();
+		mServer.stop();
+	}
+
+	private ChunkedQuestionUpload createUpload(int chunkSize) {
+		return new ChunkedQuestionUpload(mServer.getUrl() + "question_chunk.php", mServer.getUrl() + "question.php", 1,
+				"test", ".mp3", chunkSize);
+	}
+
+	@Test
+	public void fileIsSentAsItIsWrittenThenCommitted() throws Exception {
+		ChunkedQuestionUpload upload = createUpload(1000);
+		Future<String> response = mUploadStage.submit(upload::upload);
+
+		File file = mFolder.newFile("question.mp3");
+		byte[] data = new byte[4500];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+		try (FileOutputStream outputStream = new FileOutputStream(file)) {
+			for (int written = 0; written < data.length; written += 700) { // smaller than a chunk, so some are merged
+				int length = Math.min(700, data.length - written);
+				outputStream.write(data, written, length);
+				outputStream.flush();
+				upload.onDataWritten(file, written + length);
+				Thread.sleep(20);
+			}
+		}
+		upload.onCompleted(file);
+
+		String[] responseParts = response.get(10, TimeUnit.SECONDS).split(",");
+		assertEquals("1", responseParts[0]);
+		assertArrayEquals(data, mServer.getQuestion(1));
+	}
+
+	@Test
+	public void cancelledUploadIsNotCommitted() throws Exception {
+		ChunkedQuestionUpload upload = createUpload(1000);
+		Future<String> response = mUploadStage.submit(upload::upload);
+		upload.cancel();
+		try {
+			response.get(10, TimeUnit.SECONDS);
+			fail("Cancelled upload completed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertNull(mServer.getQuestion(1));
+	}
+}
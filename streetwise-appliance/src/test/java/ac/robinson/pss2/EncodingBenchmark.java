@@ -0,0 +1,122 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.writer.WriterProcessor;
+import de.sciss.jump3r.Main;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares how long after the end of speech a question's mp3 is ready when it is encoded while recording (as now), and
+ * when a wav is written while recording and converted with jump3r's Main afterwards (as before), along with the heap
+ * allocated by each. Audio is passed through in dispatcher-sized buffers as fast as possible, so only the time taken
+ * after the last buffer counts as latency. Run with:
+ * <pre>gradle benchmark -Pbenchmark=EncodingBenchmark [-PbenchmarkArgs="question.wav"]</pre>
+ * By default, 10 seconds of synthetic speech are used.
+ */
+class EncodingBenchmark {
+
+	private static final int RUNS = 10; // the first run of each is discarded, as it includes JIT compilation
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		byte[] pcm = args.length > 0 ? TestAudio.read(new File(args[0])) : TestAudio.speech(8000, 2000);
+		File directory = Files.createTempDirectory("EncodingBenchmark").toFile();
+		System.out.println("Encoding " + pcm.length / TestAudio.BYTES_PER_MS + "ms of audio, " + (RUNS - 1) +
+				" runs each");
+
+		Mp3Encoder codec = new Mp3Encoder(TestAudio.FORMAT);
+		PcmBuffer pcmBuffer = new PcmBuffer(pcm.length);
+		long[][] streaming = new long[RUNS][];
+		long[][] twoPass = new long[RUNS][];
+		for (int run = 0; run < RUNS; run++) {
+			streaming[run] = encodeWhileRecording(pcm, codec, pcmBuffer, new File(directory, run + "-streaming.mp3"));
+			twoPass[run] = encodeAfterRecording(pcm, new File(directory, run + ".wav"),
+					new File(directory, run + "-two-pass.mp3"));
+		}
+		codec.close();
+
+		report("Encoding while recording", streaming);
+		report("Converting a wav afterwards", twoPass);
+		for (File file : directory.listFiles()) {
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - it is a temporary directory
+			file.delete();
+		}
+		//noinspection ResultOfMethodCallIgnored // as above
+		directory.delete();
+	}
+
+	/**
+	 * @return The latency (ns), bytes allocated and size of the output file
+	 */
+	private static long[] encodeWhileRecording(byte[] pcm, AudioCodec codec, PcmBuffer pcmBuffer, File outputFile)
+			throws Exception {
+		long allocationStart = getAllocatedBytes();
+		PcmBuffer.Recording recording = pcmBuffer.startRecording(0);
+		EncodingProcessor encodingProcessor = new EncodingProcessor(codec, recording, outputFile);
+		encodingProcessor.setEncodeRange(0, pcm.length);
+		for (int offset = 0; offset < pcm.length; offset += TestAudio.DISPATCHER_BUFFER_BYTES) {
+			pcmBuffer.write(pcm, offset, Math.min(TestAudio.DISPATCHER_BUFFER_BYTES, pcm.length - offset));
+			encodingProcessor.process(null); // (the event isn't used - audio is read from the PcmBuffer)
+		}
+
+		long endOfSpeech = System.nanoTime();
+		recording.stop();
+		encodingProcessor.finish();
+		long latency = System.nanoTime() - endOfSpeech;
+		return new long[]{latency, getAllocatedBytes() - allocationStart, outputFile.length()};
+	}
+
+	/**
+	 * @return The latency (ns), bytes allocated and size of the output file
+	 */
+	private static long[] encodeAfterRecording(byte[] pcm, File wavFile, File outputFile) throws Exception {
+		long allocationStart = getAllocatedBytes();
+		TarsosDSPAudioFormat format = new TarsosDSPAudioFormat(TestAudio.FORMAT.getSampleRate(),
+				TestAudio.FORMAT.getSampleSizeInBits(), TestAudio.FORMAT.getChannels(), true, false);
+		TarsosDSPAudioFloatConverter converter = TarsosDSPAudioFloatConverter.getConverter(format);
+		WriterProcessor writerProcessor = new WriterProcessor(format, new RandomAccessFile(wavFile, "rw"));
+		AudioEvent audioEvent = new AudioEvent(format);
+		float[] buffer = new float[TestAudio.DISPATCHER_BUFFER_BYTES / 2];
+		for (int offset = 0; offset < pcm.length; offset += TestAudio.DISPATCHER_BUFFER_BYTES) {
+			int length = Math.min(TestAudio.DISPATCHER_BUFFER_BYTES, pcm.length - offset);
+			if (length < TestAudio.DISPATCHER_BUFFER_BYTES) {
+				buffer = new float[length / 2];
+			}
+			converter.toFloatArray(pcm, offset, buffer, 0, buffer.length); // as the dispatcher does
+			audioEvent.setFloatBuffer(buffer);
+			writerProcessor.process(audioEvent);
+		}
+
+		long endOfSpeech = System.nanoTime();
+		writerProcessor.processingFinished(); // writes the wav header
+		new Main().run(new String[]{"--preset", "voice", wavFile.getAbsolutePath(), outputFile.getAbsolutePath()});
+		long latency = System.nanoTime() - endOfSpeech;
+		return new long[]{latency, getAllocatedBytes() - allocationStart, outputFile.length()};
+	}
+
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+
+	private static void report(String name, long[][] runs) {
+		long[] latencies = new long[runs.length - 1];
+		long allocated = 0;
+		for (int run = 1; run < runs.length; run++) {
+			latencies[run - 1] = runs[run][0];
+			allocated += runs[run][1];
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format("%s: median %.1fms to mp3 after end of speech (min %.1fms, max %.1fms); " +
+						"%dKB allocated per question; %d bytes of mp3", name, latencies[latencies.length / 2] / 1e6,
+				latencies[0] / 1e6, latencies[latencies.length - 1] / 1e6, allocated / (runs.length - 1) / 1024,
+				runs[runs.length - 1][2]));
+	}
+}
@@ -0,0 +1,172 @@
+package ac.robinson.pss2;
+
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.SilenceDetector;
+import be.tarsos.dsp.io.TarsosDSPAudioFloatConverter;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays labelled recordings through the adaptive noise-floor endpointer and through the fixed threshold it replaced
+ * (TarsosDSP's SilenceDetector), applying the recorder's stopping rules to each, and reports how far the time each
+ * stops recording is from the ideal (the labelled end of speech plus the silence timeout, within the minimum and
+ * maximum durations). Run with:
+ * <pre>gradle benchmark -Pbenchmark=EndpointingEvaluation [-PbenchmarkArgs="corpus-directory"]</pre>
+ * The corpus directory must contain a labels.txt file, with one line per wav file: its name, the time (ms) that speech
+ * ends, and (optionally) the time that recording starts - any audio before this is only used to estimate the noise
+ * floor, as when pre-roll capture is enabled. By default, synthetic speech in increasing levels of noise is used.
+ */
+class EndpointingEvaluation {
+
+	private static final int BUFFER_SAMPLES = TestAudio.DISPATCHER_BUFFER_BYTES / 2;
+	private static final double BUFFER_MS = BUFFER_SAMPLES * 1000d / TestAudio.FORMAT.getSampleRate();
+
+	private static class Recording {
+		final String mName;
+		final byte[] mPcm;
+		final int mEndOfSpeechMs;
+		final int mRecordingStartMs;
+
+		Recording(String name, byte[] pcm, int endOfSpeechMs, int recordingStartMs) {
+			mName = name;
+			mPcm = pcm;
+			mEndOfSpeechMs = endOfSpeechMs;
+			mRecordingStartMs = recordingStartMs;
+		}
+	}
+
+	private interface SpeechDetector {
+		boolean isSpeech(AudioEvent audioEvent);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		List<Recording> corpus = args.length > 0 ? readCorpus(new File(args[0])) : createCorpus();
+
+		double adaptiveTotalError = 0;
+		double fixedTotalError = 0;
+		int adaptiveMaximumCount = 0;
+		int fixedMaximumCount = 0;
+		System.out.println("recording: ideal stop; adaptive stop (error); fixed stop (error) - all in ms");
+		for (Recording recording : corpus) {
+			int idealStopMs = Math.max(Pss2.DURATION_MINIMUM_MS, Math.min(Pss2.DURATION_MAXIMUM_MS,
+					recording.mEndOfSpeechMs - recording.mRecordingStartMs + Pss2.SILENCE_TIMEOUT_MS));
+
+			NoiseFloorEndpointer endpointer = new NoiseFloorEndpointer(Pss2.SILENCE_THRESHOLD_DB,
+					Pss2.NOISE_FLOOR_MARGIN_DB, Pss2.NOISE_FLOOR_PERCENTILE,
+					(int) Math.round(Pss2.NOISE_FLOOR_WINDOW_MS / BUFFER_MS));
+			AudioFeatureProcessor featureProcessor = new AudioFeatureProcessor(endpointer);
+			int adaptiveStopMs = replay(recording, audioEvent -> {
+				featureProcessor.process(audioEvent);
+				return featureProcessor.isCurrentBufferSpeech();
+			});
+
+			SilenceDetector silenceDetector = new SilenceDetector(Pss2.SILENCE_THRESHOLD_DB, false);
+			int fixedStopMs = replay(recording, audioEvent -> {
+				silenceDetector.process(audioEvent);
+				return silenceDetector.currentSPL() > Pss2.SILENCE_THRESHOLD_DB;
+			});
+
+			System.out.println(String.format("%s: %d; %d (%+d); %d (%+d)", recording.mName, idealStopMs,
+					adaptiveStopMs, adaptiveStopMs - idealStopMs, fixedStopMs, fixedStopMs - idealStopMs));
+			adaptiveTotalError += Math.abs(adaptiveStopMs - idealStopMs);
+			fixedTotalError += Math.abs(fixedStopMs - idealStopMs);
+			adaptiveMaximumCount += adaptiveStopMs >= Pss2.DURATION_MAXIMUM_MS ? 1 : 0;
+			fixedMaximumCount += fixedStopMs >= Pss2.DURATION_MAXIMUM_MS ? 1 : 0;
+		}
+		System.out.println(String.format("Adaptive: mean absolute stop-time error %.0fms; %d of %d at maximum " +
+				"duration", adaptiveTotalError / corpus.size(), adaptiveMaximumCount, corpus.size()));
+		System.out.println(String.format("Fixed: mean absolute stop-time error %.0fms; %d of %d at maximum duration",
+				fixedTotalError / corpus.size(), fixedMaximumCount, corpus.size()));
+	}
+
+	/**
+	 * Pass the recording through the detector buffer by buffer, with the same rules as SilenceDetectingAudioRecorder
+	 *
+	 * @return The time (ms, relative to the start of recording) that recording would have stopped
+	 */
+	private static int replay(Recording recording, SpeechDetector detector) {
+		TarsosDSPAudioFormat format = new TarsosDSPAudioFormat(TestAudio.FORMAT.getSampleRate(),
+				TestAudio.FORMAT.getSampleSizeInBits(), TestAudio.FORMAT.getChannels(), true, false);
+		TarsosDSPAudioFloatConverter converter = TarsosDSPAudioFloatConverter.getConverter(format);
+		AudioEvent audioEvent = new AudioEvent(format);
+		float[] buffer = new float[BUFFER_SAMPLES];
+		int silenceTimeoutBufferCount = (int) Math.round(Pss2.SILENCE_TIMEOUT_MS / BUFFER_MS);
+		int durationMinimumBufferCount = (int) Math.round(Pss2.DURATION_MINIMUM_MS / BUFFER_MS);
+		int durationMaximumBufferCount = (int) Math.round(Pss2.DURATION_MAXIMUM_MS / BUFFER_MS);
+		int recordingStart = recording.mRecordingStartMs * TestAudio.BYTES_PER_MS;
+
+		int silentBufferCount = 0;
+		int recordedBufferCount = 0;
+		for (int offset = 0; offset + TestAudio.DISPATCHER_BUFFER_BYTES <= recording.mPcm.length;
+			 offset += TestAudio.DISPATCHER_BUFFER_BYTES) {
+			converter.toFloatArray(recording.mPcm, offset, buffer, 0, BUFFER_SAMPLES);
+			audioEvent.setFloatBuffer(buffer);
+			boolean speech = detector.isSpeech(audioEvent);
+			if (offset < recordingStart) {
+				continue; // pre-roll - only used to estimate the noise floor
+			}
+
+			if (speech) {
+				silentBufferCount = 0;
+			} else {
+				silentBufferCount += 1;
+				if (silentBufferCount >= silenceTimeoutBufferCount &&
+						recordedBufferCount >= durationMinimumBufferCount) {
+					return (int) Math.round((recordedBufferCount + 1) * BUFFER_MS);
+				}
+			}
+			recordedBufferCount += 1;
+			if (recordedBufferCount >= durationMaximumBufferCount) {
+				break;
+			}
+		}
+		return (int) Math.round(recordedBufferCount * BUFFER_MS); // the maximum duration (or end of the file)
+	}
+
+	private static List<Recording> readCorpus(File directory) throws Exception {
+		List<Recording> corpus = new ArrayList<>();
+		for (String line : Files.readAllLines(new File(directory, "labels.txt").toPath())) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length < 2 || fields[0].startsWith("#")) {
+				continue;
+			}
+			corpus.add(new Recording(fields[0], TestAudio.read(new File(directory, fields[0])),
+					Integer.parseInt(fields[1]), fields.length > 2 ? Integer.parseInt(fields[2]) : 0));
+		}
+		return corpus;
+	}
+
+	/**
+	 * @return Speech of several lengths in quiet, moderate and loud background noise, with 5s of pre-roll before each
+	 */
+	private static List<Recording> createCorpus() {
+		List<Recording> corpus = new ArrayList<>();
+		int leadInMs = 5000;
+		int trailingMs = Pss2.DURATION_MAXIMUM_MS;
+		for (double noiseDb : new double[]{-60, -40, -25, -20, -16}) {
+			for (int speechMs : new int[]{2000, 6000, 10000}) {
+				byte[] noise = TestAudio.noise(leadInMs + speechMs + trailingMs, noiseDb, speechMs);
+				byte[] speech = TestAudio.speech(speechMs, trailingMs);
+				byte[] pcm = new byte[noise.length];
+				for (int i = 0; i < pcm.length; i += 2) {
+					int speechIndex = i - leadInMs * TestAudio.BYTES_PER_MS;
+					int sample = (short) ((noise[i] & 0xff) | (noise[i + 1] << 8));
+					if (speechIndex >= 0) {
+						sample += (short) ((speech[speechIndex] & 0xff) | (speech[speechIndex + 1] << 8));
+					}
+					sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+					pcm[i] = (byte) sample;
+					pcm[i + 1] = (byte) (sample >> 8);
+				}
+				corpus.add(new Recording(String.format("%ddB noise, %dms speech", (int) noiseDb, speechMs), pcm,
+						leadInMs + speechMs, leadInMs));
+			}
+		}
+		return corpus;
+	}
+}
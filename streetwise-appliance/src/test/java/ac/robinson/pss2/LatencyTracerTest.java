@@ -0,0 +1,116 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTracerTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mOutputFile;
+	private LatencyTracer mLatencyTracer;
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mOutputFile = new File(mFolder.getRoot(), "latency.txt");
+		mLatencyTracer = new LatencyTracer(mOutputFile);
+	}
+
+	@After
+	public void tearDown() {
+		mLatencyTracer.stop();
+	}
+
+	private static LatencyTracer.Histogram histogramOf(double... samples) {
+		LatencyTracer.Histogram histogram = new LatencyTracer.Histogram();
+		for (double sample : samples) {
+			histogram.add(sample);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return The columns of the dumped histogram for the given stage, or null if it wasn't dumped
+	 */
+	private String[] getDumpedStage(String stage) throws Exception {
+		List<String> lines = Files.readAllLines(mOutputFile.toPath(), StandardCharsets.UTF_8);
+		for (String line : lines) {
+			if (line.startsWith(stage + " ")) {
+				return line.substring(stage.length()).trim().split(" +");
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void p90IsTheUpperBoundOfItsBucket() {
+		double[] samples = new double[100];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = i + 1; // 1 to 100ms - the 90th falls in the 50-100ms bucket
+		}
+		assertEquals(100, histogramOf(samples).getP90(), 0);
+		assertEquals(5, histogramOf(3, 3, 3, 3, 3, 3, 3, 3, 3, 4000).getP90(), 0); // one outlier doesn't count
+		assertEquals(200, histogramOf(3, 3, 3, 3, 3, 3, 3, 3, 150, 4000).getP90(), 0); // but two do
+	}
+
+	@Test
+	public void p90IsNeverMoreThanTheMaximum() {
+		assertEquals(3.5, histogramOf(1, 2, 3.5).getP90(), 0);
+		assertEquals(45000, histogramOf(40000, 45000).getP90(), 0); // (beyond the last bucket)
+	}
+
+	@Test
+	public void stagesAreTimedFromThePreviousMarkAndDumped() throws Exception {
+		LatencyTracer.Trace trace = mLatencyTracer.start("answer");
+		Thread.sleep(30);
+		trace.mark("lookup");
+		trace.setPath("cached");
+		Thread.sleep(60);
+		trace.finish("playback");
+		trace.mark("ignored"); // (the trace has finished)
+		mLatencyTracer.dump();
+
+		String[] lookup = getDumpedStage("answer: lookup");
+		String[] playback = getDumpedStage("answer/cached: playback");
+		String[] total = getDumpedStage("answer/cached: total");
+		assertEquals("1", lookup[0]); // count
+		assertTrue(Double.parseDouble(lookup[1]) >= 30 && Double.parseDouble(lookup[1]) < 60); // mean
+		assertEquals("1", playback[0]);
+		assertTrue(Double.parseDouble(playback[1]) >= 60 && Double.parseDouble(playback[1]) < 90);
+		assertEquals("1", total[0]);
+		assertTrue(Double.parseDouble(total[1]) >= 90);
+		assertNull(getDumpedStage("answer/cached: ignored"));
+		assertFalse(new File(mOutputFile.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void dumpIsOnlyWrittenWhenSomethingHasChanged() throws Exception {
+		mLatencyTracer.dump();
+		assertFalse(mOutputFile.exists()); // nothing to dump yet
+
+		mLatencyTracer.start("prompt").finish("playback");
+		mLatencyTracer.dump();
+		assertTrue(mOutputFile.delete());
+		mLatencyTracer.dump();
+		assertFalse(mOutputFile.exists());
+
+		mLatencyTracer.start("prompt").finish("playback");
+		mLatencyTracer.stop(); // (also dumps)
+		assertEquals("2", getDumpedStage("prompt: playback")[0]);
+	}
+}
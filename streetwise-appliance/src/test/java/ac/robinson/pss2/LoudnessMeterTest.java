@@ -0,0 +1,74 @@
+package ac.robinson.pss2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoudnessMeterTest {
+
+	private static final float SAMPLE_RATE = 44100;
+
+	/**
+	 * @return A sine wave with the given peak level (dBFS), as 16-bit signed little-endian PCM
+	 */
+	private static byte[] sine(double frequency, double level, double seconds) {
+		double amplitude = Math.pow(10, level / 20) * Short.MAX_VALUE;
+		byte[] pcm = new byte[(int) Math.round(seconds * SAMPLE_RATE) * 2];
+		for (int i = 0; i < pcm.length / 2; i++) {
+			int sample = (int) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+			pcm[2 * i] = (byte) sample;
+			pcm[2 * i + 1] = (byte) (sample >> 8);
+		}
+		return pcm;
+	}
+
+	private static double measure(byte[]... pcmSegments) {
+		LoudnessMeter loudnessMeter = new LoudnessMeter(SAMPLE_RATE);
+		for (byte[] pcm : pcmSegments) {
+			loudnessMeter.process(pcm, 0, pcm.length);
+		}
+		return loudnessMeter.getIntegratedLoudness();
+	}
+
+	@Test
+	public void sineAt1kHzMeasuresItsPowerLevel() {
+		// K-weighting is almost exactly 0dB at 997Hz, so a mono sine with a -20dBFS peak (i.e., a mean square 3dB
+		// lower) is -23 LUFS - the EBU R128 reference level
+		assertEquals(-23, measure(sine(997, -20, 5)), 0.1);
+		assertEquals(-13, measure(sine(997, -10, 5)), 0.1);
+	}
+
+	@Test
+	public void kWeightingBoostsHighFrequenciesAndCutsLowOnes() {
+		// BS.1770's filters (as specified at 48kHz) are +3.35dB at 8kHz and -14.0dB at 20Hz, relative to 997Hz
+		double reference = measure(sine(997, -20, 5));
+		assertEquals(3.35, measure(sine(8000, -20, 5)) - reference, 0.1);
+		assertEquals(-14, measure(sine(20, -20, 5)) - reference, 0.5);
+	}
+
+	@Test
+	public void silenceIsNotCounted() {
+		// the absolute gate: pauses don't make an answer measure quieter
+		assertEquals(-23, measure(sine(997, -20, 3), new byte[(int) SAMPLE_RATE * 2 * 3]), 0.3);
+	}
+
+	@Test
+	public void quietPassagesWellBelowTheMainLevelAreNotCounted() {
+		// the relative gate: background noise 20LU down is ignored (ungated, this would measure about -26 LUFS)
+		assertEquals(-23, measure(sine(997, -20, 3), sine(997, -40, 3)), 0.3);
+	}
+
+	@Test
+	public void silenceAndVeryShortAudioHaveNoLoudness() {
+		assertEquals(Double.NEGATIVE_INFINITY, measure(new byte[(int) SAMPLE_RATE * 2]), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, measure(sine(997, -20, 0.3)), 0); // shorter than one 400ms block
+	}
+
+	@Test
+	public void peakIsTheLargestSample() {
+		LoudnessMeter loudnessMeter = new LoudnessMeter(SAMPLE_RATE);
+		byte[] pcm = sine(997, -6, 1);
+		loudnessMeter.process(pcm, 0, pcm.length);
+		assertEquals(Math.pow(10, -6 / 20d) * Short.MAX_VALUE, loudnessMeter.getPeak(), 2);
+	}
+}
@@ -0,0 +1,78 @@
+package ac.robinson.pss2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NoiseFloorEndpointerTest {
+
+	private static final int WINDOW = 10;
+
+	private static NoiseFloorEndpointer createEndpointer(double minimumThreshold) {
+		return new NoiseFloorEndpointer(minimumThreshold, 10, 0.1, WINDOW);
+	}
+
+	private static void fill(NoiseFloorEndpointer endpointer, double level, int count) {
+		for (int i = 0; i < count; i++) {
+			endpointer.isSpeech(level);
+		}
+	}
+
+	@Test
+	public void onlyTheMinimumThresholdIsUsedUntilTheWindowIsFull() {
+		NoiseFloorEndpointer endpointer = createEndpointer(-70);
+		fill(endpointer, -60, WINDOW - 2);
+		assertTrue(endpointer.isSpeech(-65)); // the noise floor (-60) would otherwise make this silence
+		assertEquals(-70, endpointer.getThreshold(), 0);
+
+		endpointer.isSpeech(-60); // the window is now full, and its quietest level is -65
+		assertEquals(-55, endpointer.getThreshold(), 0);
+		assertFalse(endpointer.isSpeech(-58));
+		assertTrue(endpointer.isSpeech(-50));
+	}
+
+	@Test
+	public void thresholdFollowsTheNoiseFloor() {
+		NoiseFloorEndpointer endpointer = createEndpointer(-70);
+		fill(endpointer, -60, WINDOW);
+		assertEquals(-60, endpointer.getNoiseFloor(), 0);
+		assertTrue(endpointer.isSpeech(-45));
+
+		fill(endpointer, -40, WINDOW); // louder surroundings replace the earlier levels
+		assertEquals(-40, endpointer.getNoiseFloor(), 0);
+		assertFalse(endpointer.isSpeech(-35));
+		assertTrue(endpointer.isSpeech(-25));
+	}
+
+	@Test
+	public void noiseFloorIsALowPercentileSoSpeechDoesNotRaiseIt() {
+		NoiseFloorEndpointer endpointer = createEndpointer(-70);
+		fill(endpointer, -60, 2);
+		fill(endpointer, -20, WINDOW - 2); // mostly speech - the quietest 10% is still background noise
+		assertEquals(-60, endpointer.getNoiseFloor(), 0);
+		assertEquals(-50, endpointer.getThreshold(), 0);
+	}
+
+	@Test
+	public void minimumThresholdAppliesInQuietSurroundings() {
+		NoiseFloorEndpointer endpointer = createEndpointer(-45);
+		fill(endpointer, -90, WINDOW);
+		assertEquals(-45, endpointer.getThreshold(), 0);
+		assertFalse(endpointer.isSpeech(-50));
+
+		endpointer.setMinimumThreshold(-60);
+		assertTrue(endpointer.isSpeech(-50));
+		assertEquals(-60, endpointer.getThreshold(), 0);
+	}
+
+	@Test
+	public void digitalSilenceCountsAsTheLowestLevel() {
+		NoiseFloorEndpointer endpointer = createEndpointer(-70);
+		assertFalse(endpointer.isSpeech(Double.NEGATIVE_INFINITY));
+		assertFalse(endpointer.isSpeech(Double.NaN));
+		fill(endpointer, Double.NEGATIVE_INFINITY, WINDOW);
+		assertEquals(-120, endpointer.getNoiseFloor(), 0);
+	}
+}
@@ -0,0 +1,205 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmAnswerCacheTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private QuestionIndex mQuestionIndex;
+	private StorageQuota mStorageQuota;
+	private PcmAnswerCache mPcmAnswerCache;
+	private byte[] mPcm;
+	private File mAnswerFile;
+
+	@Before
+	public void setUp() throws Exception {
+		Pss2.logToConsoleOnly();
+		mQuestionIndex = new QuestionIndex(mFolder.getRoot());
+		mStorageQuota = new StorageQuota(mFolder.getRoot(), Long.MAX_VALUE / 2, mQuestionIndex);
+		mPcmAnswerCache = new PcmAnswerCache(mStorageQuota);
+
+		mPcm = new byte[44100 * 2]; // one second, in the output format
+		for (int i = 0; i < mPcm.length; i++) {
+			mPcm[i] = (byte) (i * 7);
+		}
+		mAnswerFile = mFolder.newFile("answer.wav");
+		try (AudioInputStream audioInputStream = new AudioInputStream(new ByteArrayInputStream(mPcm),
+				AudioOutputEngine.OUTPUT_FORMAT, mPcm.length / AudioOutputEngine.OUTPUT_FORMAT.getFrameSize())) {
+			AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, mAnswerFile);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		mPcmAnswerCache.stop();
+		mStorageQuota.stop();
+		mQuestionIndex.close();
+	}
+
+	private static byte[] readAll(AudioOutputEngine.Source source, int readSize) throws Exception {
+		ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+		byte[] buffer = new byte[readSize];
+		for (int bytesRead; (bytesRead = source.read(buffer, 0, buffer.length)) >= 0; ) {
+			assertEquals(0, bytesRead % AudioOutputEngine.OUTPUT_FORMAT.getFrameSize()); // always whole frames
+			pcm.write(buffer, 0, bytesRead);
+		}
+		return pcm.toByteArray();
+	}
+
+	@Test
+	public void cacheFileHasAHeaderDescribingItsPcm() throws Exception {
+		mPcmAnswerCache.decode(mAnswerFile);
+		File cacheFile = PcmAnswerCache.getCacheFile(mAnswerFile);
+		assertEquals(32 + mPcm.length, cacheFile.length());
+		try (DataInputStream headerStream = new DataInputStream(new FileInputStream(cacheFile))) {
+			assertEquals(0x50535043, headerStream.readInt());
+			assertEquals(2, headerStream.readInt());
+			assertEquals(44100, headerStream.readInt());
+			assertEquals(2, headerStream.readInt());
+			assertEquals(mPcm.length, headerStream.readLong());
+			float loudness = headerStream.readFloat();
+			float gain = headerStream.readFloat();
+			assertTrue(loudness < 0);
+			assertTrue(gain > 0 && gain * getPeak(mPcm) <= Short.MAX_VALUE); // (never enough to clip)
+		}
+		assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void cachedAnswerPlaysBackWithItsGainInWholeFrames() throws Exception {
+		mPcmAnswerCache.decode(mAnswerFile);
+		float gain;
+		try (DataInputStream headerStream = new DataInputStream(new FileInputStream(
+				PcmAnswerCache.getCacheFile(mAnswerFile)))) {
+			headerStream.skipBytes(28);
+			gain = headerStream.readFloat();
+		}
+		AudioOutputEngine.Source source = PcmAnswerCache.open(mAnswerFile);
+		assertNotNull(source);
+		byte[] played = readAll(source, 1001); // (an odd size, so reads have to be rounded down)
+		assertEquals(-1, source.read(new byte[64], 0, 64));
+		source.close();
+
+		assertEquals(mPcm.length, played.length);
+		float fixedPointGain = Math.round(gain * 4096) / 4096f; // (applied with 12 fractional bits)
+		for (int i = 0; i < mPcm.length; i += 2) {
+			assertEquals(getSample(mPcm, i) * fixedPointGain, getSample(played, i), 1);
+		}
+	}
+
+	@Test
+	public void quietAnswersAreMadeLouder() throws Exception {
+		for (int i = 0; i < mPcm.length; i += 2) { // a 1kHz sine wave peaking at -30dBFS, i.e., -33 LUFS
+			int sample = (int) Math.round(Math.pow(10, -30 / 20d) * Short.MAX_VALUE *
+					Math.sin(2 * Math.PI * 1000 * i / 2 / 44100));
+			mPcm[i] = (byte) sample;
+			mPcm[i + 1] = (byte) (sample >> 8);
+		}
+		try (AudioInputStream audioInputStream = new AudioInputStream(new ByteArrayInputStream(mPcm),
+				AudioOutputEngine.OUTPUT_FORMAT, mPcm.length / AudioOutputEngine.OUTPUT_FORMAT.getFrameSize())) {
+			AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, mAnswerFile);
+		}
+		mPcmAnswerCache.decode(mAnswerFile);
+		byte[] played = readAll(PcmAnswerCache.open(mAnswerFile), 4096);
+		assertEquals(Math.pow(10, 12 / 20d), getPeak(played) / (double) getPeak(mPcm), 0.01); // (the +12dB limit)
+	}
+
+	private static int getSample(byte[] pcm, int index) {
+		return (short) ((pcm[index] & 0xff) | (pcm[index + 1] << 8));
+	}
+
+	private static int getPeak(byte[] pcm) {
+		int peak = 0;
+		for (int i = 0; i < pcm.length; i += 2) {
+			peak = Math.max(peak, Math.abs(getSample(pcm, i)));
+		}
+		return peak;
+	}
+
+	@Test
+	public void answersWithoutACacheFileAreNotOpened() {
+		assertNull(PcmAnswerCache.open(mAnswerFile));
+	}
+
+	@Test
+	public void cacheFileForADifferentFormatIsDeleted() throws Exception {
+		mPcmAnswerCache.decode(mAnswerFile);
+		File cacheFile = PcmAnswerCache.getCacheFile(mAnswerFile);
+		try (RandomAccessFile headerFile = new RandomAccessFile(cacheFile, "rw")) {
+			headerFile.seek(8);
+			headerFile.writeInt(16000); // the sample rate
+		}
+		assertNull(PcmAnswerCache.open(mAnswerFile));
+		assertFalse(cacheFile.exists());
+	}
+
+	@Test
+	public void incompleteCacheFileIsDeleted() throws Exception {
+		mPcmAnswerCache.decode(mAnswerFile);
+		File cacheFile = PcmAnswerCache.getCacheFile(mAnswerFile);
+		try (RandomAccessFile truncatedFile = new RandomAccessFile(cacheFile, "rw")) {
+			truncatedFile.setLength(cacheFile.length() / 2);
+		}
+		assertNull(PcmAnswerCache.open(mAnswerFile));
+		assertFalse(cacheFile.exists());
+	}
+
+	@Test
+	public void answersAreNotDecodedWithoutRoomWithinTheStorageQuota() throws Exception {
+		long usedBytes = 0;
+		for (File file : mFolder.getRoot().listFiles()) {
+			usedBytes += file.length();
+		}
+		StorageQuota storageQuota = new StorageQuota(mFolder.getRoot(), usedBytes + mAnswerFile.length() / 2,
+				mQuestionIndex);
+		PcmAnswerCache pcmAnswerCache = new PcmAnswerCache(storageQuota);
+		pcmAnswerCache.decode(mAnswerFile);
+		pcmAnswerCache.stop();
+		storageQuota.stop();
+
+		File cacheFile = PcmAnswerCache.getCacheFile(mAnswerFile);
+		assertFalse(cacheFile.exists());
+		assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+		assertTrue(mAnswerFile.exists()); // (nothing is evicted to make room)
+	}
+
+	@Test
+	public void cpuThrottleRestsInProportionToWork() {
+		PcmAnswerCache.CpuThrottle cpuThrottle = new PcmAnswerCache.CpuThrottle(0.25);
+		assertEquals(30, cpuThrottle.getRestMillis(10000000)); // 10ms of work at 25% of a core needs 30ms rest
+	}
+
+	@Test
+	public void cpuThrottleCarriesOverRestsTooShortToSleep() {
+		PcmAnswerCache.CpuThrottle cpuThrottle = new PcmAnswerCache.CpuThrottle(0.25);
+		long totalRestMillis = 0;
+		for (int i = 0; i < 1000; i++) {
+			long restMillis = cpuThrottle.getRestMillis(100000); // 0.1ms of work each time (0.3ms rest)
+			assertTrue(restMillis <= 1);
+			totalRestMillis += restMillis;
+		}
+		assertEquals(300, totalRestMillis);
+	}
+}
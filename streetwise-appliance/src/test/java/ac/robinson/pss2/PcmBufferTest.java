@@ -0,0 +1,95 @@
+package ac.robinson.pss2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmBufferTest {
+
+	private static byte[] sequence(int start, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (start + i);
+		}
+		return bytes;
+	}
+
+	private static byte[] read(PcmBuffer.Recording recording, int position, int length) {
+		byte[] bytes = new byte[length];
+		assertEquals(length, recording.read(position, bytes, 0, length));
+		return bytes;
+	}
+
+	@Test
+	public void readsAcrossTheEndOfTheBuffer() {
+		PcmBuffer buffer = new PcmBuffer(100);
+		buffer.write(sequence(0, 70), 0, 70);
+		PcmBuffer.Recording recording = buffer.startRecording(0);
+		buffer.write(sequence(70, 60), 0, 60); // wraps around: 30 bytes at the end, then 30 at the start
+
+		assertEquals(60, recording.length());
+		assertArrayEquals(sequence(70, 60), read(recording, 0, 60));
+		assertArrayEquals(sequence(95, 20), read(recording, 25, 20));
+		assertEquals(0, recording.getOverwrittenBytes());
+	}
+
+	@Test
+	public void writesLongerThanTheRemainingSpaceWrap() {
+		PcmBuffer buffer = new PcmBuffer(64);
+		PcmBuffer.Recording recording = buffer.startRecording(0);
+		for (int i = 0; i < 5; i++) {
+			buffer.write(sequence(i * 10, 10), 0, 10);
+		}
+		buffer.write(sequence(50, 14), 0, 14); // exactly fills the buffer
+		assertArrayEquals(sequence(0, 64), read(recording, 0, 64));
+	}
+
+	@Test
+	public void preRollIsLimitedToWhatHasBeenCaptured() {
+		PcmBuffer buffer = new PcmBuffer(100);
+		buffer.write(sequence(0, 30), 0, 30);
+		PcmBuffer.Recording recording = buffer.startRecording(50);
+		assertEquals(30, recording.getPreRollBytes());
+		assertEquals(30, recording.length());
+
+		buffer.write(sequence(30, 90), 0, 90); // the start of the buffer now holds bytes 100-119
+		PcmBuffer.Recording wrapped = buffer.startRecording(50);
+		assertEquals(50, wrapped.getPreRollBytes());
+		assertArrayEquals(sequence(70, 50), read(wrapped, 0, 50));
+	}
+
+	@Test
+	public void stoppedRecordingsCanBeReadWhileTheNextIsCaptured() {
+		PcmBuffer buffer = new PcmBuffer(100);
+		PcmBuffer.Recording first = buffer.startRecording(0);
+		buffer.write(sequence(0, 40), 0, 40);
+		first.stop();
+
+		PcmBuffer.Recording second = buffer.startRecording(10);
+		buffer.write(sequence(40, 30), 0, 30);
+		assertEquals(40, first.length());
+		assertArrayEquals(sequence(0, 40), read(first, 0, 40));
+		assertEquals(40, second.length());
+		assertArrayEquals(sequence(30, 40), read(second, 0, 40));
+	}
+
+	@Test
+	public void readsStopAtTheEndOfTheRecording() {
+		PcmBuffer buffer = new PcmBuffer(100);
+		PcmBuffer.Recording recording = buffer.startRecording(0);
+		buffer.write(sequence(0, 20), 0, 20);
+		byte[] bytes = new byte[50];
+		assertEquals(5, recording.read(15, bytes, 0, 50));
+		assertEquals(0, recording.read(20, bytes, 0, 50));
+	}
+
+	@Test
+	public void overwrittenBytesAreCounted() {
+		PcmBuffer buffer = new PcmBuffer(100);
+		PcmBuffer.Recording recording = buffer.startRecording(0);
+		buffer.write(sequence(0, 80), 0, 80);
+		buffer.write(sequence(80, 45), 0, 45);
+		assertEquals(25, recording.getOverwrittenBytes());
+	}
+}
@@ -0,0 +1,97 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStageTest {
+
+	private PipelineStage mStage;
+	private final CountDownLatch mRunning = new CountDownLatch(1);
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mStage = new PipelineStage("TestStage", 2);
+	}
+
+	@After
+	public void tearDown() {
+		mRelease.countDown();
+		mStage.stop();
+	}
+
+	/**
+	 * Occupy the stage's worker thread until mRelease is counted down
+	 */
+	private void blockWorker() throws InterruptedException {
+		assertTrue(mStage.submit(() -> {
+			mRunning.countDown();
+			try {
+				mRelease.await();
+			} catch (InterruptedException ignored) {
+			}
+		}));
+		assertTrue(mRunning.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void tasksRunInOrderOnOneThread() throws InterruptedException {
+		List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch finished = new CountDownLatch(3);
+		for (int i = 0; i < 3; i++) {
+			int task = i;
+			assertTrue(mStage.submit(() -> {
+				threadNames.add(Thread.currentThread().getName());
+				order.add(task);
+				finished.countDown();
+			}));
+		}
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		assertEquals(Collections.nCopies(3, "TestStage"), threadNames);
+		assertEquals(Arrays.asList(0, 1, 2), order);
+	}
+
+	@Test
+	public void tasksAreRefusedWhenTheQueueIsFull() throws InterruptedException {
+		blockWorker();
+		assertTrue(mStage.submit(() -> {
+		}));
+		assertTrue(mStage.submit(() -> {
+		}));
+		assertEquals(2, mStage.getQueueLength());
+		assertFalse(mStage.submit(() -> {
+		}));
+		assertEquals(2, mStage.getQueueLength());
+	}
+
+	@Test
+	public void queuedTasksRunOnceTheWorkerIsFree() throws InterruptedException {
+		blockWorker();
+		CountDownLatch finished = new CountDownLatch(1);
+		assertTrue(mStage.submit(finished::countDown));
+		assertEquals(1, finished.getCount());
+		mRelease.countDown();
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void tasksAreRefusedOnceStopped() {
+		mStage.stop();
+		assertFalse(mStage.submit(() -> {
+		}));
+	}
+}
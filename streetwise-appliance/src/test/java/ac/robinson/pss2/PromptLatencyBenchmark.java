@@ -0,0 +1,155 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Clip;
+import javax.sound.sampled.Mixer;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from a prompt being requested to its first audio, for the previous approach (a resource lookup,
+ * AudioInputStream and new Clip for every play) and the current one (a prompt pack loaded at startup, played by the
+ * output engine on a line that is already open). Every prompt is played in turn, several times. Playing needs a sound
+ * card, so run on the appliance, giving the speaker mixer's name:
+ * <pre>gradle benchmark -Pbenchmark=PromptLatencyBenchmark [-PbenchmarkArgs="language-code mixer-name"]</pre>
+ * Without a mixer name, nothing is played: only the work done before the first audio is timed (for the previous
+ * approach, decoding the prompt, as Clip.open does; for the current one, looking up its PCM and reading the first
+ * buffer from it).
+ */
+class PromptLatencyBenchmark {
+
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		String languageCode = args.length > 0 ? args[0] : "hi";
+		Mixer mixer = args.length > 1 ? findMixer(args[1]) : null;
+		SoundPlayer.Sound[] sounds = SoundPlayer.Sound.values();
+		File promptDirectory = Files.createTempDirectory("PromptLatencyBenchmark").toFile();
+
+		long buildStartTime = System.nanoTime();
+		PromptPack.load(promptDirectory, languageCode); // the first load builds the pack, as on a new device
+		long buildNanos = System.nanoTime() - buildStartTime;
+		long loadStartTime = System.nanoTime();
+		PromptPack promptPack = PromptPack.load(promptDirectory, languageCode); // every later startup
+		long loadNanos = System.nanoTime() - loadStartTime;
+
+		long[] perPlay = new long[RUNS * sounds.length];
+		long[] preloaded = new long[RUNS * sounds.length];
+		SoundPlayer soundPlayer = mixer != null ? new SoundPlayer(promptDirectory, languageCode, mixer) : null;
+		for (int run = 0; run < RUNS; run++) {
+			for (int i = 0; i < sounds.length; i++) {
+				String resourceName = sounds[i] + "_" + languageCode + ".wav";
+				if (mixer != null) {
+					perPlay[run * sounds.length + i] = playClip(resourceName, mixer);
+					preloaded[run * sounds.length + i] = playPreloaded(soundPlayer, sounds[i]);
+				} else {
+					perPlay[run * sounds.length + i] = decode(resourceName);
+					preloaded[run * sounds.length + i] = lookUp(promptPack, sounds[i].toString());
+				}
+			}
+		}
+
+		System.out.println(String.format("Prompt pack: %d sounds, %d bytes; built in %.1fms, loaded in %.2fms",
+				promptPack.getSoundNames().size(), promptPack.getPcmBytes(), buildNanos / 1e6, loadNanos / 1e6));
+		String measurement = mixer != null ? "from request to first audio" : "before first audio (nothing played)";
+		report("Per-play Clip", measurement, perPlay);
+		report("Preloaded", measurement, preloaded);
+		for (File file : promptDirectory.listFiles()) {
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - it is a temporary directory
+			file.delete();
+		}
+		//noinspection ResultOfMethodCallIgnored // as above
+		promptDirectory.delete();
+	}
+
+	/**
+	 * Play a prompt as SoundPlayer did before prompt packs, waiting until it has finished
+	 *
+	 * @return The time (ns) from the request to the clip's first frame being played
+	 */
+	private static long playClip(String resourceName, Mixer mixer) throws Exception {
+		long requestTime = System.nanoTime();
+		URL soundUrl = PromptLatencyBenchmark.class.getClassLoader().getResource(resourceName);
+		try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundUrl);
+			 Clip clip = AudioSystem.getClip(mixer.getMixerInfo())) {
+			clip.open(audioInputStream);
+			clip.start();
+			while (clip.getLongFramePosition() == 0) {
+				Thread.yield();
+			}
+			long latency = System.nanoTime() - requestTime;
+			clip.drain();
+			return latency;
+		}
+	}
+
+	/**
+	 * Play a prompt from the prompt pack, waiting until it has finished
+	 *
+	 * @return The time (ns) from the request to its first audio being written to the output line
+	 */
+	private static long playPreloaded(SoundPlayer soundPlayer, SoundPlayer.Sound sound) throws Exception {
+		long[] firstAudioTime = new long[1];
+		long requestTime = System.nanoTime();
+		CompletableFuture<Boolean> playback = soundPlayer.playSoundResource(sound,
+				AudioOutputEngine.Priority.INTERACTIVE, () -> firstAudioTime[0] = System.nanoTime());
+		if (!playback.get(30, TimeUnit.SECONDS)) {
+			throw new IOException("Playback of " + sound + " was stopped");
+		}
+		return firstAudioTime[0] - requestTime; // (the future's completion makes the callback's write visible)
+	}
+
+	/**
+	 * @return The time (ns) taken to find and decode a prompt resource, which the previous approach did on every play
+	 */
+	private static long decode(String resourceName) throws Exception {
+		long requestTime = System.nanoTime();
+		URL soundUrl = PromptLatencyBenchmark.class.getClassLoader().getResource(resourceName);
+		try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(soundUrl)) {
+			byte[] buffer = new byte[8192];
+			//noinspection StatementWithEmptyBody
+			while (audioInputStream.read(buffer) > 0) {
+			}
+		}
+		return System.nanoTime() - requestTime;
+	}
+
+	/**
+	 * @return The time (ns) taken to look up a prompt in the pack and read its first transfer buffer
+	 */
+	private static long lookUp(PromptPack promptPack, String name) throws IOException {
+		long requestTime = System.nanoTime();
+		ByteBuffer pcm = promptPack.getSound(name);
+		AudioOutputEngine.Source source = new AudioOutputEngine.PcmSource(pcm);
+		byte[] buffer = new byte[Math.round(AudioOutputEngine.OUTPUT_FORMAT.getFrameRate() / 50) *
+				AudioOutputEngine.OUTPUT_FORMAT.getFrameSize()]; // 20ms, as AudioOutputEngine's transfer buffer
+		if (source.read(buffer, 0, buffer.length) <= 0) {
+			throw new IOException("Empty prompt: " + name);
+		}
+		return System.nanoTime() - requestTime;
+	}
+
+	private static Mixer findMixer(String name) {
+		for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+			if (info.getName().equals(name)) {
+				return AudioSystem.getMixer(info);
+			}
+		}
+		throw new IllegalArgumentException("No mixer named " + name);
+	}
+
+	private static void report(String name, String measurement, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		System.out.println(String.format("%s: median %.3fms %s (min %.3fms, max %.3fms)", name,
+				sorted[sorted.length / 2] / 1e6, measurement, sorted[0] / 1e6, sorted[sorted.length - 1] / 1e6));
+	}
+}
@@ -0,0 +1,148 @@
+package ac.robinson.pss2;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PromptPackTest {
+
+	private static final String LANGUAGE_CODE = "hi";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mPromptDirectory;
+	private File mPackFile;
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mPromptDirectory = mFolder.getRoot();
+		mPackFile = new File(mPromptDirectory, LANGUAGE_CODE + ".pack");
+	}
+
+	private static byte[] getBytes(ByteBuffer pcm) {
+		byte[] bytes = new byte[pcm.remaining()];
+		pcm.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Write a prompt file for the language, in a different format to the output engine's, so it has to be converted
+	 *
+	 * @return The PCM the prompt should be converted to
+	 */
+	private byte[] writePrompt(String name, int value) throws IOException {
+		File languageDirectory = new File(mPromptDirectory, LANGUAGE_CODE);
+		assertTrue(languageDirectory.isDirectory() || languageDirectory.mkdirs());
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false); // (stereo, so has to be mixed down)
+		byte[] pcm = new byte[44100 / 10 * format.getFrameSize()]; // 100ms
+		for (int i = 0; i < pcm.length; i += 2) {
+			pcm[i] = (byte) value;
+		}
+		try (AudioInputStream audioInputStream = new AudioInputStream(new ByteArrayInputStream(pcm), format,
+				pcm.length / format.getFrameSize())) {
+			AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, new File(languageDirectory, name + ".wav"));
+		}
+		byte[] expectedPcm = new byte[44100 / 10 * AudioOutputEngine.OUTPUT_FORMAT.getFrameSize()];
+		for (int i = 0; i < expectedPcm.length; i += 2) {
+			expectedPcm[i] = (byte) value;
+		}
+		return expectedPcm;
+	}
+
+	@Test
+	public void firstLoadBuildsAPackOfEveryBundledPrompt() throws Exception {
+		assertTrue(PromptPack.isAvailable(mPromptDirectory, LANGUAGE_CODE));
+		PromptPack promptPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertTrue(mPackFile.exists());
+		assertEquals(LANGUAGE_CODE, promptPack.getLanguageCode());
+
+		long pcmBytes = 0;
+		for (SoundPlayer.Sound sound : SoundPlayer.Sound.values()) {
+			ByteBuffer pcm = promptPack.getSound(sound.toString());
+			assertTrue(sound + " is missing", pcm != null && pcm.remaining() > 0);
+			assertEquals(0, pcm.remaining() % AudioOutputEngine.OUTPUT_FORMAT.getFrameSize());
+			pcmBytes += pcm.remaining();
+		}
+		assertEquals(SoundPlayer.Sound.values().length, promptPack.getSoundNames().size());
+		assertEquals(pcmBytes, promptPack.getPcmBytes());
+		assertNull(promptPack.getSound("not_a_prompt"));
+	}
+
+	@Test
+	public void laterLoadsOpenTheSamePackWithoutRebuilding() throws Exception {
+		PromptPack builtPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertTrue(mPackFile.setLastModified(mPackFile.lastModified() + 10000)); // (so a rebuild would be visible)
+		long packTime = mPackFile.lastModified();
+
+		PromptPack loadedPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertEquals(packTime, mPackFile.lastModified());
+		assertEquals(builtPack.getSoundNames(), loadedPack.getSoundNames());
+		for (String name : builtPack.getSoundNames()) {
+			assertArrayEquals(getBytes(builtPack.getSound(name)), getBytes(loadedPack.getSound(name)));
+		}
+	}
+
+	@Test
+	public void promptFilesReplaceAndAddToBundledPrompts() throws Exception {
+		byte[] start = writePrompt(SoundPlayer.Sound.start.toString(), 11);
+		byte[] extra = writePrompt("extra_prompt", 22);
+
+		PromptPack promptPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertArrayEquals(start, getBytes(promptPack.getSound(SoundPlayer.Sound.start.toString())));
+		assertArrayEquals(extra, getBytes(promptPack.getSound("extra_prompt")));
+		assertEquals(SoundPlayer.Sound.values().length + 1, promptPack.getSoundNames().size());
+	}
+
+	@Test
+	public void packIsRebuiltWhenAPromptFileIsNewer() throws Exception {
+		PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		byte[] extra = writePrompt("extra_prompt", 33);
+		File promptFile = new File(new File(mPromptDirectory, LANGUAGE_CODE), "extra_prompt.wav");
+		assertTrue(promptFile.setLastModified(mPackFile.lastModified() + 10000));
+
+		PromptPack promptPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertArrayEquals(extra, getBytes(promptPack.getSound("extra_prompt")));
+	}
+
+	@Test
+	public void invalidPackIsRebuilt() throws Exception {
+		PromptPack builtPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		byte[] start = getBytes(builtPack.getSound(SoundPlayer.Sound.start.toString()));
+		try (RandomAccessFile packFile = new RandomAccessFile(mPackFile, "rw")) {
+			packFile.seek(8);
+			packFile.writeInt(16000); // a pack built for a different output format
+		}
+
+		PromptPack promptPack = PromptPack.load(mPromptDirectory, LANGUAGE_CODE);
+		assertArrayEquals(start, getBytes(promptPack.getSound(SoundPlayer.Sound.start.toString())));
+	}
+
+	@Test
+	public void languagesWithoutPromptsAreNotAvailable() {
+		assertFalse(PromptPack.isAvailable(mPromptDirectory, "xx"));
+	}
+
+	@Test(expected = IOException.class)
+	public void languagesWithoutPromptsCannotBeLoaded() throws Exception {
+		PromptPack.load(mPromptDirectory, "xx");
+	}
+}
@@ -0,0 +1,187 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuestionIndexTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private QuestionIndex mIndex;
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mDirectory = mFolder.getRoot();
+	}
+
+	@After
+	public void tearDown() {
+		if (mIndex != null) {
+			mIndex.close();
+		}
+	}
+
+	private void reload() {
+		if (mIndex != null) {
+			mIndex.close();
+		}
+		mIndex = new QuestionIndex(mDirectory);
+	}
+
+	private File createFile(String name) throws IOException {
+		File file = new File(mDirectory, name);
+		Files.write(file.toPath(), new byte[1]);
+		return file;
+	}
+
+	private static File questionFile(int questionId) {
+		return new File(questionId + "_question_1_2019-01-01_10-00-00.mp3");
+	}
+
+	private static File answerFile(int questionId) {
+		return new File(questionId + "_answer_1_2019-01-02_10-00-00.mp3");
+	}
+
+	private List<String> readJournal() throws IOException {
+		return Files.readAllLines(new File(mDirectory, "questions.index").toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void indexIsBuiltFromTheDirectoryTheFirstTime() throws IOException {
+		File question1 = createFile(questionFile(1).getName());
+		File answer1 = createFile(answerFile(1).getName());
+		File question2 = createFile(questionFile(2).getName());
+		createFile(questionFile(3).getName() + ".1514800800000.old"); // renamed aside, so no longer indexed
+		reload();
+
+		assertEquals(question1, mIndex.getQuestionFile(1));
+		assertEquals(answer1, mIndex.getAnswerFile(1));
+		assertEquals(question2, mIndex.getQuestionFile(2));
+		assertTrue(mIndex.isAwaitingAnswer(2));
+		assertNull(mIndex.getQuestionFile(3));
+		assertEquals(3, readJournal().size()); // header, then one line per question
+	}
+
+	@Test
+	public void changesAreReplayedFromTheJournal() throws IOException {
+		reload();
+		File question = createFile(questionFile(1).getName());
+		mIndex.putQuestion(1, question);
+		mIndex.startDownload(1);
+		assertFalse(mIndex.isAwaitingAnswer(1));
+		File answer = createFile(answerFile(1).getName());
+		mIndex.putAnswer(1, answer);
+		mIndex.putQuestion(2, createFile(questionFile(2).getName()));
+		mIndex.startDownload(2); // downloads are only tracked in memory
+
+		reload();
+		assertEquals(question, mIndex.getQuestionFile(1));
+		assertEquals(answer, mIndex.getAnswerFile(1)); // the later line replaces the earlier one
+		assertTrue(mIndex.isAwaitingAnswer(2));
+	}
+
+	@Test
+	public void partlyWrittenLineIsIgnored() throws IOException {
+		reload();
+		File question = createFile(questionFile(1).getName());
+		mIndex.putQuestion(1, question);
+		mIndex.close();
+		try (FileOutputStream journal = new FileOutputStream(new File(mDirectory, "questions.index"), true)) {
+			journal.write("2\tASK".getBytes(StandardCharsets.UTF_8)); // e.g., power lost while writing
+		}
+
+		reload();
+		assertEquals(question, mIndex.getQuestionFile(1));
+		assertNull(mIndex.getQuestionFile(2));
+		File question2 = createFile(questionFile(2).getName());
+		mIndex.putQuestion(2, question2); // the journal was rewritten, so this isn't appended to the partial line
+
+		reload();
+		assertEquals(question, mIndex.getQuestionFile(1));
+		assertEquals(question2, mIndex.getQuestionFile(2));
+	}
+
+	@Test
+	public void invalidHeaderRebuildsFromTheDirectory() throws IOException {
+		File question = createFile(questionFile(1).getName());
+		Files.write(new File(mDirectory, "questions.index").toPath(), "PSQI 1\n".getBytes(StandardCharsets.UTF_8));
+		reload();
+		assertEquals(question, mIndex.getQuestionFile(1));
+		assertEquals("PSQI 2", readJournal().get(0));
+	}
+
+	@Test
+	public void journalIsCompactedWhenItGrows() throws IOException {
+		reload();
+		File question = createFile(questionFile(1).getName());
+		File answer = createFile(answerFile(1).getName());
+		mIndex.putQuestion(1, question);
+		mIndex.putAnswer(1, answer);
+		assertEquals(3, readJournal().size());
+		for (int i = 0; i < 10; i++) {
+			mIndex.recordAccess(1);
+			assertTrue(readJournal().size() <= 3); // never more than two lines per question
+		}
+
+		reload();
+		assertEquals(question, mIndex.getQuestionFile(1));
+		assertEquals(answer, mIndex.getAnswerFile(1));
+	}
+
+	@Test
+	public void removedAnswerCanBeDownloadedAgain() throws IOException {
+		reload();
+		mIndex.putQuestion(1, createFile(questionFile(1).getName()));
+		File answer = createFile(answerFile(1).getName());
+		mIndex.putAnswer(1, answer);
+		assertFalse(mIndex.isAwaitingAnswer(1));
+
+		assertTrue(answer.delete());
+		assertNull(mIndex.getAnswerFile(1));
+		assertTrue(mIndex.isAwaitingAnswer(1));
+		reload();
+		assertTrue(mIndex.isAwaitingAnswer(1));
+	}
+
+	@Test
+	public void leastAccessedAnswersAreEvictedFirst() throws IOException {
+		reload();
+		for (int questionId = 1; questionId <= 3; questionId++) {
+			mIndex.putQuestion(questionId, createFile(questionFile(questionId).getName()));
+			mIndex.putAnswer(questionId, createFile(answerFile(questionId).getName()));
+		}
+		mIndex.recordAccess(3);
+		mIndex.recordAccess(3);
+		mIndex.recordAccess(1);
+		mIndex.startDownload(2); // being downloaded again, so can't be evicted
+		assertEquals(Arrays.asList(1, 3), mIndex.getEvictionOrder());
+
+		List<File> files = mIndex.evict(1);
+		assertEquals(Arrays.asList(new File(mDirectory, questionFile(1).getName()), new File(mDirectory,
+				answerFile(1).getName())), files);
+		assertNull(mIndex.getAnswerFile(1));
+		assertNull(mIndex.evict(1));
+		reload();
+		assertNull(mIndex.getAnswerFile(1));
+		assertFalse(mIndex.isAwaitingAnswer(1)); // evicted answers aren't downloaded by the background check
+	}
+}
@@ -0,0 +1,119 @@
+package ac.robinson.pss2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the time taken to find a question's answer file, by scanning the directory (as Pss2 did before
+ * QuestionIndex) and by looking it up in the index, in a directory containing the files that build up over time on a
+ * busy device: for each question, its recording, its answer, the answer's pre-decoded PCM and an older question that
+ * has been renamed aside. Also measures building the index from the directory (the first run after an upgrade) and
+ * loading it from its journal (every later startup). Run with:
+ * <pre>gradle benchmark -Pbenchmark=QuestionLookupBenchmark [-PbenchmarkArgs="question-count"]</pre>
+ * By default, 2500 questions (10,000 files) are created.
+ */
+class QuestionLookupBenchmark {
+
+	private static final int LOOKUPS = 200;
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		int questionCount = args.length > 0 ? Integer.parseInt(args[0]) : 2500;
+		File directory = Files.createTempDirectory("QuestionLookupBenchmark").toFile();
+		createFiles(directory, questionCount);
+
+		long buildStartTime = System.nanoTime();
+		QuestionIndex questionIndex = new QuestionIndex(directory);
+		long buildNanos = System.nanoTime() - buildStartTime;
+		questionIndex.close();
+		long loadStartTime = System.nanoTime();
+		questionIndex = new QuestionIndex(directory);
+		long loadNanos = System.nanoTime() - loadStartTime;
+
+		Random random = new Random(0);
+		int[] questionIds = new int[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			questionIds[i] = 1 + random.nextInt(questionCount);
+		}
+		for (int i = 0; i < 10; i++) { // warm-up
+			scan(directory, Pss2.ANSWER_FILE_PATTERN, questionIds[i]);
+			questionIndex.getAnswerFile(questionIds[i]);
+		}
+
+		long[] scanned = new long[LOOKUPS];
+		long[] indexed = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			long scanStartTime = System.nanoTime();
+			File scannedFile = scan(directory, Pss2.ANSWER_FILE_PATTERN, questionIds[i]);
+			scanned[i] = System.nanoTime() - scanStartTime;
+			long indexStartTime = System.nanoTime();
+			File indexedFile = questionIndex.getAnswerFile(questionIds[i]);
+			indexed[i] = System.nanoTime() - indexStartTime;
+			if (scannedFile == null || !scannedFile.equals(indexedFile)) {
+				throw new IOException("Lookups of question " + questionIds[i] + " differ: " + scannedFile + ", " +
+						indexedFile);
+			}
+		}
+		questionIndex.close();
+
+		System.out.println(String.format("%d files; index built from the directory in %.1fms, loaded in %.1fms",
+				directory.list().length, buildNanos / 1e6, loadNanos / 1e6));
+		report("Directory scan", scanned);
+		report("Index", indexed);
+		for (File file : directory.listFiles()) {
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - it is a temporary directory
+			file.delete();
+		}
+		//noinspection ResultOfMethodCallIgnored // as above
+		directory.delete();
+	}
+
+	private static void createFiles(File directory, int questionCount) throws IOException {
+		for (int questionId = 1; questionId <= questionCount; questionId++) {
+			Files.write(new File(directory, questionId + "_question_1_2019-01-01_10-00-00.mp3").toPath(),
+					new byte[1]);
+			File answerFile = new File(directory, questionId + "_answer_1_2019-01-02_10-00-00.mp3");
+			Files.write(answerFile.toPath(), new byte[1]);
+			Files.write(new File(directory, answerFile.getName() + ".pcm").toPath(), new byte[1]);
+			Files.write(new File(directory, questionId + "_question_1_2018-01-01_10-00-00.mp3.1514800800000.old")
+					.toPath(), new byte[1]);
+		}
+	}
+
+	/**
+	 * Find a file named according to our system, as Pss2.getLocalAudioFile did before QuestionIndex
+	 */
+	private static File scan(File directory, Pattern pattern, int localId) {
+		File[] fileList = directory.listFiles();
+		if (fileList != null) {
+			for (File file : fileList) {
+				String fileName = file.getName();
+				if (file.isFile()) {
+					Matcher matcher = pattern.matcher(fileName);
+					if (matcher.matches()) {
+						try {
+							int fileNumber = Integer.parseInt(matcher.group(1));
+							if (fileNumber == localId) {
+								return file;
+							}
+						} catch (Exception ignored) {
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void report(String name, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		System.out.println(String.format("%s: median %.3fms per lookup (min %.3fms, max %.3fms)", name,
+				sorted[sorted.length / 2] / 1e6, sorted[0] / 1e6, sorted[sorted.length - 1] / 1e6));
+	}
+}
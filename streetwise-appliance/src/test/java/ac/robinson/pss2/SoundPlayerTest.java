@@ -0,0 +1,67 @@
+package ac.robinson.pss2;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SoundPlayerTest {
+
+	private static final String LANGUAGE_CODE = "hi";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+	}
+
+	private byte[] getPcm(SoundPlayer.Sound... sounds) throws Exception {
+		PromptPack promptPack = PromptPack.load(mFolder.getRoot(), LANGUAGE_CODE);
+		ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+		for (SoundPlayer.Sound sound : sounds) {
+			ByteBuffer soundPcm = promptPack.getSound(sound.toString());
+			byte[] soundBytes = new byte[soundPcm.remaining()];
+			soundPcm.get(soundBytes);
+			pcm.write(soundBytes);
+		}
+		return pcm.toByteArray();
+	}
+
+	@Test
+	public void digitsAreAnnouncedInOrder() {
+		assertEquals(Arrays.asList(SoundPlayer.Sound.number_4, SoundPlayer.Sound.number_0, SoundPlayer.Sound.number_7,
+				SoundPlayer.Sound.number_4), SoundPlayer.getSoundsForDigits(4074));
+		assertEquals(Arrays.asList(SoundPlayer.Sound.number_0), SoundPlayer.getSoundsForDigits(0));
+	}
+
+	@Test
+	public void sequenceIsWrittenAsOneContinuousStream() throws Exception {
+		TestMixer mixer = new TestMixer(false);
+		SoundPlayer soundPlayer = new SoundPlayer(mFolder.getRoot(), LANGUAGE_CODE, mixer);
+		List<SoundPlayer.Sound> sequence = Arrays.asList(SoundPlayer.Sound.question_number_allocated,
+				SoundPlayer.Sound.number_1, SoundPlayer.Sound.number_2, SoundPlayer.Sound.question_received_hint);
+
+		CompletableFuture<Boolean> playback = soundPlayer.playSoundSequence(sequence,
+				AudioOutputEngine.Priority.NORMAL);
+		assertTrue(playback.get(10, TimeUnit.SECONDS));
+
+		// every segment is written, back to back, and the line is only drained once the whole sequence is written
+		TestMixer.TestLine line = mixer.getLine();
+		assertArrayEquals(getPcm(sequence.toArray(new SoundPlayer.Sound[0])), line.getWritten());
+		assertEquals(1, line.getDrainCount());
+		assertEquals(0, line.getFlushCount());
+	}
+}
@@ -0,0 +1,119 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeechTrimmingTest {
+
+	private static final int BUFFER_BYTES = TestAudio.DISPATCHER_BUFFER_BYTES;
+	private static final int MARGIN_BYTES = Pss2.TRIM_MARGIN_MS * TestAudio.BYTES_PER_MS;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private Mp3Encoder mEncoder;
+	private PcmBuffer mPcmBuffer;
+	private PcmBuffer.Recording mRecording;
+	private EncodingProcessor mEncodingProcessor;
+	private File mOutputFile;
+
+	@Before
+	public void setUp() throws Exception {
+		Pss2.logToConsoleOnly();
+		mEncoder = new Mp3Encoder(TestAudio.FORMAT);
+		mPcmBuffer = new PcmBuffer(1024 * 1024);
+		mRecording = mPcmBuffer.startRecording(0);
+		mOutputFile = mFolder.newFile("question.mp3");
+		mEncodingProcessor = new EncodingProcessor(mEncoder, mRecording, mOutputFile);
+	}
+
+	@After
+	public void tearDown() {
+		mEncoder.close();
+	}
+
+	/**
+	 * Capture the given number of buffers, as the recorder does, marking those from speechStart (inclusive) to
+	 * speechEnd (exclusive) as speech
+	 */
+	private void record(int bufferCount, int speechStart, int speechEnd) {
+		byte[] buffer = new byte[BUFFER_BYTES];
+		for (int i = 0; i < bufferCount; i++) {
+			mPcmBuffer.write(buffer, 0, buffer.length);
+			if (i >= speechStart && i < speechEnd) {
+				SilenceDetectingAudioRecorder.includeSpeech(mEncodingProcessor, mRecording.length(), BUFFER_BYTES,
+						MARGIN_BYTES, i == 0);
+			}
+			mEncodingProcessor.process(null);
+		}
+	}
+
+	@Test
+	public void nothingIsEncodedBeforeSpeech() {
+		record(50, 50, 50);
+		assertFalse(mEncodingProcessor.isEncodeRangeSet());
+		assertEquals(0, mEncodingProcessor.getEncodedPosition());
+	}
+
+	@Test
+	public void silenceIsTrimmedToTheMarginEitherSideOfSpeech() throws Exception {
+		record(200, 60, 100);
+		assertEquals(60 * BUFFER_BYTES - MARGIN_BYTES, mEncodingProcessor.getEncodeStart());
+
+		mRecording.stop();
+		mEncodingProcessor.finish();
+		assertEquals(100 * BUFFER_BYTES + MARGIN_BYTES, mEncodingProcessor.getEncodedPosition());
+		assertTrue(mOutputFile.length() > 0);
+	}
+
+	@Test
+	public void theEncodedRangeOnlyGrows() throws Exception {
+		record(60, 20, 30);
+		record(60, 30, 40); // a second burst of speech, which extends the end but doesn't move the start
+		assertEquals(20 * BUFFER_BYTES - MARGIN_BYTES, mEncodingProcessor.getEncodeStart());
+
+		mRecording.stop();
+		mEncodingProcessor.finish();
+		assertEquals(100 * BUFFER_BYTES + MARGIN_BYTES, mEncodingProcessor.getEncodedPosition());
+	}
+
+	@Test
+	public void speechNearTheStartKeepsAllLeadingAudio() {
+		record(20, 5, 10); // the margin before speech would start before the recording
+		assertEquals(0, mEncodingProcessor.getEncodeStart());
+	}
+
+	@Test
+	public void speechInTheFirstBufferKeepsAllOfThePreRoll() throws Exception {
+		PcmBuffer pcmBuffer = new PcmBuffer(1024 * 1024);
+		pcmBuffer.write(new byte[100 * BUFFER_BYTES], 0, 100 * BUFFER_BYTES);
+		PcmBuffer.Recording recording = pcmBuffer.startRecording(40 * BUFFER_BYTES);
+		pcmBuffer.write(new byte[BUFFER_BYTES], 0, BUFFER_BYTES);
+
+		EncodingProcessor encodingProcessor = new EncodingProcessor(mEncoder, recording,
+				mFolder.newFile("pre-roll.mp3"));
+		SilenceDetectingAudioRecorder.includeSpeech(encodingProcessor, recording.length(), BUFFER_BYTES,
+				MARGIN_BYTES, true);
+		recording.stop();
+		encodingProcessor.finish();
+		assertEquals(0, encodingProcessor.getEncodeStart());
+		assertEquals(recording.getPreRollBytes() + BUFFER_BYTES, encodingProcessor.getEncodedPosition());
+	}
+
+	@Test
+	public void theTrailingMarginIsLimitedToWhatWasRecorded() throws Exception {
+		record(100, 40, 99);
+		mRecording.stop();
+		mEncodingProcessor.finish();
+		assertEquals(100 * BUFFER_BYTES, mEncodingProcessor.getEncodedPosition());
+	}
+}
@@ -0,0 +1,169 @@
+package ac.robinson.pss2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StorageQuotaTest {
+
+	private static final int FILE_SIZE = 4000; // every file created is this size, so evictions are whole files
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private QuestionIndex mQuestionIndex;
+	private StorageQuota mStorageQuota;
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+		mDirectory = mFolder.getRoot();
+		mQuestionIndex = new QuestionIndex(mDirectory);
+	}
+
+	@After
+	public void tearDown() {
+		if (mStorageQuota != null) {
+			mStorageQuota.stop();
+		}
+		mQuestionIndex.close();
+	}
+
+	private File createFile(String name) throws IOException {
+		File file = new File(mDirectory, name);
+		Files.write(file.toPath(), new byte[FILE_SIZE]);
+		return file;
+	}
+
+	private long getUsedBytes() {
+		long usedBytes = 0;
+		for (File file : mDirectory.listFiles()) {
+			usedBytes += file.length();
+		}
+		return usedBytes;
+	}
+
+	/**
+	 * Create the quota with a budget that means the next check has to free the given number of bytes (a multiple of
+	 * FILE_SIZE) - checks evict down to 90% of the budget, so the budget is set half a file above that point
+	 */
+	private void createQuota(long bytesToFree) {
+		mStorageQuota = new StorageQuota(mDirectory, (long) ((getUsedBytes() - bytesToFree + FILE_SIZE / 2) / 0.9),
+				mQuestionIndex);
+	}
+
+	/**
+	 * Add an answered question, with its question, answer and PCM files
+	 *
+	 * @return The answer file
+	 */
+	private File createAnsweredQuestion(int questionId) throws IOException {
+		mQuestionIndex.putQuestion(questionId, createFile(questionId + "_question_1_2019-01-01_10-00-00.mp3"));
+		File answerFile = createFile(questionId + "_answer.m4a");
+		createFile(PcmAnswerCache.getCacheFile(answerFile).getName());
+		mQuestionIndex.putAnswer(questionId, answerFile);
+		return answerFile;
+	}
+
+	@Test
+	public void nothingIsEvictedWithinTheBudget() throws IOException {
+		File answerFile = createAnsweredQuestion(1);
+		mStorageQuota = new StorageQuota(mDirectory, getUsedBytes() + FILE_SIZE, mQuestionIndex);
+		mStorageQuota.check();
+		assertTrue(answerFile.exists());
+		assertEquals(0, mStorageQuota.getEvictedBytes());
+	}
+
+	@Test
+	public void oldFilesAreEvictedFirstOldestFirst() throws IOException {
+		File answerFile = createAnsweredQuestion(1);
+		long time = System.currentTimeMillis();
+		File[] oldFiles = new File[3];
+		for (int i = 0; i < oldFiles.length; i++) {
+			oldFiles[i] = createFile((i + 2) + "_question_1_2019-01-01_10-00-00.mp3.old");
+			assertTrue(oldFiles[i].setLastModified(time - (i + 1) * 60000)); // the last file created is the oldest
+		}
+
+		createQuota(2 * FILE_SIZE);
+		mStorageQuota.check();
+		assertTrue(oldFiles[0].exists());
+		assertFalse(oldFiles[1].exists());
+		assertFalse(oldFiles[2].exists());
+		assertTrue(answerFile.exists()); // no questions are evicted while old files remain
+		assertEquals(2 * FILE_SIZE, mStorageQuota.getEvictedBytes());
+	}
+
+	@Test
+	public void answeredQuestionsAreEvictedInTheIndexOrder() throws IOException {
+		File keptAnswerFile = createAnsweredQuestion(1);
+		File evictedAnswerFile = createAnsweredQuestion(2);
+		mQuestionIndex.recordAccess(1); // more valuable than question 2, which is evicted first
+
+		createQuota(3 * FILE_SIZE);
+		mStorageQuota.check();
+		assertTrue(keptAnswerFile.exists());
+		assertTrue(PcmAnswerCache.getCacheFile(keptAnswerFile).exists());
+		assertNotNull(mQuestionIndex.getQuestionFile(1));
+		assertFalse(evictedAnswerFile.exists());
+		assertFalse(PcmAnswerCache.getCacheFile(evictedAnswerFile).exists());
+		assertNull(mQuestionIndex.getQuestionFile(2));
+		assertNull(mQuestionIndex.getAnswerFile(2));
+		assertEquals(3 * FILE_SIZE, mStorageQuota.getEvictedBytes());
+	}
+
+	@Test
+	public void unansweredQuestionsDownloadsLogsAndTheIndexAreNeverEvicted() throws IOException {
+		File questionFile = createFile("1_question_1_2019-01-01_10-00-00.mp3");
+		mQuestionIndex.putQuestion(1, questionFile);
+		File downloadingAnswerFile = createAnsweredQuestion(2);
+		mQuestionIndex.startDownload(2); // e.g., after a new answer has been uploaded
+		File logFile = createFile("pss2.log");
+
+		mStorageQuota = new StorageQuota(mDirectory, 1, mQuestionIndex);
+		mStorageQuota.check();
+		assertTrue(questionFile.exists());
+		assertTrue(downloadingAnswerFile.exists());
+		assertTrue(logFile.exists());
+		assertTrue(new File(mDirectory, "questions.index").exists());
+		assertEquals(0, mStorageQuota.getEvictedBytes());
+	}
+
+	@Test
+	public void optionalFilesAreOnlyAddedWithinTheBudget() throws IOException {
+		createAnsweredQuestion(1);
+		mStorageQuota = new StorageQuota(mDirectory, getUsedBytes() + FILE_SIZE, mQuestionIndex);
+		assertTrue(mStorageQuota.canAdd(FILE_SIZE));
+		assertFalse(mStorageQuota.canAdd(FILE_SIZE + 1));
+
+		mStorageQuota.recordAdded(FILE_SIZE / 2); // counted until the next check, even though it was never written
+		assertTrue(mStorageQuota.canAdd(FILE_SIZE / 2));
+		assertFalse(mStorageQuota.canAdd(FILE_SIZE / 2 + 1));
+
+		mStorageQuota.check(); // recounts what is actually there
+		assertTrue(mStorageQuota.canAdd(FILE_SIZE));
+		assertEquals(0, mStorageQuota.getEvictedBytes());
+	}
+
+	@Test
+	public void hitRateCountsAnswersPlayedFromLocalStorage() {
+		mStorageQuota = new StorageQuota(mDirectory, FILE_SIZE, mQuestionIndex);
+		assertEquals(0, mStorageQuota.getHitRate(), 0);
+		mStorageQuota.recordAnswerRequest(true);
+		mStorageQuota.recordAnswerRequest(true);
+		mStorageQuota.recordAnswerRequest(false);
+		assertEquals(2 / 3d, mStorageQuota.getHitRate(), 0.0001);
+	}
+}
@@ -0,0 +1,107 @@
+package ac.robinson.pss2;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StreamingDecoderTest {
+
+	private static final AudioFormat OUTPUT_FORMAT = AudioOutputEngine.OUTPUT_FORMAT;
+	private static final int OUTPUT_BYTES_PER_MS = Math.round(OUTPUT_FORMAT.getFrameRate() / 1000) *
+			OUTPUT_FORMAT.getFrameSize();
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+	}
+
+	private File writeWav(String name, byte[] pcm, AudioFormat format) throws Exception {
+		File file = mFolder.newFile(name);
+		try (AudioInputStream audioStream = new AudioInputStream(new ByteArrayInputStream(pcm), format,
+				pcm.length / format.getFrameSize())) {
+			AudioSystem.write(audioStream, AudioFileFormat.Type.WAVE, file);
+		}
+		return file;
+	}
+
+	private File writeMp3(byte[] pcm) throws Exception {
+		File file = mFolder.newFile("answer.mp3");
+		Mp3Encoder codec = new Mp3Encoder(TestAudio.FORMAT);
+		try {
+			AudioCodec.Stream stream = codec.startStream(file);
+			stream.encode(pcm, 0, pcm.length);
+			stream.finish();
+		} finally {
+			codec.close();
+		}
+		return file;
+	}
+
+	private static byte[] readAll(AudioOutputEngine.Source source) throws Exception {
+		ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4410];
+		try {
+			for (int bytesRead; (bytesRead = source.read(buffer, 0, buffer.length)) >= 0; ) {
+				assertEquals(0, bytesRead % OUTPUT_FORMAT.getFrameSize());
+				pcm.write(buffer, 0, bytesRead);
+			}
+		} finally {
+			source.close();
+		}
+		return pcm.toByteArray();
+	}
+
+	@Test
+	public void audioInTheOutputFormatIsPassedThroughExactly() throws Exception {
+		byte[] pcm = new byte[OUTPUT_BYTES_PER_MS * 500];
+		for (int i = 0; i < pcm.length; i++) {
+			pcm[i] = (byte) (i * 31);
+		}
+		assertArrayEquals(pcm, readAll(new StreamingDecoder(writeWav("answer.wav", pcm, OUTPUT_FORMAT))));
+	}
+
+	@Test
+	public void wavIsConvertedToTheOutputFormat() throws Exception {
+		byte[] pcm = TestAudio.speech(1000, 200);
+		byte[] output = readAll(new StreamingDecoder(writeWav("answer.wav", pcm, TestAudio.FORMAT)));
+		assertEquals(1200 * OUTPUT_BYTES_PER_MS, output.length, 10 * OUTPUT_BYTES_PER_MS);
+	}
+
+	@Test
+	public void mp3IsDecodedToTheOutputFormat() throws Exception {
+		byte[] pcm = TestAudio.speech(2000, 0);
+		byte[] output = readAll(new StreamingDecoder(writeMp3(pcm)));
+
+		// the encoder adds some padding, but the duration should be (almost) the same
+		assertEquals(2000 * OUTPUT_BYTES_PER_MS, output.length, 100 * OUTPUT_BYTES_PER_MS);
+	}
+
+	@Test(expected = UnsupportedAudioFileException.class)
+	public void unsupportedFilesAreReportedWhenOpened() throws Exception {
+		File file = mFolder.newFile("answer.txt");
+		try (FileOutputStream outputStream = new FileOutputStream(file)) {
+			for (int i = 0; i < 100; i++) {
+				outputStream.write("This is not an answer. ".getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		new StreamingDecoder(file);
+	}
+}
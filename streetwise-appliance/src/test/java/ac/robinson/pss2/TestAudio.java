@@ -0,0 +1,81 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Audio for tests and benchmarks, in the format questions are recorded in (32kHz 16-bit signed little-endian mono)
+ */
+class TestAudio {
+
+	static final AudioFormat FORMAT = new AudioFormat(32000, 16, 1, true, false);
+	static final int BYTES_PER_MS = 64;
+	static final int DISPATCHER_BUFFER_BYTES = 512 * 2; // as captured by SilenceDetectingAudioRecorder
+
+	/**
+	 * @return Speech-like audio: a voiced tone with syllable-rate amplitude changes for speechMs, then silence (low
+	 * level noise only) for silenceMs. Always the same for the same arguments.
+	 */
+	static byte[] speech(int speechMs, int silenceMs) {
+		Random random = new Random(speechMs * 31L + silenceMs);
+		int speechSamples = speechMs * BYTES_PER_MS / 2;
+		int totalSamples = (speechMs + silenceMs) * BYTES_PER_MS / 2;
+		byte[] pcm = new byte[totalSamples * 2];
+		for (int i = 0; i < totalSamples; i++) {
+			double t = i / (double) FORMAT.getSampleRate();
+			double sample = random.nextGaussian() * 0.002; // background noise
+			if (i < speechSamples) {
+				double syllable = 0.55 + 0.45 * Math.sin(2 * Math.PI * 4 * t); // ~4 syllables per second
+				for (int harmonic = 1; harmonic <= 8; harmonic++) {
+					sample += syllable * 0.3 / harmonic * Math.sin(2 * Math.PI * 140 * harmonic * t);
+				}
+			}
+			writeSample(pcm, i, sample);
+		}
+		return pcm;
+	}
+
+	/**
+	 * @return Steady noise at the given level (in dB relative to full scale, e.g., -50), as a stand-in for background
+	 * noise in a busy street
+	 */
+	static byte[] noise(int durationMs, double levelDb, long seed) {
+		Random random = new Random(seed);
+		double amplitude = Math.pow(10, levelDb / 20);
+		int samples = durationMs * BYTES_PER_MS / 2;
+		byte[] pcm = new byte[samples * 2];
+		for (int i = 0; i < samples; i++) {
+			writeSample(pcm, i, random.nextGaussian() * amplitude);
+		}
+		return pcm;
+	}
+
+	/**
+	 * @return The audio in the given file, converted to the recording format if needed
+	 */
+	static byte[] read(File file) throws IOException {
+		try (AudioInputStream source = AudioSystem.getAudioInputStream(file);
+			 AudioInputStream converted = AudioSystem.getAudioInputStream(FORMAT, source)) {
+			ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int read; (read = converted.read(buffer)) >= 0; ) {
+				pcm.write(buffer, 0, read);
+			}
+			return pcm.toByteArray();
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException("Unsupported audio file: " + file, e);
+		}
+	}
+
+	private static void writeSample(byte[] pcm, int index, double sample) {
+		int value = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32767)));
+		pcm[2 * index] = (byte) value;
+		pcm[2 * index + 1] = (byte) (value >> 8);
+	}
+}
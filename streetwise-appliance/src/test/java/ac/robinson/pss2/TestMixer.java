@@ -0,0 +1,324 @@
+package ac.robinson.pss2;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mixer for tests of audio output, whose lines keep everything written to them instead of playing it. Optionally,
+ * writes take as long as the audio would take to play, so that playback can be interrupted part-way through.
+ */
+class TestMixer implements Mixer {
+
+	private final boolean mRealTime;
+	private final List<TestLine> mLines = new ArrayList<>();
+
+	/**
+	 * @param realTime Whether writes should block for the duration of the audio written, as a real line would (once
+	 *                 its buffer is full)
+	 */
+	TestMixer(boolean realTime) {
+		mRealTime = realTime;
+	}
+
+	/**
+	 * @return Every line opened from this mixer, in order
+	 */
+	synchronized List<TestLine> getLines() {
+		return new ArrayList<>(mLines);
+	}
+
+	/**
+	 * @return The line most recently opened from this mixer
+	 */
+	synchronized TestLine getLine() {
+		return mLines.get(mLines.size() - 1);
+	}
+
+	@Override
+	public synchronized Line getLine(Line.Info info) throws LineUnavailableException {
+		if (!SourceDataLine.class.equals(info.getLineClass())) {
+			throw new LineUnavailableException("Only output lines are supported");
+		}
+		TestLine line = new TestLine();
+		mLines.add(line);
+		return line;
+	}
+
+	@Override
+	public Info getMixerInfo() {
+		return new Info("TestMixer", "", "", "") {
+		};
+	}
+
+	@Override
+	public Line.Info[] getSourceLineInfo() {
+		return new Line.Info[]{new DataLine.Info(SourceDataLine.class, null)};
+	}
+
+	@Override
+	public Line.Info[] getTargetLineInfo() {
+		return new Line.Info[0];
+	}
+
+	@Override
+	public Line.Info[] getSourceLineInfo(Line.Info info) {
+		return isLineSupported(info) ? getSourceLineInfo() : new Line.Info[0];
+	}
+
+	@Override
+	public Line.Info[] getTargetLineInfo(Line.Info info) {
+		return new Line.Info[0];
+	}
+
+	@Override
+	public boolean isLineSupported(Line.Info info) {
+		return SourceDataLine.class.equals(info.getLineClass());
+	}
+
+	@Override
+	public int getMaxLines(Line.Info info) {
+		return isLineSupported(info) ? AudioSystem.NOT_SPECIFIED : 0;
+	}
+
+	@Override
+	public synchronized Line[] getSourceLines() {
+		return mLines.toArray(new Line[0]);
+	}
+
+	@Override
+	public Line[] getTargetLines() {
+		return new Line[0];
+	}
+
+	@Override
+	public void synchronize(Line[] lines, boolean maintainSync) {
+		throw new IllegalArgumentException("Synchronisation is not supported");
+	}
+
+	@Override
+	public void unsynchronize(Line[] lines) {
+		throw new IllegalArgumentException("Synchronisation is not supported");
+	}
+
+	@Override
+	public boolean isSynchronizationSupported(Line[] lines, boolean maintainSync) {
+		return false;
+	}
+
+	@Override
+	public Line.Info getLineInfo() {
+		return new Line.Info(Mixer.class);
+	}
+
+	@Override
+	public void open() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public Control[] getControls() {
+		return new Control[0];
+	}
+
+	@Override
+	public boolean isControlSupported(Control.Type control) {
+		return false;
+	}
+
+	@Override
+	public Control getControl(Control.Type control) {
+		throw new IllegalArgumentException("No controls are supported");
+	}
+
+	@Override
+	public void addLineListener(LineListener listener) {
+	}
+
+	@Override
+	public void removeLineListener(LineListener listener) {
+	}
+
+	/**
+	 * An output line that keeps everything written to it, and counts the calls that affect continuity of playback
+	 */
+	class TestLine implements SourceDataLine {
+		private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+		private AudioFormat mFormat;
+		private int mBufferSize;
+		private boolean mOpen;
+		private boolean mRunning;
+		private int mDrainCount;
+		private int mFlushCount;
+
+		synchronized byte[] getWritten() {
+			return mWritten.toByteArray();
+		}
+
+		synchronized int getDrainCount() {
+			return mDrainCount;
+		}
+
+		synchronized int getFlushCount() {
+			return mFlushCount;
+		}
+
+		@Override
+		public synchronized void open(AudioFormat format, int bufferSize) {
+			mFormat = format;
+			mBufferSize = bufferSize;
+			mOpen = true;
+		}
+
+		@Override
+		public void open(AudioFormat format) {
+			open(format, Math.round(format.getFrameRate() / 10) * format.getFrameSize());
+		}
+
+		@Override
+		public void open() {
+			throw new IllegalStateException("A format must be given when opening an output line");
+		}
+
+		@Override
+		public int write(byte[] b, int off, int len) {
+			AudioFormat format;
+			synchronized (this) {
+				if (!mOpen) {
+					return 0;
+				}
+				mWritten.write(b, off, len);
+				format = mFormat;
+			}
+			if (mRealTime) {
+				try {
+					Thread.sleep(Math.round(len / (format.getFrameRate() * format.getFrameSize() / 1000)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return len;
+		}
+
+		@Override
+		public synchronized void drain() {
+			mDrainCount += 1;
+		}
+
+		@Override
+		public synchronized void flush() {
+			mFlushCount += 1;
+		}
+
+		@Override
+		public synchronized void start() {
+			mRunning = true;
+		}
+
+		@Override
+		public synchronized void stop() {
+			mRunning = false;
+		}
+
+		@Override
+		public synchronized boolean isRunning() {
+			return mRunning;
+		}
+
+		@Override
+		public synchronized boolean isActive() {
+			return mRunning;
+		}
+
+		@Override
+		public synchronized AudioFormat getFormat() {
+			return mFormat;
+		}
+
+		@Override
+		public synchronized int getBufferSize() {
+			return mBufferSize;
+		}
+
+		@Override
+		public synchronized int available() {
+			return mBufferSize;
+		}
+
+		@Override
+		public synchronized int getFramePosition() {
+			return (int) getLongFramePosition();
+		}
+
+		@Override
+		public synchronized long getLongFramePosition() {
+			return mFormat == null ? 0 : mWritten.size() / mFormat.getFrameSize();
+		}
+
+		@Override
+		public synchronized long getMicrosecondPosition() {
+			return mFormat == null ? 0 : Math.round(getLongFramePosition() * 1000000d / mFormat.getFrameRate());
+		}
+
+		@Override
+		public float getLevel() {
+			return AudioSystem.NOT_SPECIFIED;
+		}
+
+		@Override
+		public Line.Info getLineInfo() {
+			return new DataLine.Info(SourceDataLine.class, mFormat);
+		}
+
+		@Override
+		public synchronized void close() {
+			mOpen = false;
+			mRunning = false;
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return mOpen;
+		}
+
+		@Override
+		public Control[] getControls() {
+			return new Control[0];
+		}
+
+		@Override
+		public boolean isControlSupported(Control.Type control) {
+			return false;
+		}
+
+		@Override
+		public Control getControl(Control.Type control) {
+			throw new IllegalArgumentException("No controls are supported");
+		}
+
+		@Override
+		public void addLineListener(LineListener listener) {
+		}
+
+		@Override
+		public void removeLineListener(LineListener listener) {
+		}
+	}
+}
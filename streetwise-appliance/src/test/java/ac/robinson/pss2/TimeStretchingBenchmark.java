@@ -0,0 +1,36 @@
+package ac.robinson.pss2;
+
+import java.util.Arrays;
+
+/**
+ * Measures how much faster than realtime answers can be time-stretched at each playback speed, using the same
+ * benchmark that SoundPlayer runs in the background the first time a speed is used. Each speed is run several times,
+ * after a warm-up, and the median is compared with the minimum that SoundPlayer accepts. Run on the appliance (the
+ * result depends on its CPU) with:
+ * <pre>gradle benchmark -Pbenchmark=TimeStretchingBenchmark [-PbenchmarkArgs="speed speed ..."]</pre>
+ * By default, 1.25x and 1.5x are measured.
+ */
+class TimeStretchingBenchmark {
+
+	private static final int RUNS = 5;
+	private static final double MIN_REALTIME_FACTOR = 3; // as SoundPlayer.MIN_REALTIME_FACTOR
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		double[] speeds = args.length > 0 ? Arrays.stream(args).mapToDouble(Double::parseDouble).toArray() :
+				new double[]{1.25, 1.5};
+
+		TimeStretchingSource.benchmark(speeds[0]); // warm-up (as in SoundPlayer, the first run includes JIT time)
+		for (double speed : speeds) {
+			double[] realtimeFactors = new double[RUNS];
+			for (int run = 0; run < RUNS; run++) {
+				realtimeFactors[run] = TimeStretchingSource.benchmark(speed);
+			}
+			Arrays.sort(realtimeFactors);
+			double median = realtimeFactors[RUNS / 2];
+			System.out.println(String.format("%.2fx: median %.1fx realtime (min %.1fx, max %.1fx) - %s", speed,
+					median, realtimeFactors[0], realtimeFactors[RUNS - 1], median >= MIN_REALTIME_FACTOR ?
+							"fast enough" : "too slow (minimum " + MIN_REALTIME_FACTOR + "x)"));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package ac.robinson.pss2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeStretchingSourceTest {
+
+	private static final int SAMPLE_RATE = Math.round(AudioOutputEngine.OUTPUT_FORMAT.getSampleRate());
+
+	@Before
+	public void setUp() {
+		Pss2.logToConsoleOnly();
+	}
+
+	/**
+	 * @return A 200Hz tone, as 16-bit little-endian PCM
+	 */
+	private static byte[] tone(int durationMs) {
+		int samples = SAMPLE_RATE * durationMs / 1000;
+		byte[] pcm = new byte[samples * 2];
+		for (int i = 0; i < samples; i++) {
+			int sample = (int) Math.round(0.5 * Math.sin(2 * Math.PI * 200 * i / SAMPLE_RATE) * Short.MAX_VALUE);
+			pcm[2 * i] = (byte) sample;
+			pcm[2 * i + 1] = (byte) (sample >> 8);
+		}
+		return pcm;
+	}
+
+	private static byte[] readAll(TimeStretchingSource source) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1764]; // 20ms
+		int bytesRead;
+		while ((bytesRead = source.read(buffer, 0, buffer.length)) >= 0) {
+			assertEquals(0, bytesRead % 2);
+			output.write(buffer, 0, bytesRead);
+		}
+		return output.toByteArray();
+	}
+
+	@Test
+	public void audioIsPassedThroughUntouchedAt1x() throws IOException {
+		byte[] pcm = tone(500);
+		TimeStretchingSource source = new TimeStretchingSource(new AudioOutputEngine.PcmSource(ByteBuffer.wrap(pcm)),
+				() -> 1);
+		assertArrayEquals(pcm, readAll(source));
+	}
+
+	@Test
+	public void audioIsShortenedInProportionToTheSpeed() throws IOException {
+		byte[] pcm = tone(3000);
+		TimeStretchingSource source = new TimeStretchingSource(new AudioOutputEngine.PcmSource(ByteBuffer.wrap(pcm)),
+				() -> 1.5);
+		double expectedLength = pcm.length / 1.5;
+		int length = readAll(source).length;
+		assertTrue("Output length: " + length, Math.abs(length - expectedLength) < expectedLength * 0.05);
+	}
+
+	@Test
+	public void emptySourceEndsImmediately() throws IOException {
+		TimeStretchingSource source = new TimeStretchingSource(new AudioOutputEngine.PcmSource(ByteBuffer.allocate(0)),
+				() -> 1.5);
+		assertEquals(-1, source.read(new byte[1764], 0, 1764));
+	}
+
+	@Test
+	public void returningTo1xPlaysTheRestOfTheSourceUntouched() throws IOException {
+		byte[] pcm = tone(3000);
+		double[] speed = {1.5};
+		TimeStretchingSource source = new TimeStretchingSource(new AudioOutputEngine.PcmSource(ByteBuffer.wrap(pcm)),
+				() -> speed[0]);
+		byte[] buffer = new byte[1764];
+		for (int i = 0; i < 20; i++) {
+			assertTrue(source.read(buffer, 0, buffer.length) > 0);
+		}
+		speed[0] = 1;
+		byte[] rest = readAll(source);
+
+		// the carried-over samples and everything after them are played as they are, so the output ends with the
+		// source's own audio, and none of it is skipped or repeated
+		int restStart = pcm.length - rest.length;
+		assertTrue(restStart > 0 && restStart < pcm.length);
+		byte[] sourceEnd = new byte[rest.length];
+		System.arraycopy(pcm, restStart, sourceEnd, 0, rest.length);
+		assertArrayEquals(sourceEnd, rest);
+	}
+}
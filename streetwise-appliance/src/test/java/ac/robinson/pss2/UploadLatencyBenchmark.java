@@ -0,0 +1,139 @@
+package ac.robinson.pss2;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the time from the end of speech (i.e., when recording stops) to the question number being returned by the
+ * server, with and without chunked upload, against a ChunkServer that simulates a slow mobile connection. Audio is
+ * captured in real time (each buffer is delayed until it would have arrived from the microphone), encoded as while
+ * recording, and uploaded in the same way as Pss2. Run with:
+ * <pre>gradle benchmark -Pbenchmark=UploadLatencyBenchmark [-PbenchmarkArgs="round-trip-ms upload-bytes-per-sec"]</pre>
+ * By default, a 300ms round trip and 16KB/s upload speed (a poor 3G connection) are simulated.
+ */
+class UploadLatencyBenchmark {
+
+	private static final int RUNS = 3;
+	private static final int SPEECH_MS = 6000;
+	private static final int CHUNK_BYTES = 8 * 1024; // as Pss2.QUESTION_UPLOAD_CHUNK_BYTES
+
+	public static void main(String[] args) throws Exception {
+		Pss2.logToConsoleOnly();
+		int roundTripMs = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int uploadBytesPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+		ChunkServer server = new ChunkServer(0, roundTripMs, uploadBytesPerSecond);
+		byte[] pcm = TestAudio.speech(SPEECH_MS, Pss2.SILENCE_TIMEOUT_MS); // (recording stops after the timeout)
+		File directory = Files.createTempDirectory("UploadLatencyBenchmark").toFile();
+		Mp3Encoder codec = new Mp3Encoder(TestAudio.FORMAT);
+		PcmBuffer pcmBuffer = new PcmBuffer(pcm.length);
+		ExecutorService uploadStage = Executors.newSingleThreadExecutor();
+
+		long[] chunked = new long[RUNS];
+		long[] complete = new long[RUNS];
+		for (int run = 0; run < RUNS; run++) {
+			complete[run] = recordAndUpload(pcm, codec, pcmBuffer, new File(directory, run + ".mp3"), server, null,
+					uploadStage);
+			chunked[run] = recordAndUpload(pcm, codec, pcmBuffer, new File(directory, run + "-chunked.mp3"), server,
+					new ChunkedQuestionUpload(server.getUrl() + "question_chunk.php", server.getUrl() + "question.php",
+							1, "benchmark-" + run, codec.getFileExtension(), CHUNK_BYTES), uploadStage);
+		}
+		uploadStage.shutdown();
+		codec.close();
+		server.stop();
+
+		System.out.println(String.format("Simulated connection: %dms round trip; %d bytes per second upload",
+				roundTripMs, uploadBytesPerSecond));
+		report("Upload after encoding", complete);
+		report("Chunked upload", chunked);
+		for (File file : directory.listFiles()) {
+			//noinspection ResultOfMethodCallIgnored // we don't mind if this fails - it is a temporary directory
+			file.delete();
+		}
+		//noinspection ResultOfMethodCallIgnored // as above
+		directory.delete();
+	}
+
+	/**
+	 * @return The time (ms) from the end of recording to the question number being received
+	 */
+	private static long recordAndUpload(byte[] pcm, AudioCodec codec, PcmBuffer pcmBuffer, File outputFile,
+										ChunkServer server, ChunkedQuestionUpload chunkedUpload,
+										ExecutorService uploadStage) throws Exception {
+		PcmBuffer.Recording recording = pcmBuffer.startRecording(0);
+		EncodingProcessor encodingProcessor = new EncodingProcessor(codec, recording, outputFile);
+		encodingProcessor.setEncodeRange(0, pcm.length);
+		Future<String> chunkedResponse = null;
+		if (chunkedUpload != null) {
+			encodingProcessor.setEncodedDataListener(chunkedUpload::onDataWritten);
+			chunkedResponse = uploadStage.submit(chunkedUpload::upload);
+		}
+
+		long captureStartTime = System.nanoTime();
+		for (int offset = 0; offset < pcm.length; offset += TestAudio.DISPATCHER_BUFFER_BYTES) {
+			long arrivalTime = captureStartTime + offset * 1000000L / TestAudio.BYTES_PER_MS;
+			long waitNanos = arrivalTime - System.nanoTime();
+			if (waitNanos > 0) {
+				Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}
+			pcmBuffer.write(pcm, offset, Math.min(TestAudio.DISPATCHER_BUFFER_BYTES, pcm.length - offset));
+			encodingProcessor.process(null); // (the event isn't used - audio is read from the PcmBuffer)
+		}
+
+		long endOfSpeech = System.currentTimeMillis();
+		recording.stop();
+		File completedFile = encodingProcessor.finish(); // (on the encoding stage in Pss2)
+		String response;
+		if (chunkedUpload != null) {
+			chunkedUpload.onCompleted(completedFile);
+			response = chunkedResponse.get();
+		} else {
+			response = uploadStage.submit(() -> upload(server, completedFile, codec)).get();
+		}
+		long latency = System.currentTimeMillis() - endOfSpeech;
+
+		int questionNumber = Integer.parseInt(response.split(",")[0]); // fails if the response is an error
+		if (!Arrays.equals(Files.readAllBytes(completedFile.toPath()), server.getQuestion(questionNumber))) {
+			throw new IOException("Uploaded question " + questionNumber + " doesn't match the recording");
+		}
+		return latency;
+	}
+
+	/**
+	 * Upload the whole file in one request, as Pss2.uploadQuestion does when chunked upload is disabled
+	 */
+	private static String upload(ChunkServer server, File questionFile, AudioCodec codec) throws IOException {
+		RequestBody requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM)
+				.addFormDataPart("question", questionFile.getName(), RequestBody.create(MediaType.parse(
+						codec.getMimeType()), questionFile))
+				.addFormDataPart("source", "1")
+				.addFormDataPart("k", Pss2.SERVER_KEY)
+				.build();
+		Request request = new Request.Builder().url(server.getUrl() + "question.php").post(requestBody).build();
+		try (Response response = Pss2.getOkHttpClient().newCall(request).execute()) {
+			ResponseBody responseBody = response.body();
+			if (!response.isSuccessful() || responseBody == null) {
+				throw new IOException("Upload response unsuccessful");
+			}
+			return responseBody.string();
+		}
+	}
+
+	private static void report(String name, long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		System.out.println(String.format("%s: median %dms from end of speech to question number (min %dms, max %dms)",
+				name, sorted[sorted.length / 2], sorted[0], sorted[sorted.length - 1]));
+	}
+}
@@ -39,4 +39,17 @@ $QUESTION_RESERVATION_TIME = 240;
 // The default value of 600 (seconds) means that all answers from the past 10 minutes will be included in the response to this check. Normally, this value would not need to be changed.
 $RECENT_ANSWERS_LIST_TIME = 600;
 
+// Answers are saved with their index first (rearranged by ffmpeg, without re-encoding), so that speech appliances can start playing them while they are still downloading.
+// Set this to the full path of ffmpeg if it is not on the web server's path. If ffmpeg isn't available, or this is left blank, answers are saved exactly as uploaded, and appliances wait for each download to finish before playing it.
+$FFMPEG_PATH = 'ffmpeg';
+
+// Speech appliances also keep a connection open to be notified of new answers as soon as they are received (see answer_events.php).
+// Each connection lasts for this long (in seconds) before the appliance reconnects; lower this if your server or any proxy in front of it closes long requests.
+// While connected, a keep-alive message is sent after this many seconds (default: 15) without any other messages.
+$ANSWER_EVENTS_TIME = 300;
+$ANSWER_EVENTS_KEEPALIVE_TIME = 15;
+
+// Speech appliances can upload questions in chunks while they are still being recorded. If a chunked upload is not completed within this time (in seconds), its partial file is deleted.
+$ABANDONED_UPLOAD_TIME = 3600;
+
 ?>
\ No newline at end of file
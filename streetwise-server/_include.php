@@ -15,6 +15,48 @@ function logMessage($message) {
 	file_put_contents($LOG_FILE_PATH . 'streetwise.log', '[' . round(microtime(true) * 1000) . ' : ' . session_id() . ' : ' . $REQUEST_SOURCE . ']: ' . $message . "\n", FILE_APPEND | LOCK_EX);
 }
 
+// the partial file for a question that is uploaded in chunks (see question_chunk.php)
+function getQuestionUploadFile($uploadId) {
+	global $BASE_QUESTION_DIRECTORY;
+	if (preg_match('/^[0-9A-Za-z_-]{1,128}$/', $uploadId) !== 1) {
+		throw new RuntimeException('Invalid upload id');
+	}
+	return $BASE_QUESTION_DIRECTORY . 'upload-' . $uploadId . '.part';
+}
+
+// an empty file whose name records the source (i.e., the appliance) that asked a question, so that its answer can be
+// streamed to that appliance as soon as it is received (see answer_events.php)
+function getQuestionSourceFile($questionNumber, $source) {
+	global $BASE_QUESTION_DIRECTORY;
+	return $BASE_QUESTION_DIRECTORY . intval($questionNumber) . '-' . intval($source) . '.source';
+}
+
+// save an uploaded m4a answer with its index (moov atom) before its audio data, so that appliances can play it while
+// it is still downloading (the answer app writes the index at the end) - if this isn't possible it is saved as uploaded;
+// the answer's modification time is then set to when it appeared, as answer lists and events use it as a cursor (see
+// responses.php) - renaming keeps the time the file was written, which could be before a cursor already returned
+function saveAnswerForStreaming($uploadedFile, $answerFile) {
+	global $FFMPEG_PATH;
+	if (!empty($FFMPEG_PATH)) {
+		$rearrangedFile = $answerFile . '.faststart';
+		$output = array();
+		$result = -1;
+		exec(escapeshellarg($FFMPEG_PATH) . ' -nostdin -loglevel error -y -i ' . escapeshellarg($uploadedFile) .
+			' -c copy -movflags +faststart -f mp4 ' . escapeshellarg($rearrangedFile) . ' 2>&1', $output, $result);
+		clearstatcache();
+		if ($result === 0 && file_exists($rearrangedFile) && filesize($rearrangedFile) > 0 &&
+			rename($rearrangedFile, $answerFile)) {
+			unlink($uploadedFile);
+			return touch($answerFile);
+		}
+		logMessage('Unable to rearrange answer for streaming (' . $result . ': ' . implode(' ', $output) . ') - saving as uploaded');
+		if (file_exists($rearrangedFile)) {
+			unlink($rearrangedFile);
+		}
+	}
+	return rename($uploadedFile, $answerFile) && touch($answerFile);
+}
+
 $REQUEST_SOURCE = -1; // for identification of individual applicance and app instances
 if (isset($_REQUEST['source'])) {
 	$REQUEST_SOURCE = intval($_REQUEST['source']);
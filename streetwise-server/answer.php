@@ -21,7 +21,7 @@ try {
 
 	// check whether local question exists
 	logMessage('Started upload of answer to question ' . $questionId . ' (answer upload)');
-	$questionFile = preg_grep('/^' . $questionId . '-.*\.mp3$/', scandir($BASE_HUMAN_QUESTION_DIRECTORY));
+	$questionFile = preg_grep('/^' . $questionId . '-.*\.(mp3|ogg)$/', scandir($BASE_HUMAN_QUESTION_DIRECTORY));
 	if (!$questionFile) {
 		throw new RuntimeException('Question id not found (answer upload)');
 	}
@@ -58,31 +58,21 @@ try {
 		sha1_file($_FILES['answer']['tmp_name'])
 	);
 
-	// save this as an alternative response if the answer already exists
-	$updateTime = round(microtime(true) * 1000);
+	// the file name is a hash of the upload, so if it already exists then this is likely a retry by the app - ignore (but
+	// return name); sizes can't be compared, as saved answers are rearranged for streaming (see saveAnswerForStreaming)
 	if(file_exists($fileName)) {
-		// if the uploaded file size is identical to the existing file then this is likely a retry by the app - ignore (but return name)
-		if ($_FILES['answer']['size'] == filesize($fileName)) {
-			logMessage('Exact duplicate of answer to question ' . $questionId . ' - ignoring (answer upload)');
-
-		// otherwise rename (archive) and reject
-		} else {
-			if (!move_uploaded_file(
-				$_FILES['answer']['tmp_name'],
-				$fileName . '.' . $updateTime . '.new'
-			)) {
-				throw new RuntimeException('Unknown save error on duplicate (answer upload)'); // failed to move file
-			}
-
-			throw new RuntimeException('Question already answered (answer upload)');
-		}
+		logMessage('Exact duplicate of answer to question ' . $questionId . ' - ignoring (answer upload)');
 	} else {
+		$uploadedFile = $fileName . '.upload';
 		if (!move_uploaded_file(
 			$_FILES['answer']['tmp_name'],
-			$fileName
+			$uploadedFile
 		)) {
 			throw new RuntimeException('Unknown save error (answer upload)'); // failed to move file
 		}
+		if (!saveAnswerForStreaming($uploadedFile, $fileName)) {
+			throw new RuntimeException('Unknown save error after upload (answer upload)'); // failed to rename file
+		}
 	}
 
 	$voiceFileUrl = $ROOT_URL . $fileName;
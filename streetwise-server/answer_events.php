@@ -0,0 +1,81 @@
+<?php
+// this API streams answers to speech appliances as they are received (as server-sent events), so appliances don't have
+// to wait for their next check of the answered list (see responses.php); each connection is held open for up to
+// $ANSWER_EVENTS_TIME seconds, after which the appliance reconnects, passing the id of the last event it received
+// only answers to questions asked at the requesting appliance (its source) are streamed - see getQuestionSourceFile;
+// answers to other questions are still found by the appliance's periodic check
+require('_include.php');
+
+header('Content-Type: text/event-stream; charset=utf-8');
+header('Cache-Control: no-cache');
+header('X-Accel-Buffering: no'); // ask proxies (e.g., nginx) to send each event as soon as it is written
+try {
+	if (!isset($_GET['k'])) {
+		throw new RuntimeException('Incorrect key 1 (answer events)');
+	}
+	if (strcmp($SPEECH_APPLIANCE_KEY, $_GET['k']) !== 0) {
+		throw new RuntimeException('Incorrect key 2 (answer events)');
+	}
+
+	// event ids are answer modification times (in seconds); answers from the same second as the last event are sent
+	// again on reconnection, as there could be others from that second that were not yet received - these duplicates are
+	// ignored by the appliance
+	$since = isset($_GET['since']) ? intval($_GET['since']) : time();
+	$since = max($since, time() - $RECENT_ANSWERS_LIST_TIME);
+
+	session_write_close(); // don't hold the session lock while waiting
+	set_time_limit($ANSWER_EVENTS_TIME + 30);
+	while (ob_get_level() > 0) {
+		ob_end_flush();
+	}
+
+	logMessage('Started answer event stream from ' . $since . ' (answer events)');
+	echo "retry: 10000\n\n";
+	flush();
+
+	$startTime = time();
+	$lastWriteTime = $startTime;
+	$sentAnswers = array();
+	while (time() - $startTime < $ANSWER_EVENTS_TIME && !connection_aborted()) {
+		clearstatcache();
+		$sourceQuestions = array();
+		$sourceFiles = preg_grep('/^\d{4}-' . $REQUEST_SOURCE . '\.source$/', scandir($BASE_QUESTION_DIRECTORY));
+		foreach ($sourceFiles as $item) {
+			$sourceQuestions[] = intval(explode('-', $item)[0]);
+		}
+
+		// new answers are sent oldest first, so event ids never decrease (otherwise, reconnecting with the id of the
+		// last event received could miss answers)
+		$newAnswers = array();
+		$answerFiles = preg_grep('/^\d{4}-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
+		foreach ($answerFiles as $item) {
+			if (!isset($sentAnswers[$item]) && in_array(intval(explode('-', $item)[0]), $sourceQuestions)) {
+				$modifiedTime = filemtime($BASE_ANSWER_DIRECTORY . $item);
+				if ($modifiedTime >= $since) {
+					$newAnswers[$item] = $modifiedTime;
+				}
+			}
+		}
+		asort($newAnswers);
+		foreach ($newAnswers as $item => $modifiedTime) {
+			echo 'id: ' . $modifiedTime . "\n";
+			echo 'data: {"id":' . explode('-', $item)[0] . ',"url":"' . $ROOT_URL . $BASE_ANSWER_DIRECTORY . $item . '"}' . "\n\n";
+			$sentAnswers[$item] = true;
+			$lastWriteTime = time();
+		}
+
+		// a comment line every so often lets the appliance (and any proxies) know the connection is still alive
+		if (time() - $lastWriteTime >= $ANSWER_EVENTS_KEEPALIVE_TIME) {
+			echo ": keepalive\n\n";
+			$lastWriteTime = time();
+		}
+		flush();
+		sleep(1);
+	}
+	logMessage('Answer event stream ended after ' . count($sentAnswers) . ' events (answer events)');
+
+} catch (RuntimeException $e) {
+	logMessage('Answer events error: ' . $e->getMessage());
+	echo 'event: error' . "\n" . 'data: error' . "\n\n";
+}
+?>
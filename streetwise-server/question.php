@@ -13,7 +13,7 @@ try {
 
 	// get previously used question numbers
 	$usedNumbers = array(0, 1234); // cannot have 0000 or 1234 as an ID (1234 is the helper question; 0 is search start point, below)
-	$questionFiles = preg_grep('/^\.(mp3)$/', scandir($BASE_QUESTION_DIRECTORY));
+	$questionFiles = preg_grep('/^\.(mp3|ogg)$/', scandir($BASE_QUESTION_DIRECTORY));
 	foreach($questionFiles as $file) {
 		$fileParts = explode('-', $file);
 		$usedNumbers[] = intval($fileParts[0]);
@@ -29,36 +29,59 @@ try {
 
 	logMessage('Started upload for question ' . $currentQuestionNumber . ' (question submission)');
 
-	// undefined | multiple files | $_FILES corruption attack: invalid
-	if (!isset($_FILES['question']['error']) ||
-		is_array($_FILES['question']['error'])) {
-		throw new RuntimeException('Unknown file error (question submission)');
-	}
+	if (isset($_POST['upload'])) {
+		// the question was sent in chunks while it was being recorded (see question_chunk.php) - check we have it all
+		if (!isset($_POST['size'])) {
+			throw new RuntimeException('Missing upload size (question submission)');
+		}
+		$uploadFile = getQuestionUploadFile($_POST['upload']);
+		clearstatcache();
+		if (!file_exists($uploadFile) || filesize($uploadFile) !== intval($_POST['size'])) {
+			throw new RuntimeException('Incomplete chunked upload (question submission)');
+		}
+		$sourceFile = $uploadFile;
+		$sourceFormat = isset($_POST['format']) ? $_POST['format'] : 'mp3';
+
+	} else {
+		// undefined | multiple files | $_FILES corruption attack: invalid
+		if (!isset($_FILES['question']['error']) ||
+			is_array($_FILES['question']['error'])) {
+			throw new RuntimeException('Unknown file error (question submission)');
+		}
 
-	// $_FILES['question']['error'] values mean various failures
-	switch ($_FILES['question']['error']) {
-		case UPLOAD_ERR_OK:
-			break;
-		case UPLOAD_ERR_NO_FILE:
-			throw new RuntimeException('No file sent (question submission)'); // no file sent
-		case UPLOAD_ERR_INI_SIZE:
-		case UPLOAD_ERR_FORM_SIZE:
-			throw new RuntimeException('Invalid file size (question submission)'); // file too big
-		default:
-			throw new RuntimeException('Unknown error (question submission)');
+		// $_FILES['question']['error'] values mean various failures
+		switch ($_FILES['question']['error']) {
+			case UPLOAD_ERR_OK:
+				break;
+			case UPLOAD_ERR_NO_FILE:
+				throw new RuntimeException('No file sent (question submission)'); // no file sent
+			case UPLOAD_ERR_INI_SIZE:
+			case UPLOAD_ERR_FORM_SIZE:
+				throw new RuntimeException('Invalid file size (question submission)'); // file too big
+			default:
+				throw new RuntimeException('Unknown error (question submission)');
+		}
+
+		// check filesize
+		if ($_FILES['question']['size'] > 1500000) {
+			throw new RuntimeException('File size error (question submission)'); // file too big - 1500000 bytes is about 1.5 mins in mp3
+		}
+		$sourceFile = $_FILES['question']['tmp_name'];
+		$sourceFormat = strtolower(pathinfo($_FILES['question']['name'], PATHINFO_EXTENSION));
 	}
 
-	// check filesize
-	if ($_FILES['question']['size'] > 1500000) {
-		throw new RuntimeException('File size error (question submission)'); // file too big - 1500000 bytes is about 1.5 mins in mp3
+	// appliances may record questions as mp3 or (on metered connections) ogg (opus); anything else is invalid
+	if (!in_array($sourceFormat, array('mp3', 'ogg'), TRUE)) {
+		throw new RuntimeException('Invalid file format (question submission)');
 	}
 
 	// can't trust the given name, so just hash the file itself for a safe version
 	// we keep the id in the filename as well for answer parsing
-	$fileName = sprintf('%s%d-%s.mp3',
+	$fileName = sprintf('%s%d-%s.%s',
 		$BASE_QUESTION_DIRECTORY,
 		$currentQuestionNumber,
-		sha1_file($_FILES['question']['tmp_name'])
+		sha1_file($sourceFile),
+		$sourceFormat
 	);
 
 	// archive existing file if present (e.g., question number reuse)
@@ -67,13 +90,16 @@ try {
 		rename($fileName, $fileName . '.' . $updateTime . '.old');
 	}
 
-	if (!move_uploaded_file(
-		$_FILES['question']['tmp_name'],
-		$fileName
-	)) {
+	if (!(isset($uploadFile) ? rename($sourceFile, $fileName) : move_uploaded_file($sourceFile, $fileName))) {
 		throw new RuntimeException('Unknown save error (question submission)'); // failed to move file
 	}
 
+	// record which appliance asked the question, replacing any record from a previous use of its number
+	foreach (preg_grep('/^' . $currentQuestionNumber . '-\d+\.source$/', scandir($BASE_QUESTION_DIRECTORY)) as $item) {
+		unlink($BASE_QUESTION_DIRECTORY . $item);
+	}
+	touch(getQuestionSourceFile($currentQuestionNumber, $REQUEST_SOURCE));
+
 	$voiceFileUrl = $ROOT_URL . $fileName;
 	logMessage('Upload completed for question; now sending request to crowd: ' . $currentQuestionNumber . ', ' . $voiceFileUrl);
 	echo $currentQuestionNumber . ',' . $voiceFileUrl;
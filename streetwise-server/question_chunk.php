@@ -0,0 +1,58 @@
+<?php
+// this API receives part of an audio recording of a question while it is still being recorded; once all parts have
+// been sent, question.php is called with the same upload id to complete (commit) the question and send it for answering
+require('_include.php');
+
+header('Content-Type: text/plain; charset=utf-8'); // return plain text for JS parsing of result
+try {
+	if (!isset($_POST['k'])) {
+		throw new RuntimeException('Incorrect key 1 (question chunk)');
+	}
+	if (strcmp($SPEECH_APPLIANCE_KEY, $_POST['k']) !== 0) {
+		throw new RuntimeException('Incorrect key 2 (question chunk)');
+	}
+
+	if (!isset($_POST['upload']) || !isset($_POST['offset'])) {
+		throw new RuntimeException('Missing upload id or offset (question chunk)');
+	}
+	$uploadFile = getQuestionUploadFile($_POST['upload']);
+	$offset = intval($_POST['offset']);
+
+	// undefined | multiple files | $_FILES corruption attack: invalid
+	if (!isset($_FILES['chunk']['error']) ||
+		is_array($_FILES['chunk']['error']) ||
+		$_FILES['chunk']['error'] !== UPLOAD_ERR_OK) {
+		throw new RuntimeException('Chunk file error (question chunk)');
+	}
+
+	// chunks are appended in order; a chunk we already have (e.g., a retry after a lost response) is ignored, and in
+	// either case the response is the number of bytes received so far, so the appliance knows where to continue from
+	clearstatcache();
+	$receivedSize = file_exists($uploadFile) ? filesize($uploadFile) : 0;
+	if ($offset === $receivedSize) {
+		if ($receivedSize + $_FILES['chunk']['size'] > 1500000) {
+			throw new RuntimeException('File size error (question chunk)'); // same limit as for complete questions
+		}
+		$chunkData = file_get_contents($_FILES['chunk']['tmp_name']);
+		if ($chunkData === FALSE || file_put_contents($uploadFile, $chunkData, FILE_APPEND | LOCK_EX) === FALSE) {
+			throw new RuntimeException('Chunk save error (question chunk)');
+		}
+		$receivedSize += strlen($chunkData);
+	} else {
+		logMessage('Ignoring chunk at ' . $offset . ' for upload ' . $_POST['upload'] . ' (have ' . $receivedSize . ' bytes)');
+	}
+
+	echo 'ok,' . $receivedSize;
+
+	// remove any uploads that were abandoned (e.g., the appliance lost power while recording)
+	foreach (glob($BASE_QUESTION_DIRECTORY . 'upload-*.part') as $partFile) {
+		if ((time() - filemtime($partFile)) > $ABANDONED_UPLOAD_TIME) {
+			unlink($partFile);
+		}
+	}
+
+} catch (RuntimeException $e) {
+	logMessage('Question chunk upload error: ' . $e->getMessage());
+	echo 'error';
+}
+?>
@@ -21,7 +21,7 @@ try {
 
 	// check whether local question (and answer) exist
 	logMessage('Started question reservation (question reservation)');
-	$questionFile = preg_grep('/^' . $questionId . '-.*\.mp3$/', scandir($BASE_QUESTION_DIRECTORY));
+	$questionFile = preg_grep('/^' . $questionId . '-.*\.(mp3|ogg)$/', scandir($BASE_QUESTION_DIRECTORY));
 	if (count($questionFile) >= 1) {
 		$answerFile = preg_grep('/^' . $questionId . '-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
 		if (count($answerFile) >= 1) {
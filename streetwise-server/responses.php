@@ -1,5 +1,6 @@
 <?php
-// this API lists either the answers received within the last 10 minutes, the unanswered questions, or a single task by id
+// this API lists either the answers received within the last 10 minutes (or since a given cursor), the unanswered
+// questions, or a single task by id
 require('_include.php');
 
 header('Content-Type: text/plain; charset=utf-8'); // return plain text for JS parsing of result
@@ -18,7 +19,7 @@ try {
 		}
 
 		logMessage('Started single response retrieval for question ' . $requestedId . ' (single response list)');
-		$questionFile = preg_grep('/^' . $requestedId . '-.*\.mp3$/', scandir($BASE_QUESTION_DIRECTORY));
+		$questionFile = preg_grep('/^' . $requestedId . '-.*\.(mp3|ogg)$/', scandir($BASE_QUESTION_DIRECTORY));
 		if ($questionFile) {
 			$answerFile = preg_grep('/^' . $requestedId . '-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
 			if ($answerFile) {
@@ -43,7 +44,27 @@ try {
 			throw new RuntimeException('Incorrect type 1 (response list)');
 		}
 
-		if (strcasecmp($_GET['type'], 'answered') === 0) {
+		if (strcasecmp($_GET['type'], 'answered') === 0 && isset($_GET['since'])) {
+			// incremental version: answers modified at or after the given cursor (an answer modification time, in
+			// seconds), and the cursor to use next time - answers from the cursor's second are included again, as others
+			// from that second may have arrived since, so the appliance ignores any it has already seen; answers are
+			// touched once they are in place (see saveAnswerForStreaming), so none can appear with an earlier time
+			$since = intval($_GET['since']);
+			logMessage('Started answered question list retrieval since ' . $since . ' (response list)');
+			$answerFiles = preg_grep('/^\d{4}-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
+			$cursor = $since;
+			$answers = array();
+			foreach($answerFiles as $item) {
+				$modifiedTime = filemtime($BASE_ANSWER_DIRECTORY . $item);
+				if ($modifiedTime >= $since) {
+					$answers[] = '{"id":' . explode('-', $item)[0] . ',"url":"' . $ROOT_URL . $BASE_ANSWER_DIRECTORY . $item . '"}';
+					$cursor = max($cursor, $modifiedTime);
+				}
+			}
+			echo '{"cursor":' . $cursor . ',"answers":[' . implode(',', $answers) . ']}';
+			logMessage('Answered question list success (' . count($answers) . ' answers; response list)');
+
+		} else if (strcasecmp($_GET['type'], 'answered') === 0) {
 			logMessage('Started answered question list retrieval (response list)');
 			$answerFiles = preg_grep('/^\d{4}-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
 			$echoed = false;
@@ -62,7 +83,7 @@ try {
 
 		} else if (strcasecmp($_GET['type'], 'unanswered') === 0) {
 			logMessage('Started unanswered question list retrieval (response list)');
-			$questionFiles = preg_grep('/^\d{4}-.*\.mp3$/', scandir($BASE_QUESTION_DIRECTORY));
+			$questionFiles = preg_grep('/^\d{4}-.*\.(mp3|ogg)$/', scandir($BASE_QUESTION_DIRECTORY));
 			$answerFiles = preg_grep('/^\d{4}-.*\.m4a$/', scandir($BASE_ANSWER_DIRECTORY));
 			$reservedFiles = preg_grep('/^\d{4}-\d+\.reserved$/', scandir($BASE_ANSWER_DIRECTORY));
 			$echoed = false;